@@ -19,7 +19,3 @@
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
 #-renamesourcefileattribute SourceFile
--keep class * implements com.coremedia.iso.boxes.Box { *; }
--dontwarn com.coremedia.iso.boxes.**
--dontwarn com.googlecode.mp4parser.authoring.tracks.mjpeg.**
--dontwarn com.googlecode.mp4parser.authoring.tracks.ttml.**
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 录制过程中的增量合并
+ * <p>
+ * 每个视频块录制完成后立即在后台线程追加到合并文件 (ftyp + mdat) 中 , 并记录追加之前的 Checkpoint ,
+ * 删除视频块时回滚到它的 Checkpoint , 再重新追加它后面的视频块
+ * 最终合并时只需要追加还没有合并的视频块 (通常是最后一个) 并写入 moov
+ * <p>
+ * 所有对 Mp4PartConcatenator 的操作都在同一个线程中执行
+ */
+class IncrementalPartMerger {
+
+    private static final String TAG = "IncrementalPartMerger";
+
+    interface ProgressListener {
+        /**
+         * @param progress 0 - 1
+         */
+        void onProgress(float progress);
+    }
+
+    private final File mOutputFile;
+    private final File mTempFile;
+    private final ExecutorService mExecutor;
+    private Mp4PartConcatenator mConcatenator;
+    private final List<MultiPartRecorder.Part> mMergedParts = new ArrayList<>();
+    private final List<Mp4PartConcatenator.Checkpoint> mCheckpoints = new ArrayList<>();
+
+    IncrementalPartMerger(File outputFile) {
+        mOutputFile = outputFile;
+        mTempFile = new File(outputFile.getPath() + ".merging");
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * 在后台追加一个已经录制完成的视频块
+     */
+    void append(final MultiPartRecorder.Part part) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendPart(part);
+                } catch (IOException e) {
+                    // 最终合并时会重新尝试追加 , 那时再报告错误
+                    LogUtil.loge(TAG, "append part error " + part + " " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台移除一个已经追加的视频块
+     */
+    void remove(final MultiPartRecorder.Part part) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int index = mMergedParts.indexOf(part);
+                if (index < 0) return;
+                List<MultiPartRecorder.Part> following = new ArrayList<>(mMergedParts.subList(index + 1, mMergedParts.size()));
+                try {
+                    rollbackTo(index);
+                    for (MultiPartRecorder.Part p : following) {
+                        appendPart(p);
+                    }
+                } catch (IOException e) {
+                    LogUtil.loge(TAG, "remove part error " + part + " " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 完成合并 : 让已经合并的视频块和 parts 保持一致 , 追加剩下的视频块 , 写入 moov 并移动到输出文件
+     * 完成之后会重置状态 , 可以开始下一次录制
+     */
+    Future<File> finish(final MultiPartRecorder.Part[] parts, final ProgressListener listener) {
+        return mExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                try {
+                    return finishInternal(parts, listener);
+                } finally {
+                    reset();
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止后台线程并删除临时文件
+     */
+    void release() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private File finishInternal(MultiPartRecorder.Part[] parts, final ProgressListener listener) throws IOException {
+        int matched = 0;
+        while (matched < mMergedParts.size() && matched < parts.length && mMergedParts.get(matched).equals(parts[matched])) {
+            matched++;
+        }
+        if (matched < mMergedParts.size()) rollbackTo(matched);
+        LogUtil.logd(TAG, "finish merge , " + matched + " parts already merged , " + (parts.length - matched) + " remaining");
+
+        long remainingBytes = 0;
+        for (int i = matched; i < parts.length; i++) {
+            remainingBytes += parts[i].file.length();
+        }
+        final long startBytes = mConcatenator == null ? 0 : mConcatenator.getBytesCopied();
+        final long totalBytes = Math.max(1, remainingBytes);
+        for (MultiPartRecorder.Part part : Arrays.asList(parts).subList(matched, parts.length)) {
+            Mp4PartConcatenator concatenator = obtainConcatenator();
+            if (listener != null) {
+                concatenator.setProgressListener(new Mp4PartConcatenator.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesCopied) {
+                        listener.onProgress(Math.min(1f, (float) (bytesCopied - startBytes) / totalBytes));
+                    }
+                });
+            }
+            appendPart(part);
+        }
+        if (mConcatenator == null) throw new IOException("no part to merge");
+        mConcatenator.finish();
+        mConcatenator = null;
+        if (mOutputFile.exists() && !mOutputFile.delete()) {
+            throw new IOException("cannot delete " + mOutputFile);
+        }
+        if (!mTempFile.renameTo(mOutputFile)) {
+            throw new IOException("cannot rename " + mTempFile + " to " + mOutputFile);
+        }
+        if (listener != null) listener.onProgress(1f);
+        return mOutputFile;
+    }
+
+    private void appendPart(MultiPartRecorder.Part part) throws IOException {
+        Mp4PartConcatenator concatenator = obtainConcatenator();
+        Mp4PartConcatenator.Checkpoint checkpoint = concatenator.checkpoint();
+        long start = System.currentTimeMillis();
+        concatenator.appendPart(part.file);
+        mMergedParts.add(part);
+        mCheckpoints.add(checkpoint);
+        LogUtil.logd(TAG, "append " + part.file.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * 回滚到第 index 个视频块追加之前的状态
+     */
+    private void rollbackTo(int index) throws IOException {
+        mConcatenator.rollback(mCheckpoints.get(index));
+        while (mMergedParts.size() > index) {
+            mMergedParts.remove(mMergedParts.size() - 1);
+            mCheckpoints.remove(mCheckpoints.size() - 1);
+        }
+    }
+
+    private Mp4PartConcatenator obtainConcatenator() throws IOException {
+        if (mConcatenator == null) {
+            mConcatenator = new Mp4PartConcatenator(mTempFile);
+        }
+        return mConcatenator;
+    }
+
+    private void reset() {
+        if (mConcatenator != null) {
+            try {
+                mConcatenator.close();
+            } catch (IOException e) {
+                LogUtil.loge(TAG, "close concatenator error " + e);
+            }
+            mConcatenator = null;
+        }
+        mMergedParts.clear();
+        mCheckpoints.clear();
+        if (mTempFile.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            mTempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,754 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.BoxParser;
+import com.erlei.videorecorder.mp4.BoxScanner;
+import com.erlei.videorecorder.mp4.BoxWriter;
+import com.erlei.videorecorder.mp4.Mp4Boxes;
+import com.erlei.videorecorder.mp4.SampleTable;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 流式的 MP4 拼接
+ * <p>
+ * 每个视频块只解析 moov (以及 fragmented MP4 的 moof) , 合并后的 sample table 保存在 SampleTable 中 ,
+ * mdat 中的数据通过 FileChannel.transferTo 直接拷贝到输出文件 , 不会经过 Java 堆
+ * 输出文件的结构是 ftyp + mdat + moov , moov 在 finish() 中写入
+ * <p>
+ * 轨道按 handler 类型 (vide / soun) 以及出现的顺序匹配 , 视频块之间音视频时长不一致时 ,
+ * 会延长较短轨道的最后一个 sample , 避免音视频逐渐不同步 . 视频块中的 edts 会被丢弃
+ * 非线程安全
+ */
+public class Mp4PartConcatenator {
+
+    private static final String TAG = "Mp4PartConcatenator";
+
+    /**
+     * 每次 transferTo 的最大字节数 , 用于更新进度
+     */
+    private static final long TRANSFER_SLICE = 8 * 1024 * 1024;
+    /**
+     * 预留给 mdat 头的大小 , finish() 时写成 free + mdat (32 位) 或者 mdat (64 位)
+     */
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    public interface ProgressListener {
+        /**
+         * @param bytesCopied 已经拷贝的 mdat 数据的总字节数
+         */
+        void onProgress(long bytesCopied);
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mMdatPosition;
+    private long mWritePosition;
+    private final List<MergedTrack> mTracks = new ArrayList<>();
+    private long mBytesCopied;
+    private int mPartCount;
+    private boolean mFinished;
+    private ProgressListener mProgressListener;
+
+    public Mp4PartConcatenator(File output) throws IOException {
+        mFile = new RandomAccessFile(output, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.truncate(0);
+        BoxWriter writer = new BoxWriter(64);
+        Mp4Boxes.writeFtyp(writer, "isom", "isom", "iso2", "avc1", "mp41");
+        mMdatPosition = writer.writeTo(mChannel, 0);
+        mWritePosition = mMdatPosition + MDAT_HEADER_SIZE;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    public int getPartCount() {
+        return mPartCount;
+    }
+
+    public long getBytesCopied() {
+        return mBytesCopied;
+    }
+
+    /**
+     * 记录当前的状态 , 之后可以通过 rollback() 撤销这之后追加的视频块
+     */
+    public Checkpoint checkpoint() {
+        return new Checkpoint(this);
+    }
+
+    /**
+     * 撤销 checkpoint 之后追加的视频块 , sample table 截断到 checkpoint 时的长度 , 输出文件也会被截断
+     */
+    public void rollback(Checkpoint checkpoint) throws IOException {
+        if (mFinished) throw new IllegalStateException("concatenator already finished");
+        if (checkpoint.mOwner != this) throw new IllegalArgumentException("checkpoint is not created by this concatenator");
+        while (mTracks.size() > checkpoint.mTracks.length) {
+            mTracks.remove(mTracks.size() - 1);
+        }
+        for (int i = 0; i < checkpoint.mTracks.length; i++) {
+            mTracks.get(i).restore(checkpoint.mTracks[i]);
+        }
+        mWritePosition = checkpoint.mWritePosition;
+        mBytesCopied = checkpoint.mBytesCopied;
+        mPartCount = checkpoint.mPartCount;
+        mChannel.truncate(mWritePosition);
+    }
+
+    /**
+     * 追加一个视频块 , 它的 mdat 会立即拷贝到输出文件
+     * 发生错误时输出文件和 sample table 会恢复到调用之前的状态
+     */
+    public void appendPart(File part) throws IOException {
+        if (mFinished) throw new IllegalStateException("concatenator already finished");
+        RandomAccessFile file = new RandomAccessFile(part, "r");
+        FileChannel in = file.getChannel();
+        Checkpoint checkpoint = checkpoint();
+        try {
+            PartIndex index = PartIndex.parse(in);
+            long[] targets = new long[index.mdatCount];
+            for (int i = 0; i < index.mdatCount; i++) {
+                targets[i] = mWritePosition;
+                transfer(in, index.mdatStarts[i], index.mdatEnds[i] - index.mdatStarts[i]);
+            }
+            appendTables(index, targets);
+            mPartCount++;
+        } catch (IOException | RuntimeException e) {
+            rollback(checkpoint);
+            throw e;
+        } finally {
+            in.close();
+            file.close();
+        }
+    }
+
+    private void transfer(FileChannel in, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long transferred = in.transferTo(position, Math.min(TRANSFER_SLICE, end - position), mChannel.position(mWritePosition));
+            if (transferred <= 0) throw new IOException("transferTo returned " + transferred);
+            position += transferred;
+            mWritePosition += transferred;
+            mBytesCopied += transferred;
+            if (mProgressListener != null) mProgressListener.onProgress(mBytesCopied);
+        }
+    }
+
+    private void appendTables(PartIndex index, long[] targets) throws IOException {
+        // 修改 sample table 之前先转换所有 chunk offset , 出错时 sample table 不会被修改
+        for (PartTrack partTrack : index.tracks) {
+            for (int i = 0; i < partTrack.chunkCount; i++) {
+                partTrack.chunkOffsets[i] = index.remap(partTrack.chunkOffsets[i], targets);
+            }
+        }
+        // 先把所有轨道对齐到当前最长的轨道
+        long movieEndUs = 0;
+        for (MergedTrack track : mTracks) {
+            movieEndUs = Math.max(movieEndUs, track.durationUs());
+        }
+        for (MergedTrack track : mTracks) {
+            track.extendTo(movieEndUs);
+        }
+
+        int[] occurrence = new int[2];
+        for (PartTrack partTrack : index.tracks) {
+            int kind = partTrack.isVideo() ? 0 : 1;
+            MergedTrack track = findTrack(partTrack.handler, occurrence[kind]++);
+            if (track == null) {
+                if (mPartCount > 0) {
+                    LogUtil.loge(TAG, "ignore " + partTrack.handler + " track not present in the first part");
+                    continue;
+                }
+                track = new MergedTrack(partTrack);
+                mTracks.add(track);
+            }
+            track.append(partTrack);
+        }
+    }
+
+    private MergedTrack findTrack(String handler, int occurrence) {
+        for (MergedTrack track : mTracks) {
+            if (track.handler.equals(handler) && occurrence-- == 0) return track;
+        }
+        return null;
+    }
+
+    /**
+     * 回填 mdat 头 , 在文件末尾写入 moov 并关闭文件
+     */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        mFinished = true;
+        try {
+            if (mTracks.isEmpty()) throw new IOException("no track to write");
+            writeMdatHeader();
+            BoxWriter writer = new BoxWriter(64 * 1024);
+            writeMoov(writer);
+            long moovSize = writer.writeTo(mChannel, mWritePosition);
+            mChannel.truncate(mWritePosition + moovSize);
+            mChannel.force(false);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 放弃合并 , 关闭文件 (不会删除文件)
+     */
+    public void close() throws IOException {
+        mFinished = true;
+        mChannel.close();
+        mFile.close();
+    }
+
+    private void writeMdatHeader() throws IOException {
+        long mdatSize = mWritePosition - mMdatPosition;
+        ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        if (mdatSize - 8 <= 0xFFFFFFFFL) {
+            header.putInt(8).put(new byte[]{'f', 'r', 'e', 'e'});
+            header.putInt((int) (mdatSize - 8)).put(new byte[]{'m', 'd', 'a', 't'});
+        } else {
+            header.putInt(1).put(new byte[]{'m', 'd', 'a', 't'}).putLong(mdatSize);
+        }
+        header.flip();
+        long position = mMdatPosition;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+    }
+
+    private void writeMoov(BoxWriter writer) {
+        long movieDuration = 0;
+        for (MergedTrack track : mTracks) {
+            movieDuration = Math.max(movieDuration, Mp4Boxes.toTimescale(track.durationUs(), Mp4Boxes.MOVIE_TIMESCALE));
+        }
+        writer.start("moov");
+        Mp4Boxes.writeMvhd(writer, movieDuration, mTracks.size() + 1);
+        for (int i = 0; i < mTracks.size(); i++) {
+            mTracks.get(i).writeTrak(writer, i + 1);
+        }
+        writer.end();
+    }
+
+    /**
+     * Mp4PartConcatenator 的状态快照 , 只保存各个表的长度 , 不拷贝表的内容
+     */
+    public static class Checkpoint {
+        private final Mp4PartConcatenator mOwner;
+        private final long mWritePosition;
+        private final long mBytesCopied;
+        private final int mPartCount;
+        private final TrackState[] mTracks;
+
+        private Checkpoint(Mp4PartConcatenator concatenator) {
+            mOwner = concatenator;
+            mWritePosition = concatenator.mWritePosition;
+            mBytesCopied = concatenator.mBytesCopied;
+            mPartCount = concatenator.mPartCount;
+            mTracks = new TrackState[concatenator.mTracks.size()];
+            for (int i = 0; i < mTracks.length; i++) {
+                mTracks[i] = new TrackState(concatenator.mTracks.get(i));
+            }
+        }
+
+        public int getPartCount() {
+            return mPartCount;
+        }
+    }
+
+    private static class TrackState {
+        final SampleTable.State table;
+        final int entryCount;
+
+        TrackState(MergedTrack track) {
+            table = track.table.mark();
+            entryCount = track.entries.size();
+        }
+    }
+
+    /**
+     * 合并后的一个轨道
+     */
+    private static class MergedTrack {
+        final String handler;
+        final int timescale;
+        final byte[] tkhd;
+        final byte[] hdlr;
+        final List<byte[]> entries = new ArrayList<>();
+        final SampleTable table = new SampleTable();
+
+        MergedTrack(PartTrack first) {
+            handler = first.handler;
+            timescale = first.timescale;
+            tkhd = first.tkhd;
+            hdlr = first.hdlr;
+        }
+
+        boolean isVideo() {
+            return "vide".equals(handler);
+        }
+
+        long durationUs() {
+            return table.getDuration() * 1000000L / timescale;
+        }
+
+        void restore(TrackState state) {
+            table.reset(state.table);
+            while (entries.size() > state.entryCount) {
+                entries.remove(entries.size() - 1);
+            }
+        }
+
+        /**
+         * 延长最后一个 sample , 让轨道的时长达到 endUs
+         */
+        void extendTo(long endUs) {
+            if (table.getSampleCount() == 0) return;
+            long gap = Mp4Boxes.toTimescale(endUs, timescale) - table.getDuration();
+            if (gap <= 0) return;
+            table.setLastSampleDuration(table.getLastSampleDuration() + (int) gap);
+        }
+
+        /**
+         * @param part chunk offset 已经转换为输出文件中的位置
+         */
+        void append(PartTrack part) {
+            int[] entryMap = new int[part.entries.length];
+            for (int i = 0; i < part.entries.length; i++) {
+                entryMap[i] = indexOfEntry(part.entries[i]);
+            }
+            for (int i = 0; i < part.sampleCount; i++) {
+                int offset = part.compositionOffsets == null ? 0 : rescale(part.compositionOffsets[i], part.timescale);
+                boolean sync = part.syncs == null || part.syncs[i];
+                table.addSample(part.sizes[i], rescale(part.durations[i], part.timescale), offset, sync);
+            }
+            for (int i = 0; i < part.chunkCount; i++) {
+                int entry = part.chunkEntries[i] - 1;
+                table.addChunk(part.chunkOffsets[i], part.chunkSamples[i],
+                        entry >= 0 && entry < entryMap.length ? entryMap[entry] : 1);
+            }
+        }
+
+        private int rescale(int value, int sourceTimescale) {
+            if (sourceTimescale == timescale) return value;
+            return (int) ((long) value * timescale / sourceTimescale);
+        }
+
+        /**
+         * @return 1 开始的 sample description index , 不同的 sample entry 会单独保存
+         */
+        private int indexOfEntry(byte[] entry) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (Arrays.equals(entries.get(i), entry)) return i + 1;
+            }
+            entries.add(entry);
+            return entries.size();
+        }
+
+        void writeTrak(BoxWriter writer, int trackId) {
+            writer.start("trak");
+            writeTkhd(writer, trackId);
+            writer.start("mdia");
+            Mp4Boxes.writeMdhd(writer, timescale, table.getDuration());
+            writer.put(hdlr);
+            writer.start("minf");
+            Mp4Boxes.writeMediaHeaderAndDinf(writer, isVideo());
+            writer.start("stbl");
+            writer.startFull("stsd", 0, 0).putInt(entries.size());
+            for (byte[] entry : entries) {
+                writer.put(entry);
+            }
+            writer.end();
+            table.writeTables(writer);
+            writer.end();
+            writer.end();
+            writer.end();
+            writer.end();
+        }
+
+        /**
+         * 使用第一个视频块的 tkhd (保留旋转矩阵等信息) , 修改 track_ID 和 duration
+         */
+        private void writeTkhd(BoxWriter writer, int trackId) {
+            int start = writer.position();
+            writer.put(tkhd);
+            long movieDuration = Mp4Boxes.toTimescale(durationUs(), Mp4Boxes.MOVIE_TIMESCALE);
+            if (tkhd[8] == 1) {
+                writer.setInt(start + 28, trackId);
+                writer.setLong(start + 36, movieDuration);
+            } else {
+                writer.setInt(start + 20, trackId);
+                writer.setInt(start + 28, (int) Math.min(movieDuration, 0xFFFFFFFFL));
+            }
+        }
+    }
+
+    /**
+     * 一个视频块的索引 : 轨道的 sample table 以及 mdat 的位置
+     */
+    static class PartIndex {
+        final List<PartTrack> tracks = new ArrayList<>();
+        int mdatCount;
+        long[] mdatStarts = new long[4];
+        long[] mdatEnds = new long[4];
+
+        static PartIndex parse(FileChannel channel) throws IOException {
+            PartIndex index = new PartIndex();
+            List<ByteBuffer> pendingMoofs = null;
+            List<Long> pendingMoofPositions = null;
+            boolean moovParsed = false;
+            BoxScanner scanner = new BoxScanner(channel);
+            while (scanner.next()) {
+                String type = scanner.type();
+                if ("moov".equals(type)) {
+                    if (scanner.isTruncated()) throw new IOException("moov is truncated");
+                    index.parseMoov(scanner.readBox());
+                    moovParsed = true;
+                } else if ("mdat".equals(type)) {
+                    index.addMdat(scanner.payloadPosition(), scanner.end());
+                } else if ("moof".equals(type) && !scanner.isTruncated()) {
+                    if (moovParsed) {
+                        index.parseMoof(scanner.readBox(), scanner.position());
+                    } else {
+                        if (pendingMoofs == null) {
+                            pendingMoofs = new ArrayList<>();
+                            pendingMoofPositions = new ArrayList<>();
+                        }
+                        pendingMoofs.add(scanner.readBox());
+                        pendingMoofPositions.add(scanner.position());
+                    }
+                }
+            }
+            if (!moovParsed) throw new IOException("moov not found");
+            if (pendingMoofs != null) {
+                for (int i = 0; i < pendingMoofs.size(); i++) {
+                    index.parseMoof(pendingMoofs.get(i), pendingMoofPositions.get(i));
+                }
+            }
+            for (PartTrack track : index.tracks) {
+                track.validate();
+            }
+            return index;
+        }
+
+        private void addMdat(long start, long end) {
+            if (mdatCount == mdatStarts.length) {
+                mdatStarts = Arrays.copyOf(mdatStarts, mdatCount * 2);
+                mdatEnds = Arrays.copyOf(mdatEnds, mdatCount * 2);
+            }
+            mdatStarts[mdatCount] = start;
+            mdatEnds[mdatCount] = end;
+            mdatCount++;
+        }
+
+        /**
+         * 将视频块中的 chunk offset 转换为输出文件中的位置
+         */
+        long remap(long offset, long[] targets) throws IOException {
+            for (int i = 0; i < mdatCount; i++) {
+                if (offset >= mdatStarts[i] && offset < mdatEnds[i]) {
+                    return targets[i] + offset - mdatStarts[i];
+                }
+            }
+            throw new IOException("chunk offset " + offset + " is outside of mdat");
+        }
+
+        private void parseMoov(ByteBuffer moov) throws IOException {
+            int end = BoxParser.size(moov, 0);
+            int trak;
+            for (int i = 0; (trak = BoxParser.findChild(moov, 8, end, "trak", i)) >= 0; i++) {
+                PartTrack track = PartTrack.parse(moov, trak);
+                if (track != null) tracks.add(track);
+            }
+            int mvex = BoxParser.findChild(moov, 8, end, "mvex");
+            if (mvex < 0) return;
+            int trex;
+            for (int i = 0; (trex = BoxParser.findChild(moov, mvex + 8, mvex + BoxParser.size(moov, mvex), "trex", i)) >= 0; i++) {
+                PartTrack track = findTrack(moov.getInt(trex + 12));
+                if (track == null) continue;
+                track.defaultEntry = moov.getInt(trex + 16);
+                track.defaultDuration = moov.getInt(trex + 20);
+                track.defaultSize = moov.getInt(trex + 24);
+                track.defaultFlags = moov.getInt(trex + 28);
+            }
+        }
+
+        private PartTrack findTrack(int trackId) {
+            for (PartTrack track : tracks) {
+                if (track.trackId == trackId) return track;
+            }
+            return null;
+        }
+
+        private void parseMoof(ByteBuffer moof, long moofPosition) {
+            int end = BoxParser.size(moof, 0);
+            int traf;
+            for (int i = 0; (traf = BoxParser.findChild(moof, 8, end, "traf", i)) >= 0; i++) {
+                int trafEnd = traf + BoxParser.size(moof, traf);
+                int tfhd = BoxParser.findChild(moof, traf + 8, trafEnd, "tfhd");
+                if (tfhd < 0) continue;
+                int flags = BoxParser.flags(moof, tfhd);
+                PartTrack track = findTrack(moof.getInt(tfhd + 12));
+                if (track == null) continue;
+                int p = tfhd + 16;
+                long base = moofPosition;
+                if ((flags & 0x000001) != 0) {
+                    base = moof.getLong(p);
+                    p += 8;
+                }
+                int entry = track.defaultEntry;
+                int defaultDuration = track.defaultDuration;
+                int defaultSize = track.defaultSize;
+                int defaultFlags = track.defaultFlags;
+                if ((flags & 0x000002) != 0) {
+                    entry = moof.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000008) != 0) {
+                    defaultDuration = moof.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000010) != 0) {
+                    defaultSize = moof.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000020) != 0) {
+                    defaultFlags = moof.getInt(p);
+                }
+
+                long dataOffset = base;
+                int trun;
+                for (int j = 0; (trun = BoxParser.findChild(moof, traf + 8, trafEnd, "trun", j)) >= 0; j++) {
+                    int trunFlags = BoxParser.flags(moof, trun);
+                    int count = moof.getInt(trun + 12);
+                    int q = trun + 16;
+                    if ((trunFlags & 0x000001) != 0) {
+                        dataOffset = base + moof.getInt(q);
+                        q += 4;
+                    }
+                    int firstFlags = defaultFlags;
+                    boolean hasFirstFlags = (trunFlags & 0x000004) != 0;
+                    if (hasFirstFlags) {
+                        firstFlags = moof.getInt(q);
+                        q += 4;
+                    }
+                    track.addChunk(dataOffset, count, entry);
+                    for (int k = 0; k < count; k++) {
+                        int duration = defaultDuration;
+                        int size = defaultSize;
+                        int sampleFlags = k == 0 && hasFirstFlags ? firstFlags : defaultFlags;
+                        int offset = 0;
+                        if ((trunFlags & 0x000100) != 0) {
+                            duration = moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x000200) != 0) {
+                            size = moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x000400) != 0) {
+                            sampleFlags = moof.getInt(q);
+                            q += 4;
+                        }
+                        if ((trunFlags & 0x000800) != 0) {
+                            offset = moof.getInt(q);
+                            q += 4;
+                        }
+                        // sample_is_non_sync_sample
+                        track.addSample(size, duration, offset, (sampleFlags & 0x00010000) == 0);
+                        dataOffset += size;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 视频块中的一个轨道 , sample table 展开为每个 sample 一项
+     */
+    static class PartTrack {
+        String handler;
+        int trackId;
+        int timescale;
+        byte[] tkhd;
+        byte[] hdlr;
+        byte[][] entries;
+
+        int sampleCount;
+        int[] sizes = new int[0];
+        int[] durations = new int[0];
+        int[] compositionOffsets;
+        boolean[] syncs;
+
+        int chunkCount;
+        long[] chunkOffsets = new long[0];
+        int[] chunkSamples = new int[0];
+        int[] chunkEntries = new int[0];
+
+        int defaultEntry = 1;
+        int defaultDuration;
+        int defaultSize;
+        int defaultFlags;
+
+        boolean isVideo() {
+            return "vide".equals(handler);
+        }
+
+        /**
+         * @return 不是音视频轨道时返回 null
+         */
+        static PartTrack parse(ByteBuffer moov, int trak) throws IOException {
+            int trakEnd = trak + BoxParser.size(moov, trak);
+            int tkhd = BoxParser.findChild(moov, trak + 8, trakEnd, "tkhd");
+            int mdia = BoxParser.findChild(moov, trak + 8, trakEnd, "mdia");
+            if (tkhd < 0 || mdia < 0) throw new IOException("invalid trak");
+            int mdiaEnd = mdia + BoxParser.size(moov, mdia);
+            int mdhd = BoxParser.findChild(moov, mdia + 8, mdiaEnd, "mdhd");
+            int hdlr = BoxParser.findChild(moov, mdia + 8, mdiaEnd, "hdlr");
+            int stbl = BoxParser.findPath(moov, mdia, "minf", "stbl");
+            if (mdhd < 0 || hdlr < 0 || stbl < 0) throw new IOException("invalid mdia");
+
+            PartTrack track = new PartTrack();
+            track.handler = BoxParser.type(moov, hdlr + 12);
+            if (!"vide".equals(track.handler) && !"soun".equals(track.handler)) return null;
+            track.trackId = moov.getInt(tkhd + (BoxParser.version(moov, tkhd) == 1 ? 28 : 20));
+            track.timescale = moov.getInt(mdhd + (BoxParser.version(moov, mdhd) == 1 ? 28 : 20));
+            track.tkhd = BoxParser.copy(moov, tkhd);
+            track.hdlr = BoxParser.copy(moov, hdlr);
+            track.parseStbl(moov, stbl);
+            return track;
+        }
+
+        private void parseStbl(ByteBuffer moov, int stbl) throws IOException {
+            int start = stbl + 8;
+            int end = stbl + BoxParser.size(moov, stbl);
+
+            int stsd = BoxParser.findChild(moov, start, end, "stsd");
+            if (stsd < 0) throw new IOException("stsd not found");
+            entries = new byte[moov.getInt(stsd + 12)][];
+            int entry = stsd + 16;
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = BoxParser.copy(moov, entry);
+                entry += entries[i].length;
+            }
+
+            int stsz = BoxParser.findChild(moov, start, end, "stsz");
+            if (stsz < 0) throw new IOException("stsz not found");
+            int sampleSize = moov.getInt(stsz + 12);
+            sampleCount = moov.getInt(stsz + 16);
+            sizes = new int[sampleCount];
+            for (int i = 0; i < sampleCount; i++) {
+                sizes[i] = sampleSize != 0 ? sampleSize : moov.getInt(stsz + 20 + i * 4);
+            }
+
+            durations = new int[sampleCount];
+            int stts = BoxParser.findChild(moov, start, end, "stts");
+            if (stts >= 0) expandRuns(moov, stts, durations);
+
+            int ctts = BoxParser.findChild(moov, start, end, "ctts");
+            if (ctts >= 0) {
+                compositionOffsets = new int[sampleCount];
+                expandRuns(moov, ctts, compositionOffsets);
+            }
+
+            int stss = BoxParser.findChild(moov, start, end, "stss");
+            if (stss >= 0) {
+                syncs = new boolean[sampleCount];
+                int count = moov.getInt(stss + 12);
+                for (int i = 0; i < count; i++) {
+                    int sample = moov.getInt(stss + 16 + i * 4) - 1;
+                    if (sample >= 0 && sample < sampleCount) syncs[sample] = true;
+                }
+            }
+
+            int stco = BoxParser.findChild(moov, start, end, "stco");
+            int co64 = BoxParser.findChild(moov, start, end, "co64");
+            int offsets = stco >= 0 ? stco : co64;
+            chunkCount = offsets < 0 ? 0 : moov.getInt(offsets + 12);
+            chunkOffsets = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkOffsets[i] = stco >= 0 ? moov.getInt(stco + 16 + i * 4) & 0xFFFFFFFFL : moov.getLong(co64 + 16 + i * 8);
+            }
+
+            chunkSamples = new int[chunkCount];
+            chunkEntries = new int[chunkCount];
+            int stsc = BoxParser.findChild(moov, start, end, "stsc");
+            int stscCount = stsc < 0 ? 0 : moov.getInt(stsc + 12);
+            for (int i = 0; i < stscCount; i++) {
+                int p = stsc + 16 + i * 12;
+                int firstChunk = moov.getInt(p) - 1;
+                int lastChunk = i + 1 < stscCount ? moov.getInt(p + 12) - 1 : chunkCount;
+                for (int chunk = Math.max(0, firstChunk); chunk < lastChunk && chunk < chunkCount; chunk++) {
+                    chunkSamples[chunk] = moov.getInt(p + 4);
+                    chunkEntries[chunk] = moov.getInt(p + 8);
+                }
+            }
+        }
+
+        /**
+         * 展开 stts / ctts 的 (count , value) 表
+         */
+        private void expandRuns(ByteBuffer moov, int box, int[] out) {
+            int count = moov.getInt(box + 12);
+            int sample = 0;
+            for (int i = 0; i < count && sample < out.length; i++) {
+                int runLength = moov.getInt(box + 16 + i * 8);
+                int value = moov.getInt(box + 20 + i * 8);
+                for (int j = 0; j < runLength && sample < out.length; j++) {
+                    out[sample++] = value;
+                }
+            }
+        }
+
+        void addChunk(long offset, int samples, int entry) {
+            if (chunkCount == chunkOffsets.length) {
+                int capacity = Math.max(16, chunkCount * 2);
+                chunkOffsets = Arrays.copyOf(chunkOffsets, capacity);
+                chunkSamples = Arrays.copyOf(chunkSamples, capacity);
+                chunkEntries = Arrays.copyOf(chunkEntries, capacity);
+            }
+            chunkOffsets[chunkCount] = offset;
+            chunkSamples[chunkCount] = samples;
+            chunkEntries[chunkCount] = entry;
+            chunkCount++;
+        }
+
+        void addSample(int size, int duration, int compositionOffset, boolean sync) {
+            if (sampleCount == sizes.length) {
+                int capacity = Math.max(256, sampleCount * 2);
+                sizes = Arrays.copyOf(sizes, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                syncs = Arrays.copyOf(syncs == null ? new boolean[0] : syncs, capacity);
+                if (compositionOffsets != null) compositionOffsets = Arrays.copyOf(compositionOffsets, capacity);
+            }
+            if (compositionOffset != 0 && compositionOffsets == null) compositionOffsets = new int[sizes.length];
+            sizes[sampleCount] = size;
+            durations[sampleCount] = duration;
+            syncs[sampleCount] = sync;
+            if (compositionOffsets != null) compositionOffsets[sampleCount] = compositionOffset;
+            sampleCount++;
+        }
+
+        /**
+         * 检查 chunk 中的 sample 数量和 sample table 一致
+         */
+        void validate() throws IOException {
+            long samples = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                samples += chunkSamples[i];
+            }
+            if (samples != sampleCount) {
+                throw new IOException(handler + " track has " + sampleCount + " samples but chunks reference " + samples);
+            }
+        }
+    }
+}
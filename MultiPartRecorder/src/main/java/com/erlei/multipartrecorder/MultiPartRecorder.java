@@ -6,6 +6,7 @@ import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.Message;
 
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
 import com.erlei.videorecorder.recorder.CameraController;
 import com.erlei.videorecorder.recorder.IVideoRecorder;
 import com.erlei.videorecorder.recorder.VideoRecorder;
@@ -38,6 +39,8 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
     private List<VideoPartListener> mPartListeners;
     private boolean mDelPartEnable = true;
     private FileFilter mFileFilter;
+    private IncrementalPartMerger mIncrementalMerger;
+    private final boolean mFastStart;
 
 
     private MultiPartRecorder(VideoRecorder.Builder builder) {
@@ -47,6 +50,9 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         mConfig = builder.getConfig();
         mDefaultViewHandler = mConfig.getViewHandler();
         mContext = mConfig.getContext();
+        // 视频块之后还要合并 , 只对最终合并的文件做 faststart
+        mFastStart = mConfig.isFastStart();
+        builder.setFastStartEnable(false);
         setOutPut(builder);
         builder.setCallbackHandler(this);
         mRecorder = builder.build();
@@ -83,13 +89,34 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         mDelPartEnable = delPartEnable;
     }
 
+    /**
+     * @param enable 是否开启增量合并
+     *               开启后每个视频块录制完成 (handleVideoMuxerStopped) 就在后台线程追加到合并文件中 ,
+     *               mergeVideoParts() 时只需要处理最后一个视频块并写入索引 , 删除视频块时会回滚合并文件
+     */
+    public void setIncrementalMergeEnable(boolean enable) {
+        if (enable && mIncrementalMerger == null) {
+            mIncrementalMerger = new IncrementalPartMerger(mOutputFile);
+            for (Part part : mParts) {
+                if (!part.isRecording()) mIncrementalMerger.append(part);
+            }
+        } else if (!enable && mIncrementalMerger != null) {
+            mIncrementalMerger.release();
+            mIncrementalMerger = null;
+        }
+    }
+
+    public boolean isIncrementalMergeEnable() {
+        return mIncrementalMerger != null;
+    }
+
     /**
      * 根据文件路径删除视频块
      */
     public Part removePart(String path) {
         if (!mDelPartEnable || mParts.isEmpty()) return null;
         int index = mParts.indexOf(new Part(path));
-        if (index >= 0) return mParts.remove(index);
+        if (index >= 0) return onPartRemoved(mParts.remove(index));
         return null;
 
     }
@@ -101,7 +128,12 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
      */
     public Part removeLastPart() {
         if (!mDelPartEnable || mParts.isEmpty()) return null;
-        return mParts.remove(mParts.size() - 1);
+        return onPartRemoved(mParts.remove(mParts.size() - 1));
+    }
+
+    private Part onPartRemoved(Part part) {
+        if (mIncrementalMerger != null) mIncrementalMerger.remove(part);
+        return part;
     }
 
     public VideoMergeListener getMergeListener() {
@@ -164,7 +196,12 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         Part[] parts = new Part[mParts.size()];
         parts = mParts.toArray(parts);
         removeAllPart();
-        return new VideoPartMergeTask(mOutputFile, mMergeListener, false, 2000).execute(parts);
+        if (mIncrementalMerger != null) {
+            return new VideoPartMergeTask(mOutputFile, mMergeListener, false, 2000, mIncrementalMerger)
+                    .setFastStartEnable(mFastStart).execute(parts);
+        }
+        return new VideoPartMergeTask(mOutputFile, mMergeListener, false, 2000)
+                .setFastStartEnable(mFastStart).execute(parts);
     }
 
     @Override
@@ -217,6 +254,7 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
     @Override
     public void release() {
         if (mPartListeners != null) mPartListeners.clear();
+        setIncrementalMergeEnable(false);
     }
 
 
@@ -260,6 +298,7 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         Part part = mParts.get(i);
         part.end();
         handleMuxerEnd(part);
+        if (mIncrementalMerger != null && part.file.exists()) mIncrementalMerger.append(part);
     }
 
     private void handleMuxerEnd(Part part) {
@@ -355,6 +394,7 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         private final List<VideoPartListener> mVideoPartListeners = new ArrayList<>();
         private VideoMergeListener mMergeListener;
         private FileFilter mFileFilter;
+        private boolean mIncrementalMerge;
 
         public Builder(VideoRecorder.Builder builder) {
             mBuilder = builder;
@@ -367,9 +407,45 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
             }
             recorder.setMergeListener(mMergeListener);
             recorder.setFileFilter(mFileFilter);
+            recorder.setIncrementalMergeEnable(mIncrementalMerge);
             return recorder;
         }
 
+        /**
+         * @param enable 是否在录制过程中增量合并视频块 , 参考 MultiPartRecorder#setIncrementalMergeEnable
+         */
+        public Builder setIncrementalMergeEnable(boolean enable) {
+            mIncrementalMerge = enable;
+            return this;
+        }
+
+        /**
+         * @param enable 视频块之间是否复用编码器 , 参考 VideoRecorder.Builder#setEncoderSessionEnable
+         *               每个视频块都从关键帧开始 , 并且 SPS / PPS 相同 , 不影响合并
+         */
+        public Builder setEncoderSessionEnable(boolean enable) {
+            mBuilder.setEncoderSessionEnable(enable);
+            return this;
+        }
+
+        /**
+         * @param config 录制时混入的背景音乐 , 参考 VideoRecorder.Builder#setBackgroundMusic
+         *               没有开启 setEncoderSessionEnable 时每个视频块都会重新打开音乐 , 从头开始播放
+         */
+        public Builder setBackgroundMusic(BackgroundMusicConfig config) {
+            mBuilder.setBackgroundMusic(config);
+            return this;
+        }
+
+        /**
+         * @param rateHz 音频电平的回调频率 , 参考 VideoRecorder.Builder#setAudioLevelRate ,
+         *               在 VideoRecorder.Builder#setCallbackHandler 设置的 VideoRecorderHandler#handleAudioLevel 中回调
+         */
+        public Builder setAudioLevelRate(int rateHz) {
+            mBuilder.setAudioLevelRate(rateHz);
+            return this;
+        }
+
         public Builder addPartListener(VideoPartListener videoPartListener) {
             mVideoPartListeners.add(videoPartListener);
             return this;
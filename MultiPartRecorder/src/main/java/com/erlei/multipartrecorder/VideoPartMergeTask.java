@@ -3,20 +3,12 @@ package com.erlei.multipartrecorder;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 
-import com.coremedia.iso.boxes.Container;
+import com.erlei.videorecorder.mp4.FastStart;
 import com.erlei.videorecorder.util.LogUtil;
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.Track;
-import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
-import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
-import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
 
 import java.io.File;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float, File> {
 
@@ -24,6 +16,8 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
     private File mOutPutFile;
     private boolean mDeletePartFile;
     private final long mTimeout;
+    private final IncrementalPartMerger mIncrementalMerger;
+    private boolean mFastStart;
 
     public VideoPartMergeTask(File outPutFile) {
         this(outPutFile, null, false, 2000);
@@ -41,12 +35,27 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
      *                       设置超时时间会等待编码器完成视频块的编码工作 (最后一个视频块 , 通常不会太久)
      */
     public VideoPartMergeTask(File outPutFile, MultiPartRecorder.VideoMergeListener mergeListener, boolean deletePartFile, long timeout) {
+        this(outPutFile, mergeListener, deletePartFile, timeout, null);
+    }
+
+    /**
+     * @param incrementalMerger 不为 null 时 , 录制过程中已经合并的视频块不会再拷贝 , 只追加剩余的视频块并写入索引
+     */
+    VideoPartMergeTask(File outPutFile, MultiPartRecorder.VideoMergeListener mergeListener, boolean deletePartFile, long timeout, IncrementalPartMerger incrementalMerger) {
+        mIncrementalMerger = incrementalMerger;
         mOutPutFile = outPutFile;
         mMergeListener = mergeListener;
         mDeletePartFile = deletePartFile;
         mTimeout = timeout;
     }
 
+    /**
+     * @param fastStart 合并完成后是否把 moov 移动到文件开头
+     */
+    public VideoPartMergeTask setFastStartEnable(boolean fastStart) {
+        mFastStart = fastStart;
+        return this;
+    }
 
     @Override
     protected void onProgressUpdate(Float... values) {
@@ -77,8 +86,13 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
                 throw new IllegalStateException("有视频块还没有结束录制 , 不能开始合并视频");
             }
 
-            if (lists.length == 1) {//只有一个视频片段
+            if (mIncrementalMerger != null) {
+                finishIncrementalMerge(lists);
+                fastStart();
+                if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
+            } else if (lists.length == 1) {//只有一个视频片段
                 if (lists[0].file.renameTo(mOutPutFile)) {
+                    fastStart();
                     if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
                 } else {
                     if (mMergeListener != null)
@@ -86,44 +100,8 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
                 }
 
             } else {
-                String[] videoUris = new String[lists.length];
-                for (int i = 0; i < lists.length; i++) {
-                    videoUris[i] = lists[i].file.getAbsolutePath();
-                }
-
-                List<Movie> inMovies = new ArrayList<>(videoUris.length);
-                for (String videoUri : videoUris) {
-                    inMovies.add(MovieCreator.build(videoUri));
-                }
-
-                List<Track> videoTracks = new LinkedList<Track>();
-                List<Track> audioTracks = new LinkedList<Track>();
-
-                for (Movie m : inMovies) {
-                    for (Track t : m.getTracks()) {
-                        if (t.getHandler().equals("soun")) {
-                            audioTracks.add(t);
-                        }
-                        if (t.getHandler().equals("vide")) {
-                            videoTracks.add(t);
-                        }
-                    }
-                }
-
-                Movie result = new Movie();
-                if (!audioTracks.isEmpty()) {
-                    result.addTrack(new AppendTrack(audioTracks.toArray(new Track[audioTracks.size()])));
-                }
-                if (!videoTracks.isEmpty()) {
-                    result.addTrack(new AppendTrack(videoTracks.toArray(new Track[videoTracks.size()])));
-                }
-                Container out = new DefaultMp4Builder().build(result);
-
-                startCheckProgressThread(out);
-
-                FileChannel fc = new RandomAccessFile(mOutPutFile, "rw").getChannel();
-                out.writeContainer(fc);
-                fc.close();
+                merge(lists);
+                fastStart();
                 if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
             }
         } catch (Exception e) {
@@ -134,27 +112,54 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
         return mOutPutFile;
     }
 
-    private void startCheckProgressThread(Container out) {
-        long finalVideoFileSize = 0;
-        for (int i = 0; i < out.getBoxes().size(); i++) {
-            finalVideoFileSize += out.getBoxes().get(i).getSize();
+    /**
+     * 使用 Mp4PartConcatenator 拼接视频块 , 进度按已经拷贝的字节数计算
+     */
+    private void merge(MultiPartRecorder.Part[] lists) throws Exception {
+        long totalBytes = 0;
+        for (MultiPartRecorder.Part part : lists) {
+            totalBytes += part.file.length();
         }
-        final long finalVideoFileSize1 = finalVideoFileSize;
-        new Thread(new Runnable() {
+        final long finalTotalBytes = Math.max(1, totalBytes);
+        Mp4PartConcatenator concatenator = new Mp4PartConcatenator(mOutPutFile);
+        concatenator.setProgressListener(new Mp4PartConcatenator.ProgressListener() {
             @Override
-            public void run() {
-                long currentFileSize = 0;
-                if (mOutPutFile.exists())
-                    currentFileSize = mOutPutFile.length();
-                while (finalVideoFileSize1 != currentFileSize && !isCancelled() && getStatus() == Status.RUNNING) {
-                    if (mOutPutFile.exists()) {
-                        currentFileSize = mOutPutFile.length();
-                        publishProgress((float) currentFileSize / (float) finalVideoFileSize1);
-                    }
-                    SystemClock.sleep(10);
-                }
+            public void onProgress(long bytesCopied) {
+                publishProgress(Math.min(1f, (float) bytesCopied / (float) finalTotalBytes));
+            }
+        });
+        try {
+            for (MultiPartRecorder.Part part : lists) {
+                if (isCancelled()) throw new IllegalStateException("合并任务已取消");
+                concatenator.appendPart(part.file);
             }
-        }).start();
+            concatenator.finish();
+        } catch (Exception e) {
+            concatenator.close();
+            throw e;
+        }
+        publishProgress(1f);
+    }
+
+    private void finishIncrementalMerge(MultiPartRecorder.Part[] lists) throws Exception {
+        try {
+            mIncrementalMerger.finish(lists, new IncrementalPartMerger.ProgressListener() {
+                @Override
+                public void onProgress(float progress) {
+                    publishProgress(progress);
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    private void fastStart() throws IOException {
+        if (!mFastStart) return;
+        FastStart.Result result = FastStart.process(mOutPutFile);
+        LogUtil.logd("VideoPartMergeTask", "faststart " + result);
     }
 
     private void deleteTempPartFile(MultiPartRecorder.Part[] lists) {
@@ -0,0 +1,168 @@
+package com.erlei.multipartrecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IncrementalPartMergerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mOutput;
+    private IncrementalPartMerger mMerger;
+
+    @Before
+    public void setUp() {
+        mOutput = new File(mFolder.getRoot(), "merged.mp4");
+        mMerger = new IncrementalPartMerger(mOutput);
+    }
+
+    @After
+    public void tearDown() {
+        mMerger.release();
+    }
+
+    @Test
+    public void appendedPartsMatchOneShotConcatenation() throws Exception {
+        MultiPartRecorder.Part[] parts = {part("part0.mp4", 1, false), part("part1.mp4", 2, true), part("part2.mp4", 3, false)};
+        // 最后一个视频块在 finish 时才追加
+        mMerger.append(parts[0]);
+        mMerger.append(parts[1]);
+        final List<Float> progress = new ArrayList<>();
+        File merged = mMerger.finish(parts, new IncrementalPartMerger.ProgressListener() {
+            @Override
+            public void onProgress(float value) {
+                progress.add(value);
+            }
+        }).get();
+
+        assertEquals(mOutput, merged);
+        assertMergedEquals(parts);
+        assertFalse(progress.isEmpty());
+        assertEquals(1f, progress.get(progress.size() - 1), 0f);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+        }
+        assertFalse(new File(mOutput.getPath() + ".merging").exists());
+    }
+
+    @Test
+    public void removingMiddlePartReappendsFollowingParts() throws Exception {
+        MultiPartRecorder.Part first = part("first.mp4", 4, false);
+        MultiPartRecorder.Part middle = part("middle.mp4", 5, true);
+        MultiPartRecorder.Part last = part("last.mp4", 6, false);
+        mMerger.append(first);
+        mMerger.append(middle);
+        mMerger.append(last);
+        mMerger.remove(middle);
+        mMerger.finish(new MultiPartRecorder.Part[]{first, last}, null).get();
+
+        assertMergedEquals(first, last);
+    }
+
+    @Test
+    public void finishRollsBackToMatchingPrefix() throws Exception {
+        MultiPartRecorder.Part first = part("first.mp4", 7, false);
+        MultiPartRecorder.Part second = part("second.mp4", 8, false);
+        MultiPartRecorder.Part third = part("third.mp4", 9, true);
+        mMerger.append(first);
+        mMerger.append(second);
+        mMerger.append(third);
+        // 没有收到 remove , finish 时按 parts 的顺序找到已经合并的前缀 , 其余的回滚之后重新追加
+        mMerger.finish(new MultiPartRecorder.Part[]{first, third}, null).get();
+
+        assertMergedEquals(first, third);
+    }
+
+    @Test
+    public void finishRetriesPartWhoseAppendFailed() throws Exception {
+        MultiPartRecorder.Part first = part("first.mp4", 10, false);
+        File complete = mFolder.newFile("complete.mp4");
+        Mp4PartConcatenatorTest.writePart(complete, 11, false);
+        MultiPartRecorder.Part second = new MultiPartRecorder.Part(new File(mFolder.getRoot(), "second.mp4").getPath());
+        // 追加时文件还没有写完 (没有 moov)
+        copyTruncated(complete, second.file);
+
+        mMerger.append(first);
+        mMerger.append(second);
+        MultiPartRecorder.Part third = part("third.mp4", 12, true);
+        mMerger.finish(new MultiPartRecorder.Part[]{first}, null).get();
+        assertMergedEquals(first);
+
+        // 上一次 finish 已经重置状态 , 下一次录制重新开始追加
+        mMerger.append(second);
+        Files.copy(complete.toPath(), second.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        mMerger.append(third);
+        mMerger.finish(new MultiPartRecorder.Part[]{first, second, third}, null).get();
+        assertMergedEquals(first, second, third);
+    }
+
+    @Test
+    public void brokenPartFailsFinishAndResets() throws Exception {
+        MultiPartRecorder.Part first = part("first.mp4", 13, false);
+        File complete = mFolder.newFile("complete.mp4");
+        Mp4PartConcatenatorTest.writePart(complete, 14, false);
+        MultiPartRecorder.Part broken = new MultiPartRecorder.Part(new File(mFolder.getRoot(), "broken.mp4").getPath());
+        copyTruncated(complete, broken.file);
+
+        mMerger.append(first);
+        try {
+            mMerger.finish(new MultiPartRecorder.Part[]{first, broken}, null).get();
+            fail("part without moov should fail the merge");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(mOutput.exists());
+        assertFalse(new File(mOutput.getPath() + ".merging").exists());
+
+        mMerger.finish(new MultiPartRecorder.Part[]{first}, null).get();
+        assertMergedEquals(first);
+    }
+
+    private MultiPartRecorder.Part part(String name, long seed, boolean fragmented) throws IOException {
+        File file = mFolder.newFile(name);
+        Mp4PartConcatenatorTest.writePart(file, seed, fragmented);
+        return new MultiPartRecorder.Part(file.getPath());
+    }
+
+    /**
+     * 增量合并的结果和一次性合并 parts 的结果完全相同
+     */
+    private void assertMergedEquals(MultiPartRecorder.Part... parts) throws IOException {
+        File expected = mFolder.newFile();
+        Mp4PartConcatenator concatenator = new Mp4PartConcatenator(expected);
+        for (MultiPartRecorder.Part part : parts) {
+            concatenator.appendPart(part.file);
+        }
+        concatenator.finish();
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(mOutput.toPath()));
+    }
+
+    private static void copyTruncated(File source, File target) throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(file.length() / 2);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.FragmentedMp4Writer;
+import com.erlei.videorecorder.mp4.Mp4Writer;
+import com.erlei.videorecorder.mp4.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4PartConcatenatorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final long VIDEO_FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9, 0x40, 0x50};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0};
+    private static final byte[] ASC = {0x12, 0x08};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 一个视频块写入的 sample , 视频是转换后的长度前缀格式
+     */
+    static class Part {
+        final File file;
+        final List<byte[]> video = new ArrayList<>();
+        final List<byte[]> audio = new ArrayList<>();
+
+        Part(File file) {
+            this.file = file;
+        }
+    }
+
+    @Test
+    public void concatenatesPlainAndFragmentedParts() throws IOException {
+        Part[] parts = {
+                writePart(mFolder.newFile("part0.mp4"), 1, false),
+                writePart(mFolder.newFile("part1.mp4"), 2, true),
+                writePart(mFolder.newFile("part2.mp4"), 3, false)
+        };
+        File output = mFolder.newFile("merged.mp4");
+        Mp4PartConcatenator concatenator = new Mp4PartConcatenator(output);
+        long mdatBytes = 0;
+        for (Part part : parts) {
+            concatenator.appendPart(part.file);
+            mdatBytes += sizeOf(part.video) + sizeOf(part.audio);
+        }
+        assertEquals(3, concatenator.getPartCount());
+        concatenator.finish();
+
+        Mp4PartConcatenator.PartIndex index = parse(output);
+        assertEquals(2, index.tracks.size());
+        assertEquals(1, index.mdatCount);
+        assertEquals(mdatBytes, index.mdatEnds[0] - index.mdatStarts[0]);
+        Mp4PartConcatenator.PartTrack video = index.tracks.get(0);
+        Mp4PartConcatenator.PartTrack audio = index.tracks.get(1);
+        assertEquals("vide", video.handler);
+        assertEquals("soun", audio.handler);
+
+        List<byte[]> expectedVideo = new ArrayList<>();
+        List<byte[]> expectedAudio = new ArrayList<>();
+        for (Part part : parts) {
+            // 每个视频块都从关键帧开始
+            assertTrue(video.syncs[expectedVideo.size()]);
+            expectedVideo.addAll(part.video);
+            expectedAudio.addAll(part.audio);
+        }
+        assertSamples(expectedVideo, output, video);
+        assertSamples(expectedAudio, output, audio);
+
+        // 较短的轨道在块之间被延长 , 音视频的总时长相差不超过一帧
+        long videoUs = sum(video.durations) * 1000000L / video.timescale;
+        long audioUs = sum(audio.durations) * 1000000L / audio.timescale;
+        assertEquals(videoUs, audioUs, AUDIO_FRAME_US);
+    }
+
+    @Test
+    public void rollbackDiscardsLaterParts() throws IOException {
+        Part first = writePart(mFolder.newFile("first.mp4"), 4, false);
+        Part second = writePart(mFolder.newFile("second.mp4"), 5, true);
+
+        File expected = mFolder.newFile("expected.mp4");
+        Mp4PartConcatenator single = new Mp4PartConcatenator(expected);
+        single.appendPart(first.file);
+        single.finish();
+
+        File output = mFolder.newFile("rollback.mp4");
+        Mp4PartConcatenator concatenator = new Mp4PartConcatenator(output);
+        concatenator.appendPart(first.file);
+        Mp4PartConcatenator.Checkpoint checkpoint = concatenator.checkpoint();
+        concatenator.appendPart(second.file);
+        concatenator.rollback(checkpoint);
+        assertEquals(1, concatenator.getPartCount());
+        assertEquals(sizeOf(first.video) + sizeOf(first.audio), concatenator.getBytesCopied());
+        concatenator.finish();
+
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void brokenPartLeavesOutputUnchanged() throws IOException {
+        Part first = writePart(mFolder.newFile("good.mp4"), 6, false);
+        Part second = writePart(mFolder.newFile("broken.mp4"), 7, false);
+        // 截掉文件末尾的 moov
+        RandomAccessFile file = new RandomAccessFile(second.file, "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+
+        File output = mFolder.newFile("partial.mp4");
+        Mp4PartConcatenator concatenator = new Mp4PartConcatenator(output);
+        concatenator.appendPart(first.file);
+        try {
+            concatenator.appendPart(second.file);
+            fail("part without moov should be rejected");
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+        assertEquals(1, concatenator.getPartCount());
+        concatenator.finish();
+
+        Mp4PartConcatenator.PartIndex index = parse(output);
+        assertSamples(first.video, output, index.tracks.get(0));
+        assertSamples(first.audio, output, index.tracks.get(1));
+    }
+
+    /**
+     * 写入一个 1 秒的视频块 , 每 15 帧一个关键帧
+     */
+    static Part writePart(File file, long seed, boolean fragmented) throws IOException {
+        Random random = new Random(seed);
+        Part part = new Part(file);
+        Mp4Writer writer = fragmented ? null : new Mp4Writer(file);
+        FragmentedMp4Writer fragmentedWriter = fragmented ? new FragmentedMp4Writer(file) : null;
+        TrackFormat videoFormat = TrackFormat.createVideo(TrackFormat.MIME_AVC, 640, 480, SPS, PPS);
+        TrackFormat audioFormat = TrackFormat.createAudio(TrackFormat.MIME_AAC, SAMPLE_RATE, 1, ASC);
+        if (writer != null) {
+            writer.addTrack(videoFormat);
+            writer.addTrack(audioFormat);
+            writer.start();
+        } else {
+            fragmentedWriter.setFragmentDurationUs(400000L);
+            fragmentedWriter.addTrack(videoFormat);
+            fragmentedWriter.addTrack(audioFormat);
+            fragmentedWriter.start();
+        }
+        long startUs = 1000000L * seed;
+        int videoFrames = 0, audioFrames = 0;
+        while (videoFrames < 30 || audioFrames < 44) {
+            long videoUs = videoFrames * VIDEO_FRAME_US;
+            long audioUs = audioFrames * AUDIO_FRAME_US;
+            int track;
+            boolean sync;
+            byte[] data;
+            if (videoFrames < 30 && (videoUs <= audioUs || audioFrames >= 44)) {
+                track = 0;
+                sync = videoFrames % 15 == 0;
+                byte[] nal = payload(random, sync ? 3000 : 800 + random.nextInt(800));
+                nal[0] = (byte) (sync ? 0x65 : 0x41);
+                data = new byte[nal.length + 4];
+                data[3] = 1;
+                System.arraycopy(nal, 0, data, 4, nal.length);
+                part.video.add(ByteBuffer.allocate(nal.length + 4).putInt(nal.length).put(nal).array());
+                videoFrames++;
+            } else {
+                track = 1;
+                sync = true;
+                data = payload(random, 200 + random.nextInt(200));
+                part.audio.add(data);
+                audioFrames++;
+            }
+            long ptsUs = startUs + (track == 0 ? videoUs : audioUs);
+            if (writer != null) {
+                writer.writeSampleData(track, ByteBuffer.wrap(data), ptsUs, sync);
+            } else {
+                fragmentedWriter.writeSampleData(track, ByteBuffer.wrap(data), ptsUs, sync);
+            }
+        }
+        if (writer != null) {
+            writer.stop();
+        } else {
+            fragmentedWriter.stop();
+        }
+        return part;
+    }
+
+    static Mp4PartConcatenator.PartIndex parse(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return Mp4PartConcatenator.PartIndex.parse(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 按 chunk offset 读取轨道的每个 sample , 和写入的数据比较
+     */
+    static void assertSamples(List<byte[]> expected, File file, Mp4PartConcatenator.PartTrack track) throws IOException {
+        assertEquals(expected.size(), track.sampleCount);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            int sample = 0;
+            for (int chunk = 0; chunk < track.chunkCount; chunk++) {
+                long offset = track.chunkOffsets[chunk];
+                for (int i = 0; i < track.chunkSamples[chunk]; i++, sample++) {
+                    ByteBuffer data = ByteBuffer.allocate(track.sizes[sample]);
+                    channel.read(data, offset);
+                    assertArrayEquals("sample " + sample, expected.get(sample), data.array());
+                    offset += track.sizes[sample];
+                }
+            }
+            assertEquals(expected.size(), sample);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] payload(Random random, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (1 + random.nextInt(255));
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(List<byte[]> samples) {
+        long size = 0;
+        for (byte[] sample : samples) {
+            size += sample.length;
+        }
+        return size;
+    }
+
+    private static long sum(int[] values) {
+        long sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
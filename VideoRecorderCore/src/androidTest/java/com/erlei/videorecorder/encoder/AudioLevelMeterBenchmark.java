@@ -0,0 +1,82 @@
+package com.erlei.videorecorder.encoder;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 采集线程中 AudioLevelMeter 的开销 : 处理 AUDIO_SECONDS 秒的 44.1KHz 立体声 PCM 占用的线程 CPU 时间 ,
+ * 除以音频的时长就是实时采集时占用采集线程的比例 , 要求低于 1%
+ * <p>
+ * 和 MediaAudioEncoder 相同 , 每次处理一个 PcmFrameChunker 的默认块 (2 个 AAC 帧)
+ * 结果输出到 logcat , TAG 为 AudioLevelMeterBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class AudioLevelMeterBenchmark {
+
+    private static final String TAG = "AudioLevelMeterBenchmark";
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int AUDIO_SECONDS = 60;
+    private static final int WARMUP_SECONDS = 10;
+    private static final double MAX_CPU_RATIO = 0.01;
+
+    @Test
+    public void cpuPerRealtimeSecond() {
+        final byte[] chunk = createChunk();
+        final AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE, CHANNELS, AudioLevelMeter.DEFAULT_RATE_HZ,
+                new AudioLevelMeter.Listener() {
+                    int mCount;
+
+                    @Override
+                    public void onAudioLevel(int rms, int peak, int clipCount) {
+                        mCount += rms + peak + clipCount;
+                    }
+                });
+        final int chunksPerSecond = SAMPLE_RATE / PcmFrameChunker.AAC_FRAME_SAMPLES / PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK;
+
+        process(meter, chunk, WARMUP_SECONDS * chunksPerSecond);
+        final long startCpuNs = Debug.threadCpuTimeNanos();
+        final long startNs = System.nanoTime();
+        process(meter, chunk, AUDIO_SECONDS * chunksPerSecond);
+        final long cpuNs = Debug.threadCpuTimeNanos() - startCpuNs;
+        final long elapsedNs = System.nanoTime() - startNs;
+
+        // 块数取整之后实际处理的音频时长
+        final double audioSeconds = (double) AUDIO_SECONDS * chunksPerSecond * PcmFrameChunker.AAC_FRAME_SAMPLES
+                * PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK / SAMPLE_RATE;
+        final double cpuRatio = cpuNs / 1e9 / audioSeconds;
+        Log.i(TAG, String.format("%.1fs audio : cpu %.2f ms , wall %.2f ms , %.3f%% of the capture thread",
+                audioSeconds, cpuNs / 1e6, elapsedNs / 1e6, cpuRatio * 100));
+        assertTrue("cpu ratio " + cpuRatio, cpuRatio < MAX_CPU_RATIO);
+    }
+
+    private static void process(AudioLevelMeter meter, byte[] chunk, int chunks) {
+        for (int i = 0; i < chunks; i++) {
+            meter.process(chunk, 0, chunk.length);
+        }
+    }
+
+    /**
+     * 一个默认大小的块 , 内容是 1KHz 的正弦 , 带少量削波
+     */
+    private static byte[] createChunk() {
+        final byte[] chunk = new byte[PcmFrameChunker.getChunkSize(CHANNELS, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK)];
+        final int frames = chunk.length / 2 / CHANNELS;
+        for (int f = 0; f < frames; f++) {
+            final short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(1.1 * Short.MAX_VALUE * Math.sin(2 * Math.PI * 1000 * f / SAMPLE_RATE))));
+            for (int c = 0; c < CHANNELS; c++) {
+                final int p = (f * CHANNELS + c) * 2;
+                chunk[p] = (byte) sample;
+                chunk[p + 1] = (byte) (sample >> 8);
+            }
+        }
+        return chunk;
+    }
+}
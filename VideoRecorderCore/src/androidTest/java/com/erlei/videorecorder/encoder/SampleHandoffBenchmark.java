@@ -0,0 +1,304 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 编码线程把 sample 交给混合器线程的两种方式的对比 :
+ * 原来每个 sample 一个 Message + 同步的 SampleData 缓存 (MessageHandoff) ,
+ * 和现在的 SPSC 环形队列 + 内存池 + 合并的 MSG_DRAIN (MediaMuxerWarpper)
+ * <p>
+ * 吞吐量 : 编码线程不停地写入 , 统计每秒交付给混合器的 sample 数 ;
+ * 延迟 : 每毫秒写入一个 sample , 统计从 sendEncodedData 到 IMediaMuxer.writeSampleData 的时间 (p50 / p99)
+ * 结果输出到 logcat , TAG 为 SampleHandoffBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class SampleHandoffBenchmark {
+
+    private static final String TAG = "SampleHandoffBenchmark";
+    private static final int SAMPLE_SIZE = 8 * 1024;
+    private static final int WARMUP_SAMPLES = 2000;
+    private static final int THROUGHPUT_SAMPLES = 20000;
+    private static final int LATENCY_SAMPLES = 3000;
+    private static final long LATENCY_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 被测的交付方式
+     */
+    interface Handoff {
+        void send(ByteBuffer data, MediaCodec.BufferInfo bufferInfo);
+
+        void stop();
+    }
+
+    @Test
+    public void messagePerSample() throws InterruptedException {
+        run("message", new HandoffFactory() {
+            @Override
+            public Handoff create(RecordingMuxer muxer) {
+                return new MessageHandoff(muxer);
+            }
+        });
+    }
+
+    @Test
+    public void ringQueue() throws InterruptedException {
+        run("ring", new HandoffFactory() {
+            @Override
+            public Handoff create(RecordingMuxer muxer) {
+                return new RingHandoff(muxer);
+            }
+        });
+    }
+
+    interface HandoffFactory {
+        Handoff create(RecordingMuxer muxer);
+    }
+
+    private void run(String name, HandoffFactory factory) throws InterruptedException {
+        ByteBuffer data = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        RecordingMuxer warmup = new RecordingMuxer(WARMUP_SAMPLES);
+        burst(factory.create(warmup), warmup, data, bufferInfo, WARMUP_SAMPLES);
+
+        RecordingMuxer throughput = new RecordingMuxer(THROUGHPUT_SAMPLES);
+        long elapsedNs = burst(factory.create(throughput), throughput, data, bufferInfo, THROUGHPUT_SAMPLES);
+
+        RecordingMuxer latency = new RecordingMuxer(LATENCY_SAMPLES);
+        Handoff handoff = factory.create(latency);
+        long next = System.nanoTime();
+        for (int i = 0; i < LATENCY_SAMPLES; i++) {
+            while (System.nanoTime() - next < 0) {
+                LockSupport.parkNanos(50000);
+            }
+            next += LATENCY_INTERVAL_NS;
+            send(handoff, data, bufferInfo, i);
+        }
+        assertTrue(name + " latency run timeout", latency.await());
+        handoff.stop();
+
+        long[] latencies = Arrays.copyOf(latency.mLatencies, LATENCY_SAMPLES);
+        Arrays.sort(latencies);
+        Log.i(TAG, String.format("%s : %.0f samples/s , hand-off latency p50 = %d us , p99 = %d us , max = %d us",
+                name,
+                THROUGHPUT_SAMPLES * 1e9 / elapsedNs,
+                latencies[LATENCY_SAMPLES / 2] / 1000,
+                latencies[LATENCY_SAMPLES * 99 / 100] / 1000,
+                latencies[LATENCY_SAMPLES - 1] / 1000));
+        assertEquals(THROUGHPUT_SAMPLES, throughput.mCount);
+        assertEquals(LATENCY_SAMPLES, latency.mCount);
+    }
+
+    /**
+     * @return 从第一个 sample 写入到最后一个 sample 交付给混合器的时间
+     */
+    private static long burst(Handoff handoff, RecordingMuxer muxer, ByteBuffer data, MediaCodec.BufferInfo bufferInfo, int count) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            send(handoff, data, bufferInfo, i);
+        }
+        assertTrue("burst timeout", muxer.await());
+        long elapsed = muxer.mLastWriteNs - start;
+        handoff.stop();
+        return elapsed;
+    }
+
+    /**
+     * sample 的前 16 字节是写入时间和序号 , 混合器中据此计算延迟和检查顺序
+     */
+    private static void send(Handoff handoff, ByteBuffer data, MediaCodec.BufferInfo bufferInfo, int index) {
+        data.clear();
+        data.putLong(0, System.nanoTime());
+        data.putLong(8, index);
+        bufferInfo.set(0, SAMPLE_SIZE, index * 23219L, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        handoff.send(data, bufferInfo);
+    }
+
+    /**
+     * 只记录交付时间的混合器 , 在混合器线程调用
+     */
+    static class RecordingMuxer implements IMediaMuxer {
+
+        private final long[] mLatencies;
+        private final CountDownLatch mLatch;
+        private volatile int mCount;
+        private volatile long mLastWriteNs;
+
+        RecordingMuxer(int expected) {
+            mLatencies = new long[expected];
+            mLatch = new CountDownLatch(expected);
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(60, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+
+        }
+
+        @Override
+        public void start() {
+
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            long now = System.nanoTime();
+            int index = (int) byteBuf.getLong(bufferInfo.offset + 8);
+            if (index != mCount) throw new IllegalStateException("expected sample " + mCount + " but " + index);
+            if (index < mLatencies.length) mLatencies[index] = now - byteBuf.getLong(bufferInfo.offset);
+            mCount = index + 1;
+            mLastWriteNs = now;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void stop() {
+
+        }
+
+        @Override
+        public void release() {
+
+        }
+    }
+
+    /**
+     * 现在的实现 : MediaMuxerWarpper 的环形队列
+     */
+    static class RingHandoff implements Handoff {
+
+        private final MediaMuxerWarpper mMuxer;
+        private final MediaMuxerWarpper.MediaMuxerHandler mHandler;
+
+        RingHandoff(RecordingMuxer muxer) {
+            mMuxer = new MediaMuxerWarpper(muxer, null, 1);
+            mMuxer.addMediaTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+            mMuxer.start();
+            mHandler = mMuxer.getHandler();
+        }
+
+        @Override
+        public void send(ByteBuffer data, MediaCodec.BufferInfo bufferInfo) {
+            mHandler.sendEncodedData(0, data, bufferInfo);
+        }
+
+        @Override
+        public void stop() {
+            mHandler.stop();
+            try {
+                mMuxer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 原来的实现 : 每个 sample 复制到一个 SampleData (从同步的 List 中复用) , 用一个 Message 发送给混合器线程
+     */
+    static class MessageHandoff extends Handler implements Handoff {
+
+        private static final int MSG_WRITE_SAMPLE_DATA = 1;
+        private final HandlerThread mThread;
+        private final IMediaMuxer mMuxer;
+        private final List<SampleData> mCache = Collections.synchronizedList(new ArrayList<SampleData>());
+
+        MessageHandoff(IMediaMuxer muxer) {
+            this(startThread(), muxer);
+        }
+
+        private MessageHandoff(HandlerThread thread, IMediaMuxer muxer) {
+            super(thread.getLooper());
+            mThread = thread;
+            mMuxer = muxer;
+        }
+
+        private static HandlerThread startThread() {
+            HandlerThread thread = new HandlerThread("MessageHandoff");
+            thread.start();
+            return thread;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_WRITE_SAMPLE_DATA) return;
+            SampleData data = (SampleData) msg.obj;
+            mMuxer.writeSampleData(data.mTrackIndex, data.mByteBuffer, data.mBufferInfo);
+            mCache.add(data);
+        }
+
+        @Override
+        public void send(ByteBuffer data, MediaCodec.BufferInfo bufferInfo) {
+            sendMessage(obtainMessage(MSG_WRITE_SAMPLE_DATA, obtainSampleData(0, data, bufferInfo)));
+        }
+
+        private synchronized SampleData obtainSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            SampleData data = mCache.isEmpty() ? new SampleData() : mCache.remove(0);
+            data.set(trackIndex, encodedData, bufferInfo);
+            return data;
+        }
+
+        @Override
+        public void stop() {
+            mThread.quitSafely();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static class SampleData {
+        private final SparseArray<ByteBuffer> mBuffers = new SparseArray<>();
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private ByteBuffer mByteBuffer;
+        private int mTrackIndex;
+
+        void set(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            mTrackIndex = trackIndex;
+            mByteBuffer = mBuffers.get(trackIndex);
+            if (mByteBuffer == null || mByteBuffer.capacity() < encodedData.capacity()) {
+                mByteBuffer = ByteBuffer.allocateDirect(encodedData.capacity());
+                mBuffers.put(trackIndex, mByteBuffer);
+            }
+            mByteBuffer.clear();
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            mByteBuffer.put(encodedData);
+            mByteBuffer.flip();
+            mBufferInfo.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 输出裸 AAC (ADTS) 流 , 每个 AAC 帧前面加 7 字节的 ADTS 头 , 没有 moov , 边写边可以播放 , 适合推流或者边录边传
+ * <p>
+ * 只支持一个 AAC 轨道 , ADTS 头中的 profile / 采样率 / 声道数取自 addTrack 的 MediaFormat (优先使用 csd-0) ,
+ * 编码器输出的 codec config 直接忽略 . 头和帧数据拼在一个复用的数组中 , 每帧只有一次 write , 不分配对象
+ */
+public class AdtsMuxer implements IMediaMuxer {
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    private static final int HEADER_SIZE = 7;
+    /**
+     * ADTS 头中的帧长度字段是 13 位 , 包含头
+     */
+    private static final int MAX_FRAME_SIZE = 8191;
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final OutputStream mOutputStream;
+    private final boolean mCloseOnRelease;
+    private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+    private boolean mTrackAdded;
+    private boolean mStarted;
+
+    /**
+     * @param output 输出文件 , 已经存在时覆盖
+     */
+    public AdtsMuxer(String output) throws IOException {
+        this(new FileOutputStream(output), true);
+    }
+
+    /**
+     * @param outputStream   ADTS 流写入这个 OutputStream , 比如网络连接
+     * @param closeOnRelease release 时是否关闭 outputStream
+     */
+    public AdtsMuxer(OutputStream outputStream, boolean closeOnRelease) {
+        if (outputStream == null) throw new NullPointerException("outputStream is null");
+        mOutputStream = outputStream;
+        mCloseOnRelease = closeOnRelease;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) throw new IllegalStateException("muxer already started");
+        if (mTrackAdded) throw new IllegalStateException("ADTS supports only one track");
+        if (!MIME_TYPE.equals(format.getString(MediaFormat.KEY_MIME)))
+            throw new IllegalArgumentException("unsupported mime " + format.getString(MediaFormat.KEY_MIME));
+        int objectType = 2; // AAC LC
+        int sampleRateIndex = -1;
+        int channelConfig = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd != null && csd.remaining() >= 2) {
+            // AudioSpecificConfig : objectType(5) sampleRateIndex(4) channelConfig(4)
+            int b0 = csd.get(csd.position()) & 0xff;
+            int b1 = csd.get(csd.position() + 1) & 0xff;
+            objectType = b0 >> 3;
+            sampleRateIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+            channelConfig = (b1 >> 3) & 0x0f;
+        }
+        if (sampleRateIndex < 0 || sampleRateIndex >= SAMPLE_RATES.length) {
+            sampleRateIndex = getSampleRateIndex(format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        }
+        // ADTS 的 profile 只有 2 位 , 只能表示 object type 1 - 4
+        if (objectType < 1 || objectType > 4)
+            throw new IllegalArgumentException("unsupported AAC object type " + objectType);
+        if (channelConfig < 1 || channelConfig > 7)
+            throw new IllegalArgumentException("unsupported channel count " + channelConfig);
+
+        mFrame[0] = (byte) 0xFF;
+        mFrame[1] = (byte) 0xF1; // MPEG-4 , layer 0 , 没有 CRC
+        mFrame[2] = (byte) (((objectType - 1) << 6) | (sampleRateIndex << 2) | (channelConfig >> 2));
+        mFrame[3] = (byte) ((channelConfig & 0x03) << 6);
+        mFrame[6] = (byte) 0xFC; // 一个 raw data block
+        mTrackAdded = true;
+        return 0;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+
+    }
+
+    @Override
+    public void start() {
+        if (!mTrackAdded) throw new IllegalStateException("no track added");
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!mStarted) throw new IllegalStateException("muxer not started");
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) return;
+        final int frameSize = HEADER_SIZE + bufferInfo.size;
+        if (frameSize > MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("AAC frame too large " + bufferInfo.size);
+        mFrame[3] = (byte) ((mFrame[3] & 0xC0) | (frameSize >> 11));
+        mFrame[4] = (byte) ((frameSize >> 3) & 0xff);
+        mFrame[5] = (byte) (((frameSize & 0x07) << 5) | 0x1F); // buffer fullness 0x7FF (VBR)
+        int position = byteBuf.position();
+        byteBuf.position(bufferInfo.offset);
+        byteBuf.get(mFrame, HEADER_SIZE, bufferInfo.size);
+        byteBuf.position(position);
+        try {
+            mOutputStream.write(mFrame, 0, frameSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("write adts frame failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!mStarted) throw new IllegalStateException("muxer not started");
+        mStarted = false;
+        try {
+            mOutputStream.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("flush adts stream failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mCloseOnRelease) return;
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int getSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) return i;
+        }
+        throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+    }
+}
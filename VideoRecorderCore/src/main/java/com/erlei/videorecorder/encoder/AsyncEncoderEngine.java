@@ -0,0 +1,278 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 回调模式的编码调度
+ * <p>
+ * 编码器空闲的输入缓冲区和还没有送入编码器的输入数据分别排队 , 任何一边到达时就尝试配对 , 不需要轮询等待 ;
+ * 输出缓冲区在 onOutputBufferAvailable 中立即交给 Listener 并归还 , 不会在编码器中积压
+ * 输入数据到达时如果没有空闲的输入缓冲区 , 数据会被拷贝到 SampleBufferPool 中等待 ,
+ * 最多等待 maxPendingInputs 个 , 超过时丢弃最旧的数据
+ * <p>
+ * 非线程安全 , queueInput , signalEndOfStream 和 ICodecAdapter 的回调必须在同一个线程中调用
+ */
+public class AsyncEncoderEngine implements ICodecAdapter.Callback {
+
+    public static final int DEFAULT_MAX_PENDING_INPUTS = 16;
+
+    public interface Listener {
+
+        /**
+         * 输出格式确定 , 编码器的 getOutputFormat() 包含了 csd-0 csd-1 的数据
+         */
+        void onOutputFormatChanged();
+
+        /**
+         * @param data  position 到 limit 之间是编码数据 , 只在回调期间有效
+         * @param flags MediaCodec.BUFFER_FLAG_*
+         */
+        void onEncodedData(ByteBuffer data, long presentationTimeUs, int flags);
+
+        /**
+         * 最后一个输出缓冲区已经处理完毕
+         */
+        void onEndOfStream();
+
+        void onError(Exception e);
+    }
+
+    private final ICodecAdapter mCodec;
+    private final Listener mListener;
+    private final boolean mSurfaceInput;
+    private final int mMaxPendingInputs;
+    private final SampleBufferPool mPool = new SampleBufferPool(4 * 1024 * 1024);
+    private final ArrayDeque<PendingInput> mPendingInputs = new ArrayDeque<>();
+    private final ArrayDeque<PendingInput> mFreeInputs = new ArrayDeque<>();
+    private int[] mInputSlots = new int[8];
+    private int mInputSlotHead;
+    private int mInputSlotCount;
+
+    private boolean mEndOfStreamRequested;
+    private boolean mEndOfStreamQueued;
+    private boolean mEndOfStream;
+
+    private long mInputCount;
+    private long mOutputCount;
+    private long mDroppedInputCount;
+    private long mTruncatedInputCount;
+    private int mPendingHighWater;
+
+    /**
+     * @param surfaceInput 编码器是否使用 Surface 作为输入 , 此时 queueInput 不可用 , 结束时调用 signalEndOfInputStream
+     */
+    public AsyncEncoderEngine(ICodecAdapter codec, boolean surfaceInput, Listener listener) {
+        this(codec, surfaceInput, listener, DEFAULT_MAX_PENDING_INPUTS);
+    }
+
+    public AsyncEncoderEngine(ICodecAdapter codec, boolean surfaceInput, Listener listener, int maxPendingInputs) {
+        if (maxPendingInputs <= 0) throw new IllegalArgumentException("maxPendingInputs must > 0");
+        mCodec = codec;
+        mSurfaceInput = surfaceInput;
+        mListener = listener;
+        mMaxPendingInputs = maxPendingInputs;
+    }
+
+    /**
+     * 注册回调 , 必须在编码器 configure 之前调用
+     */
+    public void attach() {
+        mCodec.setCallback(this);
+    }
+
+    /**
+     * 送入一帧数据 , 有空闲的输入缓冲区时直接拷贝到编码器 , 否则拷贝到等待队列
+     *
+     * @param data position 开始的 length 个字节
+     */
+    public void queueInput(ByteBuffer data, int length, long presentationTimeUs) {
+        if (mSurfaceInput) throw new IllegalStateException("encoder uses surface input");
+        if (mEndOfStreamRequested) return;
+        ByteBuffer source = data.duplicate();
+        source.limit(source.position() + Math.min(length, source.remaining()));
+        if (mPendingInputs.isEmpty() && mInputSlotCount > 0) {
+            fill(pollInputSlot(), source, presentationTimeUs);
+            return;
+        }
+        if (mPendingInputs.size() >= mMaxPendingInputs) {
+            recycle(mPendingInputs.pollFirst());
+            mDroppedInputCount++;
+        }
+        PendingInput input = mFreeInputs.isEmpty() ? new PendingInput() : mFreeInputs.pollFirst();
+        input.buffer = mPool.copyOf(source);
+        input.presentationTimeUs = presentationTimeUs;
+        mPendingInputs.addLast(input);
+        mPendingHighWater = Math.max(mPendingHighWater, mPendingInputs.size());
+    }
+
+    /**
+     * 结束输入 , 等待队列中的数据仍然会送入编码器 , 所有输出处理完之后回调 Listener.onEndOfStream
+     */
+    public void signalEndOfStream() {
+        if (mEndOfStreamRequested) return;
+        mEndOfStreamRequested = true;
+        if (mSurfaceInput) {
+            mCodec.signalEndOfInputStream();
+            mEndOfStreamQueued = true;
+        } else if (mPendingInputs.isEmpty() && mInputSlotCount > 0) {
+            queueEndOfStream(pollInputSlot());
+        }
+    }
+
+    /**
+     * 丢弃等待队列 , 在编码器 release 之后调用
+     */
+    public void release() {
+        while (!mPendingInputs.isEmpty()) {
+            recycle(mPendingInputs.pollFirst());
+        }
+        mInputSlotCount = 0;
+        mPool.trim();
+    }
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+        if (mEndOfStreamQueued) return;
+        if (!mPendingInputs.isEmpty()) {
+            PendingInput input = mPendingInputs.pollFirst();
+            fill(index, input.buffer.buffer(), input.presentationTimeUs);
+            recycle(input);
+        } else if (mEndOfStreamRequested) {
+            queueEndOfStream(index);
+        } else {
+            offerInputSlot(index);
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (mEndOfStream) return;
+        try {
+            if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && size > 0) {
+                // codec config 已经包含在编码器的输出格式中
+                ByteBuffer data = mCodec.getOutputBuffer(index);
+                data.limit(offset + size).position(offset);
+                mListener.onEncodedData(data, presentationTimeUs, flags);
+                mOutputCount++;
+            }
+        } finally {
+            mCodec.releaseOutputBuffer(index);
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mEndOfStream = true;
+            mListener.onEndOfStream();
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged() {
+        mListener.onOutputFormatChanged();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        mListener.onError(e);
+    }
+
+    private void fill(int index, ByteBuffer source, long presentationTimeUs) {
+        ByteBuffer input = mCodec.getInputBuffer(index);
+        input.clear();
+        int size = source.remaining();
+        if (size > input.remaining()) {
+            // 调用方的一帧比编码器的输入缓冲区大 , 截断而不是抛出 BufferOverflowException
+            size = input.remaining();
+            source.limit(source.position() + size);
+            mTruncatedInputCount++;
+        }
+        input.put(source);
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+        mInputCount++;
+        if (mEndOfStreamRequested && mPendingInputs.isEmpty() && !mEndOfStreamQueued && mInputSlotCount > 0) {
+            queueEndOfStream(pollInputSlot());
+        }
+    }
+
+    private void queueEndOfStream(int index) {
+        mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mEndOfStreamQueued = true;
+    }
+
+    private void offerInputSlot(int index) {
+        if (mInputSlotCount == mInputSlots.length) {
+            int[] slots = new int[mInputSlots.length * 2];
+            for (int i = 0; i < mInputSlotCount; i++) {
+                slots[i] = mInputSlots[(mInputSlotHead + i) % mInputSlots.length];
+            }
+            mInputSlots = slots;
+            mInputSlotHead = 0;
+        }
+        mInputSlots[(mInputSlotHead + mInputSlotCount) % mInputSlots.length] = index;
+        mInputSlotCount++;
+    }
+
+    private int pollInputSlot() {
+        int index = mInputSlots[mInputSlotHead];
+        mInputSlotHead = (mInputSlotHead + 1) % mInputSlots.length;
+        mInputSlotCount--;
+        return index;
+    }
+
+    private void recycle(PendingInput input) {
+        input.buffer.release();
+        input.buffer = null;
+        mFreeInputs.addFirst(input);
+    }
+
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /**
+     * @return 等待空闲输入缓冲区的数据帧数量
+     */
+    public int getPendingInputCount() {
+        return mPendingInputs.size();
+    }
+
+    /**
+     * @return 编码器中空闲的输入缓冲区数量
+     */
+    public int getAvailableInputCount() {
+        return mInputSlotCount;
+    }
+
+    public long getInputCount() {
+        return mInputCount;
+    }
+
+    public long getOutputCount() {
+        return mOutputCount;
+    }
+
+    /**
+     * @return 等待队列满了之后丢弃的数据帧数量
+     */
+    public long getDroppedInputCount() {
+        return mDroppedInputCount;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncEncoderEngine{" +
+                "input=" + mInputCount +
+                ", output=" + mOutputCount +
+                ", dropped=" + mDroppedInputCount +
+                ", truncated=" + mTruncatedInputCount +
+                ", pendingHighWater=" + mPendingHighWater +
+                ", eos=" + mEndOfStream +
+                '}';
+    }
+
+    private static class PendingInput {
+        SampleBufferPool.PooledBuffer buffer;
+        long presentationTimeUs;
+    }
+}
@@ -21,6 +21,7 @@ public class AudioEncoder extends MediaEncoder {
     private int mSampleRate;
     private int mBitRate;
     private int mChannelCount;
+    private MediaClock mClock = new MediaClock();
 
 
     public AudioEncoder(MediaEncoderCallBack callBack) {
@@ -34,34 +35,22 @@ public class AudioEncoder extends MediaEncoder {
         mChannelCount = channelCount;
     }
 
-    @Override
-    protected long getSafePTSUs(long presentationTimeUs) {
-//        return getJitterFreePTS(presentationTimeUs,3552);
-        long result = System.nanoTime() / 1000L;
-        if (result < mPrevOutputPTSUs)
-            result = (mPrevOutputPTSUs - result) + result;
-        return result;
+    /**
+     * 和视频编码器共用时钟时 , 在 start() 之前设置
+     */
+    public void setClock(MediaClock clock) {
+        mClock = clock;
     }
-    long startPTS = 0;
-    long totalSamplesNum = 0;
-    private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
-        long correctedPts = 0;
-        long bufferDuration = (1000000 * bufferSamplesNum) / (mSampleRate);
-        bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
-        if (totalSamplesNum == 0) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-        }
-        correctedPts = startPTS +  (1000000 * totalSamplesNum) / (mSampleRate);
-        if(bufferPts - correctedPts >= 2*bufferDuration) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-            correctedPts = startPTS;
-        }
-        totalSamplesNum += bufferSamplesNum;
-        return correctedPts;
+
+    /**
+     * @return 计算音频时间戳的时钟 , 采集线程通过它把采样帧数转换为时间戳
+     */
+    public MediaClock getClock() {
+        return mClock;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
     }
 
     @Override
@@ -78,9 +67,12 @@ public class AudioEncoder extends MediaEncoder {
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, mChannelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
+        // 采集线程按 PcmFrameChunker 的块送入数据
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                PcmFrameChunker.getChunkSize(mChannelCount, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK));
         LogUtil.loge(TAG, "format: " + audioFormat);
         MediaCodec encoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        encoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        configureEncoder(encoder, audioFormat);
         encoder.start();
         LogUtil.logd(TAG, "createEncoder finishing");
         return encoder;
@@ -0,0 +1,89 @@
+package com.erlei.videorecorder.encoder;
+
+/**
+ * 在采集线程中计算音频电平 , 用于界面上的音量表和削波提示
+ * <p>
+ * 按固定的窗口 (sampleRate / rateHz 帧) 累计平方和 , 峰值和削波的采样数 , 每个窗口结束时回调一次 ,
+ * 而不是每个缓冲区回调一次 . 累计只使用基本类型 , 不分配对象 , 每个采样只有一次乘加和两次比较
+ * 电平是线性值 , 0 - 32768 (满幅) , dBFS = 20 * log10(level / 32768)
+ * 不是线程安全的 , 只在采集线程中使用
+ */
+public class AudioLevelMeter {
+
+    /**
+     * 建议的回调频率 , 足够让音量表平滑变化
+     */
+    public static final int DEFAULT_RATE_HZ = 20;
+    /**
+     * 绝对值达到这个值的采样认为是削波
+     */
+    public static final int CLIP_LEVEL = Short.MAX_VALUE;
+
+    public interface Listener {
+        /**
+         * 在采集线程中回调 , 不能阻塞
+         *
+         * @param rms       窗口内所有声道的均方根电平
+         * @param peak      窗口内的峰值电平
+         * @param clipCount 窗口内削波的采样数
+         */
+        void onAudioLevel(int rms, int peak, int clipCount);
+    }
+
+    private final Listener mListener;
+    private final int mChannelCount;
+    private final int mWindowFrames;
+    private long mSumSquares;
+    private int mPeak;
+    private int mClipCount;
+    private int mFrames;
+
+    /**
+     * @param rateHz 每秒回调的次数
+     */
+    public AudioLevelMeter(int sampleRate, int channelCount, int rateHz, Listener listener) {
+        if (rateHz <= 0 || rateHz > sampleRate) throw new IllegalArgumentException("invalid rate " + rateHz);
+        mListener = listener;
+        mChannelCount = channelCount;
+        mWindowFrames = sampleRate / rateHz;
+    }
+
+    /**
+     * 累计一段 16bit PCM (小端 , 交错的声道) , 期间完成的每个窗口回调一次
+     *
+     * @param length 字节数
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        final int frameBytes = 2 * mChannelCount;
+        int p = offset;
+        int remaining = length / frameBytes;
+        while (remaining > 0) {
+            int frames = Math.min(remaining, mWindowFrames - mFrames);
+            long sum = mSumSquares;
+            int peak = mPeak;
+            int clips = mClipCount;
+            for (int end = p + frames * frameBytes; p < end; p += 2) {
+                int sample = (pcm[p] & 0xff) | (pcm[p + 1] << 8);
+                sum += sample * sample;
+                if (sample < 0) sample = -sample;
+                if (sample > peak) peak = sample;
+                if (sample >= CLIP_LEVEL) clips++;
+            }
+            mSumSquares = sum;
+            mPeak = peak;
+            mClipCount = clips;
+            mFrames += frames;
+            remaining -= frames;
+            if (mFrames == mWindowFrames) publish();
+        }
+    }
+
+    private void publish() {
+        int rms = (int) Math.sqrt(mSumSquares / (double) (mFrames * mChannelCount));
+        mListener.onAudioLevel(rms, mPeak, mClipCount);
+        mSumSquares = 0;
+        mPeak = 0;
+        mClipCount = 0;
+        mFrames = 0;
+    }
+}
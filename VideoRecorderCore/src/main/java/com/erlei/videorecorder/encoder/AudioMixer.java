@@ -0,0 +1,332 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 在采集线程中把背景音乐混入麦克风的 PCM , 录制完成之后不需要再混音和重新编码
+ * <p>
+ * 背景音乐边解码边混音 : 每次 mix 之前只解码这一块需要的长度 , 解码的结果转换成录制的声道数 ,
+ * 线性插值重采样到录制的采样率之后写入一个定长的 short[] 队列 . 队列满的时候解码器的输出缓冲区保留到下一次 ,
+ * 所以占用的内存只有解码器自己的几个缓冲区和这个队列 , 和音乐的长度无关
+ * <p>
+ * 混音在 short 上进行 , 超出范围时饱和 ; 伴奏避让的增益逐帧平滑变化 , 避免音量突变产生的爆音
+ * 解码器跟不上时这一块缺少的部分用静音代替 (getUnderrunFrames) , 不会阻塞采集线程
+ * prepare 之后稳定运行时不分配对象 , 不是线程安全的 , 只在采集线程中使用
+ */
+public class AudioMixer {
+
+    private static final String TAG = "AudioMixer";
+
+    /**
+     * 每次 mix 最多尝试解码的次数 , 每次最多等待 DECODE_TIMEOUT_USEC
+     */
+    private static final int MAX_DECODE_ATTEMPTS = 8;
+    private static final long DECODE_TIMEOUT_USEC = 2000L;
+    /**
+     * prepare 时预先解码的帧数和最多尝试的次数
+     */
+    private static final int PREROLL_FRAMES = PcmFrameChunker.AAC_FRAME_SAMPLES * PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK;
+    private static final int PREROLL_ATTEMPTS = 100;
+    /**
+     * 队列可以放下两个最大的块
+     */
+    private static final int FIFO_FRAMES = PcmFrameChunker.AAC_FRAME_SAMPLES * PcmFrameChunker.MAX_FRAMES_PER_CHUNK * 2;
+    /**
+     * 避让时音量下降 , 恢复和保持的时间
+     */
+    private static final float DUCK_ATTACK_SECONDS = 0.01f;
+    private static final float DUCK_RELEASE_SECONDS = 0.3f;
+    private static final float DUCK_HOLD_SECONDS = 0.3f;
+
+    private final BackgroundMusicConfig mConfig;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaExtractor mExtractor;
+    private MediaCodec mDecoder;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean mInputEnded;
+    private boolean mOutputEnded;
+
+    /**
+     * 正在读取的解码器输出缓冲区 , -1 表示没有
+     */
+    private int mOutputIndex = -1;
+    private int mOutputPosition;
+    private int mOutputLimit;
+    private boolean mOutputEos;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mSourceChannelCount;
+    /**
+     * 重采样的步长 (源采样率 / 录制采样率) 和下一个输出帧在 mPrevious 和当前帧之间的位置
+     */
+    private double mStep;
+    private double mPhase;
+    private final int[] mPrevious = new int[2];
+    private final int[] mCurrent = new int[2];
+
+    private short[] mFifo;
+    private int mFifoRead;
+    private int mFifoSize;
+
+    private float mDuckGain = 1f;
+    private float mAttackCoef;
+    private float mReleaseCoef;
+    private int mHoldFrames;
+    private int mHoldRemaining;
+    private long mUnderrunFrames;
+
+    public AudioMixer(BackgroundMusicConfig config) {
+        mConfig = config;
+    }
+
+    /**
+     * 打开背景音乐并预先解码一块 , 在采集开始之前调用
+     *
+     * @param sampleRate   录制的采样率
+     * @param channelCount 录制的声道数 , 1 或者 2
+     * @throws IOException 文件不存在或者没有可以解码的音轨 , 此时已经释放了所有资源
+     */
+    public void prepare(int sampleRate, int channelCount) throws IOException {
+        if (channelCount != 1 && channelCount != 2)
+            throw new IllegalArgumentException("invalid channelCount " + channelCount);
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        try {
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mConfig.getPath());
+            MediaFormat format = null;
+            for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    mExtractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) throw new IOException("no audio track in " + mConfig.getPath());
+            setSourceFormat(format);
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(format, null, null, 0);
+            mDecoder.start();
+        } catch (IOException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            release();
+            throw new IOException("unable to decode " + mConfig.getPath(), e);
+        }
+        mInputBuffers = mDecoder.getInputBuffers();
+        mOutputBuffers = mDecoder.getOutputBuffers();
+        mFifo = new short[FIFO_FRAMES * channelCount];
+        mAttackCoef = smoothingCoef(DUCK_ATTACK_SECONDS);
+        mReleaseCoef = smoothingCoef(DUCK_RELEASE_SECONDS);
+        mHoldFrames = (int) (DUCK_HOLD_SECONDS * sampleRate);
+        decode(PREROLL_FRAMES, PREROLL_ATTEMPTS);
+        LogUtil.logd(TAG, "prepare " + mConfig + " source " + mSourceChannelCount + "ch , step " + mStep);
+    }
+
+    /**
+     * 把背景音乐混入一块 16bit PCM (小端 , 交错的声道) , 结果写回 pcm
+     *
+     * @param length 字节数 , 录制声道数 * 2 的整数倍
+     */
+    public void mix(byte[] pcm, int offset, int length) {
+        if (mDecoder == null) return;
+        final int channels = mChannelCount;
+        final int frames = length / (2 * channels);
+        decode(frames, MAX_DECODE_ATTEMPTS);
+
+        float duckTarget = 1f;
+        final float duckVolume = mConfig.getDuckVolume();
+        if (duckVolume < 1f) {
+            long sum = 0;
+            final int end = offset + frames * channels * 2;
+            for (int p = offset; p < end; p += 2) {
+                int sample = (pcm[p] & 0xff) | (pcm[p + 1] << 8);
+                sum += sample * sample;
+            }
+            double rms = Math.sqrt(sum / (double) (frames * channels)) / 32768.0;
+            if (rms > mConfig.getDuckThreshold()) {
+                mHoldRemaining = mHoldFrames;
+            } else {
+                mHoldRemaining = Math.max(0, mHoldRemaining - frames);
+            }
+            if (mHoldRemaining > 0) duckTarget = duckVolume;
+        }
+
+        final float micVolume = mConfig.getMicVolume();
+        final float musicVolume = mConfig.getMusicVolume();
+        final float coef = duckTarget < mDuckGain ? mAttackCoef : mReleaseCoef;
+        final int musicFrames = Math.min(frames, mFifoSize / channels);
+        final short[] fifo = mFifo;
+        int read = mFifoRead;
+        int p = offset;
+        for (int f = 0; f < frames; f++) {
+            mDuckGain += (duckTarget - mDuckGain) * coef;
+            final float musicGain = musicVolume * mDuckGain;
+            final boolean hasMusic = f < musicFrames;
+            for (int c = 0; c < channels; c++) {
+                int mic = (pcm[p] & 0xff) | (pcm[p + 1] << 8);
+                float out = mic * micVolume;
+                if (hasMusic) {
+                    out += fifo[read] * musicGain;
+                    if (++read == fifo.length) read = 0;
+                }
+                int sample = (int) out;
+                if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+                else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+                pcm[p] = (byte) sample;
+                pcm[p + 1] = (byte) (sample >> 8);
+                p += 2;
+            }
+        }
+        mFifoRead = read;
+        mFifoSize -= musicFrames * channels;
+        if (musicFrames < frames && !mOutputEnded) mUnderrunFrames += frames - musicFrames;
+    }
+
+    /**
+     * 解码到队列中至少有 frames 帧 , 或者尝试 maxAttempts 次 , 或者音乐结束
+     */
+    private void decode(int frames, int maxAttempts) {
+        int attempts = 0;
+        while (mFifoSize < frames * mChannelCount && !mOutputEnded && attempts++ < maxAttempts) {
+            if (mOutputIndex >= 0) {
+                readOutput();
+                // 队列已满 , 输出缓冲区留到下一次
+                if (mOutputIndex >= 0) return;
+                continue;
+            }
+            feedInput();
+            int index = mDecoder.dequeueOutputBuffer(mBufferInfo, DECODE_TIMEOUT_USEC);
+            if (index >= 0) {
+                mOutputIndex = index;
+                mOutputPosition = mBufferInfo.offset;
+                mOutputLimit = mBufferInfo.offset + mBufferInfo.size;
+                mOutputEos = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                readOutput();
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mDecoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                setSourceFormat(mDecoder.getOutputFormat());
+            }
+        }
+    }
+
+    private void feedInput() {
+        if (mInputEnded) return;
+        int index = mDecoder.dequeueInputBuffer(0);
+        if (index < 0) return;
+        int size = mExtractor.readSampleData(mInputBuffers[index], 0);
+        if (size < 0 && mConfig.isLooping()) {
+            mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            size = mExtractor.readSampleData(mInputBuffers[index], 0);
+        }
+        if (size < 0) {
+            mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputEnded = true;
+        } else {
+            mDecoder.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+        }
+    }
+
+    /**
+     * 把当前输出缓冲区中的数据转换之后写入队列 , 写完之后归还输出缓冲区
+     */
+    private void readOutput() {
+        final ByteBuffer buffer = mOutputBuffers[mOutputIndex];
+        buffer.order(ByteOrder.nativeOrder());
+        final int frameBytes = 2 * mSourceChannelCount;
+        // 一个源帧最多产生的输出帧数
+        final int maxFrames = (int) (1.0 / mStep) + 1;
+        while (mOutputPosition + frameBytes <= mOutputLimit
+                && mFifo.length - mFifoSize >= maxFrames * mChannelCount) {
+            int left = buffer.getShort(mOutputPosition);
+            int right = mSourceChannelCount > 1 ? buffer.getShort(mOutputPosition + 2) : left;
+            if (mChannelCount == 1) {
+                mCurrent[0] = (left + right) >> 1;
+            } else {
+                mCurrent[0] = left;
+                mCurrent[1] = right;
+            }
+            resample();
+            mOutputPosition += frameBytes;
+        }
+        if (mOutputPosition + frameBytes > mOutputLimit) {
+            mDecoder.releaseOutputBuffer(mOutputIndex, false);
+            mOutputIndex = -1;
+            if (mOutputEos) mOutputEnded = true;
+        }
+    }
+
+    /**
+     * 线性插值 , 输出 mPrevious 和 mCurrent 之间的所有输出帧
+     */
+    private void resample() {
+        final short[] fifo = mFifo;
+        while (mPhase < 1.0) {
+            for (int c = 0; c < mChannelCount; c++) {
+                int write = mFifoRead + mFifoSize;
+                if (write >= fifo.length) write -= fifo.length;
+                fifo[write] = (short) (mPrevious[c] + (mCurrent[c] - mPrevious[c]) * mPhase);
+                mFifoSize++;
+            }
+            mPhase += mStep;
+        }
+        mPhase -= 1.0;
+        mPrevious[0] = mCurrent[0];
+        mPrevious[1] = mCurrent[1];
+    }
+
+    private void setSourceFormat(MediaFormat format) {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mSourceChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mStep = sampleRate / (double) mSampleRate;
+    }
+
+    private float smoothingCoef(float seconds) {
+        return (float) (1.0 - Math.exp(-1.0 / (seconds * mSampleRate)));
+    }
+
+    /**
+     * @return 解码器跟不上而用静音代替的帧数
+     */
+    public long getUnderrunFrames() {
+        return mUnderrunFrames;
+    }
+
+    /**
+     * @return 背景音乐是否已经播放结束 (循环播放时不会结束)
+     */
+    public boolean isMusicEnded() {
+        return mOutputEnded && mFifoSize == 0;
+    }
+
+    public void release() {
+        if (mDecoder != null) {
+            try {
+                mDecoder.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mDecoder.release();
+            mDecoder = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+/**
+ * 打开麦克风 , 设备不支持编码使用的采样率或者声道数时退回设备支持的格式
+ * <p>
+ * 依次尝试 : 请求的格式 , 请求的声道数 + 常见的原生采样率 , 单声道 + 请求的采样率 , 单声道 + 原生采样率 ;
+ * 每种格式依次尝试所有音频源 . 打开的格式和请求的不同时 , 由 PcmFormatConverter 转换成编码的格式
+ */
+public class AudioRecordFactory {
+
+    private static final String TAG = "AudioRecordFactory";
+
+    /**
+     * 大部分设备的麦克风原生采样率 , 其他采样率由 HAL 重采样或者不支持
+     */
+    private static final int[] NATIVE_SAMPLE_RATES = {48000, 44100, 16000};
+
+    /**
+     * 打开麦克风的方式 , 测试时可以返回生成 PCM 的 AudioRecord 子类 , 参数和 open 相同
+     */
+    public interface Opener {
+
+        AudioRecord open(int[] sources, int sampleRate, int channelCount, int bufferSize);
+    }
+
+    /**
+     * 使用 open 打开设备的麦克风
+     */
+    public static final Opener DEFAULT = new Opener() {
+        @Override
+        public AudioRecord open(int[] sources, int sampleRate, int channelCount, int bufferSize) {
+            return AudioRecordFactory.open(sources, sampleRate, channelCount, bufferSize);
+        }
+    };
+
+    /**
+     * @param sources    依次尝试的 MediaRecorder.AudioSource
+     * @param bufferSize AudioRecord 内部缓冲区的最小字节数 , 小于 getMinBufferSize * 2 时使用后者
+     * @return 已经初始化的 AudioRecord , 所有格式都失败时返回 null
+     */
+    public static AudioRecord open(int[] sources, int sampleRate, int channelCount, int bufferSize) {
+        int[] channels = channelCount == 1 ? new int[]{1} : new int[]{channelCount, 1};
+        for (int channel : channels) {
+            AudioRecord audioRecord = open(sources, sampleRate, channel, bufferSize, sampleRate, channelCount);
+            if (audioRecord != null) return audioRecord;
+            for (int rate : NATIVE_SAMPLE_RATES) {
+                if (rate == sampleRate) continue;
+                audioRecord = open(sources, rate, channel, bufferSize, sampleRate, channelCount);
+                if (audioRecord != null) return audioRecord;
+            }
+        }
+        return null;
+    }
+
+    private static AudioRecord open(int[] sources, int sampleRate, int channelCount, int bufferSize,
+                                    int requestedRate, int requestedChannels) {
+        final int channelConfig = channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) return null;
+        // 按请求的格式计算的 bufferSize 换算到实际的格式
+        final long scaledBufferSize = (long) bufferSize * sampleRate * channelCount / requestedRate / requestedChannels;
+        final int size = (int) Math.max(minBufferSize * 2L, scaledBufferSize);
+        for (final int source : sources) {
+            AudioRecord audioRecord = null;
+            try {
+                audioRecord = new AudioRecord(source, sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT, size);
+                if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                    audioRecord.release();
+                    audioRecord = null;
+                }
+            } catch (final Exception e) {
+                audioRecord = null;
+                LogUtil.loge(TAG, "new AudioRecord with source " + source + " error " + e);
+            }
+            if (audioRecord != null) {
+                if (sampleRate != requestedRate || channelCount != requestedChannels) {
+                    LogUtil.logw(TAG, "capture " + sampleRate + "Hz " + channelCount + "ch instead of "
+                            + requestedRate + "Hz " + requestedChannels + "ch");
+                }
+                return audioRecord;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package com.erlei.videorecorder.encoder;
+
+/**
+ * 录制时实时混入的背景音乐 , 由 AudioMixer 在采集线程中解码和混音
+ * <p>
+ * 伴奏避让 (ducking) : 麦克风的音量超过 duckThreshold 时 , 背景音乐的音量降低到 musicVolume * duckVolume ,
+ * 说话停止之后缓慢恢复 , duckVolume 为 1 时不避让
+ */
+public class BackgroundMusicConfig implements Cloneable {
+
+    private final String mPath;
+    private float mMusicVolume = 1f;
+    private float mMicVolume = 1f;
+    private float mDuckVolume = 1f;
+    private float mDuckThreshold = 0.02f;
+    private boolean mLooping;
+
+    /**
+     * @param path 本地音频文件 , 任意 MediaExtractor 支持的格式 , 采样率和声道数不需要和录制的一致
+     */
+    public BackgroundMusicConfig(String path) {
+        if (path == null) throw new IllegalArgumentException("path must not be null");
+        mPath = path;
+    }
+
+    /**
+     * @param volume 背景音乐的音量 , 0 - 1 , 默认为 1
+     */
+    public BackgroundMusicConfig setMusicVolume(float volume) {
+        if (volume < 0f || volume > 1f) throw new IllegalArgumentException("invalid volume " + volume);
+        mMusicVolume = volume;
+        return this;
+    }
+
+    /**
+     * @param volume 麦克风的音量 , 0 - 1 , 默认为 1 , 0 表示只录制背景音乐
+     */
+    public BackgroundMusicConfig setMicVolume(float volume) {
+        if (volume < 0f || volume > 1f) throw new IllegalArgumentException("invalid volume " + volume);
+        mMicVolume = volume;
+        return this;
+    }
+
+    /**
+     * @param duckVolume 说话时背景音乐音量的比例 , 0 - 1 , 1 表示不避让 (默认)
+     * @param threshold  认为正在说话的麦克风 RMS 电平 , 0 - 1 (满幅) , 默认为 0.02 (约 -34dBFS)
+     */
+    public BackgroundMusicConfig setDucking(float duckVolume, float threshold) {
+        if (duckVolume < 0f || duckVolume > 1f) throw new IllegalArgumentException("invalid duckVolume " + duckVolume);
+        if (threshold <= 0f || threshold > 1f) throw new IllegalArgumentException("invalid threshold " + threshold);
+        mDuckVolume = duckVolume;
+        mDuckThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param looping 播放结束之后从头开始 , 默认为 false (结束之后只有麦克风)
+     */
+    public BackgroundMusicConfig setLooping(boolean looping) {
+        mLooping = looping;
+        return this;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public float getMusicVolume() {
+        return mMusicVolume;
+    }
+
+    public float getMicVolume() {
+        return mMicVolume;
+    }
+
+    public float getDuckVolume() {
+        return mDuckVolume;
+    }
+
+    public float getDuckThreshold() {
+        return mDuckThreshold;
+    }
+
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    @Override
+    public BackgroundMusicConfig clone() {
+        try {
+            return (BackgroundMusicConfig) super.clone();
+        } catch (CloneNotSupportedException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "BackgroundMusicConfig{" +
+                "path=" + mPath +
+                ", musicVolume=" + mMusicVolume +
+                ", micVolume=" + mMicVolume +
+                ", duckVolume=" + mDuckVolume +
+                ", duckThreshold=" + mDuckThreshold +
+                ", looping=" + mLooping +
+                '}';
+    }
+}
@@ -0,0 +1,193 @@
+package com.erlei.videorecorder.encoder;
+
+/**
+ * 根据写入速度动态调整视频码率 (AIMD)
+ * <p>
+ * 每个统计周期结束时根据三个指标做一次决策 :
+ * backlog : 等待写入 muxer 的帧数 (周期内的最大值)
+ * write load : 写入 muxer 占用的时间比例 , 等于输出码率 / 存储的写入速度
+ * output rate : 编码器实际的输出码率
+ * 出现积压 (backlog 或 write load 过高) 时码率乘以 DECREASE_FACTOR , 连续 STABLE_INTERVALS 个周期空闲
+ * 并且编码器用满了当前码率时增加 (max - min) / ADDITIVE_STEPS , 码率始终在 [min , max] 之间
+ * <p>
+ * 非线程安全 , 在编码线程中调用
+ */
+public class BitrateController {
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final int ADDITIVE_STEPS = 10;
+    private static final int STABLE_INTERVALS = 3;
+    private static final int BACKLOG_HIGH = 3;
+    private static final int BACKLOG_LOW = 1;
+    private static final float WRITE_LOAD_HIGH = 0.5f;
+    private static final float WRITE_LOAD_LOW = 0.25f;
+    /**
+     * 输出码率低于目标码率的这个比例时 , 画面简单 , 提高码率没有意义
+     */
+    private static final float UTILIZATION_LOW = 0.6f;
+
+    public interface Listener {
+
+        /**
+         * 码率变化 , 在编码线程中回调
+         */
+        void onBitrateChanged(Decision decision);
+    }
+
+    /**
+     * 一次调整码率的决策和依据
+     */
+    public static class Decision {
+        public final int previousBitrate;
+        public final int bitrate;
+        public final int backlog;
+        public final float writeLoad;
+        public final long outputBitrate;
+        /**
+         * 存储的写入速度 (bps) , 周期内没有写入时为 0
+         */
+        public final long storageBitrate;
+
+        Decision(int previousBitrate, int bitrate, int backlog, float writeLoad, long outputBitrate, long storageBitrate) {
+            this.previousBitrate = previousBitrate;
+            this.bitrate = bitrate;
+            this.backlog = backlog;
+            this.writeLoad = writeLoad;
+            this.outputBitrate = outputBitrate;
+            this.storageBitrate = storageBitrate;
+        }
+
+        public boolean isDecrease() {
+            return bitrate < previousBitrate;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{" +
+                    (isDecrease() ? "decrease " : "increase ") + previousBitrate + " -> " + bitrate +
+                    ", backlog=" + backlog +
+                    ", writeLoad=" + writeLoad +
+                    ", output=" + outputBitrate +
+                    ", storage=" + storageBitrate +
+                    '}';
+        }
+    }
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final long mIntervalNs;
+    private Listener mListener;
+    private int mBitrate;
+
+    private long mIntervalStartNs = -1;
+    private long mBytes;
+    private long mWriteTimeNs;
+    private int mMaxBacklog;
+    private int mStableIntervals;
+    private int mDecreaseCount;
+    private int mIncreaseCount;
+
+    public BitrateController(int initialBitrate, int minBitrate, int maxBitrate) {
+        this(initialBitrate, minBitrate, maxBitrate, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @param intervalMs 统计周期 , 每个周期最多调整一次码率
+     */
+    public BitrateController(int initialBitrate, int minBitrate, int maxBitrate, long intervalMs) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate)
+            throw new IllegalArgumentException("invalid bitrate range " + minBitrate + " - " + maxBitrate);
+        if (intervalMs <= 0) throw new IllegalArgumentException("intervalMs must > 0");
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mIntervalNs = intervalMs * 1000000L;
+        mBitrate = Math.max(minBitrate, Math.min(maxBitrate, initialBitrate));
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 记录一个已经写入 muxer 的 sample
+     *
+     * @param writeTimeNs 写入 muxer 花费的时间
+     * @param backlog     写入之后仍然在等待写入的帧数
+     */
+    public void onSampleWritten(int size, long writeTimeNs, int backlog) {
+        mBytes += size;
+        mWriteTimeNs += writeTimeNs;
+        mMaxBacklog = Math.max(mMaxBacklog, backlog);
+    }
+
+    /**
+     * 统计周期结束时做一次决策
+     *
+     * @return 码率是否改变 , 改变之后通过 getBitrate 获取新的码率并设置给编码器
+     */
+    public boolean update(long nowNs) {
+        if (mIntervalStartNs < 0) {
+            mIntervalStartNs = nowNs;
+            return false;
+        }
+        long elapsedNs = nowNs - mIntervalStartNs;
+        if (elapsedNs < mIntervalNs) return false;
+
+        long outputBitrate = mBytes * 8L * 1000000000L / elapsedNs;
+        long storageBitrate = mWriteTimeNs > 0 ? mBytes * 8L * 1000000000L / mWriteTimeNs : 0;
+        float writeLoad = (float) mWriteTimeNs / elapsedNs;
+        int backlog = mMaxBacklog;
+        mIntervalStartNs = nowNs;
+        mBytes = 0;
+        mWriteTimeNs = 0;
+        mMaxBacklog = 0;
+
+        int bitrate = mBitrate;
+        if (backlog >= BACKLOG_HIGH || writeLoad >= WRITE_LOAD_HIGH) {
+            mStableIntervals = 0;
+            bitrate = Math.max(mMinBitrate, (int) (mBitrate * DECREASE_FACTOR));
+        } else if (backlog <= BACKLOG_LOW && writeLoad < WRITE_LOAD_LOW) {
+            if (++mStableIntervals >= STABLE_INTERVALS && outputBitrate >= mBitrate * UTILIZATION_LOW) {
+                mStableIntervals = 0;
+                bitrate = Math.min(mMaxBitrate, mBitrate + Math.max(1, (mMaxBitrate - mMinBitrate) / ADDITIVE_STEPS));
+            }
+        } else {
+            mStableIntervals = 0;
+        }
+        if (bitrate == mBitrate) return false;
+
+        Decision decision = new Decision(mBitrate, bitrate, backlog, writeLoad, outputBitrate, storageBitrate);
+        if (decision.isDecrease()) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mBitrate = bitrate;
+        if (mListener != null) mListener.onBitrateChanged(decision);
+        return true;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    public int getMinBitrate() {
+        return mMinBitrate;
+    }
+
+    public int getMaxBitrate() {
+        return mMaxBitrate;
+    }
+
+    @Override
+    public String toString() {
+        return "BitrateController{" +
+                "bitrate=" + mBitrate +
+                ", range=" + mMinBitrate + "-" + mMaxBitrate +
+                ", decrease=" + mDecreaseCount +
+                ", increase=" + mIncreaseCount +
+                '}';
+    }
+}
@@ -0,0 +1,50 @@
+package com.erlei.videorecorder.encoder;
+
+/**
+ * 16bit 交错 PCM 的声道转换 (上混 / 下混) , 不分配对象
+ * <p>
+ * 单声道 -> 多声道 : 复制到每个声道
+ * 多声道 -> 单声道 : 所有声道的平均值
+ * 多声道 -> 立体声 : 使用前两个声道
+ */
+public class ChannelConverter {
+
+    /**
+     * @param inputOffset  input 中的采样偏移
+     * @param outputOffset output 中的采样偏移 , input 和 output 不能是同一个数组
+     * @param frames       帧数
+     */
+    public static void convert(short[] input, int inputOffset, int inputChannels,
+                               short[] output, int outputOffset, int outputChannels, int frames) {
+        if (inputChannels <= 0 || outputChannels <= 0)
+            throw new IllegalArgumentException("invalid channels " + inputChannels + " -> " + outputChannels);
+        if (inputChannels == outputChannels) {
+            System.arraycopy(input, inputOffset, output, outputOffset, frames * inputChannels);
+        } else if (inputChannels == 1) {
+            int out = outputOffset;
+            for (int i = inputOffset, end = inputOffset + frames; i < end; i++) {
+                short sample = input[i];
+                for (int c = 0; c < outputChannels; c++) {
+                    output[out++] = sample;
+                }
+            }
+        } else if (outputChannels == 1) {
+            int in = inputOffset;
+            for (int f = 0; f < frames; f++) {
+                int sum = 0;
+                for (int c = 0; c < inputChannels; c++) {
+                    sum += input[in++];
+                }
+                output[outputOffset + f] = (short) (sum / inputChannels);
+            }
+        } else {
+            int in = inputOffset, out = outputOffset;
+            for (int f = 0; f < frames; f++) {
+                for (int c = 0; c < outputChannels; c++) {
+                    output[out++] = input[in + Math.min(c, inputChannels - 1)];
+                }
+                in += inputChannels;
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.erlei.videorecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 设备上所有编码器能力的索引 , 代替每次录制时遍历 MediaCodecList 并查询 CodecCapabilities
+ * <p>
+ * 第一次使用时遍历一次 MediaCodecList , 记录每个编码器支持的类型 , 颜色格式 , profile / level ,
+ * 尺寸范围 , 码率范围和码率模式 , 写入 cacheDir 下的索引文件 ; 之后的进程直接读取文件 , 同一个进程中只在内存中查询 .
+ * 文件中保存了 Build.FINGERPRINT , 系统升级之后 fingerprint 改变或者文件版本不一致时重新生成
+ * <p>
+ * 文件结构 : magic , version , fingerprint , 条目数量 , 每个 (编码器 , 类型) 一个 Entry
+ * 尺寸 , 码率 , 码率模式和声道数需要 API 21 , 更低的版本上为 0 , 表示未知
+ * 录制下来的索引文件可以通过 readFrom 加载 , 用于在没有设备的情况下验证编码器的选择逻辑
+ * 线程安全
+ */
+public class CodecCapabilityIndex {
+
+    private static final String TAG = LogUtil.TAG;
+
+    public static final String FILE_NAME = "codec_capabilities.idx";
+
+    private static final int MAGIC = 0x56524349; // VRCI
+    private static final int VERSION = 2;
+    private static final int MAX_ENTRIES = 1024;
+    private static final int MAX_ARRAY_LENGTH = 4096;
+
+    private static CodecCapabilityIndex sInstance;
+
+    private final String mFingerprint;
+    private final List<Entry> mEntries;
+    private final HashMap<String, List<Entry>> mEncodersByType = new HashMap<>();
+
+    CodecCapabilityIndex(String fingerprint, List<Entry> entries) {
+        mFingerprint = fingerprint;
+        mEntries = Collections.unmodifiableList(entries);
+        for (Entry entry : entries) {
+            String key = entry.mimeType.toLowerCase(Locale.US);
+            List<Entry> list = mEncodersByType.get(key);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                mEncodersByType.put(key, list);
+            }
+            list.add(entry);
+        }
+    }
+
+    /**
+     * 获取当前设备的索引 , 同一个进程中只加载一次
+     * 第一次调用可能需要遍历 MediaCodecList (几十到几百毫秒) , 最好在录制开始之前的后台线程中调用一次
+     *
+     * @param context 用于读写索引文件 , null 表示不读写文件
+     */
+    public static synchronized CodecCapabilityIndex get(Context context) {
+        if (sInstance != null && Build.FINGERPRINT.equals(sInstance.mFingerprint)) return sInstance;
+        File file = context != null ? new File(context.getCacheDir(), FILE_NAME) : null;
+        if (file != null && file.isFile()) {
+            try {
+                CodecCapabilityIndex index = read(file);
+                if (Build.FINGERPRINT.equals(index.mFingerprint)) {
+                    sInstance = index;
+                    return index;
+                }
+                LogUtil.logd(TAG, "codec index fingerprint changed , rebuild");
+            } catch (IOException e) {
+                LogUtil.logw(TAG, "read codec index error " + e);
+            }
+        }
+        long start = System.nanoTime();
+        CodecCapabilityIndex index = scan();
+        LogUtil.logd(TAG, "scan codec index " + index.mEntries.size() + " entries in " + (System.nanoTime() - start) / 1000000L + "ms");
+        if (file != null) {
+            try {
+                index.write(file);
+            } catch (IOException e) {
+                LogUtil.logw(TAG, "write codec index error " + e);
+            }
+        }
+        sInstance = index;
+        return index;
+    }
+
+    /**
+     * @return 支持这个类型的第一个编码器 , 没有时返回 null
+     */
+    public Entry findEncoder(String mimeType) {
+        List<Entry> list = mEncodersByType.get(mimeType.toLowerCase(Locale.US));
+        return list != null ? list.get(0) : null;
+    }
+
+    /**
+     * @return 支持这个类型和颜色格式的第一个编码器 , 没有时返回 null
+     */
+    public Entry findEncoder(String mimeType, int colorFormat) {
+        List<Entry> list = mEncodersByType.get(mimeType.toLowerCase(Locale.US));
+        if (list == null) return null;
+        for (Entry entry : list) {
+            if (entry.supportsColorFormat(colorFormat)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return 支持这个类型的所有编码器 , 顺序和 MediaCodecList 一致
+     */
+    public List<Entry> getEncoders(String mimeType) {
+        List<Entry> list = mEncodersByType.get(mimeType.toLowerCase(Locale.US));
+        return list != null ? Collections.unmodifiableList(list) : Collections.<Entry>emptyList();
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static CodecCapabilityIndex scan() {
+        List<Entry> entries = new ArrayList<>();
+        final int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) continue;
+            for (String type : codecInfo.getSupportedTypes()) {
+                try {
+                    entries.add(Entry.from(codecInfo.getName(), type, codecInfo.getCapabilitiesForType(type)));
+                } catch (RuntimeException e) {
+                    LogUtil.logw(TAG, "query capabilities error " + codecInfo.getName() + " " + type + " " + e);
+                }
+            }
+        }
+        return new CodecCapabilityIndex(Build.FINGERPRINT, entries);
+    }
+
+    private static CodecCapabilityIndex read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 读取 writeTo 写入的索引 , 不检查 fingerprint
+     */
+    public static CodecCapabilityIndex readFrom(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC) throw new IOException("not a codec index");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("unsupported codec index version " + version);
+        String fingerprint = in.readUTF();
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ENTRIES) throw new IOException("invalid entry count " + count);
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(Entry.readFrom(in));
+        }
+        return new CodecCapabilityIndex(fingerprint, entries);
+    }
+
+    /**
+     * 先写入临时文件再重命名 , 写入过程中进程被杀掉不会留下不完整的索引
+     */
+    private void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    /**
+     * 写入索引 , 不关闭 output
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(mFingerprint);
+        out.writeInt(mEntries.size());
+        for (Entry entry : mEntries) {
+            entry.writeTo(out);
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "CodecCapabilityIndex{" +
+                "fingerprint=" + mFingerprint +
+                ", entries=" + mEntries.size() +
+                ", types=" + mEncodersByType.keySet() +
+                '}';
+    }
+
+    /**
+     * 一个编码器对一个类型的能力
+     */
+    public static class Entry {
+        public final String name;
+        public final String mimeType;
+        public final int[] colorFormats;
+        /**
+         * profiles[i] 和 levels[i] 对应 CodecProfileLevel 的一项
+         */
+        public final int[] profiles;
+        public final int[] levels;
+        public final int minWidth;
+        public final int maxWidth;
+        public final int minHeight;
+        public final int maxHeight;
+        public final int widthAlignment;
+        public final int heightAlignment;
+        public final int minBitrate;
+        public final int maxBitrate;
+        public final int maxChannelCount;
+        /**
+         * 支持的码率模式 , 第 n 位表示 MediaCodecInfo.EncoderCapabilities 的 BITRATE_MODE_* == n
+         */
+        public final int bitrateModes;
+
+        Entry(String name, String mimeType, int[] colorFormats, int[] profiles, int[] levels,
+              int minWidth, int maxWidth, int minHeight, int maxHeight, int widthAlignment, int heightAlignment,
+              int minBitrate, int maxBitrate, int maxChannelCount, int bitrateModes) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.colorFormats = colorFormats;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.widthAlignment = widthAlignment;
+            this.heightAlignment = heightAlignment;
+            this.minBitrate = minBitrate;
+            this.maxBitrate = maxBitrate;
+            this.maxChannelCount = maxChannelCount;
+            this.bitrateModes = bitrateModes;
+        }
+
+        static Entry from(String name, String mimeType, MediaCodecInfo.CodecCapabilities caps) {
+            int[] colorFormats = caps.colorFormats != null ? caps.colorFormats.clone() : new int[0];
+            int count = caps.profileLevels != null ? caps.profileLevels.length : 0;
+            int[] profiles = new int[count];
+            int[] levels = new int[count];
+            for (int i = 0; i < count; i++) {
+                profiles[i] = caps.profileLevels[i].profile;
+                levels[i] = caps.profileLevels[i].level;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return fromLollipop(name, mimeType, caps, colorFormats, profiles, levels);
+            }
+            return new Entry(name, mimeType, colorFormats, profiles, levels, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private static Entry fromLollipop(String name, String mimeType, MediaCodecInfo.CodecCapabilities caps,
+                                          int[] colorFormats, int[] profiles, int[] levels) {
+            int minWidth = 0, maxWidth = 0, minHeight = 0, maxHeight = 0, widthAlignment = 0, heightAlignment = 0;
+            int minBitrate = 0, maxBitrate = 0, maxChannelCount = 0, bitrateModes = 0;
+            MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            if (video != null) {
+                Range<Integer> widths = video.getSupportedWidths();
+                Range<Integer> heights = video.getSupportedHeights();
+                Range<Integer> bitrates = video.getBitrateRange();
+                minWidth = widths.getLower();
+                maxWidth = widths.getUpper();
+                minHeight = heights.getLower();
+                maxHeight = heights.getUpper();
+                widthAlignment = video.getWidthAlignment();
+                heightAlignment = video.getHeightAlignment();
+                minBitrate = bitrates.getLower();
+                maxBitrate = bitrates.getUpper();
+            }
+            MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+            if (audio != null) {
+                Range<Integer> bitrates = audio.getBitrateRange();
+                minBitrate = bitrates.getLower();
+                maxBitrate = bitrates.getUpper();
+                maxChannelCount = audio.getMaxInputChannelCount();
+            }
+            MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+            if (encoder != null) {
+                int[] modes = {MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                        MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                        MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR};
+                for (int mode : modes) {
+                    if (encoder.isBitrateModeSupported(mode)) bitrateModes |= 1 << mode;
+                }
+            }
+            return new Entry(name, mimeType, colorFormats, profiles, levels, minWidth, maxWidth, minHeight, maxHeight,
+                    widthAlignment, heightAlignment, minBitrate, maxBitrate, maxChannelCount, bitrateModes);
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) return true;
+            }
+            return false;
+        }
+
+        public boolean supportsProfile(int profile) {
+            for (int p : profiles) {
+                if (p == profile) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return 是否支持这个码率模式 , 码率模式未知 (API 21 以下) 时返回 false
+         */
+        public boolean supportsBitrateMode(int mode) {
+            return (bitrateModes & (1 << mode)) != 0;
+        }
+
+        /**
+         * @return 最大的 level , 不支持这个 profile 时返回 0
+         */
+        public int getMaxLevel(int profile) {
+            int level = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile) level = Math.max(level, levels[i]);
+            }
+            return level;
+        }
+
+        /**
+         * @return 尺寸是否在支持的范围内并且满足对齐要求 , 范围未知时返回 true
+         */
+        public boolean isSizeSupported(int width, int height) {
+            if (maxWidth <= 0 || maxHeight <= 0) return true;
+            if (width < minWidth || width > maxWidth || height < minHeight || height > maxHeight) return false;
+            return (widthAlignment <= 0 || width % widthAlignment == 0)
+                    && (heightAlignment <= 0 || height % heightAlignment == 0);
+        }
+
+        /**
+         * @return 限制在编码器支持范围内的码率 , 范围未知时原样返回
+         */
+        public int clampBitrate(int bitrate) {
+            if (maxBitrate <= 0) return bitrate;
+            return Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeUTF(mimeType);
+            writeArray(out, colorFormats);
+            writeArray(out, profiles);
+            writeArray(out, levels);
+            out.writeInt(minWidth);
+            out.writeInt(maxWidth);
+            out.writeInt(minHeight);
+            out.writeInt(maxHeight);
+            out.writeInt(widthAlignment);
+            out.writeInt(heightAlignment);
+            out.writeInt(minBitrate);
+            out.writeInt(maxBitrate);
+            out.writeInt(maxChannelCount);
+            out.writeInt(bitrateModes);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            String name = in.readUTF();
+            String mimeType = in.readUTF();
+            int[] colorFormats = readArray(in);
+            int[] profiles = readArray(in);
+            int[] levels = readArray(in);
+            if (profiles.length != levels.length) throw new IOException("profile level mismatch " + name);
+            return new Entry(name, mimeType, colorFormats, profiles, levels,
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+
+        private static void writeArray(DataOutputStream out, int[] values) throws IOException {
+            out.writeShort(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        private static int[] readArray(DataInputStream in) throws IOException {
+            int length = in.readUnsignedShort();
+            if (length > MAX_ARRAY_LENGTH) throw new IOException("invalid array length " + length);
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "name=" + name +
+                    ", mimeType=" + mimeType +
+                    ", colorFormats=" + colorFormats.length +
+                    ", profiles=" + profiles.length +
+                    ", size=" + minWidth + "x" + minHeight + "-" + maxWidth + "x" + maxHeight +
+                    ", bitrate=" + minBitrate + "-" + maxBitrate +
+                    '}';
+        }
+    }
+}
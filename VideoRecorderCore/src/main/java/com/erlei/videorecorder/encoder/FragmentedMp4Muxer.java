@@ -0,0 +1,107 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.erlei.videorecorder.mp4.FragmentedMp4Writer;
+import com.erlei.videorecorder.mp4.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于 FragmentedMp4Writer 的实现 , 输出 fragmented MP4
+ * 录制过程中进程被杀掉 , 已经写入的分片仍然可以播放 , 并且 stop() 不需要写入整个 sample table
+ * 目前只支持 H.264 + AAC
+ */
+public class FragmentedMp4Muxer implements IMediaMuxer {
+
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Muxer(String output) throws IOException {
+        mWriter = new FragmentedMp4Writer(new File(output));
+    }
+
+    public FragmentedMp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mWriter.addTrack(toTrackFormat(format));
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("start fragmented mp4 writer failed", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        // csd 已经通过 addTrack 的 MediaFormat 写入了 sample entry
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) return;
+        int position = byteBuf.position();
+        int limit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo.presentationTimeUs, sync);
+        } catch (IOException e) {
+            throw new IllegalStateException("write sample data failed", e);
+        } finally {
+            byteBuf.limit(limit);
+            byteBuf.position(position);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException("stop fragmented mp4 writer failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        // stop() 中已经关闭了文件
+    }
+
+    static TrackFormat toTrackFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("video/")) {
+            return TrackFormat.createVideo(mime,
+                    format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    getCsd(format, "csd-0"), getCsd(format, "csd-1"));
+        } else {
+            return TrackFormat.createAudio(mime,
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    getCsd(format, "csd-0"));
+        }
+    }
+
+    private static byte[] getCsd(MediaFormat format, String name) {
+        if (!format.containsKey(name)) return null;
+        ByteBuffer buffer = format.getByteBuffer(name);
+        if (buffer == null) return null;
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.rewind();
+        byte[] csd = new byte[duplicate.remaining()];
+        duplicate.get(csd);
+        return csd;
+    }
+}
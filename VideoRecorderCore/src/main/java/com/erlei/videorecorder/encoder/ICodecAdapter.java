@@ -0,0 +1,51 @@
+package com.erlei.videorecorder.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 异步模式编码器的抽象 , 方法和 MediaCodec 的回调模式保持一致
+ * AsyncEncoderEngine 只依赖这个接口 , 接口中只有基本类型和 ByteBuffer , 没有 MediaCodec.BufferInfo 和 MediaFormat ,
+ * 可以用假的编码器在 JVM 上验证它的调度逻辑
+ */
+public interface ICodecAdapter {
+
+    /**
+     * 编码器事件 , 所有回调都在同一个线程中执行
+     */
+    interface Callback {
+
+        void onInputBufferAvailable(int index);
+
+        /**
+         * 参数和 MediaCodec.BufferInfo 的字段一致
+         *
+         * @param flags MediaCodec.BUFFER_FLAG_*
+         */
+        void onOutputBufferAvailable(int index, int offset, int size, long presentationTimeUs, int flags);
+
+        /**
+         * 输出格式确定 , 新的格式通过 MediaCodec.getOutputFormat() 获取
+         */
+        void onOutputFormatChanged();
+
+        void onError(Exception e);
+    }
+
+    /**
+     * 必须在 configure 之前调用
+     */
+    void setCallback(Callback callback);
+
+    ByteBuffer getInputBuffer(int index);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * 使用 Surface 作为输入时结束输入
+     */
+    void signalEndOfInputStream();
+}
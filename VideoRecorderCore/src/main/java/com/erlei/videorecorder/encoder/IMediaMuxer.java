@@ -0,0 +1,36 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 混合器的抽象 , 方法和 MediaMuxer 保持一致 , 方便在 MediaMuxer 和纯 Java 的实现之间切换
+ */
+public interface IMediaMuxer {
+
+    /**
+     * 为每次录制创建混合器 , 例如不写文件的内存实现
+     */
+    interface Factory {
+
+        IMediaMuxer create(String output) throws IOException;
+    }
+
+    /**
+     * @return track index
+     */
+    int addTrack(MediaFormat format);
+
+    void setOrientationHint(int degrees);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
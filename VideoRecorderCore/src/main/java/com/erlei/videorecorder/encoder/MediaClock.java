@@ -0,0 +1,200 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.os.Build;
+
+/**
+ * 一次录制中音频和视频共用的时钟 , 时间基准是 System.nanoTime (CLOCK_MONOTONIC)
+ * <p>
+ * 视频帧的时间戳使用 SurfaceTexture.getTimestamp (传感器曝光时间) , 而不是渲染线程 swap 的时间 ,
+ * 这样渲染线程的调度延迟不会变成帧间隔的抖动 . 大部分设备上相机时间戳的基准就是 CLOCK_MONOTONIC ,
+ * 少数设备使用其他的基准 (比如开机时间或者从 0 开始) , 这时在第一帧计算偏移量 , 之后的帧保持传感器的帧间隔
+ * <p>
+ * 音频的时间戳由累计的采样帧数计算 , 不受读取线程调度的影响 . 每个缓冲区同时估算它的实际采集时间
+ * (AudioRecord.getTimestamp 可用时使用它 , 否则使用 read 返回的时间减去缓冲区的时长) , 两者的差值就是
+ * 音频相对于视频时钟的偏移 : 差值较小时每次只修正一小部分 (声卡时钟和系统时钟之间缓慢的漂移) ,
+ * 超过 AUDIO_RESYNC_THRESHOLD_US 时 (丢失了数据或者采集中断) 直接重新对齐
+ * <p>
+ * 线程安全 , 所有方法都不分配对象
+ */
+public class MediaClock {
+
+    /**
+     * 相机时间戳和 System.nanoTime 的差值小于这个值时认为是同一个时间基准 , 相机时间戳本身比当前时间早几十毫秒
+     */
+    private static final long SAME_BASE_THRESHOLD_NS = 1000000000L;
+    private static final long AUDIO_RESYNC_THRESHOLD_US = 100000L;
+    /**
+     * 每个缓冲区修正偏移量的 1 / AUDIO_DRIFT_GAIN , 最多修正 AUDIO_MAX_STEP_US , 修正量远小于一个采样周期的抖动
+     */
+    private static final int AUDIO_DRIFT_GAIN = 32;
+    private static final long AUDIO_MAX_STEP_US = 500L;
+    private static final int AV_OFFSET_SMOOTHING = 8;
+
+    private boolean mVideoOffsetKnown;
+    private long mVideoOffsetNs;
+    private long mLastVideoNs = Long.MIN_VALUE;
+
+    private boolean mAudioAnchored;
+    private long mAudioAnchorUs;
+    private long mAudioFrames;
+    private long mLastAudioUs = Long.MIN_VALUE;
+    private long mAvOffsetUs;
+    private int mAudioResyncCount;
+
+    /**
+     * @return 当前时间 (微秒)
+     */
+    public static long nowUs() {
+        return System.nanoTime() / 1000L;
+    }
+
+    /**
+     * 把相机时间戳转换到这个时钟上 , 结果单调递增
+     *
+     * @param cameraTimestampNs SurfaceTexture.getTimestamp , 0 表示没有时间戳
+     * @return 纳秒 , 用于 eglPresentationTimeANDROID
+     */
+    public synchronized long toVideoTimeNs(long cameraTimestampNs) {
+        long now = System.nanoTime();
+        long result;
+        if (cameraTimestampNs <= 0) {
+            result = now;
+        } else {
+            if (!mVideoOffsetKnown) {
+                long offset = now - cameraTimestampNs;
+                mVideoOffsetNs = Math.abs(offset) < SAME_BASE_THRESHOLD_NS ? 0 : offset;
+                mVideoOffsetKnown = true;
+            }
+            result = cameraTimestampNs + mVideoOffsetNs;
+        }
+        if (result <= mLastVideoNs) result = mLastVideoNs + 1000L;
+        mLastVideoNs = result;
+        return result;
+    }
+
+    /**
+     * AudioTimestamp 是 API 19 加入的类 , 而 AudioRecord.getTimestamp 从 API 24 才有 , 所以只在 API 24 以上创建 .
+     * API 18 上直接 new AudioTimestamp 会抛出 NoClassDefFoundError (不是 Exception)
+     *
+     * @return 采集线程复用的 AudioTimestamp , API 24 以下返回 null
+     */
+    public static AudioTimestamp createAudioTimestamp() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? new AudioTimestamp() : null;
+    }
+
+    /**
+     * 读取一个 PCM 缓冲区之后立即调用 , API 24 以上使用 AudioRecord.getTimestamp 估算采集时间
+     *
+     * @param timestamp 采集线程复用的 AudioTimestamp (createAudioTimestamp) , null 表示不可用
+     * @param frames    缓冲区中的采样帧数
+     * @return 缓冲区第一帧的时间戳 (微秒)
+     */
+    public long toAudioTimeUs(AudioRecord audioRecord, AudioTimestamp timestamp, int sampleRate, int frames) {
+        return toAudioTimeUs(audioRecord, timestamp, sampleRate, frames, sampleRate);
+    }
+
+    /**
+     * 采集的数据经过重采样之后再计算时间戳时使用 , AudioRecord.getTimestamp 的帧位置按采样率换算
+     *
+     * @param sampleRate  重采样之后的采样率 , frames 使用这个采样率
+     * @param captureRate AudioRecord 的采样率
+     */
+    public long toAudioTimeUs(AudioRecord audioRecord, AudioTimestamp timestamp, int sampleRate, int frames, int captureRate) {
+        final long readTimeNs = System.nanoTime();
+        long stampPosition = 0, stampTimeNs = 0;
+        if (timestamp != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+            stampPosition = captureRate == sampleRate ? timestamp.framePosition
+                    : timestamp.framePosition * sampleRate / captureRate;
+            stampTimeNs = timestamp.nanoTime;
+        }
+        return toAudioTimeUs(sampleRate, frames, readTimeNs, stampPosition, stampTimeNs);
+    }
+
+    /**
+     * 计算一个 PCM 缓冲区的时间戳 , 每读取一个缓冲区调用一次
+     *
+     * @param sampleRate      采样率
+     * @param frames          缓冲区中的采样帧数 (字节数 / 声道数 / 2)
+     * @param readTimeNs      read 返回时的 System.nanoTime
+     * @param stampPosition   AudioRecord.getTimestamp 的 framePosition
+     * @param stampTimeNs     AudioRecord.getTimestamp 的 nanoTime (TIMEBASE_MONOTONIC) , <= 0 表示不可用
+     * @return 缓冲区第一帧的时间戳 (微秒) , 单调递增
+     */
+    public synchronized long toAudioTimeUs(int sampleRate, int frames, long readTimeNs, long stampPosition, long stampTimeNs) {
+        long captureNs;
+        if (stampTimeNs > 0) {
+            captureNs = stampTimeNs + (mAudioFrames - stampPosition) * 1000000000L / sampleRate;
+        } else {
+            captureNs = readTimeNs - frames * 1000000000L / sampleRate;
+        }
+        long measuredUs = captureNs / 1000L;
+        long result;
+        if (!mAudioAnchored) {
+            mAudioAnchorUs = measuredUs - mAudioFrames * 1000000L / sampleRate;
+            mAudioAnchored = true;
+            result = measuredUs;
+        } else {
+            result = mAudioAnchorUs + mAudioFrames * 1000000L / sampleRate;
+            long error = measuredUs - result;
+            if (Math.abs(error) > AUDIO_RESYNC_THRESHOLD_US) {
+                mAudioAnchorUs += error;
+                result = measuredUs;
+                mAudioResyncCount++;
+            } else {
+                long step = Math.max(-AUDIO_MAX_STEP_US, Math.min(AUDIO_MAX_STEP_US, error / AUDIO_DRIFT_GAIN));
+                mAudioAnchorUs += step;
+                result += step;
+            }
+            mAvOffsetUs += (error - mAvOffsetUs) / AV_OFFSET_SMOOTHING;
+        }
+        if (result <= mLastAudioUs) result = mLastAudioUs + 1;
+        mLastAudioUs = result;
+        mAudioFrames += frames;
+        return result;
+    }
+
+    /**
+     * 读取之后被丢弃的采样帧 , 之后的时间戳会跳过这段时长
+     */
+    public synchronized void skipAudioFrames(int frames) {
+        mAudioFrames += frames;
+    }
+
+    /**
+     * @return 相机时间戳和这个时钟之间的偏移量 , 0 表示同一个时间基准
+     */
+    public synchronized long getVideoOffsetNs() {
+        return mVideoOffsetNs;
+    }
+
+    /**
+     * @return 音频实际采集时间减去音频时间戳 (平滑之后) , 正数表示音频时间戳比视频时钟早
+     */
+    public synchronized long getAvOffsetUs() {
+        return mAvOffsetUs;
+    }
+
+    /**
+     * @return 偏移量超过阈值而重新对齐音频时间戳的次数
+     */
+    public synchronized int getAudioResyncCount() {
+        return mAudioResyncCount;
+    }
+
+    public synchronized long getAudioFrames() {
+        return mAudioFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MediaClock{" +
+                "videoOffset=" + mVideoOffsetNs / 1000L + "us" +
+                ", avOffset=" + mAvOffsetUs + "us" +
+                ", audioResync=" + mAudioResyncCount +
+                ", audioFrames=" + mAudioFrames +
+                '}';
+    }
+}
@@ -0,0 +1,85 @@
+package com.erlei.videorecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodec 的 ICodecAdapter 实现 , 需要 API 21
+ * <p>
+ * API 23 以上回调发送到 handler 所在的线程 , API 21 , 22 没有这个参数 , 回调发送到创建 MediaCodec 的线程的 Looper ,
+ * 所以 MediaCodec 必须在编码线程中创建
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MediaCodecAdapter implements ICodecAdapter {
+
+    private final MediaCodec mCodec;
+    private final Handler mHandler;
+
+    /**
+     * @param handler 接收回调的线程 , 为 null 时使用创建 MediaCodec 的线程
+     */
+    public MediaCodecAdapter(MediaCodec codec, Handler handler) {
+        mCodec = codec;
+        mHandler = handler;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info.offset, info.size, info.presentationTimeUs, info.flags);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged();
+            }
+        };
+        if (mHandler != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mCodec.setCallback(codecCallback, mHandler);
+        } else {
+            mCodec.setCallback(codecCallback);
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+}
@@ -3,7 +3,7 @@ package com.erlei.videorecorder.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.Bundle;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -18,6 +18,7 @@ import java.nio.ByteBuffer;
 
 public abstract class MediaEncoder extends HandlerThread {
     private static final int TIMEOUT_USEC = 5000;
+    private static final long END_OF_STREAM_TIMEOUT_MS = 1000;
     protected MediaCodec mEncoder;
     private final String TAG;
     protected long mPrevOutputPTSUs = 0;
@@ -25,6 +26,10 @@ public abstract class MediaEncoder extends HandlerThread {
     protected MediaEncoderHandler mHandler;
     protected MediaEncoderCallBack mMediaEncoderCallBack;
     protected int mMediaTrack;
+    protected AsyncEncoderEngine mEngine;
+    private boolean mAsyncEnable;
+    private boolean mStopRequested;
+    private boolean mStopped;
 
     public MediaEncoder(MediaEncoderCallBack callBack, String name) {
         super(name);
@@ -44,6 +49,37 @@ public abstract class MediaEncoder extends HandlerThread {
         return new MediaEncoderHandler(looper, encoder);
     }
 
+    /**
+     * 使用回调模式的编码器 (AsyncEncoderEngine) , 输出缓冲区就绪时立即写入 , 不再轮询等待
+     * 需要在 start() 之前调用 , API 21 以下无效
+     */
+    public void setAsyncEnable(boolean enable) {
+        mAsyncEnable = enable;
+    }
+
+    public boolean isAsyncEnable() {
+        return mAsyncEnable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * 编码器是否使用 Surface 作为输入
+     */
+    protected boolean isSurfaceInput() {
+        return false;
+    }
+
+    /**
+     * 配置编码器 , 回调模式下先注册 AsyncEncoderEngine 的回调 , 由子类的 createEncoder 调用
+     */
+    protected void configureEncoder(MediaCodec codec, MediaFormat format) {
+        if (isAsyncEnable()) {
+            mEngine = new AsyncEncoderEngine(new MediaCodecAdapter(codec, getHandler()), isSurfaceInput(), new EngineListener());
+            mEngine.attach();
+            LogUtil.logd(TAG, "use async encoder engine");
+        }
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
     @Override
     protected void onLooperPrepared() {
         super.onLooperPrepared();
@@ -65,10 +101,37 @@ public abstract class MediaEncoder extends HandlerThread {
             mEncoder.release();
             mEncoder = null;
         }
+        if (mEngine != null) {
+            LogUtil.logd(TAG, mEngine.toString());
+            mEngine.release();
+        }
     }
 
     protected void stopMediaEncoder() {
-        signalEndOfInputStream();
+        if (mEngine == null || mEncoder == null) {
+            signalEndOfInputStream();
+            finishStop();
+            return;
+        }
+        // 回调模式下等待编码器输出 EOS , 剩余的数据都写入之后再释放
+        mStopRequested = true;
+        mEngine.signalEndOfStream();
+        if (mEngine.isEndOfStream()) {
+            finishStop();
+        } else {
+            getHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mStopped) LogUtil.logw(TAG, "wait end of stream timeout");
+                    finishStop();
+                }
+            }, END_OF_STREAM_TIMEOUT_MS);
+        }
+    }
+
+    private void finishStop() {
+        if (mStopped) return;
+        mStopped = true;
         release();
         if (mMediaEncoderCallBack != null) mMediaEncoderCallBack.onStopped(this);
         quit();
@@ -77,6 +140,14 @@ public abstract class MediaEncoder extends HandlerThread {
     private int mFrameIndex = 0;
 
     protected void encode(ByteBuffer buffer, int length, long presentationTimeUs) {
+        if (mEngine != null) {
+            if (length <= 0) {
+                mEngine.signalEndOfStream();
+            } else {
+                mEngine.queueInput(buffer, length, presentationTimeUs);
+            }
+            return;
+        }
         final ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
         while (true) {
             final int inputBufferIndex = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
@@ -98,7 +169,24 @@ public abstract class MediaEncoder extends HandlerThread {
         }
     }
 
+    /**
+     * 编码 PCM 环形缓冲区中所有已经写好的数据 , 编码之后立即归还槽位
+     */
+    protected void encodePcm(PcmBufferRing ring) {
+        int slot;
+        while ((slot = ring.poll()) >= 0) {
+            try {
+                encode(ring.getBuffer(slot), ring.getSize(slot), ring.getPresentationTimeUs(slot));
+            } finally {
+                ring.release(slot);
+            }
+            frameAvailableSoon();
+        }
+    }
+
     protected void frameAvailableSoon() {
+        // 回调模式下输出缓冲区已经在 onOutputBufferAvailable 中写入
+        if (mEngine != null) return;
         drain();
     }
 
@@ -178,10 +266,55 @@ public abstract class MediaEncoder extends HandlerThread {
 
     protected abstract MediaCodec createEncoder() throws IOException;
 
+    /**
+     * 时间戳拆成两个 int 放在 Message 的 arg1 arg2 中 , 不需要为每一帧分配 Bundle
+     */
+    static int timestampHigh(long presentationTimeUs) {
+        return (int) (presentationTimeUs >>> 32);
+    }
+
+    static int timestampLow(long presentationTimeUs) {
+        return (int) presentationTimeUs;
+    }
+
+    static long joinTimestamp(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    private class EngineListener implements AsyncEncoderEngine.Listener {
+
+        @Override
+        public void onOutputFormatChanged() {
+            MediaFormat format = mEncoder.getOutputFormat();
+            LogUtil.logd(TAG, "OutputFormat = " + format.toString());
+            mMediaTrack = mMediaEncoderCallBack.addMediaTrack(MediaEncoder.this, format);
+        }
+
+        @Override
+        public void onEncodedData(ByteBuffer data, long presentationTimeUs, int flags) {
+            mBufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+            mMediaEncoderCallBack.sendEncodedData(mMediaTrack, data, mBufferInfo);
+            mPrevOutputPTSUs = presentationTimeUs;
+        }
+
+        @Override
+        public void onEndOfStream() {
+            LogUtil.logd(TAG, "end of stream reached");
+            if (mStopRequested) finishStop();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            LogUtil.loge(TAG, "encoder error " + e);
+            if (mStopRequested) finishStop();
+        }
+    }
+
     public class MediaEncoderHandler extends Handler {
         protected static final int MSG_FRAME_AVAILABLE_SOON = 1;
         protected static final int MSG_STOP_MEDIA_ENCODER = 2;
         protected static final int MSG_ENCODE_FRAME = 3;
+        protected static final int MSG_ENCODE_PCM = 4;
 
         private final WeakReference<MediaEncoder> mReference;
 
@@ -206,7 +339,12 @@ public abstract class MediaEncoder extends HandlerThread {
                     encoder.stopMediaEncoder();
                     break;
                 case MSG_ENCODE_FRAME:
-                    encoder.encode((ByteBuffer) msg.obj, msg.arg1, msg.getData().getLong("presentationTimeUs"));
+                    ByteBuffer buffer = (ByteBuffer) msg.obj;
+                    long presentationTimeUs = joinTimestamp(msg.arg1, msg.arg2);
+                    encoder.encode(buffer, buffer == null ? 0 : buffer.remaining(), presentationTimeUs);
+                    break;
+                case MSG_ENCODE_PCM:
+                    encoder.encodePcm((PcmBufferRing) msg.obj);
                     break;
                 default:
                     handleMessage(encoder, msg);
@@ -226,12 +364,26 @@ public abstract class MediaEncoder extends HandlerThread {
             sendMessage(obtainMessage(MSG_FRAME_AVAILABLE_SOON));
         }
 
+        /**
+         * 编码 buf 中 position 开始的 readBytes 个字节 , readBytes <= 0 表示结束输入
+         * buf 在编码之前不能被修改 , 连续采集时应该使用 encode(PcmBufferRing)
+         */
         public void encode(ByteBuffer buf, int readBytes, long presentationTimeUs) {
-            Message msg = obtainMessage(MSG_ENCODE_FRAME, readBytes, 0, buf);
-            Bundle data = new Bundle();
-            data.putLong("presentationTimeUs",presentationTimeUs);
-            msg.setData(data);
-            sendMessage(msg);
+            if (buf != null) {
+                if (readBytes <= 0) {
+                    buf = null;
+                } else {
+                    buf.limit(buf.position() + readBytes);
+                }
+            }
+            sendMessage(obtainMessage(MSG_ENCODE_FRAME, timestampHigh(presentationTimeUs), timestampLow(presentationTimeUs), buf));
+        }
+
+        /**
+         * 通知编码线程 ring 中有新的数据 , Message 来自消息池 , 不会分配新的对象
+         */
+        public void encode(PcmBufferRing ring) {
+            sendMessage(obtainMessage(MSG_ENCODE_PCM, ring));
         }
     }
 }
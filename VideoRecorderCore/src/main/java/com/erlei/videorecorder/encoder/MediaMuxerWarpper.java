@@ -2,47 +2,99 @@ package com.erlei.videorecorder.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.SparseArray;
 
 import com.erlei.videorecorder.util.LogUtil;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class MediaMuxerWarpper extends HandlerThread {
 
     private static final String TAG = "MediaMuxerWarpper";
+    /**
+     * 每个轨道的环形队列容量 , 30fps 的视频可以缓存 2 秒
+     */
+    private static final int RING_CAPACITY = 64;
+    /**
+     * 队列满时编码线程最多等待的时间 , 超时后丢弃这个 sample
+     */
+    private static final long OFFER_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(500);
 
     private MediaMuxerHandler mHandler;
     private int mTrackCount;
-    private MediaMuxer mMediaMuxer;
+    private IMediaMuxer mMediaMuxer;
     private String mOutPutPath;
     private MuxerCallback mCallBack;
     private volatile boolean mIsStarted;
+    private final SampleBufferPool mBufferPool = new SampleBufferPool();
+    private volatile SampleRingQueue[] mRings = new SampleRingQueue[0];
+    private volatile boolean[] mVideoTracks = new boolean[0];
+    private final int mExpectedTrackCount;
+    /**
+     * 以下字段只在混合器线程访问
+     */
+    private boolean[] mGateOpen = new boolean[0];
+    private long mFirstVideoPtsUs = -1;
+    private long mGateDroppedCount;
 
-    public MediaMuxerWarpper(String output) {
+    /**
+     * @param trackCount 轨道的数量 , 见 {@link #MediaMuxerWarpper(IMediaMuxer, String, int)}
+     */
+    public MediaMuxerWarpper(String output, int trackCount) {
+        this(output, trackCount, false);
+    }
+
+    /**
+     * @param fragmentedMp4 是否使用 FragmentedMp4Muxer 输出 fragmented MP4 , 否则使用 MediaMuxer
+     */
+    public MediaMuxerWarpper(String output, int trackCount, boolean fragmentedMp4) {
         super(TAG);
         if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        if (trackCount <= 0) throw new IllegalArgumentException("trackCount must > 0");
         mOutPutPath = output;
+        mExpectedTrackCount = trackCount;
         try {
-            mMediaMuxer = new MediaMuxer(mOutPutPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMediaMuxer = fragmentedMp4 ? new FragmentedMp4Muxer(output) : new AndroidMediaMuxer(output);
         } catch (IOException e) {
             e.printStackTrace();
             LogUtil.loge(TAG, "create MediaMuxer error " + e);
         }
     }
 
+    /**
+     * @param muxer      写入 sample 的混合器 , 比如不写文件的测试实现
+     * @param output     通过 MuxerCallback 回调的输出路径
+     * @param trackCount 轨道的数量 , 所有轨道都添加之后自动启动混合器 (不需要调用 MediaMuxerHandler.start()) ,
+     *                   在这之前手动调用 start() 也会等到所有轨道都添加之后才启动 .
+     *                   音频的闸门要等到知道有没有视频轨道之后才能打开 , 所以创建时就必须确定
+     */
+    public MediaMuxerWarpper(IMediaMuxer muxer, String output, int trackCount) {
+        super(TAG);
+        if (muxer == null) throw new IllegalArgumentException("muxer must not null");
+        if (trackCount <= 0) throw new IllegalArgumentException("trackCount must > 0");
+        mOutPutPath = output;
+        mMediaMuxer = muxer;
+        mExpectedTrackCount = trackCount;
+    }
+
+    private synchronized boolean isAutoStartReady() {
+        return mTrackCount == mExpectedTrackCount;
+    }
+
+    private synchronized boolean isAllTracksAdded() {
+        return mTrackCount >= mExpectedTrackCount;
+    }
+
     public String getOutPutPath() {
         return mOutPutPath;
     }
@@ -55,6 +107,13 @@ public class MediaMuxerWarpper extends HandlerThread {
         return mHandler;
     }
 
+    /**
+     * @return 缓存编码数据的内存池 , 可以用来查看命中率和内存峰值
+     */
+    public SampleBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
     public MuxerCallback getCallBack() {
         return mCallBack;
     }
@@ -67,6 +126,8 @@ public class MediaMuxerWarpper extends HandlerThread {
     protected void onLooperPrepared() {
         super.onLooperPrepared();
         LogUtil.logd(TAG, TAG + " thread prepared");
+        // 线程启动之前所有轨道就已经添加了
+        if (isAutoStartReady()) getHandler().start();
         if (mCallBack != null) mCallBack.onPrepared();
     }
 
@@ -74,11 +135,35 @@ public class MediaMuxerWarpper extends HandlerThread {
     public synchronized int addMediaTrack(MediaFormat format) {
         ++mTrackCount;
         LogUtil.loge(TAG, "OutputFormat = " + format.toString());
-        return mMediaMuxer.addTrack(format);
+        int trackIndex = mMediaMuxer.addTrack(format);
+        SampleRingQueue[] rings = mRings;
+        if (trackIndex >= rings.length) {
+            SampleRingQueue[] newRings = new SampleRingQueue[trackIndex + 1];
+            System.arraycopy(rings, 0, newRings, 0, rings.length);
+            rings = newRings;
+        }
+        boolean[] videoTracks = new boolean[rings.length];
+        System.arraycopy(mVideoTracks, 0, videoTracks, 0, mVideoTracks.length);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        videoTracks[trackIndex] = mime != null && mime.startsWith("video/");
+        rings[trackIndex] = new SampleRingQueue(mBufferPool, RING_CAPACITY);
+        mVideoTracks = videoTracks;
+        mRings = rings;
+        if (isAutoStartReady()) {
+            MediaMuxerHandler handler = getHandler();
+            if (handler != null) handler.start();
+        }
+        return trackIndex;
     }
 
 
     private void startMuxer() {
+        if (mIsStarted) return;
+        if (!isAllTracksAdded()) {
+            // 最后一个轨道添加时会再次发送 MSG_START
+            LogUtil.logd(TAG, TAG + " startMuxer , waiting for " + mExpectedTrackCount + " tracks");
+            return;
+        }
         LogUtil.logd(TAG, TAG + " startMuxer");
         try {
             mMediaMuxer.start();
@@ -113,25 +198,116 @@ public class MediaMuxerWarpper extends HandlerThread {
             e.printStackTrace();
             LogUtil.loge(TAG, "MediaMuxer.release() error " + e);
         }
+        LogUtil.logd(TAG, "release " + mBufferPool);
+        mBufferPool.trim();
         quitSafely();
     }
 
 
+    private void writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        LogUtil.logd(TAG, "IFrame = " + ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) + "\t\t size = " + bufferInfo.size);
+        mMediaMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+    }
+
+    /**
+     * 按时间戳顺序把各个轨道队列中的 sample 写入混合器
+     * 混合器未启动时不会处理任何 sample , 队列就是每个轨道的等待缓冲区 , 等所有轨道添加并启动后再过滤和写入
+     * 写入之前先经过 applyGates : 视频从第一个关键帧开始 , 否则在某些手机上生成视频会有问题 , 比如华为 Honor 9 ,
+     * 第一帧不是关键帧会卡顿 , 直到播放到下一个关键帧 ; 音频从第一个视频帧的时间戳开始 , 保证音视频对齐
+     * <p>
+     * 只有所有轨道都有数据时才能确定哪个 sample 最早 , 否则等到某个队列超过一半时再写入 , 避免编码线程阻塞
+     *
+     * @param flush 为 true 时写入所有的 sample (停止混合器之前)
+     */
+    private void drainRings(MediaCodec.BufferInfo bufferInfo, boolean flush) {
+        // 所有轨道都添加 (混合器启动) 之前还不知道有没有视频轨道 , 这时打开音频的闸门会让音频从第一个视频关键帧之前开始
+        if (!isMuxerStarted()) return;
+        SampleRingQueue[] rings = mRings;
+        applyGates(rings, bufferInfo, flush);
+        while (true) {
+            SampleRingQueue next = null;
+            int nextTrack = -1;
+            boolean allReady = true;
+            boolean anyHalfFull = false;
+            for (int i = 0; i < rings.length; i++) {
+                SampleRingQueue ring = rings[i];
+                if (ring == null) continue;
+                int size = ring.size();
+                if (size == 0 || !mGateOpen[i]) {
+                    allReady = false;
+                    continue;
+                }
+                if (size > ring.capacity() / 2) anyHalfFull = true;
+                if (next == null || ring.peekPresentationTimeUs() < next.peekPresentationTimeUs()) {
+                    next = ring;
+                    nextTrack = i;
+                }
+            }
+            if (next == null || !(allReady || anyHalfFull || flush)) return;
+            SampleBufferPool.PooledBuffer buffer = next.poll(bufferInfo);
+            try {
+                writeSampleData(nextTrack, buffer.buffer(), bufferInfo);
+            } catch (Exception e) {
+                LogUtil.loge(TAG, "writeSampleData error " + e);
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
     /**
-     * 如果混合器未启动 , 那么返回false ,(重新发送到消息队列 , 并且保持原有顺序, 等待混合器启动 , 通常不会等待太久)
-     * 如果去掉重新重新发送到消息队列的逻辑 , 在某些手机上生成视频会有问题 , 比如华为 Honor 9 ,
-     * 因为第一帧的关键帧丢失 , 如果第一帧视频帧不是关键帧 , 会卡顿 , 直到播放到下一个关键帧 , 并且关键帧间隔时间小于录制的时间会导致混合器无法停止而崩溃
+     * 丢弃每个轨道开头不能写入的 sample , 直到这个轨道可以开始写入
+     * 视频 : 第一个关键帧之前的帧 ; 音频 : 第一个视频帧之前的 sample , 还没有视频帧时先保留在队列中
      */
-    private boolean writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        LogUtil.logd(TAG,"IFrame = "+((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)+"\t\t size = "+bufferInfo.size);
-        if (isMuxerStarted()) {
-            mMediaMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-            return true;
-        } else {
-            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                SystemClock.sleep(10);
+    private void applyGates(SampleRingQueue[] rings, MediaCodec.BufferInfo bufferInfo, boolean flush) {
+        boolean[] videoTracks = mVideoTracks;
+        if (mGateOpen.length < rings.length) {
+            boolean[] gateOpen = new boolean[rings.length];
+            System.arraycopy(mGateOpen, 0, gateOpen, 0, mGateOpen.length);
+            mGateOpen = gateOpen;
+        }
+        boolean hasVideo = false;
+        for (int i = 0; i < rings.length; i++) {
+            if (rings[i] != null && i < videoTracks.length && videoTracks[i]) hasVideo = true;
+        }
+        // 先处理视频轨道 , 确定第一个视频帧的时间戳
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < rings.length; i++) {
+                SampleRingQueue ring = rings[i];
+                boolean video = i < videoTracks.length && videoTracks[i];
+                if (ring == null || mGateOpen[i] || video != (pass == 0)) continue;
+                while (!mGateOpen[i] && !ring.isEmpty()) {
+                    int flags = ring.peekFlags();
+                    long pts = ring.peekPresentationTimeUs();
+                    if (video) {
+                        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                                && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            mGateOpen[i] = true;
+                            if (mFirstVideoPtsUs < 0 || pts < mFirstVideoPtsUs) mFirstVideoPtsUs = pts;
+                            LogUtil.logd(TAG, "track " + i + " starts at key frame " + pts);
+                            break;
+                        }
+                    } else if (!hasVideo || (mFirstVideoPtsUs < 0 && flush)) {
+                        mGateOpen[i] = true;
+                        break;
+                    } else if (mFirstVideoPtsUs < 0) {
+                        // 视频迟迟没有输出时丢弃最早的音频 , 避免队列满了阻塞音频编码线程
+                        if (ring.size() <= ring.capacity() / 2) break;
+                    } else if (pts >= mFirstVideoPtsUs) {
+                        mGateOpen[i] = true;
+                        LogUtil.logd(TAG, "track " + i + " aligned to video at " + pts);
+                        break;
+                    }
+                    ring.poll(bufferInfo).release();
+                    mGateDroppedCount++;
+                }
             }
-            return false;
+        }
+    }
+
+    private void clearRings(MediaCodec.BufferInfo bufferInfo) {
+        for (SampleRingQueue ring : mRings) {
+            if (ring != null) ring.clear(bufferInfo);
         }
     }
 
@@ -142,15 +318,19 @@ public class MediaMuxerWarpper extends HandlerThread {
     public static class MediaMuxerHandler extends Handler {
         private static final int MSG_START = 4;
         private static final int MSG_STOP = 3;
-        private static final int MSG_WRITE_SAMPLE_DATA = 5;
+        private static final int MSG_DRAIN = 5;
         private final WeakReference<MediaMuxerWarpper> mReference;
-
-        private final List<SampleData> mCache;
+        /**
+         * 只有从 false 变为 true 的时候才发送 MSG_DRAIN , 避免每个 sample 都分配一个 Message
+         */
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private volatile boolean mStopped;
+        private final AtomicLong mDroppedCount = new AtomicLong();
 
         MediaMuxerHandler(Looper looper, MediaMuxerWarpper mediaMuxerWarpper) {
             super(looper);
             mReference = new WeakReference<>(mediaMuxerWarpper);
-            mCache = Collections.synchronizedList(new ArrayList<SampleData>());
         }
 
         @Override
@@ -164,30 +344,22 @@ public class MediaMuxerWarpper extends HandlerThread {
             switch (msg.what) {
                 case MSG_START:
                     muxer.startMuxer();
+                    muxer.drainRings(mBufferInfo, false);
                     break;
                 case MSG_STOP:
+                    mStopped = true;
+                    muxer.drainRings(mBufferInfo, true);
                     muxer.stopMuxer();
-                    release();
+                    muxer.clearRings(mBufferInfo);
+                    if (mDroppedCount.get() > 0) LogUtil.loge(TAG, "dropped " + mDroppedCount.get() + " samples , ring queue full");
+                    if (muxer.mGateDroppedCount > 0) LogUtil.logd(TAG, "dropped " + muxer.mGateDroppedCount + " samples before the first video key frame");
                     muxer.release();
                     break;
-                case MSG_WRITE_SAMPLE_DATA:
-                    SampleData sampleData = (SampleData) msg.obj;
-                    if (muxer.writeSampleData(sampleData.trackIndex, sampleData.encodedData, sampleData.bufferInfo)) {
-                        LogUtil.logd(TAG, "mCache.add(sampleData);");
-                        mCache.add(sampleData);
-                    } else {
-                        //重新发送到消息队列 ,保持消息队列的顺序
-                        sendMessageAtTime(obtainMessage(MSG_WRITE_SAMPLE_DATA, sampleData), msg.getWhen());
-                    }
+                case MSG_DRAIN:
+                    // 先清除标记再读取 , 这样读取过程中写入的 sample 一定会触发下一次 MSG_DRAIN
+                    mDrainScheduled.set(false);
+                    muxer.drainRings(mBufferInfo, false);
                     break;
-
-            }
-
-        }
-
-        private void release() {
-            for (SampleData sampleData : mCache) {
-                sampleData.release();
             }
         }
 
@@ -199,62 +371,36 @@ public class MediaMuxerWarpper extends HandlerThread {
             sendMessage(obtainMessage(MSG_STOP));
         }
 
+        /**
+         * 编码线程调用 , 每个轨道只能由同一个线程写入
+         * 队列满时会等待混合器线程取出数据 , 最多等待 OFFER_TIMEOUT_NS
+         */
         public void sendEncodedData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-            sendMessage(obtainMessage(MSG_WRITE_SAMPLE_DATA, obtainSampleData(trackIndex, encodedData, bufferInfo)));
-        }
-
-        private synchronized SampleData obtainSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-            if (mCache.isEmpty()) {
-                LogUtil.logd(TAG, "new SampleData");
-                return new SampleData(trackIndex, encodedData, bufferInfo);
-            } else {
-                LogUtil.logd(TAG, "mCache = " + mCache.size());
-                SampleData sampleData = mCache.remove(mCache.size() - 1);
-                sampleData.trackIndex = trackIndex;
-                sampleData.setEncodedData(trackIndex, encodedData);
-                sampleData.bufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
-                return sampleData;
-            }
-        }
-
-
-        private static class SampleData {
-
-            int trackIndex;
-            ByteBuffer encodedData;
-            MediaCodec.BufferInfo bufferInfo;
-            // TODO: 2018/6/21 可以优化 ， 存在内存浪费
-            SparseArray<ByteBuffer> mCacheBuffer = new SparseArray<>();
-
-            SampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-                this.trackIndex = trackIndex;
-                this.bufferInfo = new MediaCodec.BufferInfo();
-                this.bufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
-                setEncodedData(trackIndex, encodedData);
+            MediaMuxerWarpper muxer = mReference.get();
+            if (muxer == null || mStopped) return;
+            SampleRingQueue[] rings = muxer.mRings;
+            if (trackIndex < 0 || trackIndex >= rings.length || rings[trackIndex] == null) {
+                throw new IllegalArgumentException("invalid track index " + trackIndex);
             }
-
-            void setEncodedData(int trackIndex, ByteBuffer encodedData) {
-                ByteBuffer byteBuffer = mCacheBuffer.get(trackIndex);
-                if (byteBuffer == null) {
-                    byteBuffer = ByteBuffer.allocateDirect(encodedData.capacity());
-                    mCacheBuffer.put(trackIndex, byteBuffer);
+            SampleRingQueue ring = rings[trackIndex];
+            long deadline = 0;
+            while (!ring.offer(encodedData, bufferInfo)) {
+                scheduleDrain();
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + OFFER_TIMEOUT_NS;
+                } else if (now - deadline > 0 || mStopped) {
+                    mDroppedCount.incrementAndGet();
+                    return;
                 }
-                byteBuffer.limit(encodedData.limit());
-                byteBuffer.position(encodedData.position());
-                byteBuffer.put(encodedData);
-                this.encodedData = byteBuffer;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
             }
+            scheduleDrain();
+        }
 
-            public void release() {
-                bufferInfo = null;
-                for (int i = 0; i < mCacheBuffer.size(); i++) {
-                    ByteBuffer byteBuffer = mCacheBuffer.get(i);
-                    if (byteBuffer != null) byteBuffer.clear();
-                }
-                encodedData.clear();
-                encodedData = null;
-                mCacheBuffer.clear();
-                mCacheBuffer = null;
+        private void scheduleDrain() {
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                sendMessage(obtainMessage(MSG_DRAIN));
             }
         }
     }
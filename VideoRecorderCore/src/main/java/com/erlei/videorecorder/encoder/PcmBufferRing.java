@@ -0,0 +1,152 @@
+package com.erlei.videorecorder.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 采集线程和编码线程之间传递 PCM 数据的环形缓冲区
+ * <p>
+ * 所有缓冲区在创建时分配 , 每个槽位同一时间只属于一方 :
+ * 空闲 -> acquire (采集线程写入) -> publish -> poll (编码线程读取) -> release -> 空闲
+ * 采集线程只能写入自己 acquire 到的槽位 , 所以已经排队的数据不会被下一次读取覆盖 ;
+ * 时间戳和长度保存在基本类型数组中 , 稳定运行时不分配任何对象
+ * 没有空闲槽位时 acquire 返回 -1 , 由调用方丢弃这次的数据并计数
+ * 线程安全 , 一个生产者一个消费者
+ */
+public class PcmBufferRing {
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final ByteBuffer[] mBuffers;
+    private final long[] mPresentationTimeUs;
+    private final int[] mSizes;
+    private final IntQueue mFree;
+    private final IntQueue mFilled;
+    private long mDroppedCount;
+
+    /**
+     * @param capacity   槽位数量
+     * @param bufferSize 每个槽位的字节数
+     */
+    public PcmBufferRing(int capacity, int bufferSize) {
+        if (capacity <= 0 || bufferSize <= 0) throw new IllegalArgumentException("capacity and bufferSize must > 0");
+        mBuffers = new ByteBuffer[capacity];
+        mPresentationTimeUs = new long[capacity];
+        mSizes = new int[capacity];
+        mFree = new IntQueue(capacity);
+        mFilled = new IntQueue(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            mFree.offer(i);
+        }
+    }
+
+    /**
+     * 采集线程获取一个空闲的槽位
+     *
+     * @return 槽位 , 没有空闲槽位时返回 -1 (编码线程跟不上)
+     */
+    public synchronized int acquire() {
+        int slot = mFree.poll();
+        if (slot < 0) mDroppedCount++;
+        return slot;
+    }
+
+    /**
+     * @return 槽位的缓冲区 , 只有持有这个槽位的一方可以访问
+     */
+    public ByteBuffer getBuffer(int slot) {
+        return mBuffers[slot];
+    }
+
+    /**
+     * 采集线程把写好的槽位交给编码线程 , 之后不能再访问这个槽位
+     *
+     * @param size 从缓冲区开头写入的字节数
+     */
+    public synchronized void publish(int slot, int size, long presentationTimeUs) {
+        mSizes[slot] = size;
+        mPresentationTimeUs[slot] = presentationTimeUs;
+        mFilled.offer(slot);
+    }
+
+    /**
+     * 编码线程获取下一个写好的槽位 , 槽位的缓冲区 position 为 0 , limit 为数据长度
+     *
+     * @return 槽位 , 没有数据时返回 -1
+     */
+    public synchronized int poll() {
+        int slot = mFilled.poll();
+        if (slot >= 0) {
+            mBuffers[slot].limit(mSizes[slot]).position(0);
+        }
+        return slot;
+    }
+
+    public synchronized int getSize(int slot) {
+        return mSizes[slot];
+    }
+
+    public synchronized long getPresentationTimeUs(int slot) {
+        return mPresentationTimeUs[slot];
+    }
+
+    /**
+     * 归还槽位 , acquire 之后没有 publish 的槽位也通过这个方法归还
+     */
+    public synchronized void release(int slot) {
+        mBuffers[slot].clear();
+        mFree.offer(slot);
+    }
+
+    /**
+     * @return 每个槽位的字节数
+     */
+    public int getBufferSize() {
+        return mBuffers[0].capacity();
+    }
+
+    /**
+     * @return 等待编码的槽位数量
+     */
+    public synchronized int getPendingCount() {
+        return mFilled.size();
+    }
+
+    /**
+     * @return 没有空闲槽位而被丢弃的次数
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 定长的 int 队列 , 容量等于槽位数量所以不会溢出
+     */
+    private static class IntQueue {
+        private final int[] mItems;
+        private int mHead;
+        private int mSize;
+
+        IntQueue(int capacity) {
+            mItems = new int[capacity];
+        }
+
+        void offer(int item) {
+            if (mSize == mItems.length) throw new IllegalStateException("slot " + item + " released twice");
+            mItems[(mHead + mSize) % mItems.length] = item;
+            mSize++;
+        }
+
+        int poll() {
+            if (mSize == 0) return -1;
+            int item = mItems[mHead];
+            mHead = (mHead + 1) % mItems.length;
+            mSize--;
+            return item;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.AudioRecord;
+
+/**
+ * 麦克风的采样率或者声道数和编码的不一致时 , 在采集线程中把读取的 PCM 转换成编码的格式
+ * <p>
+ * 先转换声道数 , 再用 PolyphaseResampler 重采样 ; 所有缓冲区在构造时按 maxInputFrames 分配 , 转换不分配对象
+ * 转换的结果在 getOutput 中 , 下一次 read / convert 之前有效
+ */
+public class PcmFormatConverter {
+
+    private final int mInputRate;
+    private final int mInputChannels;
+    private final int mOutputChannels;
+    private final int mMaxInputFrames;
+    private final PolyphaseResampler mResampler;
+    private final short[] mInput;
+    private final short[] mConverted;
+    private final short[] mResampled;
+    private short[] mOutput;
+    private int mOutputSamples;
+
+    /**
+     * @param maxInputFrames 每次转换的最大输入帧数
+     */
+    public PcmFormatConverter(int inputRate, int inputChannels, int outputRate, int outputChannels, int maxInputFrames) {
+        if (inputRate == outputRate && inputChannels == outputChannels)
+            throw new IllegalArgumentException("same format , no conversion needed");
+        mInputRate = inputRate;
+        mInputChannels = inputChannels;
+        mOutputChannels = outputChannels;
+        mMaxInputFrames = maxInputFrames;
+        mInput = new short[maxInputFrames * inputChannels];
+        mConverted = inputChannels != outputChannels ? new short[maxInputFrames * outputChannels] : null;
+        if (inputRate != outputRate) {
+            mResampler = new PolyphaseResampler(inputRate, outputRate, outputChannels);
+            mResampled = new short[mResampler.getMaxOutputFrames(maxInputFrames) * outputChannels];
+        } else {
+            mResampler = null;
+            mResampled = null;
+        }
+    }
+
+    /**
+     * @return AudioRecord 的格式和编码的格式相同时返回 null , 直接使用读取的数据
+     */
+    public static PcmFormatConverter create(AudioRecord audioRecord, int outputRate, int outputChannels, int maxInputFrames) {
+        if (audioRecord.getSampleRate() == outputRate && audioRecord.getChannelCount() == outputChannels) return null;
+        return new PcmFormatConverter(audioRecord.getSampleRate(), audioRecord.getChannelCount(),
+                outputRate, outputChannels, maxInputFrames);
+    }
+
+    /**
+     * 从 AudioRecord 读取最多 maxFrames 帧 (不超过 maxInputFrames) 并转换
+     *
+     * @return AudioRecord.read 的返回值 (读取的采样数)
+     */
+    public int read(AudioRecord audioRecord, int maxFrames) {
+        int frames = Math.min(maxFrames, mMaxInputFrames);
+        int read = audioRecord.read(mInput, 0, frames * mInputChannels);
+        if (read > 0) {
+            convert(mInput, 0, read / mInputChannels);
+        } else {
+            mOutputSamples = 0;
+        }
+        return read;
+    }
+
+    /**
+     * @param frames 输入帧数 , 不超过 maxInputFrames
+     * @return 输出帧数
+     */
+    public int convert(short[] input, int offset, int frames) {
+        short[] data = input;
+        int dataOffset = offset;
+        if (mConverted != null) {
+            ChannelConverter.convert(input, offset, mInputChannels, mConverted, 0, mOutputChannels, frames);
+            data = mConverted;
+            dataOffset = 0;
+        }
+        if (mResampler != null) {
+            frames = mResampler.process(data, dataOffset, frames, mResampled, 0);
+            data = mResampled;
+        }
+        mOutput = data;
+        mOutputSamples = frames * mOutputChannels;
+        return frames;
+    }
+
+    /**
+     * @return 转换的结果 , 从 0 开始的 getOutputSamples 个采样
+     */
+    public short[] getOutput() {
+        return mOutput;
+    }
+
+    public int getOutputSamples() {
+        return mOutputSamples;
+    }
+
+    /**
+     * @return 麦克风的采样率 , AudioRecord.getTimestamp 的帧位置使用这个采样率
+     */
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    @Override
+    public String toString() {
+        return "PcmFormatConverter{" +
+                mInputRate + "Hz " + mInputChannels + "ch -> " +
+                (mResampler != null ? "resample " : "") + mOutputChannels + "ch" +
+                '}';
+    }
+}
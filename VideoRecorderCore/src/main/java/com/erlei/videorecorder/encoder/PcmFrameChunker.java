@@ -0,0 +1,160 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把采集到的 16bit PCM 重新切分成 AAC 帧 (1024 个采样帧) 整数倍的块
+ * <p>
+ * AudioRecord 每次读取的长度和 AAC 帧没有关系 , 直接送入编码器时每个输入缓冲区都不是完整的帧 ,
+ * 编码器需要额外的 queue / dequeue 才能凑满一帧 , 时间戳的间隔也不均匀 .
+ * 这里用一个块大小的缓冲区保存不满一块的数据 , 凑满之后整块送入编码器 :
+ * 每个输入缓冲区正好是 framesPerChunk 个 AAC 帧 , 相邻两个块的时间戳正好相差 framesPerChunk 帧的时长
+ * <p>
+ * 块缓冲区是 byte[] , 使用 AudioRecord.read(byte[], int, int) 直接读入 , 不经过中间缓冲区
+ * (API 23 以下 AudioRecord.read(ByteBuffer) 忽略 position , 不能读到缓冲区中间)
+ * 不是线程安全的 , 只在采集线程中使用
+ */
+public class PcmFrameChunker {
+
+    /**
+     * 一个 AAC-LC 帧的采样帧数
+     */
+    public static final int AAC_FRAME_SAMPLES = 1024;
+    /**
+     * 默认每个块 2 个 AAC 帧 , 44.1KHz 时大约 46ms
+     */
+    public static final int DEFAULT_FRAMES_PER_CHUNK = 2;
+    public static final int MAX_FRAMES_PER_CHUNK = 8;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final int mBytesPerFrame;
+    private final int mChunkFrames;
+    private final byte[] mChunk;
+    private final ByteBuffer mChunkBuffer;
+    private int mFilled;
+
+    /**
+     * @param channelCount   声道数
+     * @param framesPerChunk 每个块的 AAC 帧数 , 1 - MAX_FRAMES_PER_CHUNK
+     */
+    public PcmFrameChunker(int channelCount, int framesPerChunk) {
+        if (channelCount <= 0) throw new IllegalArgumentException("channelCount must > 0");
+        if (framesPerChunk <= 0 || framesPerChunk > MAX_FRAMES_PER_CHUNK)
+            throw new IllegalArgumentException("invalid framesPerChunk " + framesPerChunk);
+        mBytesPerFrame = BYTES_PER_SAMPLE * channelCount;
+        mChunkFrames = AAC_FRAME_SAMPLES * framesPerChunk;
+        mChunk = new byte[getChunkSize(channelCount, framesPerChunk)];
+        mChunkBuffer = ByteBuffer.wrap(mChunk);
+    }
+
+    /**
+     * @return 一个块的字节数 , 用于设置 MediaFormat.KEY_MAX_INPUT_SIZE 和 PcmBufferRing 的槽位大小
+     */
+    public static int getChunkSize(int channelCount, int framesPerChunk) {
+        return AAC_FRAME_SAMPLES * framesPerChunk * BYTES_PER_SAMPLE * channelCount;
+    }
+
+    /**
+     * @param inputSize 编码器输入缓冲区的字节数
+     * @return 不超过 inputSize 的最大块 (AAC 帧数) , 最少 1 帧
+     */
+    public static int fitFramesPerChunk(int channelCount, int framesPerChunk, int inputSize) {
+        int frames = Math.min(framesPerChunk, inputSize / getChunkSize(channelCount, 1));
+        return Math.max(1, frames);
+    }
+
+    /**
+     * 从 AudioRecord 读取数据 , 最多读到当前块写满
+     *
+     * @param maxBytes 这次最多读取的字节数 , 阻塞读取时传入 Integer.MAX_VALUE 一次读满整块
+     * @return AudioRecord.read 的返回值
+     */
+    public int read(AudioRecord audioRecord, int maxBytes) {
+        int size = Math.min(mChunk.length - mFilled, maxBytes);
+        size -= size % mBytesPerFrame;
+        if (size <= 0) return 0;
+        int read = audioRecord.read(mChunk, mFilled, size);
+        if (read > 0) mFilled += read;
+        return read;
+    }
+
+    /**
+     * 把 src 中的数据追加到当前块 , 最多写到块满 , src 的 position 前进复制的字节数
+     *
+     * @return 当前块是否已经写满
+     */
+    public boolean append(ByteBuffer src) {
+        int size = Math.min(mChunk.length - mFilled, src.remaining());
+        src.get(mChunk, mFilled, size);
+        mFilled += size;
+        return isFull();
+    }
+
+    /**
+     * 把 16bit 采样追加到当前块 (小端) , 最多写到块满
+     *
+     * @param samples 采样数 (帧数 * 声道数)
+     * @return 写入的采样数 , 小于 samples 时当前块已经写满 , 取出之后继续写入剩下的部分
+     */
+    public int append(short[] src, int offset, int samples) {
+        int count = Math.min((mChunk.length - mFilled) / BYTES_PER_SAMPLE, samples);
+        final byte[] chunk = mChunk;
+        int p = mFilled;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            short sample = src[i];
+            chunk[p++] = (byte) sample;
+            chunk[p++] = (byte) (sample >> 8);
+        }
+        mFilled = p;
+        return count;
+    }
+
+    public boolean isFull() {
+        return mFilled == mChunk.length;
+    }
+
+    /**
+     * 取出当前块 (块没有写满时是已经写入的部分) , 之后开始写入下一块
+     *
+     * @return position 为 0 , limit 为数据长度的缓冲区 , 在下一次写入之前有效
+     */
+    public ByteBuffer takeChunk() {
+        mChunkBuffer.limit(mFilled).position(0);
+        mFilled = 0;
+        return mChunkBuffer;
+    }
+
+    /**
+     * 丢弃当前块中的数据
+     *
+     * @return 丢弃的采样帧数
+     */
+    public int discard() {
+        int frames = mFilled / mBytesPerFrame;
+        mFilled = 0;
+        return frames;
+    }
+
+    /**
+     * @return 当前块中已经写入的采样帧数
+     */
+    public int getPendingFrames() {
+        return mFilled / mBytesPerFrame;
+    }
+
+    /**
+     * @return 一个块的采样帧数
+     */
+    public int getChunkFrames() {
+        return mChunkFrames;
+    }
+
+    /**
+     * @return 一个块的字节数
+     */
+    public int getChunkSize() {
+        return mChunk.length;
+    }
+}
@@ -0,0 +1,195 @@
+package com.erlei.videorecorder.encoder;
+
+import java.util.Arrays;
+
+/**
+ * 流式多相 (polyphase) 重采样 , 16bit 交错声道的 PCM
+ * <p>
+ * 采样率之比化简为 L / M (比如 44100 -> 48000 为 160 / 147) , 原型低通滤波器是 Kaiser 窗的 sinc ,
+ * 长度 taps * L , 截止频率为两个采样率中较低的奈奎斯特频率的 ROLLOFF 倍 , 按相位拆成 L 组 taps 个系数 .
+ * 每个输出帧只计算一组系数和 taps 个输入帧的点积 , 不需要真正插零和抽取
+ * <p>
+ * 输入按块复制到内部的 float 缓冲区 , 处理完之后只保留下一个输出需要的 taps - 1 帧历史 ,
+ * 所以每次 process 的输入长度没有限制 . 系数和缓冲区在构造时分配 , process 不分配对象
+ * 输出相对于输入有 taps / 2 个输入帧的延迟 , 不是线程安全的
+ */
+public class PolyphaseResampler {
+
+    public static final int DEFAULT_TAPS = 32;
+    /**
+     * L 的上限 , 系数数量为 L * taps
+     */
+    private static final int MAX_PHASES = 4096;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final double ROLLOFF = 0.88;
+    private static final double KAISER_BETA = 6.0;
+
+    private final int mChannels;
+    private final int mUp;
+    private final int mDown;
+    private final int mTaps;
+    private final float[] mCoefs;
+    private final float[] mBuffer;
+    private final int mBufferFrames;
+    private int mBufferedFrames;
+    /**
+     * 下一个输出帧的第一个输入帧 (在 mBuffer 中) 和使用的相位
+     */
+    private int mInputIndex;
+    private int mPhase;
+
+    public PolyphaseResampler(int inputRate, int outputRate, int channels) {
+        this(inputRate, outputRate, channels, DEFAULT_TAPS);
+    }
+
+    /**
+     * @param taps 每个相位的系数数量 , 越多过渡带越窄 , 计算量和 taps 成正比
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int channels, int taps) {
+        if (inputRate <= 0 || outputRate <= 0) throw new IllegalArgumentException("invalid rate " + inputRate + " -> " + outputRate);
+        if (channels <= 0) throw new IllegalArgumentException("channels must > 0");
+        if (taps < 2) throw new IllegalArgumentException("taps must >= 2");
+        int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        if (mUp > MAX_PHASES)
+            throw new IllegalArgumentException("unsupported rate " + inputRate + " -> " + outputRate);
+        mChannels = channels;
+        mTaps = taps;
+        mCoefs = designFilter(mUp, mDown, taps);
+        mBufferFrames = taps - 1 + BLOCK_FRAMES;
+        mBuffer = new float[mBufferFrames * channels];
+        reset();
+    }
+
+    /**
+     * @return inputFrames 个输入帧最多产生的输出帧数 , 用于分配输出缓冲区
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        return (int) ((long) inputFrames * mUp / mDown) + 2;
+    }
+
+    /**
+     * 重采样一段输入 , 不足一个输出帧的部分保留到下一次
+     *
+     * @param inputOffset  input 中的采样偏移 (帧 * 声道数)
+     * @param inputFrames  输入帧数
+     * @param outputOffset output 中的采样偏移 , 之后需要有 getMaxOutputFrames(inputFrames) 帧的空间
+     * @return 输出帧数
+     */
+    public int process(short[] input, int inputOffset, int inputFrames, short[] output, int outputOffset) {
+        final int channels = mChannels;
+        final int taps = mTaps;
+        final float[] buffer = mBuffer;
+        final float[] coefs = mCoefs;
+        int consumed = 0;
+        int out = outputOffset;
+        while (consumed < inputFrames) {
+            int frames = Math.min(inputFrames - consumed, mBufferFrames - mBufferedFrames);
+            int src = inputOffset + consumed * channels;
+            int dst = mBufferedFrames * channels;
+            for (int i = 0, n = frames * channels; i < n; i++) {
+                buffer[dst + i] = input[src + i];
+            }
+            mBufferedFrames += frames;
+            consumed += frames;
+
+            while (mInputIndex + taps <= mBufferedFrames) {
+                final int coef = mPhase * taps;
+                for (int c = 0; c < channels; c++) {
+                    float acc = 0f;
+                    int x = mInputIndex * channels + c;
+                    for (int t = 0; t < taps; t++) {
+                        acc += coefs[coef + t] * buffer[x];
+                        x += channels;
+                    }
+                    int sample = Math.round(acc);
+                    if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+                    else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+                    output[out++] = (short) sample;
+                }
+                mPhase += mDown;
+                while (mPhase >= mUp) {
+                    mPhase -= mUp;
+                    mInputIndex++;
+                }
+            }
+
+            // 只保留下一个输出需要的历史 , 降采样时 mInputIndex 可能已经越过缓冲区的末尾
+            int shift = Math.min(mInputIndex, mBufferedFrames);
+            System.arraycopy(buffer, shift * channels, buffer, 0, (mBufferedFrames - shift) * channels);
+            mBufferedFrames -= shift;
+            mInputIndex -= shift;
+        }
+        return (out - outputOffset) / channels;
+    }
+
+    /**
+     * 清除历史 , 之后的输入从静音开始
+     */
+    public void reset() {
+        Arrays.fill(mBuffer, 0f);
+        mBufferedFrames = mTaps - 1;
+        mInputIndex = 0;
+        mPhase = 0;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * 设计原型滤波器并拆分成多相系数 , 相位 p 的第 t 个系数和窗口中第 t 个 (最早的为 0) 输入帧相乘
+     * 每个相位的系数和归一化为 1 , 直流增益不随相位变化
+     */
+    private static float[] designFilter(int up, int down, int taps) {
+        final int length = up * taps;
+        final double center = (length - 1) / 2.0;
+        // 上采样之后的归一化截止频率 (周期 / 采样)
+        final double cutoff = 0.5 * ROLLOFF / Math.max(up, down);
+        final double i0Beta = besselI0(KAISER_BETA);
+        final float[] coefs = new float[length];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int t = 0; t < taps; t++) {
+                int n = p + (taps - 1 - t) * up;
+                double x = n - center;
+                double sinc = x == 0 ? 1.0 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+                double r = 2 * x / (length - 1);
+                double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+                double h = sinc * window;
+                coefs[p * taps + t] = (float) h;
+                sum += h;
+            }
+            if (sum != 0) {
+                for (int t = 0; t < taps; t++) {
+                    coefs[p * taps + t] /= sum;
+                }
+            }
+        }
+        return coefs;
+    }
+
+    /**
+     * 第一类零阶修正贝塞尔函数 , 级数展开
+     */
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        double half = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,89 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.erlei.videorecorder.mp4.Mp4Writer;
+import com.erlei.videorecorder.mp4.SampleJournal;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于 Mp4Writer 的实现 , 输出普通的 MP4 , 同时写入 SampleJournal
+ * 录制过程中进程被杀掉 , 可以通过 Mp4Recovery 根据日志修复文件
+ * 目前只支持 H.264 + AAC
+ */
+public class RecoverableMp4Muxer implements IMediaMuxer {
+
+    private static final String TAG = "RecoverableMp4Muxer";
+
+    private final Mp4Writer mWriter;
+
+    public RecoverableMp4Muxer(String output) throws IOException {
+        File file = new File(output);
+        mWriter = new Mp4Writer(file);
+        mWriter.setJournalFile(SampleJournal.getJournalFile(file));
+    }
+
+    public Mp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mWriter.addTrack(FragmentedMp4Muxer.toTrackFormat(format));
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("start mp4 writer failed", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        // csd 已经通过 addTrack 的 MediaFormat 写入了 sample entry
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) return;
+        int position = byteBuf.position();
+        int limit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            boolean sync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo.presentationTimeUs, sync);
+        } catch (IOException e) {
+            throw new IllegalStateException("write sample data failed", e);
+        } finally {
+            byteBuf.limit(limit);
+            byteBuf.position(position);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+            long fileSize = Math.max(1, mWriter.getFileSize());
+            LogUtil.logd(TAG, "journal " + mWriter.getJournalSize() + " bytes , overhead "
+                    + (mWriter.getJournalSize() * 100f / fileSize) + "%");
+        } catch (IOException e) {
+            throw new IllegalStateException("stop mp4 writer failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        // stop() 中已经关闭了文件
+    }
+}
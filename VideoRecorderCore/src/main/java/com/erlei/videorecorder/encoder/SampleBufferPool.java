@@ -0,0 +1,228 @@
+package com.erlei.videorecorder.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 编码数据的直接内存池
+ * <p>
+ * 按 2 的幂划分大小等级 (1KB ~ 4MB) , 每个等级维护一个空闲链表 , 缓冲区通过引用计数归还
+ * 池中分配的直接内存总量不会超过 maxBytes , 超过时先回收空闲的缓冲区 , 仍然不够时分配一个不入池的临时缓冲区
+ * 线程安全 , 编码线程申请 , 混合器线程释放
+ */
+public class SampleBufferPool {
+
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int MAX_CLASS_SHIFT = 22;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    private final int mMaxBytes;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<PooledBuffer>[] mFreeLists = new ArrayDeque[CLASS_COUNT];
+    private long mAllocatedBytes;
+    private long mInUseBytes;
+    private long mPeakBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mOverflowCount;
+    private long mEvictCount;
+
+    public SampleBufferPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes 池中缓冲区 (包括空闲的) 占用的直接内存上限
+     */
+    public SampleBufferPool(int maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must > 0");
+        mMaxBytes = maxBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mFreeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 申请一个至少 size 字节的缓冲区 , 引用计数为 1 , position = 0 , limit = size
+     */
+    public synchronized PooledBuffer acquire(int size) {
+        if (size < 0) throw new IllegalArgumentException("size must >= 0");
+        int sizeClass = sizeClassOf(size);
+        PooledBuffer buffer;
+        if (sizeClass < 0) {
+            buffer = allocateOverflow(size);
+        } else {
+            buffer = mFreeLists[sizeClass].pollFirst();
+            if (buffer != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+                int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+                if (ensureRoom(capacity)) {
+                    buffer = new PooledBuffer(this, ByteBuffer.allocateDirect(capacity), sizeClass);
+                    mAllocatedBytes += capacity;
+                } else {
+                    buffer = allocateOverflow(size);
+                }
+            }
+        }
+        if (buffer.mSizeClass >= 0) {
+            mInUseBytes += buffer.mBuffer.capacity();
+            if (mInUseBytes > mPeakBytes) mPeakBytes = mInUseBytes;
+        }
+        buffer.mRefCount.set(1);
+        buffer.mBuffer.clear();
+        buffer.mBuffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 拷贝 src 中 position 到 limit 之间的数据 , src 的 position 会移动到 limit
+     */
+    public PooledBuffer copyOf(ByteBuffer src) {
+        PooledBuffer buffer = acquire(src.remaining());
+        buffer.mBuffer.put(src);
+        buffer.mBuffer.flip();
+        return buffer;
+    }
+
+    private PooledBuffer allocateOverflow(int size) {
+        mOverflowCount++;
+        return new PooledBuffer(this, ByteBuffer.allocateDirect(Math.max(size, 1)), -1);
+    }
+
+    /**
+     * 回收空闲的缓冲区 (从大到小) 直到可以再分配 capacity 字节
+     */
+    private boolean ensureRoom(int capacity) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && mAllocatedBytes + capacity > mMaxBytes; i--) {
+            ArrayDeque<PooledBuffer> freeList = mFreeLists[i];
+            while (!freeList.isEmpty() && mAllocatedBytes + capacity > mMaxBytes) {
+                PooledBuffer evicted = freeList.pollFirst();
+                mAllocatedBytes -= evicted.mBuffer.capacity();
+                mEvictCount++;
+            }
+        }
+        return mAllocatedBytes + capacity <= mMaxBytes;
+    }
+
+    private synchronized void recycle(PooledBuffer buffer) {
+        if (buffer.mSizeClass < 0) return;  // 临时缓冲区直接交给 GC
+        mInUseBytes -= buffer.mBuffer.capacity();
+        mFreeLists[buffer.mSizeClass].addFirst(buffer);
+    }
+
+    /**
+     * 释放所有空闲的缓冲区 , 正在使用的缓冲区归还时仍然会进入空闲链表
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<PooledBuffer> freeList : mFreeLists) {
+            while (!freeList.isEmpty()) {
+                mAllocatedBytes -= freeList.pollFirst().mBuffer.capacity();
+            }
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        int shift = MIN_CLASS_SHIFT;
+        while (shift <= MAX_CLASS_SHIFT && (1 << shift) < size) {
+            shift++;
+        }
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return 因为超过上限或者超过最大等级而分配的临时缓冲区个数
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    public synchronized long getEvictCount() {
+        return mEvictCount;
+    }
+
+    /**
+     * @return 池中分配的直接内存 (包括空闲的)
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    public synchronized long getInUseBytes() {
+        return mInUseBytes;
+    }
+
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SampleBufferPool{" +
+                "hit=" + mHitCount +
+                ", miss=" + mMissCount +
+                ", overflow=" + mOverflowCount +
+                ", evict=" + mEvictCount +
+                ", allocatedBytes=" + mAllocatedBytes +
+                ", inUseBytes=" + mInUseBytes +
+                ", peakBytes=" + mPeakBytes +
+                ", maxBytes=" + mMaxBytes +
+                '}';
+    }
+
+    /**
+     * 引用计数的缓冲区 , 引用计数降为 0 时归还到池中 , 之后不能再访问 buffer()
+     */
+    public static class PooledBuffer {
+        private final SampleBufferPool mPool;
+        private final ByteBuffer mBuffer;
+        private final int mSizeClass;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        private PooledBuffer(SampleBufferPool pool, ByteBuffer buffer, int sizeClass) {
+            mPool = pool;
+            mBuffer = buffer;
+            mSizeClass = sizeClass;
+        }
+
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        public PooledBuffer retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int refCount = mRefCount.decrementAndGet();
+            if (refCount == 0) {
+                mPool.recycle(this);
+            } else if (refCount < 0) {
+                throw new IllegalStateException("buffer released too many times");
+            }
+        }
+
+        public boolean isPooled() {
+            return mSizeClass >= 0;
+        }
+    }
+}
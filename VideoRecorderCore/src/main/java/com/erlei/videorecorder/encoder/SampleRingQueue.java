@@ -0,0 +1,143 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编码线程和混合器线程之间的单生产者单消费者环形队列 , 每个轨道一个
+ * <p>
+ * 槽位在构造时分配 , 入队和出队不加锁也不分配对象 (编码数据拷贝到 SampleBufferPool 申请的缓冲区)
+ * offer() 只能在同一个生产者线程调用 , peek / poll / clear 只能在同一个消费者线程调用
+ */
+public class SampleRingQueue {
+
+    private final SampleBufferPool mPool;
+    private final int mCapacity;
+    private final int mMask;
+    private final SampleBufferPool.PooledBuffer[] mBuffers;
+    private final long[] mPresentationTimeUs;
+    private final int[] mFlags;
+    private final int[] mSizes;
+    /**
+     * 下一个要读取的位置 , 只有消费者写入
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /**
+     * 下一个要写入的位置 , 只有生产者写入
+     */
+    private final AtomicLong mTail = new AtomicLong();
+    /**
+     * 生产者缓存的 head , 减少对 volatile 变量的读取
+     */
+    private long mProducerHead;
+    /**
+     * 消费者缓存的 tail
+     */
+    private long mConsumerTail;
+
+    /**
+     * @param capacity 队列容量 , 会向上取整到 2 的幂
+     */
+    public SampleRingQueue(SampleBufferPool pool, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must > 0");
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mPool = pool;
+        mCapacity = size;
+        mMask = size - 1;
+        mBuffers = new SampleBufferPool.PooledBuffer[size];
+        mPresentationTimeUs = new long[size];
+        mFlags = new int[size];
+        mSizes = new int[size];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 生产者调用 , 拷贝 encodedData 中 position 到 limit 之间的数据
+     *
+     * @return 队列已满时返回 false , 数据不会被拷贝
+     */
+    public boolean offer(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        long tail = mTail.get();
+        if (tail - mProducerHead >= mCapacity) {
+            mProducerHead = mHead.get();
+            if (tail - mProducerHead >= mCapacity) return false;
+        }
+        int index = (int) tail & mMask;
+        mBuffers[index] = mPool.copyOf(encodedData);
+        mPresentationTimeUs[index] = bufferInfo.presentationTimeUs;
+        mFlags[index] = bufferInfo.flags;
+        mSizes[index] = bufferInfo.size;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * 消费者调用
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 消费者调用 , 生产者调用时只是一个近似值
+     */
+    public int size() {
+        long head = mHead.get();
+        if (head >= mConsumerTail) mConsumerTail = mTail.get();
+        return (int) (mConsumerTail - head);
+    }
+
+    /**
+     * 消费者调用 , 队列不能为空
+     *
+     * @return 队头 sample 的时间戳
+     */
+    public long peekPresentationTimeUs() {
+        return mPresentationTimeUs[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * 消费者调用 , 队列不能为空
+     *
+     * @return 队头 sample 的 MediaCodec.BufferInfo.flags
+     */
+    public int peekFlags() {
+        return mFlags[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * 消费者调用 , 取出队头的 sample , 返回的缓冲区使用完之后需要调用 release()
+     *
+     * @param bufferInfo 输出 sample 的信息 , offset 总是 0
+     * @return 队列为空时返回 null
+     */
+    public SampleBufferPool.PooledBuffer poll(MediaCodec.BufferInfo bufferInfo) {
+        long head = mHead.get();
+        if (head >= mConsumerTail) {
+            mConsumerTail = mTail.get();
+            if (head >= mConsumerTail) return null;
+        }
+        int index = (int) head & mMask;
+        SampleBufferPool.PooledBuffer buffer = mBuffers[index];
+        mBuffers[index] = null;
+        bufferInfo.set(0, mSizes[index], mPresentationTimeUs[index], mFlags[index]);
+        mHead.lazySet(head + 1);
+        return buffer;
+    }
+
+    /**
+     * 消费者调用 , 丢弃队列中所有的 sample
+     */
+    public void clear(MediaCodec.BufferInfo scratch) {
+        SampleBufferPool.PooledBuffer buffer;
+        while ((buffer = poll(scratch)) != null) {
+            buffer.release();
+        }
+    }
+}
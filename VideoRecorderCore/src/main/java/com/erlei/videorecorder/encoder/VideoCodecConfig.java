@@ -0,0 +1,120 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodecInfo;
+
+/**
+ * 视频编码的偏好设置 , 由 VideoCodecSelector 根据设备的编码器能力解析成实际使用的参数
+ * <p>
+ * 这里的设置都是 "尽量" : 设备不支持时逐级回退 (HEVC -> H.264 , High -> Main -> Baseline ,
+ * CQ / CBR -> VBR -> 编码器默认) , 不会因为偏好设置导致无法录制
+ */
+public class VideoCodecConfig implements Cloneable {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+
+    public static final int PROFILE_DEFAULT = 0;
+    public static final int PROFILE_BASELINE = 1;
+    public static final int PROFILE_MAIN = 2;
+    public static final int PROFILE_HIGH = 3;
+
+    public static final int BITRATE_MODE_DEFAULT = -1;
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+
+    private boolean mPreferHevc;
+    private int mProfile = PROFILE_DEFAULT;
+    private int mBitrateMode = BITRATE_MODE_DEFAULT;
+    private int mMaxBFrames;
+    private int mQuality;
+
+    /**
+     * @param prefer 设备有支持当前尺寸的 HEVC 编码器时使用 HEVC , 相同画质下码率大约是 H.264 的一半
+     *               需要 API 21 , 并且不能和 fragmented MP4 / 崩溃恢复一起使用 (Mp4Writer 只支持 H.264)
+     */
+    public VideoCodecConfig setPreferHevc(boolean prefer) {
+        mPreferHevc = prefer;
+        return this;
+    }
+
+    /**
+     * @param profile PROFILE_* , H.264 使用对应的 profile , HEVC 始终使用 Main , 需要 API 23
+     */
+    public VideoCodecConfig setProfile(int profile) {
+        if (profile < PROFILE_DEFAULT || profile > PROFILE_HIGH)
+            throw new IllegalArgumentException("invalid profile " + profile);
+        mProfile = profile;
+        return this;
+    }
+
+    /**
+     * @param mode BITRATE_MODE_* , 需要 API 21
+     */
+    public VideoCodecConfig setBitrateMode(int mode) {
+        if (mode < BITRATE_MODE_DEFAULT || mode > BITRATE_MODE_CBR)
+            throw new IllegalArgumentException("invalid bitrate mode " + mode);
+        mBitrateMode = mode;
+        return this;
+    }
+
+    /**
+     * @param frames 最大连续 B 帧数量 , 0 表示不使用 B 帧 ; 需要 API 29 , Main 以上的 profile ,
+     *               并且只能使用 MediaMuxer 写入 (输出的时间戳不是单调递增的)
+     */
+    public VideoCodecConfig setMaxBFrames(int frames) {
+        if (frames < 0) throw new IllegalArgumentException("frames must >= 0");
+        mMaxBFrames = frames;
+        return this;
+    }
+
+    /**
+     * @param quality BITRATE_MODE_CQ 时的画质 , 范围由编码器决定 , 0 表示编码器默认 , 需要 API 28
+     */
+    public VideoCodecConfig setQuality(int quality) {
+        if (quality < 0) throw new IllegalArgumentException("quality must >= 0");
+        mQuality = quality;
+        return this;
+    }
+
+    public boolean isPreferHevc() {
+        return mPreferHevc;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public VideoCodecConfig clone() {
+        try {
+            return (VideoCodecConfig) super.clone();
+        } catch (CloneNotSupportedException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoCodecConfig{" +
+                "preferHevc=" + mPreferHevc +
+                ", profile=" + mProfile +
+                ", bitrateMode=" + mBitrateMode +
+                ", maxBFrames=" + mMaxBFrames +
+                ", quality=" + mQuality +
+                '}';
+    }
+}
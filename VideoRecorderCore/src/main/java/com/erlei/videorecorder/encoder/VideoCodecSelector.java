@@ -0,0 +1,164 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.util.List;
+
+/**
+ * 根据 VideoCodecConfig 和 CodecCapabilityIndex 选择视频编码器和编码参数
+ * <p>
+ * 只依赖索引中的数据和传入的 API 版本 , 不访问 MediaCodecList , 所以可以用录制下来的索引文件
+ * (CodecCapabilityIndex.readFrom) 验证不同设备上的选择结果
+ * 回退顺序 :
+ * 类型 : HEVC (支持 Surface 输入和当前尺寸) -> H.264 (优先支持当前尺寸的编码器 , 否则第一个支持 Surface 输入的)
+ * profile : 请求的 profile 开始逐级降低 , 编码器都不支持时使用编码器默认值
+ * 码率模式 : 请求的模式 -> VBR -> 编码器默认值
+ * B 帧 : 条件不满足时为 0
+ */
+public class VideoCodecSelector {
+
+    /**
+     * MediaFormat.KEY_MAX_B_FRAMES , API 29
+     */
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+    private static final int API_LOLLIPOP = 21;
+    private static final int API_MARSHMALLOW = 23;
+    private static final int API_PIE = 28;
+    private static final int API_Q = 29;
+
+    /**
+     * 解析之后的编码参数 , 0 或者 BITRATE_MODE_DEFAULT 表示不设置 , 使用编码器默认值
+     */
+    public static class Selection {
+        public final CodecCapabilityIndex.Entry codec;
+        public final String mimeType;
+        /**
+         * MediaCodecInfo.CodecProfileLevel 中的 profile 和 level
+         */
+        public final int profile;
+        public final int level;
+        public final int bitrateMode;
+        public final int quality;
+        public final int maxBFrames;
+
+        Selection(CodecCapabilityIndex.Entry codec, String mimeType, int profile, int level, int bitrateMode, int quality, int maxBFrames) {
+            this.codec = codec;
+            this.mimeType = mimeType;
+            this.profile = profile;
+            this.level = level;
+            this.bitrateMode = bitrateMode;
+            this.quality = quality;
+            this.maxBFrames = maxBFrames;
+        }
+
+        /**
+         * 只指定编码器 , 其他参数使用编码器默认值
+         */
+        public Selection(CodecCapabilityIndex.Entry codec, String mimeType) {
+            this(codec, mimeType, 0, 0, VideoCodecConfig.BITRATE_MODE_DEFAULT, 0, 0);
+        }
+
+        /**
+         * 把选择的参数写入编码器的 MediaFormat
+         */
+        public void applyTo(MediaFormat format) {
+            if (profile > 0) format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            if (level > 0) format.setInteger(MediaFormat.KEY_LEVEL, level);
+            if (bitrateMode != VideoCodecConfig.BITRATE_MODE_DEFAULT)
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+            if (quality > 0) format.setInteger(MediaFormat.KEY_QUALITY, quality);
+            if (maxBFrames > 0) format.setInteger(KEY_MAX_B_FRAMES, maxBFrames);
+        }
+
+        @Override
+        public String toString() {
+            return "Selection{" +
+                    "codec=" + codec.name +
+                    ", mimeType=" + mimeType +
+                    ", profile=" + profile +
+                    ", level=" + level +
+                    ", bitrateMode=" + bitrateMode +
+                    ", quality=" + quality +
+                    ", maxBFrames=" + maxBFrames +
+                    '}';
+        }
+    }
+
+    /**
+     * @param config  编码偏好 , null 表示 H.264 和编码器默认参数
+     * @param sdkInt  Build.VERSION.SDK_INT
+     * @param avcOnly 只使用 H.264 并且不使用 B 帧 (使用 Mp4Writer / FragmentedMp4Writer 写入时)
+     * @return 没有支持 Surface 输入的编码器时返回 null
+     */
+    public static Selection select(VideoCodecConfig config, CodecCapabilityIndex index, int width, int height, int sdkInt, boolean avcOnly) {
+        if (config == null) config = new VideoCodecConfig();
+        CodecCapabilityIndex.Entry codec = null;
+        String mimeType = VideoCodecConfig.MIME_AVC;
+        if (config.isPreferHevc() && sdkInt >= API_LOLLIPOP && !avcOnly) {
+            codec = findSurfaceEncoder(index.getEncoders(VideoCodecConfig.MIME_HEVC), width, height, false);
+            if (codec != null) mimeType = VideoCodecConfig.MIME_HEVC;
+        }
+        if (codec == null) {
+            codec = findSurfaceEncoder(index.getEncoders(VideoCodecConfig.MIME_AVC), width, height, true);
+        }
+        if (codec == null) return null;
+        final boolean hevc = VideoCodecConfig.MIME_HEVC.equals(mimeType);
+
+        int profile = 0, level = 0;
+        if (sdkInt >= API_MARSHMALLOW) {
+            for (int p = config.getProfile(); p > VideoCodecConfig.PROFILE_DEFAULT; p--) {
+                int codecProfile = hevc ? MediaCodecInfo.CodecProfileLevel.HEVCProfileMain : toAvcProfile(p);
+                if (codec.supportsProfile(codecProfile)) {
+                    profile = codecProfile;
+                    level = codec.getMaxLevel(codecProfile);
+                    break;
+                }
+            }
+        }
+
+        int bitrateMode = VideoCodecConfig.BITRATE_MODE_DEFAULT, quality = 0;
+        int requestedMode = config.getBitrateMode();
+        if (requestedMode != VideoCodecConfig.BITRATE_MODE_DEFAULT && sdkInt >= API_LOLLIPOP) {
+            if (codec.supportsBitrateMode(requestedMode)) {
+                bitrateMode = requestedMode;
+            } else if (codec.supportsBitrateMode(VideoCodecConfig.BITRATE_MODE_VBR)) {
+                bitrateMode = VideoCodecConfig.BITRATE_MODE_VBR;
+            }
+            if (bitrateMode == VideoCodecConfig.BITRATE_MODE_CQ && sdkInt >= API_PIE) {
+                quality = config.getQuality();
+            }
+        }
+
+        int maxBFrames = 0;
+        if (config.getMaxBFrames() > 0 && sdkInt >= API_Q && !avcOnly
+                && (hevc || (profile != 0 && profile != MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline))) {
+            maxBFrames = config.getMaxBFrames();
+        }
+        return new Selection(codec, mimeType, profile, level, bitrateMode, quality, maxBFrames);
+    }
+
+    /**
+     * @param anySize 没有支持当前尺寸的编码器时 , 返回第一个支持 Surface 输入的编码器
+     */
+    private static CodecCapabilityIndex.Entry findSurfaceEncoder(List<CodecCapabilityIndex.Entry> encoders, int width, int height, boolean anySize) {
+        CodecCapabilityIndex.Entry fallback = null;
+        for (CodecCapabilityIndex.Entry entry : encoders) {
+            if (!entry.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)) continue;
+            if (entry.isSizeSupported(width, height)) return entry;
+            if (fallback == null) fallback = entry;
+        }
+        return anySize ? fallback : null;
+    }
+
+    private static int toAvcProfile(int profile) {
+        switch (profile) {
+            case VideoCodecConfig.PROFILE_HIGH:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            case VideoCodecConfig.PROFILE_MAIN:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+            default:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+        }
+    }
+}
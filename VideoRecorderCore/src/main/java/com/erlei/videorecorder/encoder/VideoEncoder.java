@@ -24,6 +24,7 @@ public class VideoEncoder extends MediaEncoder {
     private final int mBitRate;
     private final int mIFrameInterval;
     private Surface mInputSurface;
+    private VideoCodecSelector.Selection mSelection;
 
     public VideoEncoder(MediaEncoderCallBack callBack, Size size, int bitRate,int iFrameInterval) {
         super(callBack, TAG);
@@ -33,6 +34,13 @@ public class VideoEncoder extends MediaEncoder {
     }
 
 
+    /**
+     * 使用 VideoCodecSelector 选择的编码器和参数 , 需要在 start() 之前调用 , null 表示 H.264 和默认参数
+     */
+    public void setCodecSelection(VideoCodecSelector.Selection selection) {
+        mSelection = selection;
+    }
+
     @Override
     protected synchronized MediaEncoderHandler initHandler(Looper looper, MediaEncoder encoder) {
         return new VideoEncoderHandler(getLooper(), this);
@@ -42,22 +50,31 @@ public class VideoEncoder extends MediaEncoder {
     @Override
     protected MediaCodec createEncoder() throws IOException {
         LogUtil.logd(TAG, "createEncoder");
-        MediaFormat videoFormat = MediaFormat.createVideoFormat(MIME_TYPE, mVideoSize.getWidth(), mVideoSize.getHeight());
+        String mimeType = mSelection != null ? mSelection.mimeType : MIME_TYPE;
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(mimeType, mVideoSize.getWidth(), mVideoSize.getHeight());
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        if (mSelection != null) mSelection.applyTo(videoFormat);
         LogUtil.logd(TAG, "format: " + videoFormat);
 
 
-        MediaCodec encoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        encoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        MediaCodec encoder = mSelection != null
+                ? MediaCodec.createByCodecName(mSelection.codec.name)
+                : MediaCodec.createEncoderByType(MIME_TYPE);
+        configureEncoder(encoder, videoFormat);
         mInputSurface = encoder.createInputSurface();
         encoder.start();
         LogUtil.logd(TAG, "createEncoder finishing");
         return encoder;
     }
 
+    @Override
+    protected boolean isSurfaceInput() {
+        return true;
+    }
+
     @Override
     protected void signalEndOfInputStream() {
         mEncoder.signalEndOfInputStream();
@@ -0,0 +1,119 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于系统 MediaCodec 的实现
+ */
+public class AndroidEncoderCodec implements IEncoderCodec {
+
+    /**
+     * 使用设备的编码器能力索引和 MediaCodec.createByCodecName
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public CodecCapabilityIndex getCapabilities(Context context) {
+            return CodecCapabilityIndex.get(context);
+        }
+
+        @Override
+        public IEncoderCodec createByCodecName(String name) throws IOException {
+            return new AndroidEncoderCodec(MediaCodec.createByCodecName(name));
+        }
+
+        @Override
+        public MediaFormat createVideoFormat(String mime, int width, int height) {
+            return MediaFormat.createVideoFormat(mime, width, height);
+        }
+
+        @Override
+        public MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+            return MediaFormat.createAudioFormat(mime, sampleRate, channelCount);
+        }
+    };
+
+    private final MediaCodec mMediaCodec;
+
+    public AndroidEncoderCodec(MediaCodec codec) {
+        mMediaCodec = codec;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();    // API >= 18
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mMediaCodec.getInputBuffers();
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mMediaCodec.getOutputBuffers();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mMediaCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mMediaCodec.getOutputFormat();    // API >= 16
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();    // API >= 18
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        mMediaCodec.setParameters(params);    // API >= 19
+    }
+}
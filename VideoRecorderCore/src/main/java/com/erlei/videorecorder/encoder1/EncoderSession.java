@@ -0,0 +1,138 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.os.Build;
+import android.view.Surface;
+
+import com.erlei.videorecorder.encoder.MediaClock;
+import com.erlei.videorecorder.recorder.VideoRecorder;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 连续录制多个文件时复用同一组编码器
+ * <p>
+ * 第一个文件创建 MediaVideoEncoder 和 MediaAudioEncoder , 之后的文件只创建新的 MediaMuxerWrapper :
+ * stop 时编码器写完已经输入的帧之后关闭当前文件 , 编码线程 , MediaCodec 和输入 Surface 继续运行 ;
+ * start 时编码器用缓存的输出格式在新的 muxer 中添加轨道 , 视频请求一个关键帧作为新文件的第一帧 ,
+ * 所以切换文件不需要重新创建和配置编码器 , 也不需要重新创建 EGL Surface
+ * <p>
+ * 所有文件共用一个 MediaClock , 两个文件之间采集的音频被丢弃 , 麦克风保持打开 .
+ * 文件在单独的线程中关闭 (包括 faststart) , 不会阻塞编码线程 , 关闭的顺序和录制的顺序一致
+ * <p>
+ * 请求关键帧需要 API 19 , 更低的版本视频要等到下一个 I 帧间隔才能开始 , 而音频从切换时就开始写入 ,
+ * 所以 API 19 以下 stop 时停止编码器 , 每个文件重新创建 , 和不使用 EncoderSession 时相同
+ */
+public class EncoderSession {
+
+    private static final String TAG = LogUtil.TAG;
+
+    private final VideoRecorder.Config mConfig;
+    private final MediaClock mClock = new MediaClock();
+    private final ExecutorService mCloseExecutor = Executors.newSingleThreadExecutor();
+    private MediaVideoEncoder mVideoEncoder;
+    private MediaAudioEncoder mAudioEncoder;
+    private MediaMuxerWrapper mMuxer;
+    private int mPartCount;
+
+    public EncoderSession(VideoRecorder.Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * 开始写入一个文件
+     *
+     * @param muxer 这个文件的 muxer , 还没有添加编码器
+     * @return true 表示创建了新的编码器 (第一个文件或者之前的编码器已经停止) , 需要重新创建输入 Surface 的 EGL Surface
+     */
+    public synchronized boolean start(MediaMuxerWrapper muxer) throws IOException {
+        if (mMuxer != null) throw new IllegalStateException("part already started");
+        muxer.setClock(mClock);
+        muxer.setCloseExecutor(mCloseExecutor);
+        mPartCount++;
+        if (canReuseEncoders() && mVideoEncoder != null && mVideoEncoder.isCapturing()
+                && mAudioEncoder != null && mAudioEncoder.isCapturing()) {
+            muxer.attachEncoders(mVideoEncoder, mAudioEncoder);
+            mMuxer = muxer;
+            LogUtil.logd(TAG, "EncoderSession: attach part " + mPartCount + " " + muxer.getOutputPath());
+            return false;
+        }
+        stopEncoders();
+        mVideoEncoder = new MediaVideoEncoder(muxer, mConfig);
+        mAudioEncoder = new MediaAudioEncoder(muxer, mConfig);
+        mMuxer = muxer;
+        muxer.prepare();
+        muxer.startRecording();
+        LogUtil.logd(TAG, "EncoderSession: create encoders for part " + mPartCount + " " + muxer.getOutputPath());
+        return true;
+    }
+
+    /**
+     * 结束当前文件 , 编码器继续运行
+     *
+     * @return true 表示不能复用编码器 (API 19 以下) , 编码器已经和文件一起停止 , 可以释放输入 Surface 的 EGL Surface
+     */
+    public synchronized boolean stop() {
+        if (mMuxer == null) return false;
+        final boolean reuse = canReuseEncoders();
+        if (reuse) {
+            mMuxer.detachEncoders();
+        } else {
+            mMuxer.stopRecording();
+            mVideoEncoder = null;
+            mAudioEncoder = null;
+        }
+        mMuxer = null;
+        return !reuse;
+    }
+
+    /**
+     * 停止编码器 , 正在写入的文件正常结束
+     */
+    public synchronized void release() {
+        if (mMuxer != null) {
+            mMuxer.stopRecording();
+            mMuxer = null;
+        }
+        stopEncoders();
+        mCloseExecutor.shutdown();
+    }
+
+    private void stopEncoders() {
+        if (mVideoEncoder != null) mVideoEncoder.stopRecording();
+        if (mAudioEncoder != null) mAudioEncoder.stopRecording();
+        mVideoEncoder = null;
+        mAudioEncoder = null;
+    }
+
+    public synchronized MediaVideoEncoder getVideoEncoder() {
+        return mVideoEncoder;
+    }
+
+    /**
+     * @return 视频编码器的输入 Surface , 在所有文件之间保持不变
+     */
+    public synchronized Surface getInputSurface() {
+        return mVideoEncoder != null ? mVideoEncoder.getSurface() : null;
+    }
+
+    /**
+     * @return 是否正在写入文件
+     */
+    public synchronized boolean isStarted() {
+        return mMuxer != null;
+    }
+
+    public MediaClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return 切换文件时能否请求关键帧 , 不能请求时不复用编码器
+     */
+    private static boolean canReuseEncoders() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+}
@@ -0,0 +1,76 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 同步模式编码器的抽象 , 方法和 MediaCodec 保持一致
+ * MediaEncoder 只通过这个接口访问编码器 , 可以用假的编码器在 JVM 上运行整个录制流程
+ */
+public interface IEncoderCodec {
+
+    /**
+     * 创建编码器 , 以及选择编码器时使用的能力索引
+     */
+    interface Factory {
+
+        CodecCapabilityIndex getCapabilities(Context context);
+
+        IEncoderCodec createByCodecName(String name) throws IOException;
+
+        /**
+         * 和 MediaFormat.createVideoFormat 相同 , 返回的格式由调用者继续设置编码参数
+         */
+        MediaFormat createVideoFormat(String mime, int width, int height);
+
+        /**
+         * 和 MediaFormat.createAudioFormat 相同
+         */
+        MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount);
+    }
+
+    /**
+     * 以编码器的方式配置 (CONFIGURE_FLAG_ENCODE)
+     */
+    void configure(MediaFormat format);
+
+    /**
+     * 只能在 configure 和 start 之间调用
+     */
+    Surface createInputSurface();
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    ByteBuffer[] getInputBuffers();
+
+    ByteBuffer[] getOutputBuffers();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    MediaFormat getOutputFormat();
+
+    /**
+     * 使用 Surface 作为输入时结束输入
+     */
+    void signalEndOfInputStream();
+
+    void setParameters(Bundle params);
+}
@@ -24,13 +24,19 @@ package com.erlei.videorecorder.encoder1;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
+import android.media.AudioTimestamp;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.erlei.videorecorder.encoder.AudioLevelMeter;
+import com.erlei.videorecorder.encoder.AudioMixer;
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+import com.erlei.videorecorder.encoder.MediaClock;
+import com.erlei.videorecorder.encoder.PcmFormatConverter;
+import com.erlei.videorecorder.encoder.PcmFrameChunker;
 import com.erlei.videorecorder.recorder.VideoRecorder;
 import com.erlei.videorecorder.util.LogUtil;
 
@@ -47,6 +53,7 @@ public class MediaAudioEncoder extends MediaEncoder {
     private int mSampleRate;
     private int mBitRate;
     private int mChannelCount;
+    private int mFramesPerChunk;
     private AudioThread mAudioThread = null;
     private VideoRecorder.Config mConfig;
 
@@ -56,6 +63,7 @@ public class MediaAudioEncoder extends MediaEncoder {
         mSampleRate = config.getAudioSampleRate();
         mBitRate = config.getAudioBitRate();
         mChannelCount = config.getAudioChannelCount();
+        mFramesPerChunk = config.getAudioFramesPerBuffer();
     }
 
     @Override
@@ -64,22 +72,30 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecCapabilityIndex.Entry audioCodec = mCodecFactory.getCapabilities(mConfig.getContext()).findEncoder(MIME_TYPE);
+        if (audioCodec == null) {
             LogUtil.loge(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) LogUtil.loge(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (DEBUG) LogUtil.loge(TAG, "selected codec: " + audioCodec);
 
-        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
+        final MediaFormat audioFormat = mCodecFactory.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, mChannelCount == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioCodec.clampBitrate(mBitRate));
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, PcmFrameChunker.getChunkSize(mChannelCount, mFramesPerChunk));
         if (DEBUG) LogUtil.loge(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec = mCodecFactory.createByCodecName(audioCodec.name);
+        mMediaCodec.configure(audioFormat);
         mMediaCodec.start();
+        // 部分编码器忽略 KEY_MAX_INPUT_SIZE , 块大小不能超过实际的输入缓冲区
+        final int inputSize = mMediaCodec.getInputBuffers()[0].capacity();
+        final int frames = PcmFrameChunker.fitFramesPerChunk(mChannelCount, mFramesPerChunk, inputSize);
+        if (frames != mFramesPerChunk) {
+            LogUtil.logw(TAG, "input buffer " + inputSize + " bytes , frames per chunk " + mFramesPerChunk + " -> " + frames);
+            mFramesPerChunk = frames;
+        }
         if (DEBUG) LogUtil.loge(TAG, "prepare finishing");
     }
 
@@ -99,6 +115,22 @@ public class MediaAudioEncoder extends MediaEncoder {
         super.release();
     }
 
+    /**
+     * @return 没有设置背景音乐或者背景音乐无法解码时返回 null , 只录制麦克风
+     */
+    private AudioMixer createMixer(int channelCount) {
+        final BackgroundMusicConfig music = mConfig.getBackgroundMusic();
+        if (music == null) return null;
+        final AudioMixer mixer = new AudioMixer(music);
+        try {
+            mixer.prepare(mSampleRate, channelCount);
+            return mixer;
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "unable to mix background music " + music + " : " + e);
+            return null;
+        }
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -110,54 +142,60 @@ public class MediaAudioEncoder extends MediaEncoder {
     /**
      * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
      * and write them to the MediaCodec encoder
+     * 麦克风不支持编码的采样率或者声道数时 , 使用设备支持的格式采集 , 经过 PcmFormatConverter 转换之后再切分成块
      */
     private class AudioThread extends Thread {
+        private AudioTimestamp mTimestamp;
+        private PcmFrameChunker mChunker;
+        private AudioMixer mMixer;
+        private AudioLevelMeter mLevelMeter;
+        private MediaClock mClock;
+
         @Override
         public void run() {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
             try {
-                final int minBufferSize = AudioRecord.getMinBufferSize(
-                        mSampleRate,
-                        mChannelCount,
-                        AudioFormat.ENCODING_PCM_16BIT);
-
-
-                AudioRecord audioRecord = null;
-                for (final int source : AUDIO_SOURCES) {
-                    try {
-                        audioRecord = new AudioRecord(
-                                source, mSampleRate,
-                                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 2);
-                        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
-                            audioRecord = null;
-                    } catch (final Exception e) {
-                        audioRecord = null;
-                    }
-                    if (audioRecord != null) break;
-                }
+                // 内部缓冲区至少能放下两个块 , 编码一个块的时候不会丢失数据
+                final AudioRecord audioRecord = mConfig.getAudioRecordOpener().open(AUDIO_SOURCES, mSampleRate, mChannelCount,
+                        PcmFrameChunker.getChunkSize(mChannelCount, mFramesPerChunk) * 2);
                 if (audioRecord != null) {
                     try {
                         if (mIsCapturing) {
                             if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-                            final ByteBuffer buf = ByteBuffer.allocateDirect(minBufferSize / 2);
-                            int readBytes;
+                            mChunker = new PcmFrameChunker(mChannelCount, mFramesPerChunk);
+                            mTimestamp = MediaClock.createAudioTimestamp();
+                            mMixer = createMixer(mChannelCount);
+                            if (mConfig.getAudioLevelRate() > 0 && mConfig.getViewHandler() != null) {
+                                mLevelMeter = new AudioLevelMeter(mSampleRate, mChannelCount,
+                                        mConfig.getAudioLevelRate(), mConfig.getViewHandler());
+                            }
+                            mClock = getClock();
+                            final PcmFormatConverter converter = PcmFormatConverter.create(audioRecord,
+                                    mSampleRate, mChannelCount, mChunker.getChunkFrames());
+                            if (converter != null) LogUtil.logw(TAG, "AudioThread:" + converter);
                             audioRecord.startRecording();
                             try {
                                 for (; mIsCapturing && !mRequestStop && !mIsEOS; ) {
-                                    // read audio data from internal mic
-                                    buf.clear();
-                                    readBytes = audioRecord.read(buf, minBufferSize / 2);
-                                    if (readBytes > 0) {
-                                        // set audio data to encoder
-                                        buf.position(readBytes);
-                                        buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
-                                        frameAvailableSoon();
+                                    // read audio data from internal mic , 每次读到凑满一个块
+                                    if (converter == null) {
+                                        if (mChunker.read(audioRecord, Integer.MAX_VALUE) > 0 && mChunker.isFull()) {
+                                            writeChunk(audioRecord, mSampleRate);
+                                        }
+                                        continue;
+                                    }
+                                    if (converter.read(audioRecord, mChunker.getChunkFrames()) <= 0) continue;
+                                    final short[] output = converter.getOutput();
+                                    final int samples = converter.getOutputSamples();
+                                    int offset = 0;
+                                    while (offset < samples) {
+                                        offset += mChunker.append(output, offset, samples - offset);
+                                        if (mChunker.isFull()) writeChunk(audioRecord, converter.getInputRate());
                                     }
                                 }
                                 frameAvailableSoon();
                             } finally {
                                 audioRecord.stop();
+                                if (mMixer != null) mMixer.release();
                             }
                         }
                     } finally {
@@ -171,39 +209,35 @@ public class MediaAudioEncoder extends MediaEncoder {
             }
             if (DEBUG) Log.v(TAG, "AudioThread:finished");
         }
-    }
 
-    /**
-     * select the first codec that match a specific MIME type
-     *
-     * @param mimeType
-     * @return
-     */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-        if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-        MediaCodecInfo result = null;
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        LOOP:
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
+        /**
+         * 把写满的块送入编码器
+         *
+         * @param captureRate AudioRecord 的采样率
+         */
+        private void writeChunk(AudioRecord audioRecord, int captureRate) {
+            if (mDetached) {
+                // 连续录制的两个文件之间 , 丢弃采集的数据 , 时间戳跳过这段时长
+                final int frames = mChunker.discard();
+                if (mClock != null) mClock.skipAudioFrames(frames);
+                return;
             }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (DEBUG)
-                    LogUtil.loge(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (result == null) {
-                        result = codecInfo;
-                        break LOOP;
-                    }
-                }
+            // 和视频相同 , 先确认编码器接受这一块再送入 , 被拒绝的块不会写入文件
+            if (!frameAvailableSoon()) {
+                mChunker.discard();
+                countFrame(false);
+                return;
             }
+            // set audio data to encoder
+            final long presentationTimeUs = mClock != null
+                    ? mClock.toAudioTimeUs(audioRecord, mTimestamp, mSampleRate, mChunker.getChunkFrames(), captureRate)
+                    : getPTSUs();
+            final ByteBuffer chunk = mChunker.takeChunk();
+            if (mMixer != null) mMixer.mix(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+            if (mLevelMeter != null) mLevelMeter.process(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+            encode(chunk, chunk.remaining(), presentationTimeUs);
+            countFrame(true);
         }
-        return result;
     }
 
 }
@@ -25,6 +25,7 @@ package com.erlei.videorecorder.encoder1;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 
+import com.erlei.videorecorder.encoder.MediaClock;
 import com.erlei.videorecorder.recorder.VideoRecorder;
 import com.erlei.videorecorder.util.LogUtil;
 
@@ -42,6 +43,7 @@ public abstract class MediaEncoder implements Runnable {
 
     protected final Object mSync = new Object();
     private final VideoRecorder.Config mConfig;
+    protected final IEncoderCodec.Factory mCodecFactory;
     /**
      * Flag that indicate this encoder is capturing now.
      */
@@ -67,21 +69,38 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * MediaCodec instance for encoding , 由 VideoRecorder.Config 的 IEncoderCodec.Factory 创建
      */
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    protected IEncoderCodec mMediaCodec;                // API >= 16(Android4.1.2)
     /**
      * Weak refarence of MediaMuxerWarapper instance
+     * 连续录制时在编码线程中切换 , detach 之后指向 null
      */
-    protected final WeakReference<MediaMuxerWrapper> mWeakMuxer;
+    protected volatile WeakReference<MediaMuxerWrapper> mWeakMuxer;
     /**
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;        // API >= 16(Android4.1.2)
+    /**
+     * 编码器的输出格式 , 连续录制 attach 到下一个 muxer 时直接用它添加轨道
+     */
+    private MediaFormat mOutputFormat;
+    /**
+     * 连续录制 : 已经结束上一个文件 , 还没有 attach 到下一个 muxer , 这期间不接收输入数据
+     */
+    protected volatile boolean mDetached;
+    private boolean mRequestDetach;
+    private MediaMuxerWrapper mRequestAttach;
+    private long mDetachTimeUs;
+    /**
+     * attach 之后丢弃时间戳早于这个值的残留 sample , 视频还要从关键帧开始 , -1 表示不过滤 (只在编码线程中访问)
+     */
+    private long mPartStartUs = -1;
 
     public MediaEncoder(MediaMuxerWrapper muxer, VideoRecorder.Config config) {
         if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
         mConfig = config;
+        mCodecFactory = config.getCodecFactory();
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
         muxer.addEncoder(this);
         synchronized (mSync) {
@@ -109,7 +128,7 @@ public abstract class MediaEncoder implements Runnable {
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) LogUtil.logi(TAG, "frameAvailableSoon");
         synchronized (mSync) {
-            if (!mIsCapturing || mRequestStop) {
+            if (!mIsCapturing || mRequestStop || mDetached) {
                 return false;
             }
             mRequestDrain++;
@@ -132,12 +151,18 @@ public abstract class MediaEncoder implements Runnable {
         final boolean isRunning = true;
         boolean localRequestStop;
         boolean localRequestDrain;
+        boolean localRequestDetach;
+        MediaMuxerWrapper localRequestAttach;
         while (isRunning) {
             synchronized (mSync) {
                 localRequestStop = mRequestStop;
                 localRequestDrain = (mRequestDrain > 0);
                 if (localRequestDrain)
                     mRequestDrain--;
+                localRequestDetach = mRequestDetach;
+                localRequestAttach = mRequestAttach;
+                mRequestDetach = false;
+                mRequestAttach = null;
             }
             if (localRequestStop) {
                 drain();
@@ -149,12 +174,19 @@ public abstract class MediaEncoder implements Runnable {
                 release();
                 break;
             }
+            if (localRequestDetach) {
+                detachMuxer();
+            }
+            if (localRequestAttach != null) {
+                attachMuxer(localRequestAttach);
+            }
             if (localRequestDrain) {
                 drain();
             } else {
                 synchronized (mSync) {
                     try {
-                        mSync.wait();
+                        if (!mRequestDetach && mRequestAttach == null)
+                            mSync.wait();
                     } catch (final InterruptedException e) {
                         break;
                     }
@@ -201,6 +233,97 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * 连续录制 : 结束当前文件 , 编码器继续运行
+     * 立即停止接收输入 , 编码线程写入已经输入的帧之后关闭 muxer
+     */
+    /*package*/ void requestDetach() {
+        synchronized (mSync) {
+            if (!mIsCapturing || mRequestStop || mDetached) {
+                return;
+            }
+            mDetached = true;
+            mDetachTimeUs = MediaClock.nowUs();
+            mRequestDetach = true;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * 连续录制 : 开始写入下一个文件 , 编码线程用缓存的输出格式添加轨道 , 不需要重新创建编码器
+     */
+    /*package*/ void requestAttach(MediaMuxerWrapper muxer) {
+        synchronized (mSync) {
+            if (!mIsCapturing || mRequestStop) {
+                return;
+            }
+            mRequestAttach = muxer;
+            mDetached = false;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * @return 编码线程是否还在运行
+     */
+    public boolean isCapturing() {
+        return mIsCapturing && !mRequestStop;
+    }
+
+    private void detachMuxer() {
+        if (DEBUG) LogUtil.logd(TAG, "detachMuxer:");
+        // 写入 detach 之前输入的帧 , 没有输出时最多等待 5 * TIMEOUT_USEC
+        drain();
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (mMuxerStarted && muxer != null) {
+            muxer.stop();
+        }
+        mMuxerStarted = false;
+        mWeakMuxer = new WeakReference<MediaMuxerWrapper>(null);
+    }
+
+    private void attachMuxer(MediaMuxerWrapper muxer) {
+        if (DEBUG) LogUtil.logd(TAG, "attachMuxer:" + muxer.getOutputPath());
+        mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
+        mPartStartUs = mDetachTimeUs;
+        // 还没有收到过 INFO_OUTPUT_FORMAT_CHANGED 时由 drain 添加轨道
+        if (mOutputFormat == null) return;
+        mTrackIndex = muxer.addTrack(mOutputFormat);
+        mMuxerStarted = true;
+        startMuxer(muxer);
+    }
+
+    /**
+     * 所有编码器都添加了轨道之后 muxer 才会启动 , 在这之前阻塞编码线程
+     *
+     * @return false 表示等待时被中断
+     */
+    private boolean startMuxer(MediaMuxerWrapper muxer) {
+        if (!muxer.start()) {
+            // we should wait until muxer is ready
+            synchronized (muxer) {
+                while (!muxer.isStarted())
+                    try {
+                        muxer.wait(100);
+                    } catch (final InterruptedException e) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 连续录制切换文件之后 , 丢弃上一个文件残留的 sample , 视频从第一个关键帧开始写入
+     */
+    private boolean isPartSample(MediaCodec.BufferInfo info) {
+        if (mPartStartUs < 0) return true;
+        if (info.presentationTimeUs < mPartStartUs) return false;
+        if (this instanceof MediaVideoEncoder && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) return false;
+        mPartStartUs = -1;
+        return true;
+    }
+
 //********************************************************************************
 //********************************************************************************
 
@@ -315,18 +438,11 @@ public abstract class MediaEncoder implements Runnable {
                 // get output format from codec and pass them to muxer
                 // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
                 final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
+                mOutputFormat = format;
                 mTrackIndex = muxer.addTrack(format);
                 mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
+                if (!startMuxer(muxer)) {
+                    break LOOP;
                 }
             } else if (encoderStatus < 0) {
                 // unexpected status
@@ -338,6 +454,9 @@ public abstract class MediaEncoder implements Runnable {
                     // this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    onOutputFrame(mBufferInfo.presentationTimeUs);
+                }
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     // You shoud set output format to muxer here when you target Android4.3 or less
                     // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
@@ -346,6 +465,10 @@ public abstract class MediaEncoder implements Runnable {
                     if (DEBUG) LogUtil.logd(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
                     mBufferInfo.size = 0;
                 }
+                if (mBufferInfo.size != 0 && !isPartSample(mBufferInfo)) {
+                    if (DEBUG) LogUtil.logd(TAG, "drain:skip sample before part start " + mBufferInfo.presentationTimeUs);
+                    mBufferInfo.size = 0;
+                }
 
                 if (mBufferInfo.size != 0) {
                     // encoded data is ready, clear waiting counter
@@ -355,8 +478,10 @@ public abstract class MediaEncoder implements Runnable {
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
                     // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
+                    mBufferInfo.presentationTimeUs = getOutputPTSUs(mBufferInfo.presentationTimeUs);
                     muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    onSampleWritten(mBufferInfo.size, muxer.takeWriteTimeNs(mTrackIndex));
+                    muxer.getStats().onSampleOut(getStatsTrack(), mBufferInfo.size);
                     prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
                 // return buffer to encoder
@@ -370,11 +495,75 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * 编码器输出一帧 (不包括 codec config) 时在编码线程中调用 , 无论这一帧是否写入 muxer
+     *
+     * @param presentationTimeUs 编码器输出的时间戳 , 等于输入帧的时间戳
+     */
+    protected void onOutputFrame(long presentationTimeUs) {
+
+    }
+
+    /**
+     * 一个 sample 交给 muxer 之后在编码线程中调用
+     *
+     * @param writeTimeNs 上次调用之后这个轨道写入 IMediaMuxer 花费的时间 . 有 interleave window 时 sample 先进入
+     *                    SampleInterleaver , 这个时间属于之前真正写入文件的 sample , 见 MediaMuxerWrapper.takeWriteTimeNs
+     */
+    protected void onSampleWritten(int size, long writeTimeNs) {
+
+    }
+
+    /**
+     * @return 已经通知但是还没有处理的 frameAvailableSoon 数量 , 即等待编码输出并写入 muxer 的帧数
+     */
+    protected int getPendingDrainCount() {
+        synchronized (mSync) {
+            return mRequestDrain;
+        }
+    }
+
+    private int getStatsTrack() {
+        return this instanceof MediaVideoEncoder ? PipelineStats.TRACK_VIDEO : PipelineStats.TRACK_AUDIO;
+    }
+
+    /**
+     * 统计一帧输入数据 , accepted 为 false 表示这一帧被丢弃
+     */
+    protected void countFrame(boolean accepted) {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (muxer == null) return;
+        if (accepted) {
+            muxer.getStats().onFrameIn(getStatsTrack());
+        } else {
+            muxer.getStats().onFrameDropped(getStatsTrack());
+        }
+    }
+
     /**
      * previous presentationTimeUs for writing
      */
     private long prevOutputPTSUs = 0;
 
+    /**
+     * presentationTimeUs for encoded data written to muxer
+     * 输入数据的时间戳来自 MediaClock (视频是相机时间戳 , 音频是采样帧数) , 这里只保证单调递增
+     *
+     * @param codecPTSUs presentationTimeUs from MediaCodec
+     */
+    protected long getOutputPTSUs(long codecPTSUs) {
+        if (codecPTSUs <= 0) return getPTSUs();
+        return codecPTSUs <= prevOutputPTSUs ? prevOutputPTSUs + 1 : codecPTSUs;
+    }
+
+    /**
+     * @return 这次录制的时钟 , muxer 已经释放时返回 null
+     */
+    protected MediaClock getClock() {
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        return muxer != null ? muxer.getClock() : null;
+    }
+
     /**
      * get next encoding presentationTimeUs
      *
@@ -24,17 +24,25 @@ package com.erlei.videorecorder.encoder1;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.text.TextUtils;
 
+import com.erlei.videorecorder.encoder.AndroidMediaMuxer;
+import com.erlei.videorecorder.encoder.FragmentedMp4Muxer;
+import com.erlei.videorecorder.encoder.IMediaMuxer;
+import com.erlei.videorecorder.encoder.MediaClock;
+import com.erlei.videorecorder.encoder.RecoverableMp4Muxer;
+import com.erlei.videorecorder.mp4.FastStart;
 import com.erlei.videorecorder.recorder.VideoRecorderHandler;
 import com.erlei.videorecorder.util.LogUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MediaMuxerWrapper {
     private static final boolean DEBUG = LogUtil.LOG_ENABLE;    // TODO set false on release
@@ -44,10 +52,21 @@ public class MediaMuxerWrapper {
     private final VideoRecorderHandler mViewHandler;
 
     private String mOutputPath;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    private final IMediaMuxer mMediaMuxer;
     private int mEncoderCount, mStatredCount;
     private boolean mIsStarted;
+    private final boolean mFragmentedMp4;
+    private boolean mFastStart;
+    private long mInterleaveWindowUs = SampleInterleaver.DEFAULT_WINDOW_US;
+    private SampleInterleaver mInterleaver;
+    /**
+     * 每个轨道写入 IMediaMuxer 花费的时间 , takeWriteTimeNs 取走之后清零
+     */
+    private long[] mWriteTimeNs = new long[0];
     private MediaEncoder mVideoEncoder, mAudioEncoder;
+    private final PipelineStats mStats = new PipelineStats();
+    private MediaClock mClock = new MediaClock();
+    private Executor mCloseExecutor;
 
     /**
      * Constructor
@@ -57,9 +76,59 @@ public class MediaMuxerWrapper {
      * @throws IOException
      */
     public MediaMuxerWrapper(String output, VideoRecorderHandler viewHandler) throws IOException {
+        this(output, viewHandler, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param output        output file
+     * @param viewHandler
+     * @param fragmentedMp4 true to write fragmented mp4 with FragmentedMp4Muxer instead of MediaMuxer
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(String output, VideoRecorderHandler viewHandler, boolean fragmentedMp4) throws IOException {
+        this(output, viewHandler, fragmentedMp4, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param output        output file
+     * @param viewHandler
+     * @param fragmentedMp4 true to write fragmented mp4 with FragmentedMp4Muxer instead of MediaMuxer
+     * @param recoverable   true to write mp4 with RecoverableMp4Muxer , ignored when fragmentedMp4 is true
+     * @throws IOException
+     */
+    public MediaMuxerWrapper(String output, VideoRecorderHandler viewHandler, boolean fragmentedMp4, boolean recoverable) throws IOException {
         mViewHandler = viewHandler;
         if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
-        mMediaMuxer = new MediaMuxer(mOutputPath = output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mOutputPath = output;
+        mFragmentedMp4 = fragmentedMp4;
+        if (fragmentedMp4) {
+            mMediaMuxer = new FragmentedMp4Muxer(output);
+        } else if (recoverable) {
+            mMediaMuxer = new RecoverableMp4Muxer(output);
+        } else {
+            mMediaMuxer = new AndroidMediaMuxer(output);
+        }
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param muxer       muxer to write samples , e.g. an in-memory sink without real file
+     * @param output      output path reported to viewHandler
+     * @param viewHandler may be null
+     */
+    public MediaMuxerWrapper(IMediaMuxer muxer, String output, VideoRecorderHandler viewHandler) {
+        if (muxer == null) throw new IllegalArgumentException("muxer must not null");
+        mViewHandler = viewHandler;
+        mOutputPath = output;
+        mFragmentedMp4 = false;
+        mMediaMuxer = muxer;
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
@@ -68,7 +137,61 @@ public class MediaMuxerWrapper {
         return mOutputPath;
     }
 
+    /**
+     * 文件关闭之后把 moov 移动到文件开头 , 对 fragmented mp4 无效
+     *
+     * @param fastStart true to move moov in front of mdat after muxer stopped
+     */
+    public void setFastStartEnable(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * 写入 muxer 之前按时间戳重新排序并合并 chunk , 必须在添加轨道之前调用
+     *
+     * @param windowUs interleave window , 0 表示不排序直接写入
+     */
+    public void setInterleaveWindowUs(long windowUs) {
+        mInterleaveWindowUs = windowUs;
+    }
+
+    /**
+     * @return 排序缓冲区 , 用于查看 chunk 数量和缓冲区的最大占用 , 没有启用时返回 null
+     */
+    public synchronized SampleInterleaver getInterleaver() {
+        return mInterleaver;
+    }
+
+    /**
+     * @return 这次录制的吞吐量和延迟统计
+     */
+    public PipelineStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return 这次录制中音频和视频共用的时钟
+     */
+    public MediaClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * 连续录制的多个文件共用一个时钟 , 必须在添加编码器之前调用
+     */
+    /*package*/ void setClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * 在这个线程中关闭文件 (包括 faststart) , 避免阻塞编码线程 , null 表示在编码线程中关闭
+     */
+    /*package*/ void setCloseExecutor(Executor executor) {
+        mCloseExecutor = executor;
+    }
+
     public void prepare() throws IOException {
+        mStats.onRecordStart();
         if (mVideoEncoder != null)
             mVideoEncoder.prepare();
         if (mAudioEncoder != null)
@@ -83,6 +206,7 @@ public class MediaMuxerWrapper {
     }
 
     public void stopRecording() {
+        mStats.onStopRequested();
         if (mVideoEncoder != null)
             mVideoEncoder.stopRecording();
         mVideoEncoder = null;
@@ -91,6 +215,30 @@ public class MediaMuxerWrapper {
         mAudioEncoder = null;
     }
 
+    /**
+     * 连续录制 : 把正在运行的编码器转移到这个 muxer , 编码器使用缓存的输出格式添加轨道
+     */
+    /*package*/ void attachEncoders(MediaVideoEncoder videoEncoder, MediaAudioEncoder audioEncoder) {
+        mStats.onRecordStart();
+        if (videoEncoder != null) addEncoder(videoEncoder);
+        if (audioEncoder != null) addEncoder(audioEncoder);
+        if (videoEncoder != null) videoEncoder.requestAttach(this);
+        if (audioEncoder != null) audioEncoder.requestAttach(this);
+    }
+
+    /**
+     * 连续录制 : 结束这个文件 , 编码器继续运行 , 等待 attach 到下一个 muxer
+     */
+    /*package*/ void detachEncoders() {
+        mStats.onStopRequested();
+        if (mVideoEncoder != null)
+            mVideoEncoder.requestDetach();
+        mVideoEncoder = null;
+        if (mAudioEncoder != null)
+            mAudioEncoder.requestDetach();
+        mAudioEncoder = null;
+    }
+
     public synchronized boolean isStarted() {
         return mIsStarted;
     }
@@ -130,7 +278,7 @@ public class MediaMuxerWrapper {
             mMediaMuxer.start();
             mIsStarted = true;
             notifyAll();
-            mViewHandler.onMuxerStarted(mOutputPath);
+            if (mViewHandler != null) mViewHandler.onMuxerStarted(mOutputPath);
             if (DEBUG) LogUtil.logd(TAG, "MediaMuxer started:");
         }
         return mIsStarted;
@@ -144,26 +292,68 @@ public class MediaMuxerWrapper {
         if (DEBUG) LogUtil.logd(TAG, "stop:mStatredCount=" + mStatredCount);
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            try {
-                mMediaMuxer.stop();
-            } catch (Exception e) {
-                LogUtil.loge(TAG, "MediaMuxer stopped: error" + e);
-                e.printStackTrace();
-            } finally {
-                if (mViewHandler != null) {
-                    mViewHandler.onMuxerStopped(getOutputPath());
+            // mStatredCount <= 0 之后 writeSampleData 不再写入 , 可以在其他线程中关闭文件
+            final Runnable close = new Runnable() {
+                @Override
+                public void run() {
+                    close();
                 }
+            };
+            boolean closed = false;
+            if (mCloseExecutor != null) {
                 try {
-                    mMediaMuxer.release();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    mCloseExecutor.execute(close);
+                    closed = true;
+                } catch (RejectedExecutionException e) {
+                    LogUtil.logw(TAG, "close executor rejected , close on encoder thread");
                 }
             }
+            if (!closed) close.run();
             mIsStarted = false;
             if (DEBUG) LogUtil.logd(TAG, "MediaMuxer stopped:");
         }
     }
 
+    private void close() {
+        boolean stopped = false;
+        try {
+            if (mInterleaver != null) {
+                mInterleaver.flush();
+                if (DEBUG) LogUtil.logd(TAG, "interleaver " + mInterleaver);
+            }
+            mMediaMuxer.stop();
+            stopped = true;
+        } catch (Exception e) {
+            LogUtil.loge(TAG, "MediaMuxer stopped: error" + e);
+            e.printStackTrace();
+        } finally {
+            if (mInterleaver != null) mInterleaver.clear();
+            try {
+                mMediaMuxer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            // 文件关闭之后才能移动 moov , 并且要在通知文件可用之前完成
+            if (stopped && mFastStart && !mFragmentedMp4) {
+                fastStart();
+            }
+            mStats.onFileClosed();
+            if (DEBUG) LogUtil.logd(TAG, mStats + " " + mClock);
+            if (mViewHandler != null) {
+                mViewHandler.onMuxerStopped(getOutputPath());
+            }
+        }
+    }
+
+    private void fastStart() {
+        try {
+            FastStart.Result result = FastStart.process(new File(mOutputPath));
+            if (DEBUG) LogUtil.logd(TAG, "faststart " + mOutputPath + " " + result);
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "faststart error " + e);
+        }
+    }
+
     /**
      * assign encoder to muxer
      *
@@ -175,6 +365,22 @@ public class MediaMuxerWrapper {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
         final int trackIx = mMediaMuxer.addTrack(format);
+        if (mInterleaveWindowUs > 0) {
+            if (mInterleaver == null) {
+                mInterleaver = new SampleInterleaver(new SampleInterleaver.Sink() {
+                    @Override
+                    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+                        writeToMuxer(trackIndex, byteBuf, bufferInfo);
+                    }
+                }, mInterleaveWindowUs);
+            }
+            mInterleaver.addTrack(trackIx);
+        }
+        if (trackIx >= mWriteTimeNs.length) {
+            final long[] writeTimeNs = new long[trackIx + 1];
+            System.arraycopy(mWriteTimeNs, 0, writeTimeNs, 0, mWriteTimeNs.length);
+            mWriteTimeNs = writeTimeNs;
+        }
         if (DEBUG)
             LogUtil.logi(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
@@ -189,8 +395,35 @@ public class MediaMuxerWrapper {
      */
     /*package*/
     synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0)
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        if (mStatredCount <= 0) return;
+        if (mInterleaver != null) {
+            mInterleaver.offer(trackIndex, byteBuf, bufferInfo);
+        } else {
+            writeToMuxer(trackIndex, byteBuf, bufferInfo);
+        }
+    }
+
+    /**
+     * 真正写入 IMediaMuxer 的地方 , 直接写入和经过 SampleInterleaver 写入都在这里计时
+     */
+    private void writeToMuxer(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        final long startNs = System.nanoTime();
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        mWriteTimeNs[trackIndex] += System.nanoTime() - startNs;
+    }
+
+    /**
+     * 有 interleave window 时 writeSampleData 只是拷贝到缓冲区 , sample 在之后某次 writeSampleData (可能是其他轨道的)
+     * 或者 stop 时才写入 IMediaMuxer , 所以写入时间按轨道累计 , 由编码线程在每次 writeSampleData 之后取走
+     *
+     * @return 上次调用之后这个轨道写入 IMediaMuxer 花费的时间
+     */
+    /*package*/
+    synchronized long takeWriteTimeNs(final int trackIndex) {
+        if (trackIndex < 0 || trackIndex >= mWriteTimeNs.length) return 0;
+        final long writeTimeNs = mWriteTimeNs[trackIndex];
+        mWriteTimeNs[trackIndex] = 0;
+        return writeTimeNs;
     }
 
 //**********************************************************************
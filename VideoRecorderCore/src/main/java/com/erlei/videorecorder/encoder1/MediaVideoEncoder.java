@@ -22,13 +22,19 @@ package com.erlei.videorecorder.encoder1;
  * All files in the folder are under this Apache License, Version 2.0.
  */
 
+import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.view.Surface;
 
 import com.erlei.videorecorder.camera.Size;
+import com.erlei.videorecorder.encoder.BitrateController;
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+import com.erlei.videorecorder.encoder.VideoCodecConfig;
+import com.erlei.videorecorder.encoder.VideoCodecSelector;
 import com.erlei.videorecorder.recorder.VideoRecorder;
 import com.erlei.videorecorder.util.LogUtil;
 
@@ -39,21 +45,51 @@ public class MediaVideoEncoder extends MediaEncoder {
     private static final boolean DEBUG = false;    // TODO set false on release
     private static final String TAG = LogUtil.TAG;
 
-    private static final String MIME_TYPE = "video/avc";
     // parameters for recording
     private static final int FRAME_RATE = 30;
+    /**
+     * 最多记录的在途帧数 , 超过时丢弃最旧的记录 , 远大于正常的编码器延迟
+     */
+    private static final int MAX_TRACKED_FRAMES = 32;
     private final Size mVideoSize;
     private final int mBitRate;
     private final int mIFrameInterval;
     private final int mFrameRate;
+    private final Context mContext;
+    private final VideoCodecConfig mCodecConfig;
+    /**
+     * Mp4Writer / FragmentedMp4Writer 只支持 H.264 , 并且要求时间戳单调递增
+     */
+    private final boolean mAvcOnly;
+    private VideoCodecSelector.Selection mSelection;
     private Surface mSurface;
+    private BitrateController mBitrateController;
+    private final int mMaxInFlightFrames;
+    /**
+     * 已经 swap 到输入 Surface 但编码器还没有输出的帧的时间戳 (微秒) , 按 swap 的顺序排列
+     */
+    private final long[] mInFlightPts = new long[MAX_TRACKED_FRAMES];
+    private int mInFlightHead;
+    private int mInFlightCount;
+    private long mSkippedFrames;
 
     public MediaVideoEncoder(MediaMuxerWrapper muxer, VideoRecorder.Config config) {
         super(muxer,config);
+        mContext = config.getContext();
+        mCodecConfig = config.getVideoCodecConfig();
+        mAvcOnly = config.isFragmentedMp4() || config.isCrashRecovery();
         mVideoSize = config.getCameraController().getSurfaceSize();
         mIFrameInterval = config.getIFrameInterval();
         mBitRate = config.getVideoBitRate() <= 0 ? calcBitRate() : config.getVideoBitRate();
         mFrameRate = config.getFrameRate() <= 0 ? FRAME_RATE : config.getFrameRate();
+        mMaxInFlightFrames = Math.min(config.getMaxInFlightFrames(), MAX_TRACKED_FRAMES);
+        if (config.isAdaptiveBitrate() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // 没有设置范围时在 1/4 初始码率到初始码率之间调整
+            int minBitRate = config.getMinVideoBitRate() > 0 ? config.getMinVideoBitRate() : mBitRate / 4;
+            int maxBitRate = config.getMaxVideoBitRate() > 0 ? config.getMaxVideoBitRate() : mBitRate;
+            mBitrateController = new BitrateController(mBitRate, minBitRate, Math.max(minBitRate, maxBitRate));
+            mBitrateController.setListener(config.getBitrateListener());
+        }
     }
 
     @Override
@@ -62,22 +98,33 @@ public class MediaVideoEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
-            LogUtil.loge(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+        mSelection = VideoCodecSelector.select(mCodecConfig, mCodecFactory.getCapabilities(mContext),
+                mVideoSize.getWidth(), mVideoSize.getHeight(), Build.VERSION.SDK_INT, mAvcOnly);
+        if (mSelection == null) {
+            LogUtil.loge(TAG, "Unable to find an appropriate codec for " + VideoCodecConfig.MIME_AVC);
             return;
         }
-        if (DEBUG) LogUtil.logi(TAG, "selected codec: " + videoCodecInfo.getName());
+        final CodecCapabilityIndex.Entry videoCodec = mSelection.codec;
+        LogUtil.logi(TAG, "selected codec: " + mSelection);
+        if (!videoCodec.isSizeSupported(mVideoSize.getWidth(), mVideoSize.getHeight())) {
+            LogUtil.logw(TAG, "size " + mVideoSize + " may not be supported by " + videoCodec.name);
+        }
 
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mVideoSize.getWidth(), mVideoSize.getHeight());
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        final MediaFormat format = createFormat(videoCodec);
+        mSelection.applyTo(format);
         if (DEBUG) LogUtil.logi(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mMediaCodec = mCodecFactory.createByCodecName(videoCodec.name);
+        try {
+            mMediaCodec.configure(format);
+        } catch (final RuntimeException e) {
+            // 编码器声明支持但是拒绝了 profile / 码率模式的组合 , 使用默认参数重试
+            LogUtil.logw(TAG, "configure " + mSelection + " error " + e + " , retry with default parameters");
+            mMediaCodec.release();
+            mSelection = new VideoCodecSelector.Selection(videoCodec, mSelection.mimeType);
+            mMediaCodec = mCodecFactory.createByCodecName(videoCodec.name);
+            mMediaCodec.configure(createFormat(videoCodec));
+        }
         // get Surface for encoder input
         // this method only can call between #configure and #start
         mSurface = mMediaCodec.createInputSurface();    // API >= 18
@@ -86,116 +133,158 @@ public class MediaVideoEncoder extends MediaEncoder {
 
     }
 
+    private MediaFormat createFormat(CodecCapabilityIndex.Entry videoCodec) {
+        final MediaFormat format = mCodecFactory.createVideoFormat(mSelection.mimeType, mVideoSize.getWidth(), mVideoSize.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
+        format.setInteger(MediaFormat.KEY_BIT_RATE, videoCodec.clampBitrate(mBitRate));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        return format;
+    }
+
+    /**
+     * 有 B 帧时编码器按解码顺序输出 , 时间戳不是单调递增的 , 原样交给 MediaMuxer 生成 ctts
+     */
+    @Override
+    protected long getOutputPTSUs(long codecPTSUs) {
+        if (mSelection != null && mSelection.maxBFrames > 0 && codecPTSUs > 0) return codecPTSUs;
+        return super.getOutputPTSUs(codecPTSUs);
+    }
+
+    /**
+     * @return 实际使用的编码器和编码参数 , prepare 之前返回 null
+     */
+    public VideoCodecSelector.Selection getCodecSelection() {
+        return mSelection;
+    }
+
     public Surface getSurface() {
         return mSurface;
     }
 
     @Override
     public boolean frameAvailableSoon() {
-        return super.frameAvailableSoon();
+        final boolean accepted = super.frameAvailableSoon();
+        countFrame(accepted);
+        return accepted;
     }
 
-    @Override
-    protected void release() {
-        if (DEBUG) LogUtil.logi(TAG, "release:");
-        if (mSurface != null) {
-            mSurface.release();
-            mSurface = null;
+    /**
+     * 渲染线程在 blit 到输入 Surface 之前调用 , 编码器积压的帧达到阈值时跳过这一帧 , 避免 swapBuffers 阻塞渲染线程
+     *
+     * @return true 表示这一帧不送入编码器 , 只绘制预览
+     */
+    public boolean shouldSkipFrame() {
+        if (mMaxInFlightFrames <= 0) return false;
+        synchronized (mInFlightPts) {
+            if (mInFlightCount < mMaxInFlightFrames) return false;
+            mSkippedFrames++;
         }
-        super.release();
-    }
-
-    private int calcBitRate() {
-        final int bitrate = mVideoSize.getWidth() * mVideoSize.getHeight() * 3 * 4;
-        LogUtil.logi(TAG, String.format(Locale.getDefault(),"bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
-        return bitrate;
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (muxer != null) muxer.getStats().onFrameSkipped();
+        return true;
     }
 
     /**
-     * select the first codec that match a specific MIME type
+     * 渲染线程在 swap 到输入 Surface 时调用 , 记录一个在途帧 , 编码器输出这一帧时移除
      *
-     * @param mimeType
-     * @return null if no codec matched
+     * @param presentationTimeNs 设置给输入 Surface 的时间戳
      */
-    protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
-        if (DEBUG) LogUtil.logi(TAG, "selectVideoCodec:");
-
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
+    public void onFrameSubmitted(long presentationTimeNs) {
+        final int inFlight;
+        synchronized (mInFlightPts) {
+            if (mInFlightCount == MAX_TRACKED_FRAMES) {
+                mInFlightHead = (mInFlightHead + 1) % MAX_TRACKED_FRAMES;
+                mInFlightCount--;
             }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (DEBUG)
-                        LogUtil.logi(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-                    final int format = selectColorFormat(codecInfo, mimeType);
-                    if (format > 0) {
-                        return codecInfo;
-                    }
-                }
+            mInFlightPts[(mInFlightHead + mInFlightCount) % MAX_TRACKED_FRAMES] = presentationTimeNs / 1000L;
+            inFlight = ++mInFlightCount;
+        }
+        final MediaMuxerWrapper muxer = mWeakMuxer.get();
+        if (muxer != null) muxer.getStats().onBacklog(inFlight);
+    }
+
+    /**
+     * 输出一帧时移除时间戳不大于它的在途帧 , 被编码器丢弃的帧也会在这里移除
+     * 有 B 帧时输出顺序和输入顺序不同 , 在途帧数会暂时偏小
+     */
+    @Override
+    protected void onOutputFrame(long presentationTimeUs) {
+        synchronized (mInFlightPts) {
+            while (mInFlightCount > 0 && mInFlightPts[mInFlightHead] <= presentationTimeUs) {
+                mInFlightHead = (mInFlightHead + 1) % MAX_TRACKED_FRAMES;
+                mInFlightCount--;
             }
         }
-        return null;
     }
 
     /**
-     * select color format available on specific codec and we can use.
-     *
-     * @return 0 if no colorFormat is matched
+     * @return 已经送入编码器但还没有输出的帧数
      */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
-        if (DEBUG) LogUtil.logi(TAG, "selectColorFormat: ");
-        int result = 0;
-        final MediaCodecInfo.CodecCapabilities caps;
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            caps = codecInfo.getCapabilitiesForType(mimeType);
-        } finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+    public int getInFlightFrames() {
+        synchronized (mInFlightPts) {
+            return mInFlightCount;
         }
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
-            if (isRecognizedViewoFormat(colorFormat)) {
-                if (result == 0)
-                    result = colorFormat;
-                break;
-            }
+    }
+
+    /**
+     * @return 编码器积压而跳过的帧数
+     */
+    public long getSkippedFrames() {
+        synchronized (mInFlightPts) {
+            return mSkippedFrames;
         }
-        if (result == 0)
-            LogUtil.loge(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
     }
 
     /**
-     * color formats that we can use in this class
+     * 下一个文件从关键帧开始 , 在切换之后的第一帧输入之前请求 , 不需要等到下一个 I 帧间隔
      */
-    protected static int[] recognizedFormats;
-
-    static {
-        recognizedFormats = new int[]{
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
-        };
-    }
-
-    private static final boolean isRecognizedViewoFormat(final int colorFormat) {
-        if (DEBUG) LogUtil.logi(TAG, "isRecognizedViewoFormat:colorFormat=" + colorFormat);
-        final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-        for (int i = 0; i < n; i++) {
-            if (recognizedFormats[i] == colorFormat) {
-                return true;
+    @Override
+    void requestAttach(MediaMuxerWrapper muxer) {
+        super.requestAttach(muxer);
+        final IEncoderCodec codec = mMediaCodec;
+        if (codec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);    // API >= 19
+        } catch (final IllegalStateException e) {
+            LogUtil.loge(TAG, "request sync frame error " + e);
+        }
+    }
+
+    @Override
+    protected void onSampleWritten(int size, long writeTimeNs) {
+        if (mBitrateController == null || mMediaCodec == null) return;
+        mBitrateController.onSampleWritten(size, writeTimeNs, getPendingDrainCount());
+        if (mBitrateController.update(System.nanoTime())) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, mBitrateController.getBitrate());
+            try {
+                mMediaCodec.setParameters(params);    // API >= 19
+            } catch (final IllegalStateException e) {
+                LogUtil.loge(TAG, "set bitrate error " + e);
             }
+            if (DEBUG) LogUtil.logi(TAG, "bitrate " + mBitrateController.getBitrate());
+        }
+    }
+
+    @Override
+    protected void release() {
+        if (DEBUG) LogUtil.logi(TAG, "release:");
+        if (mBitrateController != null) LogUtil.logd(TAG, mBitrateController.toString());
+        if (mSkippedFrames > 0) LogUtil.logd(TAG, "skipped frames " + mSkippedFrames);
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
         }
-        return false;
+        super.release();
+    }
+
+    private int calcBitRate() {
+        final int bitrate = mVideoSize.getWidth() * mVideoSize.getHeight() * 3 * 4;
+        LogUtil.logi(TAG, String.format(Locale.getDefault(),"bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
+        return bitrate;
     }
 
     @Override
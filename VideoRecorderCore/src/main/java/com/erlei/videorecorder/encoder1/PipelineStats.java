@@ -0,0 +1,142 @@
+package com.erlei.videorecorder.encoder1;
+
+/**
+ * 一次录制的吞吐量和延迟统计 , 由 MediaMuxerWrapper 和 MediaEncoder 在各自的线程中更新
+ * <p>
+ * frames in : 编码器接收的帧 (视频每次 frameAvailableSoon , 音频每次读取的 PCM 缓冲区)
+ * frames out : 写入 muxer 的 sample
+ * dropped : 请求停止之后仍然到达 , 被编码器拒绝的帧
+ * skipped : 编码器积压超过阈值 , 渲染线程没有送入编码器的帧 (预览不受影响)
+ * backlog : 每次送入编码器时 , 已经送入但还没有输出的帧数
+ * 启动延迟是从开始创建编码器到第一个 sample 写入 muxer , 停止延迟是从请求停止到文件关闭 (包括 faststart)
+ * 线程安全
+ */
+public class PipelineStats {
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+    private static final int TRACK_COUNT = 2;
+
+    private final long[] mFramesIn = new long[TRACK_COUNT];
+    private final long[] mFramesOut = new long[TRACK_COUNT];
+    private final long[] mDropped = new long[TRACK_COUNT];
+    private final long[] mBytesOut = new long[TRACK_COUNT];
+    private long mSkipped;
+    private int mMaxBacklog;
+    private long mBacklogSum;
+    private long mBacklogSamples;
+    private long mStartNs = -1;
+    private long mFirstSampleNs = -1;
+    private long mStopRequestNs = -1;
+    private long mClosedNs = -1;
+
+    synchronized void onRecordStart() {
+        if (mStartNs < 0) mStartNs = System.nanoTime();
+    }
+
+    synchronized void onFrameIn(int track) {
+        mFramesIn[track]++;
+    }
+
+    synchronized void onFrameDropped(int track) {
+        mDropped[track]++;
+    }
+
+    synchronized void onFrameSkipped() {
+        mSkipped++;
+    }
+
+    synchronized void onBacklog(int inFlightFrames) {
+        mMaxBacklog = Math.max(mMaxBacklog, inFlightFrames);
+        mBacklogSum += inFlightFrames;
+        mBacklogSamples++;
+    }
+
+    synchronized void onSampleOut(int track, int size) {
+        if (mFirstSampleNs < 0) mFirstSampleNs = System.nanoTime();
+        mFramesOut[track]++;
+        mBytesOut[track] += size;
+    }
+
+    synchronized void onStopRequested() {
+        if (mStopRequestNs < 0) mStopRequestNs = System.nanoTime();
+    }
+
+    synchronized void onFileClosed() {
+        if (mClosedNs < 0) mClosedNs = System.nanoTime();
+    }
+
+    public synchronized long getFramesIn(int track) {
+        return mFramesIn[track];
+    }
+
+    public synchronized long getFramesOut(int track) {
+        return mFramesOut[track];
+    }
+
+    public synchronized long getDroppedFrames(int track) {
+        return mDropped[track];
+    }
+
+    public synchronized long getBytesOut(int track) {
+        return mBytesOut[track];
+    }
+
+    /**
+     * @return 编码器积压而没有送入编码器的视频帧数量
+     */
+    public synchronized long getSkippedFrames() {
+        return mSkipped;
+    }
+
+    /**
+     * @return 送入编码器时在编码器中等待输出的最大帧数
+     */
+    public synchronized int getMaxBacklog() {
+        return mMaxBacklog;
+    }
+
+    /**
+     * @return 送入编码器时在编码器中等待输出的平均帧数 , 约等于编码器的延迟 (帧)
+     */
+    public synchronized float getAverageBacklog() {
+        return mBacklogSamples > 0 ? (float) mBacklogSum / mBacklogSamples : 0;
+    }
+
+    /**
+     * @return 从开始创建编码器到第一个 sample 写入 muxer 的时长 , 还没有写入时返回 -1
+     */
+    public synchronized long getStartLatencyMs() {
+        if (mStartNs < 0 || mFirstSampleNs < 0) return -1;
+        return (mFirstSampleNs - mStartNs) / 1000000L;
+    }
+
+    /**
+     * @return 从请求停止到文件关闭的时长 , 文件还没有关闭时返回 -1
+     */
+    public synchronized long getStopLatencyMs() {
+        if (mStopRequestNs < 0 || mClosedNs < 0) return -1;
+        return (mClosedNs - mStopRequestNs) / 1000000L;
+    }
+
+    /**
+     * @return 文件是否已经关闭
+     */
+    public synchronized boolean isClosed() {
+        return mClosedNs >= 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PipelineStats{" +
+                "video=" + mFramesIn[TRACK_VIDEO] + "/" + mFramesOut[TRACK_VIDEO] + "/" + mDropped[TRACK_VIDEO] +
+                ", audio=" + mFramesIn[TRACK_AUDIO] + "/" + mFramesOut[TRACK_AUDIO] + "/" + mDropped[TRACK_AUDIO] +
+                " (in/out/dropped)" +
+                ", skipped=" + mSkipped +
+                ", backlog=" + getAverageBacklog() + "/" + mMaxBacklog + " (avg/max)" +
+                ", bytes=" + (mBytesOut[TRACK_VIDEO] + mBytesOut[TRACK_AUDIO]) +
+                ", startLatency=" + getStartLatencyMs() + "ms" +
+                ", stopLatency=" + getStopLatencyMs() + "ms" +
+                '}';
+    }
+}
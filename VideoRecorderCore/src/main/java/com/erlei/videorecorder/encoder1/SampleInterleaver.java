@@ -0,0 +1,251 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.media.MediaCodec;
+
+import com.erlei.videorecorder.encoder.SampleBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 写入 muxer 之前的重排序缓冲区
+ * <p>
+ * 音频和视频编码器在各自的线程中输出 , 到达 muxer 的顺序取决于谁先拿到锁 , 直接写入会导致 chunk 很碎 ,
+ * 播放器 seek 和边下载边播放时需要在文件中来回跳
+ * 这里把 sample 拷贝到 SampleBufferPool 中缓存 , 每次选择队首时间戳最小的轨道 , 把这个轨道
+ * [队首 , 队首 + chunk 时长) 之间的 sample 作为一个 chunk 连续写入 , chunk 之间按时间戳排序
+ * <p>
+ * 一个 sample 最多被缓存 interleave window 的时长 , 超过之后即使其他轨道还没有数据 (比如编码器卡住或者已经停止)
+ * 也会被写入 , 所以缓冲区的大小是有上限的
+ * <p>
+ * 每个轨道内部始终保持编码器的输出顺序 (解码顺序) . 开启 B 帧时视频的时间戳在解码顺序上不是单调的 ,
+ * 所以排序和切分 chunk 使用的不是 sample 自己的时间戳 , 而是这个轨道到目前为止的最大时间戳 (decode key) :
+ * 它在解码顺序上单调递增 , 和 DTS 的差距不超过编码器的重排序延迟 ; 没有 B 帧时就等于时间戳
+ * 非线程安全 , 由 MediaMuxerWrapper 加锁调用
+ */
+public class SampleInterleaver {
+
+    public static final long DEFAULT_WINDOW_US = 500000L;
+
+    /**
+     * 写入排序之后的 sample
+     */
+    interface Sink {
+        void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+    }
+
+    private final Sink mSink;
+    private final SampleBufferPool mPool;
+    private final long mWindowUs;
+    private final long mChunkDurationUs;
+    private final List<ArrayDeque<Entry>> mQueues = new ArrayList<>();
+    private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<>();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private long mLatestUs = Long.MIN_VALUE;
+    private long[] mDecodeKeys = new long[0];
+    private int mLastTrack = -1;
+
+    private int mBufferedSamples;
+    private long mBufferedBytes;
+    private int mHighWaterSamples;
+    private long mHighWaterBytes;
+    private long mSamplesWritten;
+    private long mBytesWritten;
+    private int[] mChunkCounts = new int[0];
+
+    /**
+     * @param windowUs interleave window , sample 在缓冲区中最多停留的时长 , chunk 的目标时长是它的一半
+     */
+    SampleInterleaver(Sink sink, long windowUs) {
+        if (windowUs <= 0) throw new IllegalArgumentException("windowUs must > 0");
+        mSink = sink;
+        mWindowUs = windowUs;
+        mChunkDurationUs = windowUs / 2;
+        mPool = new SampleBufferPool();
+    }
+
+    /**
+     * 注册一个轨道 , 所有轨道都有数据时才能确定下一个要写入的 sample
+     */
+    void addTrack(int trackIndex) {
+        while (mQueues.size() <= trackIndex) {
+            mQueues.add(new ArrayDeque<Entry>());
+        }
+        if (mChunkCounts.length < mQueues.size()) {
+            int[] counts = new int[mQueues.size()];
+            System.arraycopy(mChunkCounts, 0, counts, 0, mChunkCounts.length);
+            mChunkCounts = counts;
+            long[] keys = new long[mQueues.size()];
+            Arrays.fill(keys, Long.MIN_VALUE);
+            System.arraycopy(mDecodeKeys, 0, keys, 0, mDecodeKeys.length);
+            mDecodeKeys = keys;
+        }
+    }
+
+    /**
+     * 拷贝 sample 到缓冲区 , 然后写入所有可以确定顺序的 sample
+     *
+     * @param data bufferInfo.offset 到 offset + size 之间是 sample 的数据
+     */
+    void offer(int trackIndex, ByteBuffer data, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex < 0 || trackIndex >= mQueues.size())
+            throw new IllegalArgumentException("invalid track index " + trackIndex);
+        ByteBuffer source = data.duplicate();
+        source.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        Entry entry = mFreeEntries.isEmpty() ? new Entry() : mFreeEntries.pollFirst();
+        entry.buffer = mPool.copyOf(source);
+        entry.presentationTimeUs = bufferInfo.presentationTimeUs;
+        entry.flags = bufferInfo.flags;
+        entry.size = bufferInfo.size;
+        mDecodeKeys[trackIndex] = Math.max(mDecodeKeys[trackIndex], bufferInfo.presentationTimeUs);
+        entry.decodeKey = mDecodeKeys[trackIndex];
+        mQueues.get(trackIndex).addLast(entry);
+
+        mLatestUs = Math.max(mLatestUs, bufferInfo.presentationTimeUs);
+        mBufferedSamples++;
+        mBufferedBytes += entry.size;
+        mHighWaterSamples = Math.max(mHighWaterSamples, mBufferedSamples);
+        mHighWaterBytes = Math.max(mHighWaterBytes, mBufferedBytes);
+        drain(false);
+    }
+
+    /**
+     * 写入缓冲区中剩余的所有 sample , 在 muxer stop 之前调用
+     */
+    void flush() {
+        drain(true);
+    }
+
+    /**
+     * 丢弃缓冲区中的 sample , 归还所有缓冲区
+     */
+    void clear() {
+        for (ArrayDeque<Entry> queue : mQueues) {
+            while (!queue.isEmpty()) {
+                recycle(queue.pollFirst());
+            }
+        }
+        mBufferedSamples = 0;
+        mBufferedBytes = 0;
+        mPool.trim();
+    }
+
+    private void drain(boolean flush) {
+        while (true) {
+            int track = -1;
+            long head = Long.MAX_VALUE;
+            boolean allReady = true;
+            for (int i = 0; i < mQueues.size(); i++) {
+                ArrayDeque<Entry> queue = mQueues.get(i);
+                if (queue.isEmpty()) {
+                    allReady = false;
+                } else if (queue.peekFirst().decodeKey < head) {
+                    head = queue.peekFirst().decodeKey;
+                    track = i;
+                }
+            }
+            if (track < 0) return;
+            boolean overdue = mLatestUs - head >= mWindowUs;
+            // 其他轨道还没有数据时 , 它的下一个 sample 可能比 head 更早
+            if (!flush && !allReady && !overdue) return;
+            ArrayDeque<Entry> queue = mQueues.get(track);
+            long chunkEnd = head + mChunkDurationUs;
+            // chunk 还没有攒够 , 等待这个轨道更多的数据
+            if (!flush && !overdue && queue.peekLast().decodeKey < chunkEnd) return;
+            while (!queue.isEmpty() && queue.peekFirst().decodeKey < chunkEnd) {
+                write(track, queue.pollFirst());
+            }
+        }
+    }
+
+    private void write(int track, Entry entry) {
+        try {
+            if (track != mLastTrack) {
+                mChunkCounts[track]++;
+                mLastTrack = track;
+            }
+            mBufferInfo.set(0, entry.size, entry.presentationTimeUs, entry.flags);
+            mSink.writeSampleData(track, entry.buffer.buffer(), mBufferInfo);
+            mSamplesWritten++;
+            mBytesWritten += entry.size;
+        } finally {
+            mBufferedSamples--;
+            mBufferedBytes -= entry.size;
+            recycle(entry);
+        }
+    }
+
+    private void recycle(Entry entry) {
+        entry.buffer.release();
+        entry.buffer = null;
+        mFreeEntries.addFirst(entry);
+    }
+
+    public long getWindowUs() {
+        return mWindowUs;
+    }
+
+    /**
+     * @return 写入的 chunk 数量 (同一个轨道连续写入的 sample 算一个 chunk)
+     */
+    public int getChunkCount(int trackIndex) {
+        return trackIndex < mChunkCounts.length ? mChunkCounts[trackIndex] : 0;
+    }
+
+    public int getChunkCount() {
+        int count = 0;
+        for (int chunkCount : mChunkCounts) {
+            count += chunkCount;
+        }
+        return count;
+    }
+
+    public long getSamplesWritten() {
+        return mSamplesWritten;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return 缓冲区中同时存在的 sample 数量的最大值
+     */
+    public int getHighWaterSamples() {
+        return mHighWaterSamples;
+    }
+
+    /**
+     * @return 缓冲区中同时存在的 sample 字节数的最大值
+     */
+    public long getHighWaterBytes() {
+        return mHighWaterBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleInterleaver{" +
+                "window=" + mWindowUs + "us" +
+                ", samples=" + mSamplesWritten +
+                ", bytes=" + mBytesWritten +
+                ", chunks=" + getChunkCount() +
+                ", highWaterSamples=" + mHighWaterSamples +
+                ", highWaterBytes=" + mHighWaterBytes +
+                ", pool=" + mPool +
+                '}';
+    }
+
+    private static class Entry {
+        SampleBufferPool.PooledBuffer buffer;
+        long presentationTimeUs;
+        /**
+         * 轨道到这个 sample 为止的最大时间戳 , 用于排序
+         */
+        long decodeKey;
+        int flags;
+        int size;
+    }
+}
@@ -0,0 +1,93 @@
+package com.erlei.videorecorder.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 解析已经读入内存的 box (比如 moov) 的工具方法 , 所有的位置都是 ByteBuffer 中的绝对位置
+ */
+public class BoxParser {
+
+    private BoxParser() {
+    }
+
+    /**
+     * @return box 的大小 , 不支持 largesize (moov 内部的 box 不会超过 4GB)
+     */
+    public static int size(ByteBuffer buffer, int position) {
+        return buffer.getInt(position);
+    }
+
+    public static boolean isType(ByteBuffer buffer, int position, String type) {
+        for (int i = 0; i < 4; i++) {
+            if (buffer.get(position + 4 + i) != (byte) type.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public static String type(ByteBuffer buffer, int position) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (buffer.get(position + 4 + i) & 0xFF);
+        }
+        return new String(type);
+    }
+
+    /**
+     * @return full box 的 version
+     */
+    public static int version(ByteBuffer buffer, int position) {
+        return buffer.get(position + 8) & 0xFF;
+    }
+
+    public static int flags(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 8) & 0xFFFFFF;
+    }
+
+    /**
+     * 在 [start , end) 之间查找第一个指定类型的子 box
+     *
+     * @return 子 box 的位置 , 找不到返回 -1
+     */
+    public static int findChild(ByteBuffer buffer, int start, int end, String type) {
+        return findChild(buffer, start, end, type, 0);
+    }
+
+    /**
+     * 在 [start , end) 之间查找第 index 个指定类型的子 box
+     */
+    public static int findChild(ByteBuffer buffer, int start, int end, String type, int index) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = size(buffer, position);
+            if (size < 8 || position + size > end) return -1;
+            if (isType(buffer, position, type) && index-- == 0) return position;
+            position += size;
+        }
+        return -1;
+    }
+
+    /**
+     * 按路径查找 , 比如 findPath(moov, 0, "mdia", "minf", "stbl") , 路径中的 box 都是普通 box (不是 full box)
+     *
+     * @param box 父 box 的位置
+     */
+    public static int findPath(ByteBuffer buffer, int box, String... path) {
+        int position = box;
+        for (String type : path) {
+            position = findChild(buffer, position + 8, position + size(buffer, position), type);
+            if (position < 0) return -1;
+        }
+        return position;
+    }
+
+    /**
+     * 拷贝整个 box
+     */
+    public static byte[] copy(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[size(buffer, position)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,121 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 顺序遍历文件中的顶层 box , 只读取 box 头 , 不会把 box 的内容读入内存
+ * 支持 64 位的 largesize 以及 size = 0 (延伸到文件末尾)
+ */
+public class BoxScanner {
+
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+    private long mNext;
+    private long mPosition = -1;
+    private long mSize;
+    private int mHeaderSize;
+    private String mType;
+    private boolean mTruncated;
+
+    public BoxScanner(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    /**
+     * 遍历 [start , end) 之间的 box
+     */
+    public BoxScanner(FileChannel channel, long start, long end) {
+        mChannel = channel;
+        mNext = start;
+        mFileSize = end;
+    }
+
+    /**
+     * 移动到下一个 box
+     *
+     * @return 没有更多 box 或者剩余的数据不足一个 box 头时返回 false
+     */
+    public boolean next() throws IOException {
+        if (mNext + 8 > mFileSize) return false;
+        mHeader.clear();
+        mHeader.limit((int) Math.min(16, mFileSize - mNext));
+        readFully(mHeader, mNext);
+        mHeader.flip();
+        long size = mHeader.getInt() & 0xFFFFFFFFL;
+        byte[] type = new byte[4];
+        mHeader.get(type);
+        int headerSize = 8;
+        if (size == 1) {
+            if (mHeader.remaining() < 8) return false;
+            size = mHeader.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = mFileSize - mNext;
+        }
+        if (size < headerSize) throw new IOException("invalid box size " + size + " at " + mNext);
+        mPosition = mNext;
+        mType = new String(type, "ISO-8859-1");
+        mHeaderSize = headerSize;
+        mTruncated = mPosition + size > mFileSize;
+        mSize = mTruncated ? mFileSize - mPosition : size;
+        mNext = mPosition + mSize;
+        return true;
+    }
+
+    public String type() {
+        return mType;
+    }
+
+    /**
+     * @return box 在文件中的起始位置 (box 头的位置)
+     */
+    public long position() {
+        return mPosition;
+    }
+
+    public long size() {
+        return mSize;
+    }
+
+    public int headerSize() {
+        return mHeaderSize;
+    }
+
+    public long payloadPosition() {
+        return mPosition + mHeaderSize;
+    }
+
+    public long end() {
+        return mPosition + mSize;
+    }
+
+    /**
+     * @return box 头中声明的大小超出了文件末尾 (录制被中断的文件) , size() 已经被截断到文件末尾
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * 将整个 box (包括 box 头) 读到堆内存中 , 返回的 ByteBuffer position = 0
+     */
+    public ByteBuffer readBox() throws IOException {
+        if (mSize > Integer.MAX_VALUE) throw new IOException("box " + mType + " too large to read");
+        ByteBuffer buffer = ByteBuffer.allocate((int) mSize).order(ByteOrder.BIG_ENDIAN);
+        readFully(buffer, mPosition);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) throw new IOException("unexpected end of file");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 用于构建 ISO BMFF box 的可增长缓冲区
+ * start() / end() 成对调用 , end() 时回填 box 的 size , 支持嵌套
+ * 不是线程安全的 , 可以通过 reset() 复用
+ */
+public class BoxWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    public BoxWriter(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(Math.max(64, initialCapacity)).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * 开始一个 box , 先写入占位的 size
+     */
+    public BoxWriter start(String type) {
+        if (mDepth == MAX_DEPTH) throw new IllegalStateException("box nesting too deep");
+        ensureCapacity(8);
+        mBoxStarts[mDepth++] = mBuffer.position();
+        mBuffer.putInt(0);
+        putFourCC(type);
+        return this;
+    }
+
+    /**
+     * 开始一个 full box (带 version 和 flags)
+     */
+    public BoxWriter startFull(String type, int version, int flags) {
+        start(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    /**
+     * 结束最近一个未结束的 box , 回填 size
+     */
+    public BoxWriter end() {
+        if (mDepth == 0) throw new IllegalStateException("no open box");
+        int start = mBoxStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    public BoxWriter putFourCC(String type) {
+        if (type.length() != 4) throw new IllegalArgumentException("invalid box type " + type);
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) type.charAt(i));
+        }
+        return this;
+    }
+
+    public BoxWriter putByte(int value) {
+        ensureCapacity(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    public BoxWriter putShort(int value) {
+        ensureCapacity(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter putInt(int value) {
+        ensureCapacity(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    public BoxWriter putLong(long value) {
+        ensureCapacity(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    public BoxWriter put(byte[] data) {
+        return put(data, 0, data.length);
+    }
+
+    public BoxWriter put(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        mBuffer.put(data, offset, length);
+        return this;
+    }
+
+    public BoxWriter put(ByteBuffer data) {
+        ensureCapacity(data.remaining());
+        mBuffer.put(data);
+        return this;
+    }
+
+    public BoxWriter putZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * 在指定的位置覆盖写入一个 int , 用于回填 offset 之类的字段
+     */
+    public void setInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    public void setLong(int position, long value) {
+        mBuffer.putLong(position, value);
+    }
+
+    /**
+     * @return 当前写入的位置 (也就是已经写入的字节数)
+     */
+    public int position() {
+        return mBuffer.position();
+    }
+
+    public void reset() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    /**
+     * 将已经写入的内容写到文件 , 之后会自动 reset()
+     *
+     * @return 写入的字节数
+     */
+    public int writeTo(FileChannel channel) throws IOException {
+        if (mDepth != 0) throw new IllegalStateException("unclosed box");
+        mBuffer.flip();
+        int length = mBuffer.remaining();
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer);
+        }
+        reset();
+        return length;
+    }
+
+    /**
+     * 将已经写入的内容写到文件的指定位置 , 之后会自动 reset()
+     */
+    public int writeTo(FileChannel channel, long position) throws IOException {
+        if (mDepth != 0) throw new IllegalStateException("unclosed box");
+        mBuffer.flip();
+        int length = mBuffer.remaining();
+        while (mBuffer.hasRemaining()) {
+            position += channel.write(mBuffer, position);
+        }
+        reset();
+        return length;
+    }
+
+    /**
+     * 将已经写入的内容拷贝到 dst , 不会 reset()
+     */
+    public void copyTo(ByteBuffer dst) {
+        if (mDepth != 0) throw new IllegalStateException("unclosed box");
+        ByteBuffer src = mBuffer.duplicate();
+        src.flip();
+        dst.put(src);
+    }
+
+    private void ensureCapacity(int length) {
+        if (mBuffer.remaining() >= length) return;
+        int capacity = mBuffer.capacity();
+        while (capacity - mBuffer.position() < length) {
+            capacity *= 2;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+}
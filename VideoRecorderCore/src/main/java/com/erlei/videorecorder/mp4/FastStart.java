@@ -0,0 +1,257 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 原地将 moov 移动到文件开头 (faststart) , 方便边下载边播放
+ * <p>
+ * 要求 moov 是文件的最后一个顶层 box (MediaMuxer 以及 Mp4PartConcatenator 的输出都是这样) ,
+ * 如果 moov 已经在 mdat 之前则不做任何处理
+ * 处理过程 :
+ * 1. 把 moov 读到直接内存中 , 所有的 stco / co64 加上 moov 的大小 , stco 溢出时转换为 co64
+ * 2. 从后往前 , 通过内存映射的窗口把 ftyp 之后的数据整体后移 moov 的大小 , 每次最多拷贝 WINDOW_SIZE 字节
+ * 3. 把 moov 写到 ftyp 之后
+ * 不需要第二个临时文件 , 除了 moov 之外只使用一个固定大小的缓冲区
+ * 注意 : 处理过程中进程被杀掉会导致文件损坏
+ */
+public class FastStart {
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * 处理结果 , 用于统计耗时和吞吐量
+     */
+    public static class Result {
+        /**
+         * 是否移动了 moov , moov 已经在前面或者文件结构不支持时为 false
+         */
+        public final boolean moved;
+        public final long bytesMoved;
+        public final long elapsedMillis;
+
+        Result(boolean moved, long bytesMoved, long elapsedMillis) {
+            this.moved = moved;
+            this.bytesMoved = bytesMoved;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return 数据移动的吞吐量 MB/s
+         */
+        public float getThroughputMBps() {
+            if (elapsedMillis <= 0) return bytesMoved > 0 ? Float.POSITIVE_INFINITY : 0;
+            return bytesMoved / 1024f / 1024f / (elapsedMillis / 1000f);
+        }
+
+        @Override
+        public String toString() {
+            return "FastStart.Result{" +
+                    "moved=" + moved +
+                    ", bytesMoved=" + bytesMoved +
+                    ", elapsedMillis=" + elapsedMillis +
+                    ", throughput=" + getThroughputMBps() + "MB/s" +
+                    '}';
+        }
+    }
+
+    private FastStart() {
+    }
+
+    public static Result process(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        FileChannel channel = randomAccessFile.getChannel();
+        try {
+            long insertPosition = -1;
+            long moovPosition = -1;
+            long moovSize = 0;
+            boolean mdatSeen = false;
+            BoxScanner scanner = new BoxScanner(channel);
+            while (scanner.next()) {
+                String type = scanner.type();
+                if (scanner.isTruncated()) throw new IOException(type + " box is truncated");
+                if ("ftyp".equals(type)) {
+                    insertPosition = scanner.end();
+                } else if ("mdat".equals(type)) {
+                    mdatSeen = true;
+                } else if ("moov".equals(type)) {
+                    if (!mdatSeen) return new Result(false, 0, System.currentTimeMillis() - start);
+                    moovPosition = scanner.position();
+                    moovSize = scanner.size();
+                } else if (moovPosition >= 0) {
+                    // moov 之后还有其他 box , 移动数据会改变它们的位置 , 不处理
+                    return new Result(false, 0, System.currentTimeMillis() - start);
+                }
+            }
+            if (moovPosition < 0 || insertPosition < 0) throw new IOException("moov or ftyp not found");
+            if (moovSize > Integer.MAX_VALUE) throw new IOException("moov too large");
+
+            ByteBuffer moov = ByteBuffer.allocateDirect((int) moovSize).order(ByteOrder.BIG_ENDIAN);
+            readFully(channel, moov, moovPosition);
+            moov.flip();
+            moov = patchChunkOffsets(moov);
+            int newMoovSize = moov.remaining();
+
+            long bytesMoved = moovPosition - insertPosition;
+            shiftForward(channel, insertPosition, bytesMoved, newMoovSize);
+            writeFully(channel, moov, insertPosition);
+            channel.truncate(moovPosition + newMoovSize);
+            channel.force(false);
+            return new Result(true, bytesMoved, System.currentTimeMillis() - start);
+        } finally {
+            channel.close();
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 将 [position , position + length) 的数据后移 distance 字节 , 从后往前拷贝 , 源和目标可以重叠
+     * 映射的窗口要等到 GC 时才会释放 , 如果映射失败 (虚拟地址空间不足) 则改用普通的读写
+     */
+    private static void shiftForward(FileChannel channel, long position, long length, long distance) throws IOException {
+        byte[] bounce = new byte[(int) Math.min(WINDOW_SIZE, Math.max(1, length))];
+        ByteBuffer bounceBuffer = ByteBuffer.wrap(bounce);
+        boolean mmap = true;
+        long remaining = length;
+        while (remaining > 0) {
+            int count = (int) Math.min(bounce.length, remaining);
+            long source = position + remaining - count;
+            if (mmap) {
+                try {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, source, count + distance);
+                    window.get(bounce, 0, count);
+                    window.position((int) distance);
+                    window.put(bounce, 0, count);
+                    remaining -= count;
+                    continue;
+                } catch (IOException e) {
+                    mmap = false;
+                }
+            }
+            bounceBuffer.clear();
+            bounceBuffer.limit(count);
+            readFully(channel, bounceBuffer, source);
+            bounceBuffer.flip();
+            writeFully(channel, bounceBuffer, source + distance);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * 所有 chunk offset 加上新的 moov 大小 , 如果 stco 溢出则转换为 co64 (moov 会变大 , 需要重新计算)
+     *
+     * @return 修改后的 moov , 可能是一个新的 ByteBuffer
+     */
+    static ByteBuffer patchChunkOffsets(ByteBuffer moov) {
+        while (true) {
+            int moovSize = moov.remaining();
+            if (!hasStcoOverflow(moov, 0, moovSize, moovSize)) break;
+            moov = convertOverflowedStco(moov, moovSize);
+        }
+        addToChunkOffsets(moov, 0, moov.remaining(), moov.remaining());
+        return moov;
+    }
+
+    private static boolean isContainer(ByteBuffer buffer, int position) {
+        return BoxParser.isType(buffer, position, "moov") || BoxParser.isType(buffer, position, "trak")
+                || BoxParser.isType(buffer, position, "mdia") || BoxParser.isType(buffer, position, "minf")
+                || BoxParser.isType(buffer, position, "stbl");
+    }
+
+    private static boolean hasStcoOverflow(ByteBuffer moov, int position, int end, long delta) {
+        while (position + 8 <= end) {
+            int size = BoxParser.size(moov, position);
+            if (BoxParser.isType(moov, position, "stco") && stcoOverflows(moov, position, delta)) return true;
+            if (isContainer(moov, position) && hasStcoOverflow(moov, position + 8, position + size, delta)) {
+                return true;
+            }
+            position += size;
+        }
+        return false;
+    }
+
+    private static boolean stcoOverflows(ByteBuffer moov, int stco, long delta) {
+        int count = moov.getInt(stco + 12);
+        for (int i = 0; i < count; i++) {
+            if ((moov.getInt(stco + 16 + i * 4) & 0xFFFFFFFFL) + delta > 0xFFFFFFFFL) return true;
+        }
+        return false;
+    }
+
+    private static void addToChunkOffsets(ByteBuffer moov, int position, int end, long delta) {
+        while (position + 8 <= end) {
+            int size = BoxParser.size(moov, position);
+            if (BoxParser.isType(moov, position, "stco")) {
+                int count = moov.getInt(position + 12);
+                for (int i = 0; i < count; i++) {
+                    int p = position + 16 + i * 4;
+                    moov.putInt(p, (int) ((moov.getInt(p) & 0xFFFFFFFFL) + delta));
+                }
+            } else if (BoxParser.isType(moov, position, "co64")) {
+                int count = moov.getInt(position + 12);
+                for (int i = 0; i < count; i++) {
+                    int p = position + 16 + i * 8;
+                    moov.putLong(p, moov.getLong(p) + delta);
+                }
+            } else if (isContainer(moov, position)) {
+                addToChunkOffsets(moov, position + 8, position + size, delta);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * 重新构建 moov , 将会溢出的 stco 替换为 co64
+     */
+    private static ByteBuffer convertOverflowedStco(ByteBuffer moov, long delta) {
+        BoxWriter writer = new BoxWriter(moov.remaining() + 1024);
+        rewrite(moov, 0, moov.remaining(), delta, writer);
+        ByteBuffer result = ByteBuffer.allocateDirect(writer.position()).order(ByteOrder.BIG_ENDIAN);
+        writer.copyTo(result);
+        result.flip();
+        return result;
+    }
+
+    private static void rewrite(ByteBuffer moov, int position, int end, long delta, BoxWriter writer) {
+        while (position + 8 <= end) {
+            int size = BoxParser.size(moov, position);
+            if (BoxParser.isType(moov, position, "stco") && stcoOverflows(moov, position, delta)) {
+                int count = moov.getInt(position + 12);
+                writer.startFull("co64", 0, 0).putInt(count);
+                for (int i = 0; i < count; i++) {
+                    writer.putLong(moov.getInt(position + 16 + i * 4) & 0xFFFFFFFFL);
+                }
+                writer.end();
+            } else if (isContainer(moov, position)) {
+                writer.start(BoxParser.type(moov, position));
+                rewrite(moov, position + 8, position + size, delta, writer);
+                writer.end();
+            } else {
+                ByteBuffer box = moov.duplicate();
+                box.limit(position + size).position(position);
+                writer.put(box);
+            }
+            position += size;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("unexpected end of file");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
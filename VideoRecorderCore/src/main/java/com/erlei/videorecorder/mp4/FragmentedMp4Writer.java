@@ -0,0 +1,436 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 纯 Java 实现的 fragmented MP4 (moov + N * (moof + mdat)) 写入器
+ * <p>
+ * 和 MediaMuxer 相比 :
+ * 1. 不需要把整个文件的 sample table 保存到 stop() , 内存占用只和一个分片的大小有关
+ * 2. 每个分片写完之后文件都是可以播放的 , 进程被杀掉最多只会丢失最后一个分片
+ * <p>
+ * 视频的 H.264 数据可以是 Annex-B 格式 (MediaCodec 的输出) , 写入时会转换为 4 字节长度前缀的格式
+ * 非线程安全 , 调用方需要自己保证在同一个线程或者加锁调用
+ */
+public class FragmentedMp4Writer {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private final FileChannel mChannel;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxWriter mBoxWriter = new BoxWriter(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private int mRotation;
+    private boolean mStarted;
+    private boolean mStopped;
+    private long mStartTimeUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mSequenceNumber;
+    private long mMehdPosition = -1;
+    private long mFileSize;
+    private byte[] mScratch = new byte[0];
+
+    public FragmentedMp4Writer(File file) throws IOException {
+        this(new RandomAccessFile(file, "rw").getChannel());
+        mChannel.truncate(0);
+    }
+
+    public FragmentedMp4Writer(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @param durationUs 分片的目标时长 , 分片会在达到这个时长后的第一个视频关键帧处切分
+     */
+    public void setFragmentDurationUs(long durationUs) {
+        if (durationUs <= 0) throw new IllegalArgumentException("durationUs must > 0");
+        mFragmentDurationUs = durationUs;
+    }
+
+    /**
+     * 和 MediaMuxer.setOrientationHint 一致 , 必须在 start() 之前调用
+     */
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270)
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        mRotation = degrees;
+    }
+
+    /**
+     * @return track index
+     */
+    public int addTrack(TrackFormat format) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        mTracks.add(new Track(format, mTracks.size() + 1));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入 ftyp 和 moov , 之后就可以写入 sample
+     */
+    public void start() throws IOException {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track added");
+        mStarted = true;
+
+        BoxWriter writer = mBoxWriter;
+        Mp4Boxes.writeFtyp(writer, "iso5", "iso5", "iso6", "mp41");
+        writer.start("moov");
+        Mp4Boxes.writeMvhd(writer, 0, mTracks.size() + 1);
+        writer.start("mvex");
+        writer.startFull("mehd", 1, 0);
+        int mehdPosition = writer.position();
+        writer.putLong(0);
+        writer.end();
+        for (Track track : mTracks) {
+            writer.startFull("trex", 0, 0);
+            writer.putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0);
+            writer.end();
+        }
+        writer.end();
+        for (Track track : mTracks) {
+            writeTrak(writer, track);
+        }
+        writer.end();
+        mMehdPosition = mFileSize + mehdPosition;
+        mFileSize += writer.writeTo(mChannel);
+    }
+
+    private void writeTrak(BoxWriter writer, Track track) {
+        TrackFormat format = track.format;
+        writer.start("trak");
+        Mp4Boxes.writeTkhd(writer, format, track.id, 0, mRotation);
+        writer.start("mdia");
+        Mp4Boxes.writeMdhd(writer, format.getTimescale(), 0);
+        Mp4Boxes.writeHdlr(writer, format);
+        writer.start("minf");
+        Mp4Boxes.writeMediaHeaderAndDinf(writer, format);
+        writer.start("stbl");
+        Mp4Boxes.writeStsd(writer, format);
+        writer.startFull("stts", 0, 0).putInt(0).end();
+        writer.startFull("stsc", 0, 0).putInt(0).end();
+        writer.startFull("stsz", 0, 0).putInt(0).putInt(0).end();
+        writer.startFull("stco", 0, 0).putInt(0).end();
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * 写入一个 sample , data 的 position 到 limit 之间是 sample 的数据
+     *
+     * @param presentationTimeUs 时间戳 , 同一个轨道内必须是递增的
+     * @param sync               是否是关键帧
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean sync) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("writer is not started");
+        if (trackIndex < 0 || trackIndex >= mTracks.size())
+            throw new IllegalArgumentException("invalid track index " + trackIndex);
+        Track track = mTracks.get(trackIndex);
+        if (mStartTimeUs < 0) {
+            mStartTimeUs = presentationTimeUs;
+            mFragmentStartUs = presentationTimeUs;
+        }
+        long time = Mp4Boxes.toTimescale(Math.max(0, presentationTimeUs - mStartTimeUs), track.format.getTimescale());
+        // 先确定上一个 sample 的时长 , 这样切分分片时这个轨道的 sample 可以全部写入
+        time = track.closeLastSample(time);
+        if (shouldFlushBefore(track, presentationTimeUs, sync)) {
+            flushFragment(false);
+            mFragmentStartUs = presentationTimeUs;
+        }
+        track.addSample(data, time, sync, this);
+    }
+
+    private boolean shouldFlushBefore(Track track, long presentationTimeUs, boolean sync) {
+        long elapsed = presentationTimeUs - mFragmentStartUs;
+        if (elapsed < mFragmentDurationUs) return false;
+        if (!track.format.isVideo()) {
+            // 没有视频轨道的时候按时长切分 , 有视频轨道的时候等待关键帧 , 但最多等待 4 个分片时长
+            return !hasVideoTrack() || elapsed >= mFragmentDurationUs * 4;
+        }
+        return sync || elapsed >= mFragmentDurationUs * 4;
+    }
+
+    private boolean hasVideoTrack() {
+        for (Track track : mTracks) {
+            if (track.format.isVideo()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 写入剩余的 sample , 回填总时长并关闭文件
+     */
+    public void stop() throws IOException {
+        if (!mStarted || mStopped) return;
+        mStopped = true;
+        try {
+            flushFragment(true);
+            long durationUs = 0;
+            for (Track track : mTracks) {
+                durationUs = Math.max(durationUs, track.decodeTime * 1000000L / track.format.getTimescale());
+            }
+            ByteBuffer duration = ByteBuffer.allocate(8);
+            duration.putLong(0, Mp4Boxes.toTimescale(durationUs, Mp4Boxes.MOVIE_TIMESCALE));
+            while (duration.hasRemaining()) {
+                mChannel.write(duration, mMehdPosition + duration.position());
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return 已经写入文件的字节数
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * 将当前缓存的 sample 写成一个 moof + mdat
+     *
+     * @param all 为 false 时每个轨道保留时长还不确定的最后一个 sample , 它的时长要等到下一个 sample 到达才能确定
+     */
+    private void flushFragment(boolean all) throws IOException {
+        int sampleCount = 0;
+        for (Track track : mTracks) {
+            track.pendingCount = all || track.lastClosed ? track.count : Math.max(0, track.count - 1);
+            if (all && track.count > 0 && !track.lastClosed) track.durations[track.count - 1] = track.lastDuration();
+            sampleCount += track.pendingCount;
+        }
+        if (sampleCount == 0) return;
+
+        BoxWriter writer = mBoxWriter;
+        writer.start("moof");
+        writer.startFull("mfhd", 0, 0).putInt(++mSequenceNumber).end();
+        for (Track track : mTracks) {
+            if (track.pendingCount == 0) continue;
+            writer.start("traf");
+            writer.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.id).end();
+            writer.startFull("tfdt", 1, 0).putLong(track.decodeTime).end();
+            writer.startFull("trun", 0, TRUN_FLAGS).putInt(track.pendingCount);
+            track.dataOffsetPosition = writer.position();
+            writer.putInt(0);
+            for (int i = 0; i < track.pendingCount; i++) {
+                writer.putInt(track.durations[i]);
+                writer.putInt(track.sizes[i]);
+                writer.putInt(track.syncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            writer.end();
+            writer.end();
+        }
+        writer.end();
+
+        int moofSize = writer.position();
+        long mdatSize = 8;
+        for (Track track : mTracks) {
+            if (track.pendingCount == 0) continue;
+            writer.setInt(track.dataOffsetPosition, (int) (moofSize + mdatSize));
+            mdatSize += track.pendingBytes();
+        }
+        mFileSize += writer.writeTo(mChannel);
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt((int) mdatSize).put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mMdatHeader.flip();
+        while (mMdatHeader.hasRemaining()) {
+            mChannel.write(mMdatHeader);
+        }
+        for (Track track : mTracks) {
+            if (track.pendingCount == 0) continue;
+            ByteBuffer payload = ByteBuffer.wrap(track.data, 0, track.pendingBytes());
+            while (payload.hasRemaining()) {
+                mChannel.write(payload);
+            }
+            track.consumePending();
+        }
+        mFileSize += mdatSize;
+    }
+
+    private byte[] obtainScratch(int size) {
+        if (mScratch.length < size) mScratch = new byte[size];
+        return mScratch;
+    }
+
+    private static class Track {
+        final TrackFormat format;
+        final int id;
+        long decodeTime;
+        boolean hasSamples;
+        boolean lastClosed;
+        int count;
+        int pendingCount;
+        int dataOffsetPosition;
+        int dataSize;
+        byte[] data = new byte[64 * 1024];
+        int[] sizes = new int[64];
+        int[] durations = new int[64];
+        long[] times = new long[64];
+        boolean[] syncs = new boolean[64];
+
+        Track(TrackFormat format, int id) {
+            this.format = format;
+            this.id = id;
+        }
+
+        /**
+         * 根据新 sample 的时间确定上一个 sample 的时长
+         *
+         * @return 修正后的时间 , 时间戳必须单调递增
+         */
+        long closeLastSample(long time) {
+            if (!hasSamples) {
+                hasSamples = true;
+                decodeTime = time;
+                return time;
+            }
+            long previous = count > 0 ? times[count - 1] : decodeTime;
+            if (time <= previous) time = previous + 1;
+            if (count > 0) {
+                durations[count - 1] = (int) (time - previous);
+                lastClosed = true;
+            }
+            return time;
+        }
+
+        void addSample(ByteBuffer sample, long time, boolean sync, FragmentedMp4Writer writer) {
+            if (count == sizes.length) growTables();
+            lastClosed = false;
+            int length = sample.remaining();
+            ensureData(dataSize + length + length / 4 + 4);
+            int written;
+            if (format.isVideo() && isAnnexB(sample)) {
+                byte[] scratch = writer.obtainScratch(length);
+                sample.get(scratch, 0, length);
+                written = annexBToLengthPrefixed(scratch, length, data, dataSize);
+            } else {
+                sample.get(data, dataSize, length);
+                written = length;
+            }
+            dataSize += written;
+            sizes[count] = written;
+            times[count] = time;
+            syncs[count] = sync || !format.isVideo();
+            count++;
+        }
+
+        int lastDuration() {
+            if (count >= 2) return durations[count - 2];
+            // 只有一个 sample 的时候无法计算 , 视频按 30fps , 音频按一个 AAC 帧估算
+            return format.isVideo() ? format.getTimescale() / 30 : 1024;
+        }
+
+        int pendingBytes() {
+            int bytes = 0;
+            for (int i = 0; i < pendingCount; i++) {
+                bytes += sizes[i];
+            }
+            return bytes;
+        }
+
+        /**
+         * 移除已经写入文件的 sample , 未写入的 sample 移动到数组的开头
+         */
+        void consumePending() {
+            int bytes = pendingBytes();
+            for (int i = 0; i < pendingCount; i++) {
+                decodeTime += durations[i];
+            }
+            int remain = count - pendingCount;
+            System.arraycopy(data, bytes, data, 0, dataSize - bytes);
+            System.arraycopy(sizes, pendingCount, sizes, 0, remain);
+            System.arraycopy(durations, pendingCount, durations, 0, remain);
+            System.arraycopy(times, pendingCount, times, 0, remain);
+            System.arraycopy(syncs, pendingCount, syncs, 0, remain);
+            dataSize -= bytes;
+            count = remain;
+            pendingCount = 0;
+            if (count == 0) lastClosed = false;
+        }
+
+        private void ensureData(int capacity) {
+            if (data.length >= capacity) return;
+            byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, dataSize);
+            data = newData;
+        }
+
+        private void growTables() {
+            int capacity = sizes.length * 2;
+            int[] newSizes = new int[capacity];
+            int[] newDurations = new int[capacity];
+            long[] newTimes = new long[capacity];
+            boolean[] newSyncs = new boolean[capacity];
+            System.arraycopy(sizes, 0, newSizes, 0, count);
+            System.arraycopy(durations, 0, newDurations, 0, count);
+            System.arraycopy(times, 0, newTimes, 0, count);
+            System.arraycopy(syncs, 0, newSyncs, 0, count);
+            sizes = newSizes;
+            durations = newDurations;
+            times = newTimes;
+            syncs = newSyncs;
+        }
+    }
+
+    private static boolean isAnnexB(ByteBuffer sample) {
+        int p = sample.position();
+        if (sample.remaining() < 4) return false;
+        return sample.get(p) == 0 && sample.get(p + 1) == 0
+                && (sample.get(p + 2) == 1 || (sample.get(p + 2) == 0 && sample.get(p + 3) == 1));
+    }
+
+    /**
+     * 将 Annex-B 格式的 NAL 序列转换为 4 字节长度前缀的格式
+     *
+     * @return 输出的字节数
+     */
+    static int annexBToLengthPrefixed(byte[] in, int length, byte[] out, int outOffset) {
+        int written = 0;
+        int nalStart = -1;
+        int i = 0;
+        while (i + 2 < length) {
+            if (in[i] == 0 && in[i + 1] == 0 && in[i + 2] == 1) {
+                if (nalStart >= 0) {
+                    written += writeNal(in, nalStart, trimTrailingZeros(in, nalStart, i), out, outOffset + written);
+                }
+                i += 3;
+                nalStart = i;
+            } else {
+                i++;
+            }
+        }
+        if (nalStart >= 0 && nalStart < length) {
+            written += writeNal(in, nalStart, length, out, outOffset + written);
+        }
+        return written;
+    }
+
+    private static int trimTrailingZeros(byte[] in, int start, int end) {
+        while (end > start && in[end - 1] == 0) end--;
+        return end;
+    }
+
+    private static int writeNal(byte[] in, int start, int end, byte[] out, int offset) {
+        int size = end - start;
+        out[offset] = (byte) (size >>> 24);
+        out[offset + 1] = (byte) (size >>> 16);
+        out[offset + 2] = (byte) (size >>> 8);
+        out[offset + 3] = (byte) size;
+        System.arraycopy(in, start, out, offset + 4, size);
+        return size + 4;
+    }
+}
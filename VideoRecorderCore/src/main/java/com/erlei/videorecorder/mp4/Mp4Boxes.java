@@ -0,0 +1,154 @@
+package com.erlei.videorecorder.mp4;
+
+/**
+ * moov 中各个 writer 通用的 box
+ */
+public class Mp4Boxes {
+
+    /**
+     * mvhd 使用的时间刻度 (毫秒)
+     */
+    public static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int LANGUAGE_UND = 0x55C4;
+
+    private Mp4Boxes() {
+    }
+
+    public static void writeFtyp(BoxWriter writer, String majorBrand, String... compatibleBrands) {
+        writer.start("ftyp");
+        writer.putFourCC(majorBrand).putInt(0x200);
+        for (String brand : compatibleBrands) {
+            writer.putFourCC(brand);
+        }
+        writer.end();
+    }
+
+    public static void writeMvhd(BoxWriter writer, long duration, int nextTrackId) {
+        boolean large = duration > 0xFFFFFFFFL;
+        writer.startFull("mvhd", large ? 1 : 0, 0);
+        if (large) {
+            writer.putLong(0).putLong(0).putInt(MOVIE_TIMESCALE).putLong(duration);
+        } else {
+            writer.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt((int) duration);
+        }
+        writer.putInt(0x00010000).putShort(0x0100);  // rate , volume
+        writer.putZeros(10);                         // reserved
+        writeMatrix(writer, 0);
+        writer.putZeros(24);                         // pre_defined
+        writer.putInt(nextTrackId);
+        writer.end();
+    }
+
+    /**
+     * @param duration 以 mvhd 的时间刻度为单位
+     * @param rotation 视频的旋转角度 , 和 MediaMuxer.setOrientationHint 一致
+     */
+    public static void writeTkhd(BoxWriter writer, TrackFormat format, int trackId, long duration, int rotation) {
+        boolean large = duration > 0xFFFFFFFFL;
+        writer.startFull("tkhd", large ? 1 : 0, 0x000003);    // enabled | in_movie
+        if (large) {
+            writer.putLong(0).putLong(0).putInt(trackId).putInt(0).putLong(duration);
+        } else {
+            writer.putInt(0).putInt(0).putInt(trackId).putInt(0).putInt((int) duration);
+        }
+        writer.putZeros(8);                                    // reserved
+        writer.putShort(0).putShort(0);                        // layer , alternate_group
+        writer.putShort(format.isVideo() ? 0 : 0x0100).putShort(0);
+        writeMatrix(writer, format.isVideo() ? rotation : 0);
+        writer.putInt(format.getWidth() << 16).putInt(format.getHeight() << 16);
+        writer.end();
+    }
+
+    /**
+     * @param duration 以轨道的时间刻度为单位
+     */
+    public static void writeMdhd(BoxWriter writer, int timescale, long duration) {
+        boolean large = duration > 0xFFFFFFFFL;
+        writer.startFull("mdhd", large ? 1 : 0, 0);
+        if (large) {
+            writer.putLong(0).putLong(0).putInt(timescale).putLong(duration);
+        } else {
+            writer.putInt(0).putInt(0).putInt(timescale).putInt((int) duration);
+        }
+        writer.putShort(LANGUAGE_UND).putShort(0);
+        writer.end();
+    }
+
+    public static void writeHdlr(BoxWriter writer, TrackFormat format) {
+        writer.startFull("hdlr", 0, 0);
+        writer.putInt(0).putFourCC(format.getHandlerType()).putZeros(12);
+        byte[] name = (format.isVideo() ? "VideoHandle" : "SoundHandle").getBytes();
+        writer.put(name).putByte(0);
+        writer.end();
+    }
+
+    /**
+     * 写入 vmhd / smhd 以及 dinf , stbl 需要调用方自己写
+     */
+    public static void writeMediaHeaderAndDinf(BoxWriter writer, TrackFormat format) {
+        writeMediaHeaderAndDinf(writer, format.isVideo());
+    }
+
+    public static void writeMediaHeaderAndDinf(BoxWriter writer, boolean video) {
+        if (video) {
+            writer.startFull("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            writer.startFull("smhd", 0, 0).putZeros(4).end();
+        }
+        writer.start("dinf");
+        writer.startFull("dref", 0, 0).putInt(1);
+        writer.startFull("url ", 0, 1).end();
+        writer.end();
+        writer.end();
+    }
+
+    public static void writeStsd(BoxWriter writer, TrackFormat format) {
+        writer.startFull("stsd", 0, 0).putInt(1);
+        format.writeSampleEntry(writer);
+        writer.end();
+    }
+
+    /**
+     * 写入 3x3 的变换矩阵 , 取值和 MPEG4Writer 保持一致
+     */
+    public static void writeMatrix(BoxWriter writer, int rotation) {
+        int a, b, c, d;
+        switch (rotation) {
+            case 90:
+                a = 0;
+                b = 0x10000;
+                c = -0x10000;
+                d = 0;
+                break;
+            case 180:
+                a = -0x10000;
+                b = 0;
+                c = 0;
+                d = -0x10000;
+                break;
+            case 270:
+                a = 0;
+                b = -0x10000;
+                c = 0x10000;
+                d = 0;
+                break;
+            default:
+                a = 0x10000;
+                b = 0;
+                c = 0;
+                d = 0x10000;
+                break;
+        }
+        writer.putInt(a).putInt(b).putInt(0);
+        writer.putInt(c).putInt(d).putInt(0);
+        writer.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * 微秒转换到指定的时间刻度
+     */
+    public static long toTimescale(long timeUs, int timescale) {
+        return (timeUs * timescale + 500000L) / 1000000L;
+    }
+}
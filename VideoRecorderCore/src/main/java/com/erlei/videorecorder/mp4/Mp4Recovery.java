@@ -0,0 +1,140 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 根据 SampleJournal 修复录制过程中进程被杀掉而没有 moov 的 MP4 文件
+ * <p>
+ * 日志中记录的 sample 只要完整地位于文件中就会被保留 , 之后的数据 (最后一个不完整的 sample) 会被截断 ,
+ * 然后回填 mdat 头并在文件末尾写入 moov . 修复成功之后日志文件会被删除
+ */
+public class Mp4Recovery {
+
+    /**
+     * 修复结果
+     */
+    public static class Result {
+        public final File file;
+        public final int recoveredSamples;
+        /**
+         * 日志中有记录但数据不完整的 sample 数量
+         */
+        public final int droppedSamples;
+        public final long fileSize;
+
+        Result(File file, int recoveredSamples, int droppedSamples, long fileSize) {
+            this.file = file;
+            this.recoveredSamples = recoveredSamples;
+            this.droppedSamples = droppedSamples;
+            this.fileSize = fileSize;
+        }
+
+        @Override
+        public String toString() {
+            return "Mp4Recovery.Result{" +
+                    "file=" + file +
+                    ", recoveredSamples=" + recoveredSamples +
+                    ", droppedSamples=" + droppedSamples +
+                    ", fileSize=" + fileSize +
+                    '}';
+        }
+    }
+
+    private Mp4Recovery() {
+    }
+
+    /**
+     * @return mp4 文件是否有未完成的日志 (录制没有正常结束)
+     */
+    public static boolean needsRecovery(File mp4) {
+        return SampleJournal.getJournalFile(mp4).exists();
+    }
+
+    /**
+     * 修复目录中所有没有正常结束的录制文件 , 单个文件修复失败不会影响其他文件
+     *
+     * @return 修复成功的文件
+     */
+    public static List<Result> recoverDirectory(File dir) {
+        List<Result> results = new ArrayList<>();
+        File[] journals = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SampleJournal.SUFFIX);
+            }
+        });
+        if (journals == null) return results;
+        for (File journal : journals) {
+            String path = journal.getPath();
+            File mp4 = new File(path.substring(0, path.length() - SampleJournal.SUFFIX.length()));
+            try {
+                results.add(recover(mp4));
+            } catch (IOException ignored) {
+                // 日志或者文件已经损坏 , 保留原样交给调用方处理
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 修复 mp4 文件 , 日志文件是 SampleJournal.getJournalFile(mp4)
+     */
+    public static Result recover(File mp4) throws IOException {
+        File journal = SampleJournal.getJournalFile(mp4);
+        if (!mp4.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            journal.delete();
+            throw new IOException(mp4 + " not exists");
+        }
+        Result result = recover(mp4, journal);
+        //noinspection ResultOfMethodCallIgnored
+        journal.delete();
+        return result;
+    }
+
+    private static Result recover(File mp4, File journal) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 64 * 1024));
+        RandomAccessFile file = null;
+        try {
+            SampleJournal.Header header = SampleJournal.readHeader(in);
+            file = new RandomAccessFile(mp4, "rw");
+            long fileLength = file.length();
+            Mp4Writer writer = Mp4Writer.resume(file, header);
+            file = null; // 由 writer 负责关闭
+            ByteBuffer record = ByteBuffer.allocate(SampleJournal.RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+            int recovered = 0;
+            int dropped = 0;
+            while (SampleJournal.readRecord(in, record)) {
+                long offset = SampleJournal.recordOffset(record);
+                int size = SampleJournal.recordSize(record);
+                int track = SampleJournal.recordTrack(record);
+                if (dropped > 0 || track >= header.formats.size() || size < 0
+                        || offset < header.mdatPosition || offset + size > fileLength) {
+                    dropped++;
+                    continue;
+                }
+                writer.addSample(track, offset, size, SampleJournal.recordTime(record), SampleJournal.recordSync(record));
+                recovered++;
+            }
+            if (recovered == 0) {
+                writer.stop();
+                throw new IOException("no sample recovered from " + journal);
+            }
+            writer.stop();
+            return new Result(mp4, recovered, dropped, mp4.length());
+        } finally {
+            in.close();
+            if (file != null) file.close();
+        }
+    }
+}
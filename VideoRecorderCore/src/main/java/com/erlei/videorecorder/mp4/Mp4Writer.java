@@ -0,0 +1,337 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 纯 Java 实现的普通 MP4 (ftyp + mdat + moov) 写入器
+ * <p>
+ * sample 数据直接写入 mdat , sample table 保存在 SampleTable 中 , stop() 时写入 moov
+ * 设置了日志文件 (setJournalFile) 时 , 每个 sample 的位置 , 大小和时间戳会记录到 SampleJournal 中 ,
+ * 进程被杀掉之后可以通过 Mp4Recovery 重建 moov . 正常 stop() 之后日志文件会被删除
+ * <p>
+ * mdat 在 stop() 之前的大小是 0 (延伸到文件末尾) , 同一个轨道连续的 sample 组成一个 chunk
+ * 视频的 H.264 数据可以是 Annex-B 格式 (MediaCodec 的输出) , 写入时会转换为 4 字节长度前缀的格式
+ * 非线程安全 , 调用方需要自己保证在同一个线程或者加锁调用
+ */
+public class Mp4Writer {
+
+    /**
+     * free + mdat 或者 64 位的 mdat 头
+     */
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxWriter mBoxWriter = new BoxWriter(4096);
+    private int mRotation;
+    private boolean mStarted;
+    private boolean mStopped;
+    private long mStartTimeUs = -1;
+    private long mMdatPosition;
+    private long mWritePosition;
+    private Track mChunkTrack;
+    private File mJournalFile;
+    private SampleJournal mJournal;
+    private byte[] mScratch = new byte[0];
+    private byte[] mConverted = new byte[0];
+
+    public Mp4Writer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.truncate(0);
+    }
+
+    /**
+     * 用于 Mp4Recovery , 继续使用已经写入了 mdat 的文件
+     */
+    private Mp4Writer(RandomAccessFile file, int rotation, long mdatPosition, List<TrackFormat> formats) {
+        mFile = file;
+        mChannel = file.getChannel();
+        mRotation = rotation;
+        mMdatPosition = mdatPosition;
+        mWritePosition = mdatPosition + MDAT_HEADER_SIZE;
+        for (TrackFormat format : formats) {
+            mTracks.add(new Track(format, mTracks.size() + 1));
+        }
+        mStarted = true;
+    }
+
+    static Mp4Writer resume(RandomAccessFile file, SampleJournal.Header header) {
+        return new Mp4Writer(file, header.rotation, header.mdatPosition, header.formats);
+    }
+
+    /**
+     * 和 MediaMuxer.setOrientationHint 一致 , 必须在 start() 之前调用
+     */
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270)
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        mRotation = degrees;
+    }
+
+    /**
+     * 设置 sample 日志文件 , 必须在 start() 之前调用 , null 表示不写日志
+     *
+     * @see SampleJournal#getJournalFile(File)
+     */
+    public void setJournalFile(File journalFile) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * @return track index
+     */
+    public int addTrack(TrackFormat format) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        mTracks.add(new Track(format, mTracks.size() + 1));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入 ftyp 和 mdat 头 , 之后就可以写入 sample
+     */
+    public void start() throws IOException {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track added");
+        mStarted = true;
+
+        BoxWriter writer = mBoxWriter;
+        Mp4Boxes.writeFtyp(writer, "isom", "isom", "iso2", "avc1", "mp41");
+        mMdatPosition = writer.writeTo(mChannel, 0);
+        ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        header.putInt(8).put(new byte[]{'f', 'r', 'e', 'e'});
+        header.putInt(0).put(new byte[]{'m', 'd', 'a', 't'});
+        header.flip();
+        writeFully(header, mMdatPosition);
+        mWritePosition = mMdatPosition + MDAT_HEADER_SIZE;
+
+        if (mJournalFile != null) {
+            List<TrackFormat> formats = new ArrayList<>();
+            for (Track track : mTracks) {
+                formats.add(track.format);
+            }
+            mJournal = new SampleJournal(mJournalFile);
+            mJournal.writeHeader(mRotation, mMdatPosition, formats);
+        }
+    }
+
+    /**
+     * 写入一个 sample , data 的 position 到 limit 之间是 sample 的数据
+     *
+     * @param presentationTimeUs 时间戳 , 同一个轨道内必须是递增的
+     * @param sync               是否是关键帧
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean sync) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("writer is not started");
+        if (trackIndex < 0 || trackIndex >= mTracks.size())
+            throw new IllegalArgumentException("invalid track index " + trackIndex);
+        Track track = mTracks.get(trackIndex);
+        long offset = mWritePosition;
+        int size;
+        if (track.format.isVideo() && isAnnexB(data)) {
+            int length = data.remaining();
+            if (mScratch.length < length) mScratch = new byte[length];
+            if (mConverted.length < length + length / 4 + 4) mConverted = new byte[length + length / 4 + 4];
+            data.get(mScratch, 0, length);
+            size = FragmentedMp4Writer.annexBToLengthPrefixed(mScratch, length, mConverted, 0);
+            writeFully(ByteBuffer.wrap(mConverted, 0, size), offset);
+        } else {
+            size = data.remaining();
+            writeFully(data, offset);
+        }
+        mWritePosition += size;
+        addSample(trackIndex, offset, size, presentationTimeUs, sync);
+        // 日志只记录已经写入文件的 sample
+        if (mJournal != null) mJournal.append(trackIndex, offset, size, presentationTimeUs, sync);
+    }
+
+    /**
+     * 更新 sample table , sample 的数据已经在 offset 处
+     */
+    void addSample(int trackIndex, long offset, int size, long presentationTimeUs, boolean sync) {
+        Track track = mTracks.get(trackIndex);
+        if (mStartTimeUs < 0) mStartTimeUs = presentationTimeUs;
+        long time = Mp4Boxes.toTimescale(Math.max(0, presentationTimeUs - mStartTimeUs), track.format.getTimescale());
+        track.addSample(time, size, sync || !track.format.isVideo());
+        if (mChunkTrack != track || offset != track.chunkEnd) {
+            if (mChunkTrack != null) mChunkTrack.closeChunk();
+            track.chunkOffset = offset;
+            mChunkTrack = track;
+        }
+        track.chunkSamples++;
+        track.chunkEnd = offset + size;
+        mWritePosition = Math.max(mWritePosition, offset + size);
+    }
+
+    /**
+     * 回填 mdat 头 , 写入 moov 并关闭文件 , 删除日志文件
+     */
+    public void stop() throws IOException {
+        if (!mStarted || mStopped) return;
+        mStopped = true;
+        try {
+            if (mJournal != null) mJournal.flush();
+            if (mChunkTrack != null) mChunkTrack.closeChunk();
+            for (Track track : mTracks) {
+                track.closeLastSample();
+            }
+            writeMdatHeader();
+            BoxWriter writer = mBoxWriter;
+            writeMoov(writer);
+            long moovSize = writer.writeTo(mChannel, mWritePosition);
+            mChannel.truncate(mWritePosition + moovSize);
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+            mFile.close();
+            if (mJournal != null) {
+                mJournal.close();
+                //noinspection ResultOfMethodCallIgnored
+                mJournalFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return 已经写入文件的字节数 (不包括 moov)
+     */
+    public long getFileSize() {
+        return mWritePosition;
+    }
+
+    /**
+     * @return 日志文件已经写入的字节数 , 没有日志时返回 0
+     */
+    public long getJournalSize() {
+        return mJournal == null ? 0 : mJournal.getBytesWritten();
+    }
+
+    /**
+     * @return 每个轨道的 sample 数量之和
+     */
+    public int getSampleCount() {
+        int count = 0;
+        for (Track track : mTracks) {
+            count += track.table.getSampleCount() + (track.hasPending ? 1 : 0);
+        }
+        return count;
+    }
+
+    private void writeMdatHeader() throws IOException {
+        long mdatSize = mWritePosition - mMdatPosition;
+        ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        if (mdatSize - 8 <= 0xFFFFFFFFL) {
+            header.putInt(8).put(new byte[]{'f', 'r', 'e', 'e'});
+            header.putInt((int) (mdatSize - 8)).put(new byte[]{'m', 'd', 'a', 't'});
+        } else {
+            header.putInt(1).put(new byte[]{'m', 'd', 'a', 't'}).putLong(mdatSize);
+        }
+        header.flip();
+        writeFully(header, mMdatPosition);
+    }
+
+    private void writeMoov(BoxWriter writer) {
+        long movieDuration = 0;
+        for (Track track : mTracks) {
+            movieDuration = Math.max(movieDuration, track.movieDuration());
+        }
+        writer.start("moov");
+        Mp4Boxes.writeMvhd(writer, movieDuration, mTracks.size() + 1);
+        for (Track track : mTracks) {
+            if (track.table.getSampleCount() == 0) continue;
+            writeTrak(writer, track);
+        }
+        writer.end();
+    }
+
+    private void writeTrak(BoxWriter writer, Track track) {
+        TrackFormat format = track.format;
+        writer.start("trak");
+        Mp4Boxes.writeTkhd(writer, format, track.id, track.movieDuration(), mRotation);
+        writer.start("mdia");
+        Mp4Boxes.writeMdhd(writer, format.getTimescale(), track.table.getDuration());
+        Mp4Boxes.writeHdlr(writer, format);
+        writer.start("minf");
+        Mp4Boxes.writeMediaHeaderAndDinf(writer, format);
+        writer.start("stbl");
+        Mp4Boxes.writeStsd(writer, format);
+        track.table.writeTables(writer);
+        writer.end();
+        writer.end();
+        writer.end();
+        writer.end();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private static boolean isAnnexB(ByteBuffer sample) {
+        int p = sample.position();
+        if (sample.remaining() < 4) return false;
+        return sample.get(p) == 0 && sample.get(p + 1) == 0
+                && (sample.get(p + 2) == 1 || (sample.get(p + 2) == 0 && sample.get(p + 3) == 1));
+    }
+
+    private static class Track {
+        final TrackFormat format;
+        final int id;
+        final SampleTable table = new SampleTable();
+        /**
+         * 最后一个 sample 的时长要等到下一个 sample 到达才能确定 , 先保存在这里
+         */
+        boolean hasPending;
+        long pendingTime;
+        int pendingSize;
+        boolean pendingSync;
+        long chunkOffset;
+        long chunkEnd = -1;
+        int chunkSamples;
+
+        Track(TrackFormat format, int id) {
+            this.format = format;
+            this.id = id;
+        }
+
+        void addSample(long time, int size, boolean sync) {
+            if (hasPending) {
+                // 时间戳必须单调递增
+                if (time <= pendingTime) time = pendingTime + 1;
+                table.addSample(pendingSize, (int) (time - pendingTime), 0, pendingSync);
+            }
+            hasPending = true;
+            pendingTime = time;
+            pendingSize = size;
+            pendingSync = sync;
+        }
+
+        void closeLastSample() {
+            if (!hasPending) return;
+            int duration = table.getSampleCount() > 0 ? table.getLastSampleDuration()
+                    // 只有一个 sample 的时候无法计算 , 视频按 30fps , 音频按一个 AAC 帧估算
+                    : format.isVideo() ? format.getTimescale() / 30 : 1024;
+            table.addSample(pendingSize, duration, 0, pendingSync);
+            hasPending = false;
+        }
+
+        void closeChunk() {
+            if (chunkSamples == 0) return;
+            table.addChunk(chunkOffset, chunkSamples, 1);
+            chunkSamples = 0;
+        }
+
+        long movieDuration() {
+            return table.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / format.getTimescale();
+        }
+    }
+}
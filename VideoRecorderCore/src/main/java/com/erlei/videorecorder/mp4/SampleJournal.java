@@ -0,0 +1,182 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 和 Mp4Writer 的输出文件放在一起的 sample 日志 , 进程被杀掉之后 Mp4Recovery 根据它重建 moov
+ * <p>
+ * 文件结构 :
+ * 文件头 : magic , version , rotation , mdat 的位置 , 轨道数量 , 每个轨道的 TrackFormat
+ * 之后是定长的记录 (RECORD_SIZE 字节) : offset(8) size(4) pts(8) track(1) flags(1) reserved(2)
+ * <p>
+ * 记录先写到内存中的缓冲区 , 缓冲区满了或者距离上次写入超过 FLUSH_INTERVAL_US 时才写入文件 ,
+ * 所以进程被杀掉时最多丢失最后 FLUSH_INTERVAL_US 的 sample
+ * 每个 sample 只有 RECORD_SIZE 字节 , 对于 1Mbps 以上的视频 , 日志的写入量小于 mdat 的 1%
+ * 非线程安全
+ */
+public class SampleJournal {
+
+    public static final String SUFFIX = ".journal";
+    public static final int RECORD_SIZE = 24;
+
+    static final int FLAG_SYNC = 1;
+
+    private static final int MAGIC = 0x56524A31; // VRJ1
+    private static final int VERSION = 1;
+    private static final int BATCH_RECORDS = 256;
+    private static final long FLUSH_INTERVAL_US = 1000000L;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBatch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private long mLastFlushUs = -1;
+    private long mBytesWritten;
+    private int mFlushCount;
+
+    public SampleJournal(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.truncate(0);
+    }
+
+    /**
+     * @return mp4 文件对应的日志文件
+     */
+    public static File getJournalFile(File mp4) {
+        return new File(mp4.getPath() + SUFFIX);
+    }
+
+    /**
+     * 写入文件头 , 必须在 append 之前调用
+     *
+     * @param mdatPosition mdat 头在 mp4 文件中的位置
+     */
+    public void writeHeader(int rotation, long mdatPosition, List<TrackFormat> formats) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rotation);
+        out.writeLong(mdatPosition);
+        out.writeInt(formats.size());
+        for (TrackFormat format : formats) {
+            format.writeTo(out);
+        }
+        out.flush();
+        write(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * 记录一个已经写入 mp4 文件的 sample
+     */
+    public void append(int track, long offset, int size, long presentationTimeUs, boolean sync) throws IOException {
+        mBatch.putLong(offset).putInt(size).putLong(presentationTimeUs);
+        mBatch.put((byte) track).put((byte) (sync ? FLAG_SYNC : 0)).putShort((short) 0);
+        if (mLastFlushUs < 0) mLastFlushUs = presentationTimeUs;
+        if (!mBatch.hasRemaining() || presentationTimeUs - mLastFlushUs >= FLUSH_INTERVAL_US) {
+            flush();
+            mLastFlushUs = presentationTimeUs;
+        }
+    }
+
+    /**
+     * 把缓冲区中的记录写入文件
+     */
+    public void flush() throws IOException {
+        if (mBatch.position() == 0) return;
+        mBatch.flip();
+        write(mBatch);
+        mBatch.clear();
+        mFlushCount++;
+    }
+
+    /**
+     * @return 已经写入文件的字节数 , 包括文件头
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFlushCount() {
+        return mFlushCount;
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+        mFile.close();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * 读取日志文件头 , 之后可以通过 readRecord 逐条读取记录
+     */
+    static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("not a sample journal");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("unsupported journal version " + version);
+        Header header = new Header();
+        header.rotation = in.readInt();
+        header.mdatPosition = in.readLong();
+        int trackCount = in.readInt();
+        if (trackCount <= 0 || trackCount > 16) throw new IOException("invalid track count " + trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            header.formats.add(TrackFormat.readFrom(in));
+        }
+        return header;
+    }
+
+    /**
+     * @param record 长度为 RECORD_SIZE 的 ByteBuffer (BIG_ENDIAN)
+     * @return 是否读取到一条完整的记录 , 末尾不完整的记录会被忽略
+     */
+    static boolean readRecord(DataInputStream in, ByteBuffer record) throws IOException {
+        try {
+            in.readFully(record.array(), 0, RECORD_SIZE);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static long recordOffset(ByteBuffer record) {
+        return record.getLong(0);
+    }
+
+    static int recordSize(ByteBuffer record) {
+        return record.getInt(8);
+    }
+
+    static long recordTime(ByteBuffer record) {
+        return record.getLong(12);
+    }
+
+    static int recordTrack(ByteBuffer record) {
+        return record.get(20) & 0xFF;
+    }
+
+    static boolean recordSync(ByteBuffer record) {
+        return (record.get(21) & FLAG_SYNC) != 0;
+    }
+
+    static class Header {
+        int rotation;
+        long mdatPosition;
+        final List<TrackFormat> formats = new ArrayList<>();
+    }
+}
@@ -0,0 +1,352 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.Arrays;
+
+/**
+ * 一个轨道的 sample table (stts / ctts / stss / stsc / stsz / stco 或 co64)
+ * <p>
+ * 所有的表都保存在可增长的基本类型数组中 , 不会为每个 sample 创建对象
+ * stts / ctts / stsc 在添加时就进行游程编码 , 每个 sample 只需要保存 4 字节的 size (stsz) ,
+ * 每个关键帧 4 字节 (stss) , 每个 chunk 8 字节 (chunk offset)
+ * 写入时根据最大的 chunk offset 自动选择 stco 或 co64
+ * <p>
+ * 非线程安全
+ */
+public class SampleTable {
+
+    private static final int INITIAL_SAMPLES = 1024;
+    private static final int INITIAL_RUNS = 16;
+
+    private int mSampleCount;
+    private int[] mSizes = new int[INITIAL_SAMPLES];
+    private boolean mConstantSize = true;
+    private long mDuration;
+
+    private int mSttsCount;
+    private int[] mSttsSamples = new int[INITIAL_RUNS];
+    private int[] mSttsDeltas = new int[INITIAL_RUNS];
+
+    /**
+     * mCttsCount == 0 表示所有的 composition offset 都是 0 , 不写 ctts
+     */
+    private int mCttsCount;
+    private int[] mCttsSamples;
+    private int[] mCttsOffsets;
+
+    private int mSyncCount;
+    private int[] mSyncSamples = new int[INITIAL_RUNS];
+    private boolean mAllSync = true;
+
+    private int mChunkCount;
+    private long[] mChunkOffsets = new long[INITIAL_RUNS * 16];
+    private int mStscCount;
+    private int[] mStscFirstChunks = new int[INITIAL_RUNS];
+    private int[] mStscSamples = new int[INITIAL_RUNS];
+    private int[] mStscDescriptions = new int[INITIAL_RUNS];
+
+    /**
+     * 添加一个 sample
+     *
+     * @param size              sample 的大小
+     * @param duration          以轨道的时间刻度为单位
+     * @param compositionOffset pts - dts , 以轨道的时间刻度为单位
+     * @param sync              是否是关键帧
+     */
+    public void addSample(int size, int duration, int compositionOffset, boolean sync) {
+        if (mSampleCount == mSizes.length) mSizes = Arrays.copyOf(mSizes, mSampleCount * 2);
+        mSizes[mSampleCount] = size;
+        if (mSampleCount > 0 && size != mSizes[0]) mConstantSize = false;
+
+        if (mSttsCount > 0 && mSttsDeltas[mSttsCount - 1] == duration) {
+            mSttsSamples[mSttsCount - 1]++;
+        } else {
+            addSttsRun(1, duration);
+        }
+        mDuration += duration;
+
+        if (compositionOffset != 0 && mCttsCount == 0) {
+            mCttsSamples = new int[INITIAL_RUNS];
+            mCttsOffsets = new int[INITIAL_RUNS];
+            if (mSampleCount > 0) addCttsRun(mSampleCount, 0);
+        }
+        if (mCttsCount > 0 || compositionOffset != 0) {
+            if (mCttsCount > 0 && mCttsOffsets[mCttsCount - 1] == compositionOffset) {
+                mCttsSamples[mCttsCount - 1]++;
+            } else {
+                addCttsRun(1, compositionOffset);
+            }
+        }
+
+        mSampleCount++;
+        if (sync) {
+            if (mSyncCount == mSyncSamples.length) mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+            mSyncSamples[mSyncCount++] = mSampleCount;
+        } else {
+            mAllSync = false;
+        }
+    }
+
+    /**
+     * 添加一个 chunk , chunk 中的 sample 必须已经通过 addSample 添加
+     *
+     * @param offset           chunk 在文件中的位置
+     * @param samples          chunk 中的 sample 数量
+     * @param descriptionIndex 1 开始的 sample description index (stsd 中的第几个 sample entry)
+     */
+    public void addChunk(long offset, int samples, int descriptionIndex) {
+        if (mChunkCount == mChunkOffsets.length) mChunkOffsets = Arrays.copyOf(mChunkOffsets, mChunkCount * 2);
+        mChunkOffsets[mChunkCount++] = offset;
+        if (mStscCount > 0 && mStscSamples[mStscCount - 1] == samples
+                && mStscDescriptions[mStscCount - 1] == descriptionIndex) {
+            return;
+        }
+        if (mStscCount == mStscFirstChunks.length) {
+            int capacity = mStscCount * 2;
+            mStscFirstChunks = Arrays.copyOf(mStscFirstChunks, capacity);
+            mStscSamples = Arrays.copyOf(mStscSamples, capacity);
+            mStscDescriptions = Arrays.copyOf(mStscDescriptions, capacity);
+        }
+        mStscFirstChunks[mStscCount] = mChunkCount;
+        mStscSamples[mStscCount] = samples;
+        mStscDescriptions[mStscCount] = descriptionIndex;
+        mStscCount++;
+    }
+
+    /**
+     * 修改最后一个 sample 的时长 , 用于对齐音视频轨道或者在停止时补上最后一帧的时长
+     */
+    public void setLastSampleDuration(int duration) {
+        if (mSampleCount == 0) throw new IllegalStateException("no sample");
+        int last = mSttsCount - 1;
+        mDuration += duration - mSttsDeltas[last];
+        if (mSttsSamples[last] == 1) {
+            mSttsDeltas[last] = duration;
+        } else {
+            mSttsSamples[last]--;
+            addSttsRun(1, duration);
+        }
+    }
+
+    public int getLastSampleDuration() {
+        return mSttsCount == 0 ? 0 : mSttsDeltas[mSttsCount - 1];
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getSampleSize(int index) {
+        return mSizes[index];
+    }
+
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    public long getChunkOffset(int index) {
+        return mChunkOffsets[index];
+    }
+
+    /**
+     * @return 所有 sample 时长的和 , 以轨道的时间刻度为单位
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return 是否需要 co64
+     */
+    public boolean isLargeOffsets() {
+        for (int i = 0; i < mChunkCount; i++) {
+            if (mChunkOffsets[i] > 0xFFFFFFFFL) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 大致的内存占用 , 用于日志
+     */
+    public long getMemoryBytes() {
+        long bytes = mSizes.length * 4L + mSttsSamples.length * 8L + mSyncSamples.length * 4L
+                + mChunkOffsets.length * 8L + mStscFirstChunks.length * 12L;
+        if (mCttsSamples != null) bytes += mCttsSamples.length * 8L;
+        return bytes;
+    }
+
+    /**
+     * 保存当前状态 , 只记录各个表的长度以及会被原地修改的最后一项 , 不拷贝表的内容
+     */
+    public State mark() {
+        return new State(this);
+    }
+
+    /**
+     * 恢复到 mark() 时的状态 , 之后添加的 sample 和 chunk 都会被丢弃
+     */
+    public void reset(State state) {
+        mSampleCount = state.sampleCount;
+        mConstantSize = state.constantSize;
+        mDuration = state.duration;
+        mSttsCount = state.sttsCount;
+        if (mSttsCount > 0) {
+            mSttsSamples[mSttsCount - 1] = state.lastSttsSamples;
+            mSttsDeltas[mSttsCount - 1] = state.lastSttsDelta;
+        }
+        mCttsCount = state.cttsCount;
+        if (mCttsCount > 0) mCttsSamples[mCttsCount - 1] = state.lastCttsSamples;
+        mSyncCount = state.syncCount;
+        mAllSync = state.allSync;
+        mChunkCount = state.chunkCount;
+        mStscCount = state.stscCount;
+    }
+
+    /**
+     * 写入 stsd 之后的所有表
+     */
+    public void writeTables(BoxWriter writer) {
+        writeStts(writer);
+        writeCtts(writer);
+        writeStss(writer);
+        writeStsc(writer);
+        writeStsz(writer);
+        writeChunkOffsets(writer);
+    }
+
+    public void writeStts(BoxWriter writer) {
+        writer.startFull("stts", 0, 0).putInt(mSttsCount);
+        for (int i = 0; i < mSttsCount; i++) {
+            writer.putInt(mSttsSamples[i]).putInt(mSttsDeltas[i]);
+        }
+        writer.end();
+    }
+
+    /**
+     * 所有的 composition offset 都是 0 时不写 ctts , 有负数时使用 version 1
+     */
+    public void writeCtts(BoxWriter writer) {
+        if (mCttsCount == 0) return;
+        boolean negative = false;
+        for (int i = 0; i < mCttsCount; i++) {
+            if (mCttsOffsets[i] < 0) negative = true;
+        }
+        writer.startFull("ctts", negative ? 1 : 0, 0).putInt(mCttsCount);
+        for (int i = 0; i < mCttsCount; i++) {
+            writer.putInt(mCttsSamples[i]).putInt(mCttsOffsets[i]);
+        }
+        writer.end();
+    }
+
+    /**
+     * 所有的 sample 都是关键帧时 (比如音频) 不写 stss
+     */
+    public void writeStss(BoxWriter writer) {
+        if (mAllSync) return;
+        writer.startFull("stss", 0, 0).putInt(mSyncCount);
+        for (int i = 0; i < mSyncCount; i++) {
+            writer.putInt(mSyncSamples[i]);
+        }
+        writer.end();
+    }
+
+    public void writeStsc(BoxWriter writer) {
+        writer.startFull("stsc", 0, 0).putInt(mStscCount);
+        for (int i = 0; i < mStscCount; i++) {
+            writer.putInt(mStscFirstChunks[i]).putInt(mStscSamples[i]).putInt(mStscDescriptions[i]);
+        }
+        writer.end();
+    }
+
+    public void writeStsz(BoxWriter writer) {
+        boolean constant = mSampleCount > 0 && mConstantSize;
+        writer.startFull("stsz", 0, 0);
+        if (constant) {
+            writer.putInt(mSizes[0]).putInt(mSampleCount);
+        } else {
+            writer.putInt(0).putInt(mSampleCount);
+            for (int i = 0; i < mSampleCount; i++) {
+                writer.putInt(mSizes[i]);
+            }
+        }
+        writer.end();
+    }
+
+    public void writeChunkOffsets(BoxWriter writer) {
+        boolean large = isLargeOffsets();
+        writer.startFull(large ? "co64" : "stco", 0, 0).putInt(mChunkCount);
+        for (int i = 0; i < mChunkCount; i++) {
+            if (large) {
+                writer.putLong(mChunkOffsets[i]);
+            } else {
+                writer.putInt((int) mChunkOffsets[i]);
+            }
+        }
+        writer.end();
+    }
+
+    private void addSttsRun(int samples, int delta) {
+        if (mSttsCount == mSttsSamples.length) {
+            mSttsSamples = Arrays.copyOf(mSttsSamples, mSttsCount * 2);
+            mSttsDeltas = Arrays.copyOf(mSttsDeltas, mSttsCount * 2);
+        }
+        mSttsSamples[mSttsCount] = samples;
+        mSttsDeltas[mSttsCount] = delta;
+        mSttsCount++;
+    }
+
+    private void addCttsRun(int samples, int offset) {
+        if (mCttsCount == mCttsSamples.length) {
+            mCttsSamples = Arrays.copyOf(mCttsSamples, mCttsCount * 2);
+            mCttsOffsets = Arrays.copyOf(mCttsOffsets, mCttsCount * 2);
+        }
+        mCttsSamples[mCttsCount] = samples;
+        mCttsOffsets[mCttsCount] = offset;
+        mCttsCount++;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleTable{" +
+                "samples=" + mSampleCount +
+                ", stts=" + mSttsCount +
+                ", ctts=" + mCttsCount +
+                ", stss=" + (mAllSync ? 0 : mSyncCount) +
+                ", chunks=" + mChunkCount +
+                ", stsc=" + mStscCount +
+                ", memory=" + getMemoryBytes() +
+                '}';
+    }
+
+    /**
+     * SampleTable 的状态快照
+     */
+    public static class State {
+        private final int sampleCount;
+        private final boolean constantSize;
+        private final long duration;
+        private final int sttsCount;
+        private final int lastSttsSamples;
+        private final int lastSttsDelta;
+        private final int cttsCount;
+        private final int lastCttsSamples;
+        private final int syncCount;
+        private final boolean allSync;
+        private final int chunkCount;
+        private final int stscCount;
+
+        private State(SampleTable table) {
+            sampleCount = table.mSampleCount;
+            constantSize = table.mConstantSize;
+            duration = table.mDuration;
+            sttsCount = table.mSttsCount;
+            lastSttsSamples = sttsCount > 0 ? table.mSttsSamples[sttsCount - 1] : 0;
+            lastSttsDelta = sttsCount > 0 ? table.mSttsDeltas[sttsCount - 1] : 0;
+            cttsCount = table.mCttsCount;
+            lastCttsSamples = cttsCount > 0 ? table.mCttsSamples[cttsCount - 1] : 0;
+            syncCount = table.mSyncCount;
+            allSync = table.mAllSync;
+            chunkCount = table.mChunkCount;
+            stscCount = table.mStscCount;
+        }
+    }
+}
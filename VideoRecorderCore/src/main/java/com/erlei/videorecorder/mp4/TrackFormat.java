@@ -0,0 +1,250 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 与 android.media.MediaFormat 无关的轨道描述 , 只保留写 MP4 需要的字段
+ * 这样 mp4 包里的类可以直接在 JVM 上运行
+ */
+public class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    private final String mMime;
+    private final boolean mVideo;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final byte[][] mCsd;
+
+    private TrackFormat(String mime, boolean video, int width, int height, int sampleRate, int channelCount, byte[][] csd) {
+        mMime = mime;
+        mVideo = video;
+        mWidth = width;
+        mHeight = height;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mCsd = csd;
+    }
+
+    /**
+     * @param csd 编码器输出的 csd-0 (SPS) , csd-1 (PPS) , 可以带 Annex-B 起始码
+     */
+    public static TrackFormat createVideo(String mime, int width, int height, byte[]... csd) {
+        if (!MIME_AVC.equals(mime)) throw new IllegalArgumentException("unsupported video mime " + mime);
+        return new TrackFormat(mime, true, width, height, 0, 0, csd);
+    }
+
+    /**
+     * @param csd AudioSpecificConfig (MediaFormat 中的 csd-0)
+     */
+    public static TrackFormat createAudio(String mime, int sampleRate, int channelCount, byte[] csd) {
+        if (!MIME_AAC.equals(mime)) throw new IllegalArgumentException("unsupported audio mime " + mime);
+        return new TrackFormat(mime, false, 0, 0, sampleRate, channelCount, new byte[][]{csd});
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public boolean isVideo() {
+        return mVideo;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return 轨道的时间刻度 , 视频使用 90kHz , 音频使用采样率
+     */
+    public int getTimescale() {
+        return mVideo ? VIDEO_TIMESCALE : mSampleRate;
+    }
+
+    public String getHandlerType() {
+        return mVideo ? "vide" : "soun";
+    }
+
+    /**
+     * 写入 stsd 中的 sample entry (avc1 / mp4a)
+     */
+    public void writeSampleEntry(BoxWriter writer) {
+        if (mVideo) {
+            writeAvc1(writer);
+        } else {
+            writeMp4a(writer);
+        }
+    }
+
+    private void writeAvc1(BoxWriter writer) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] csd : mCsd) {
+            if (csd == null) continue;
+            for (byte[] nal : splitNalUnits(csd)) {
+                int type = nal[0] & 0x1F;
+                if (type == 7) sps.add(nal);
+                else if (type == 8) pps.add(nal);
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) throw new IllegalStateException("missing SPS/PPS in csd");
+        byte[] firstSps = sps.get(0);
+
+        writer.start("avc1");
+        writer.putZeros(6).putShort(1);               // reserved , data_reference_index
+        writer.putZeros(16);                          // pre_defined , reserved
+        writer.putShort(mWidth).putShort(mHeight);
+        writer.putInt(0x00480000).putInt(0x00480000); // 72 dpi
+        writer.putInt(0).putShort(1);                 // reserved , frame_count
+        writer.putZeros(32);                          // compressorname
+        writer.putShort(0x0018).putShort(-1);         // depth , pre_defined
+
+        writer.start("avcC");
+        writer.putByte(1);
+        writer.putByte(firstSps[1]).putByte(firstSps[2]).putByte(firstSps[3]);
+        writer.putByte(0xFF);                         // lengthSizeMinusOne = 3
+        writer.putByte(0xE0 | sps.size());
+        for (byte[] nal : sps) {
+            writer.putShort(nal.length).put(nal);
+        }
+        writer.putByte(pps.size());
+        for (byte[] nal : pps) {
+            writer.putShort(nal.length).put(nal);
+        }
+        int profile = firstSps[1] & 0xFF;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144) {
+            // MediaCodec 的 surface 输入固定是 4:2:0 8bit
+            writer.putByte(0xFC | 1).putByte(0xF8).putByte(0xF8).putByte(0);
+        }
+        writer.end();
+        writer.end();
+    }
+
+    private void writeMp4a(BoxWriter writer) {
+        byte[] asc = mCsd[0] == null ? new byte[0] : mCsd[0];
+        writer.start("mp4a");
+        writer.putZeros(6).putShort(1);               // reserved , data_reference_index
+        writer.putZeros(8);                           // reserved
+        writer.putShort(mChannelCount).putShort(16);  // channelcount , samplesize
+        writer.putInt(0);                             // pre_defined , reserved
+        writer.putInt(mSampleRate << 16);
+
+        writer.startFull("esds", 0, 0);
+        int decoderSpecificLength = 2 + asc.length;
+        int decoderConfigLength = 2 + 13 + decoderSpecificLength;
+        int esLength = 2 + 3 + decoderConfigLength + 3;
+        writer.putByte(0x03).putByte(esLength - 2);   // ES_Descriptor
+        writer.putShort(0).putByte(0);                // ES_ID , flags
+        writer.putByte(0x04).putByte(decoderConfigLength - 2);
+        writer.putByte(0x40);                         // objectTypeIndication : Audio ISO/IEC 14496-3
+        writer.putByte(0x15);                         // streamType : AudioStream
+        writer.putByte(0).putShort(0);                // bufferSizeDB
+        writer.putInt(0).putInt(0);                   // maxBitrate , avgBitrate
+        writer.putByte(0x05).putByte(asc.length);     // DecoderSpecificInfo
+        writer.put(asc);
+        writer.putByte(0x06).putByte(1).putByte(0x02); // SLConfigDescriptor
+        writer.end();
+        writer.end();
+    }
+
+    /**
+     * 序列化 , 用于 SampleJournal 的文件头
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(mMime);
+        out.writeBoolean(mVideo);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mSampleRate);
+        out.writeInt(mChannelCount);
+        out.writeInt(mCsd.length);
+        for (byte[] csd : mCsd) {
+            out.writeInt(csd == null ? -1 : csd.length);
+            if (csd != null) out.write(csd);
+        }
+    }
+
+    public static TrackFormat readFrom(DataInput in) throws IOException {
+        String mime = in.readUTF();
+        boolean video = in.readBoolean();
+        int width = in.readInt();
+        int height = in.readInt();
+        int sampleRate = in.readInt();
+        int channelCount = in.readInt();
+        int count = in.readInt();
+        if (count < 0 || count > 16) throw new IOException("invalid csd count " + count);
+        byte[][] csd = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length > 1024 * 1024) throw new IOException("invalid csd length " + length);
+            if (length < 0) continue;
+            csd[i] = new byte[length];
+            in.readFully(csd[i]);
+        }
+        return new TrackFormat(mime, video, width, height, sampleRate, channelCount, csd);
+    }
+
+    /**
+     * 按照 Annex-B 起始码拆分 NAL , 如果没有起始码则认为整个数据是一个 NAL
+     */
+    static List<byte[]> splitNalUnits(byte[] data) {
+        List<byte[]> nals = new ArrayList<>();
+        int start = -1;
+        int i = 0;
+        while (i + 2 < data.length) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if (start >= 0) nals.add(copyTrimmed(data, start, i));
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start < 0) {
+            nals.add(data.clone());
+        } else if (start < data.length) {
+            nals.add(copyTrimmed(data, start, data.length));
+        }
+        return nals;
+    }
+
+    private static byte[] copyTrimmed(byte[] data, int start, int end) {
+        // 4 字节起始码的第一个 0 会被留在上一个 NAL 的末尾
+        while (end > start && data[end - 1] == 0) end--;
+        byte[] nal = new byte[end - start];
+        System.arraycopy(data, start, nal, 0, nal.length);
+        return nal;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackFormat{" +
+                "mime='" + mMime + '\'' +
+                ", width=" + mWidth +
+                ", height=" + mHeight +
+                ", sampleRate=" + mSampleRate +
+                ", channelCount=" + mChannelCount +
+                '}';
+    }
+}
@@ -2,15 +2,24 @@ package com.erlei.videorecorder.recorder;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 
 import com.erlei.videorecorder.encoder.AudioEncoder;
+import com.erlei.videorecorder.encoder.AudioMixer;
+import com.erlei.videorecorder.encoder.AudioRecordFactory;
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
+import com.erlei.videorecorder.encoder.MediaClock;
 import com.erlei.videorecorder.encoder.MediaEncoder;
+import com.erlei.videorecorder.encoder.PcmBufferRing;
+import com.erlei.videorecorder.encoder.PcmFormatConverter;
+import com.erlei.videorecorder.encoder.PcmFrameChunker;
 import com.erlei.videorecorder.util.LogUtil;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class AudioCapture extends HandlerThread {
@@ -30,9 +39,15 @@ public class AudioCapture extends HandlerThread {
     private int mFrames = FRAMES;
     private int mChannelConfig;
     private final AudioEncoder mAudioEncoder;
-    private ByteBuffer mByteBuffer;
+    private PcmBufferRing mPcmRing;
+    private PcmFrameChunker mChunker;
+    private final BackgroundMusicConfig mBackgroundMusic;
+    private AudioMixer mMixer;
+    private PcmFormatConverter mConverter;
+    private AudioTimestamp mTimestamp;
+    private int mBytesPerFrame;
+    private int mPeriodFrames;
     private AudioRecord mAudioRecord;
-    private int mMinBufferSize;
 
 
     public AudioCapture(AudioEncoder audioEncoder, int frames) {
@@ -40,8 +55,16 @@ public class AudioCapture extends HandlerThread {
     }
 
     public AudioCapture(AudioEncoder encoder, int sampleRate, int frames, int channelCount) {
+        this(encoder, sampleRate, frames, channelCount, null);
+    }
+
+    /**
+     * @param backgroundMusic 混入的背景音乐 , null 表示只录制麦克风
+     */
+    public AudioCapture(AudioEncoder encoder, int sampleRate, int frames, int channelCount, BackgroundMusicConfig backgroundMusic) {
         super(TAG);
         mAudioEncoder = encoder;
+        mBackgroundMusic = backgroundMusic;
         mSampleRate = sampleRate;
         mFrames = frames;
         mChannelConfig = channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
@@ -86,39 +109,31 @@ public class AudioCapture extends HandlerThread {
     }
 
     private void initAudioRecord() {
-        mMinBufferSize = AudioRecord.getMinBufferSize(
-                mSampleRate,
-                mChannelConfig,
-                AudioFormat.ENCODING_PCM_16BIT);
-
-        mAudioRecord = null;
-        for (final int source : AUDIO_SOURCES) {
-            try {
-                mAudioRecord = new AudioRecord(
-                        source,
-                        mSampleRate,
-                        mChannelConfig,
-                        AudioFormat.ENCODING_PCM_16BIT,
-                        mMinBufferSize * mFrames / 2);
-
-                if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-                    mAudioRecord.release();
-                    mAudioRecord = null;
-                }
-
-            } catch (final Exception e) {
-                e.printStackTrace();
-                mAudioRecord = null;
-                LogUtil.loge(TAG, "new AudioRecord with source " + source + "error " + e);
-            }
-            if (mAudioRecord != null) break;
-        }
+        final int channelCount = mChannelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+        final int chunkSize = PcmFrameChunker.getChunkSize(channelCount, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK);
+        mAudioRecord = AudioRecordFactory.open(AUDIO_SOURCES, mSampleRate, channelCount, chunkSize * mFrames / 2);
         if (mAudioRecord != null) {
             LogUtil.logd(TAG, "mAudioRecord.startRecording();");
-            mByteBuffer = ByteBuffer.allocateDirect(mMinBufferSize / 2);
+            mChunker = new PcmFrameChunker(channelCount, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK);
+            mTimestamp = MediaClock.createAudioTimestamp();
+            mPcmRing = new PcmBufferRing(PcmBufferRing.DEFAULT_CAPACITY, mChunker.getChunkSize());
+            mBytesPerFrame = 2 * channelCount;
+            // 麦克风不支持请求的格式时 , 转换成编码的格式之后再切分成块
+            mConverter = PcmFormatConverter.create(mAudioRecord, mSampleRate, channelCount, mChunker.getChunkFrames());
+            if (mConverter != null) LogUtil.logw(TAG, "initAudioRecord:" + mConverter);
+            if (mBackgroundMusic != null) {
+                mMixer = new AudioMixer(mBackgroundMusic);
+                try {
+                    mMixer.prepare(mSampleRate, channelCount);
+                } catch (IOException e) {
+                    LogUtil.loge(TAG, "unable to mix background music " + mBackgroundMusic + " : " + e);
+                    mMixer = null;
+                }
+            }
             mAudioRecord.startRecording();
 //            int framePeriod = mSampleRate * (1000 / mFrames) / 1000;
             int framePeriod = 160;
+            mPeriodFrames = framePeriod;
             LogUtil.loge(TAG, "setPositionNotificationPeriod" + framePeriod);
             mAudioRecord.setPositionNotificationPeriod(framePeriod);
             mAudioRecord.setRecordPositionUpdateListener(new AudioRecord.OnRecordPositionUpdateListener() {
@@ -144,16 +159,44 @@ public class AudioCapture extends HandlerThread {
     private void readSamples() {
         MediaEncoder.MediaEncoderHandler handler = mAudioEncoder.getHandler();
         if (handler == null) return;
-        mByteBuffer.clear();
-        int readBytes = mAudioRecord.read(mByteBuffer, mMinBufferSize / 2);
-        if (readBytes > 0) {
-            // set audio data to encoder
-            mByteBuffer.position(readBytes);
-            mByteBuffer.flip();
-            LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + readBytes + "\t ");
-            handler.encode(mByteBuffer, readBytes, System.nanoTime() / 1000L);
-            handler.frameAvailableSoon();
+        // 每次通知只读取一个周期的数据 , 不满一块的部分留在 mChunker 中 , 凑满之后整块送入编码器
+        if (mConverter == null) {
+            int readBytes = mChunker.read(mAudioRecord, mPeriodFrames * mBytesPerFrame);
+            if (readBytes > 0 && mChunker.isFull()) writeChunk(handler, mSampleRate);
+            return;
+        }
+        if (mConverter.read(mAudioRecord, mPeriodFrames) <= 0) return;
+        final short[] output = mConverter.getOutput();
+        final int samples = mConverter.getOutputSamples();
+        int offset = 0;
+        while (offset < samples) {
+            offset += mChunker.append(output, offset, samples - offset);
+            if (mChunker.isFull()) writeChunk(handler, mConverter.getInputRate());
+        }
+    }
+
+    /**
+     * @param captureRate AudioRecord 的采样率
+     */
+    private void writeChunk(MediaEncoder.MediaEncoderHandler handler, int captureRate) {
+        long presentationTimeUs = mAudioEncoder.getClock().toAudioTimeUs(mAudioRecord, mTimestamp, mSampleRate, mChunker.getChunkFrames(), captureRate);
+        int slot = mPcmRing.acquire();
+        if (slot < 0) {
+            // 编码线程跟不上 , 丢弃这一块 , 时钟已经推进了这段时长
+            mChunker.discard();
+            LogUtil.logw(TAG, "pcm ring full , dropped " + mPcmRing.getDroppedCount());
+            return;
         }
+        ByteBuffer chunk = mChunker.takeChunk();
+        if (mMixer != null) mMixer.mix(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+        ByteBuffer buffer = mPcmRing.getBuffer(slot);
+        buffer.clear();
+        buffer.put(chunk);
+        // set audio data to encoder
+        mPcmRing.publish(slot, mChunker.getChunkSize(), presentationTimeUs);
+        if (LogUtil.LOG_ENABLE)
+            LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + mChunker.getChunkSize() + "\t ");
+        handler.encode(mPcmRing);
     }
 
 
@@ -172,6 +215,7 @@ public class AudioCapture extends HandlerThread {
             e.printStackTrace();
         } finally {
             mAudioRecord.release();
+            if (mMixer != null) mMixer.release();
         }
         quitSafely();
         LogUtil.loge(TAG, "quit");
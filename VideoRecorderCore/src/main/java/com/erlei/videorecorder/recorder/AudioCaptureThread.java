@@ -6,9 +6,16 @@ import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 
 import com.erlei.videorecorder.encoder.AudioEncoder;
-import com.erlei.videorecorder.encoder.MediaEncoder;
+import com.erlei.videorecorder.encoder.AudioMixer;
+import com.erlei.videorecorder.encoder.AudioRecordFactory;
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
+import com.erlei.videorecorder.encoder.MediaClock;
+import com.erlei.videorecorder.encoder.PcmBufferRing;
+import com.erlei.videorecorder.encoder.PcmFormatConverter;
+import com.erlei.videorecorder.encoder.PcmFrameChunker;
 import com.erlei.videorecorder.util.LogUtil;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class AudioCaptureThread extends Thread {
@@ -23,6 +30,7 @@ public class AudioCaptureThread extends Thread {
     private int mChannelConfig;
     private final AudioEncoder mAudioEncoder;
     private volatile boolean mCapture = true;
+    private BackgroundMusicConfig mBackgroundMusic;
 
 
     public AudioCaptureThread(AudioEncoder audioEncoder, int frames) {
@@ -36,6 +44,13 @@ public class AudioCaptureThread extends Thread {
         mChannelConfig = channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
     }
 
+    /**
+     * @param config 混入的背景音乐 , 在 start 之前设置
+     */
+    public void setBackgroundMusic(BackgroundMusicConfig config) {
+        mBackgroundMusic = config;
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -45,65 +60,63 @@ public class AudioCaptureThread extends Thread {
     };
 
     private int mFrameCount;
+    private AudioTimestamp mTimestamp;
+    private PcmFrameChunker mChunker;
+    private PcmBufferRing mRing;
+    private AudioMixer mMixer;
+    private long mLastMillis;
 
     @Override
     public void run() {
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
         try {
-            final int minBufferSize = AudioRecord.getMinBufferSize(
-                    mSampleRate,
-                    mChannelConfig,
-                    AudioFormat.ENCODING_PCM_16BIT);
-
-            AudioRecord audioRecord = null;
-            for (final int source : AUDIO_SOURCES) {
-                try {
-                    audioRecord = new AudioRecord(
-                            source,
-                            mSampleRate,
-                            mChannelConfig,
-                            AudioFormat.ENCODING_PCM_16BIT,
-                            minBufferSize * 2);
-
-                    if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-                        audioRecord.release();
-                        audioRecord = null;
-                    }
-
-                } catch (final Exception e) {
-                    e.printStackTrace();
-                    audioRecord = null;
-                    LogUtil.loge(TAG, "new AudioRecord with source " + source + "error " + e);
-                }
-                if (audioRecord != null) break;
-            }
+            final int channelCount = mChannelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+            final int chunkSize = PcmFrameChunker.getChunkSize(channelCount, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK);
+            final AudioRecord audioRecord = AudioRecordFactory.open(AUDIO_SOURCES, mSampleRate, channelCount, chunkSize * 2);
             if (audioRecord != null) {
                 try {
                     if (!isInterrupted() && mCapture) {
                         LogUtil.logd(TAG, "AudioThread:startRecord audio recording");
-                        final ByteBuffer buf = ByteBuffer.allocateDirect(minBufferSize / 2);
-                        int readBytes;
+                        mChunker = new PcmFrameChunker(channelCount, PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK);
+                        mTimestamp = MediaClock.createAudioTimestamp();
+                        mRing = new PcmBufferRing(PcmBufferRing.DEFAULT_CAPACITY, chunkSize);
+                        if (mBackgroundMusic != null) {
+                            mMixer = new AudioMixer(mBackgroundMusic);
+                            try {
+                                mMixer.prepare(mSampleRate, channelCount);
+                            } catch (IOException e) {
+                                LogUtil.loge(TAG, "unable to mix background music " + mBackgroundMusic + " : " + e);
+                                mMixer = null;
+                            }
+                        }
+                        // 麦克风不支持请求的格式时 , 转换成编码的格式之后再切分成块
+                        final PcmFormatConverter converter = PcmFormatConverter.create(audioRecord,
+                                mSampleRate, channelCount, mChunker.getChunkFrames());
+                        if (converter != null) LogUtil.logw(TAG, "AudioThread:" + converter);
                         audioRecord.startRecording();
                         try {
-                            MediaEncoder.MediaEncoderHandler handler = mAudioEncoder.getHandler();
-                            long lastMillis = System.currentTimeMillis();
+                            mLastMillis = System.currentTimeMillis();
                             while (!isInterrupted() && mCapture) {
-                                // read audio data from internal mic
-                                buf.clear();
-                                readBytes = audioRecord.read(buf, minBufferSize / 2);
-                                if (readBytes > 0) {
-                                    // set audio data to encoder
-                                    buf.position(readBytes);
-                                    buf.flip();
-                                    LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + readBytes + "\t " + (System.currentTimeMillis() - lastMillis) + "ms");
-                                    handler.encode(buf, readBytes, System.nanoTime() / 1000L);
-                                    lastMillis = System.currentTimeMillis();
-                                    handler.frameAvailableSoon();
+                                // read audio data from internal mic , 每次读到凑满一个块
+                                if (converter == null) {
+                                    if (mChunker.read(audioRecord, Integer.MAX_VALUE) > 0 && mChunker.isFull()) {
+                                        writeChunk(audioRecord, mSampleRate);
+                                    }
+                                    continue;
+                                }
+                                if (converter.read(audioRecord, mChunker.getChunkFrames()) <= 0) continue;
+                                final short[] output = converter.getOutput();
+                                final int samples = converter.getOutputSamples();
+                                int offset = 0;
+                                while (offset < samples) {
+                                    offset += mChunker.append(output, offset, samples - offset);
+                                    if (mChunker.isFull()) writeChunk(audioRecord, converter.getInputRate());
                                 }
                             }
-                            handler.encode(null, 0, System.nanoTime() / 1000L);
+                            mAudioEncoder.getHandler().encode(null, 0, System.nanoTime() / 1000L);
                         } finally {
                             audioRecord.stop();
+                            if (mMixer != null) mMixer.release();
                         }
                     }
                 } finally {
@@ -118,6 +131,35 @@ public class AudioCaptureThread extends Thread {
         LogUtil.loge(TAG, "AudioThread:finished");
     }
 
+    /**
+     * 把写满的块放入环形缓冲区并通知编码线程
+     *
+     * @param captureRate AudioRecord 的采样率
+     */
+    private void writeChunk(AudioRecord audioRecord, int captureRate) {
+        // 时间戳在读满的时候计算 , 丢弃的块也会推进时钟
+        long presentationTimeUs = mAudioEncoder.getClock().toAudioTimeUs(audioRecord, mTimestamp, mSampleRate, mChunker.getChunkFrames(), captureRate);
+        int slot = mRing.acquire();
+        if (slot < 0) {
+            // 编码线程跟不上 , 丢弃这一块 , 不能覆盖还没有编码的数据
+            mChunker.discard();
+            LogUtil.logw(TAG, "pcm ring full , dropped " + mRing.getDroppedCount());
+            return;
+        }
+        ByteBuffer chunk = mChunker.takeChunk();
+        if (mMixer != null) mMixer.mix(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+        ByteBuffer buffer = mRing.getBuffer(slot);
+        buffer.clear();
+        buffer.put(chunk);
+        // set audio data to encoder
+        mRing.publish(slot, mChunker.getChunkSize(), presentationTimeUs);
+        if (LogUtil.LOG_ENABLE) {
+            LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + mChunker.getChunkSize() + "\t " + (System.currentTimeMillis() - mLastMillis) + "ms");
+            mLastMillis = System.currentTimeMillis();
+        }
+        mAudioEncoder.getHandler().encode(mRing);
+    }
+
     public void setCapture(boolean capture) {
         mCapture = capture;
     }
@@ -0,0 +1,387 @@
+package com.erlei.videorecorder.recorder;
+
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.os.Environment;
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+
+import com.erlei.videorecorder.encoder.AdtsMuxer;
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+import com.erlei.videorecorder.encoder.PcmFrameChunker;
+import com.erlei.videorecorder.encoder1.MediaAudioEncoder;
+import com.erlei.videorecorder.encoder1.MediaMuxerWrapper;
+import com.erlei.videorecorder.encoder1.PipelineStats;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 只录制音频 , 不创建 RenderThread , EGL , 相机和视频编码器
+ * <p>
+ * 和 VideoRecorder 使用同一个 MediaAudioEncoder (分帧 , 重采样 , 背景音乐 , 电平回调) 和 MediaMuxerWrapper ,
+ * 输出 M4A (MediaMuxer) 或者 ADTS 裸流 (AdtsMuxer) . 没有预览 , 不需要调用 startPreview ,
+ * 预览 / 相机 / 拍照相关的方法都是空实现
+ */
+public class AudioRecorder implements IVideoRecorder {
+
+    /**
+     * MP4 容器 , 文件扩展名 .m4a
+     */
+    public static final int FORMAT_M4A = 0;
+    /**
+     * 每个 AAC 帧带 ADTS 头的裸流 , 文件扩展名 .aac
+     */
+    public static final int FORMAT_ADTS = 1;
+
+    private static final String TAG = LogUtil.TAG;
+    private final Object mSync = new Object();
+    private final VideoRecorder.Config mConfig;
+    private final int mFormat;
+    private final OutputStream mOutputStream;
+    private File mOutputFile;
+    private ExecutorService mThreadExecutor;
+    private volatile boolean mRecordEnabled, mMuxerRunning;
+    private volatile MediaMuxerWrapper mMuxer;
+    private volatile PipelineStats mPipelineStats;
+
+    private AudioRecorder(VideoRecorder.Config config, int format, OutputStream outputStream) {
+        mConfig = config;
+        mFormat = format;
+        mOutputStream = outputStream;
+        mOutputFile = getOutPut();
+    }
+
+    /**
+     * 没有预览 , 只在后台加载编码器能力索引 , 不调用也可以直接 startRecord
+     */
+    @Override
+    public synchronized void startPreview() {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                CodecCapabilityIndex.get(mConfig.context);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void startRecord() {
+        setRecordEnabled(true);
+    }
+
+    @Override
+    public synchronized void stopRecord() {
+        setRecordEnabled(false);
+    }
+
+    /**
+     * @return 没有相机 , 总是返回 null
+     */
+    @Override
+    public CameraController getCameraController() {
+        return null;
+    }
+
+    @Override
+    public boolean isRecordEnable() {
+        return mRecordEnabled;
+    }
+
+    /**
+     * @return 混合器是否正在运行
+     */
+    @Override
+    public boolean isMuxerRunning() {
+        return mMuxerRunning;
+    }
+
+    @Override
+    public void onSizeChanged(int width, int height) {
+
+    }
+
+    /**
+     * @return 当前 (或者最近一次) 录制的吞吐量和延迟统计 , 还没有开始录制时返回 null
+     */
+    public PipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    /**
+     * @return 没有预览 , 总是返回 null
+     */
+    @Override
+    public SurfaceTexture getPreviewTexture() {
+        return null;
+    }
+
+    /**
+     * 没有相机 , 不支持拍照 , 只打印日志 , 不会回调 callback
+     */
+    @Override
+    public void takePicture(TakePictureCallback callback) {
+        LogUtil.loge(TAG, "takePicture: AudioRecorder has no camera");
+    }
+
+    public synchronized void setRecordEnabled(boolean enable) {
+        if (isRecordEnable() == enable) {
+            LogUtil.loge(TAG, "setRecordEnabled:mRecordEnabled == enable");
+            return;
+        }
+        if (enable) {
+            startEncoder();
+        } else {
+            stopEncoder();
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (mThreadExecutor == null) mThreadExecutor = Executors.newSingleThreadExecutor();
+        return mThreadExecutor;
+    }
+
+    private synchronized void startEncoder() {
+        mRecordEnabled = true;
+        mOutputFile = getOutPut();
+        final String output = mOutputFile != null ? mOutputFile.getAbsolutePath() : null;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                LogUtil.loge(TAG, "startEncoder:begin");
+                boolean started = false;
+                synchronized (mSync) {
+                    try {
+                        if (mFormat == FORMAT_ADTS) {
+                            AdtsMuxer muxer = mOutputStream != null ? new AdtsMuxer(mOutputStream, false) : new AdtsMuxer(output);
+                            mMuxer = new MediaMuxerWrapper(muxer, output, mConfig.viewHandler);
+                        } else {
+                            mMuxer = new MediaMuxerWrapper(output, mConfig.viewHandler, false, false);
+                            mMuxer.setFastStartEnable(mConfig.fastStart);
+                        }
+                        // 只有一个轨道 , 不需要排序
+                        mMuxer.setInterleaveWindowUs(0);
+                        mPipelineStats = mMuxer.getStats();
+                        new MediaAudioEncoder(mMuxer, mConfig);
+                        mMuxer.prepare();
+                        mMuxer.startRecording();
+                        mMuxerRunning = true;
+                        started = true;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LogUtil.loge(TAG, "startEncoder:" + e);
+                        // 没有开始录制 , 停止已经创建的编码器 , 之后可以重新调用 startRecord
+                        if (mMuxer != null) {
+                            try {
+                                mMuxer.stopRecording();
+                            } catch (Exception stopError) {
+                                LogUtil.loge(TAG, "startEncoder:stopRecording " + stopError);
+                            }
+                            mMuxer = null;
+                        }
+                        mRecordEnabled = false;
+                    }
+                }
+                if (started && mConfig.viewHandler != null) {
+                    mConfig.viewHandler.onCaptureStarted(output);
+                }
+            }
+        });
+    }
+
+    private synchronized void stopEncoder() {
+        mRecordEnabled = false;
+        final String output = mOutputFile != null ? mOutputFile.getAbsolutePath() : null;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mMuxerRunning) return;
+                synchronized (mSync) {
+                    LogUtil.loge(TAG, "stopEncoder:begin");
+                    mMuxerRunning = false;
+                    try {
+                        if (mMuxer != null) {
+                            mMuxer.stopRecording();
+                            mMuxer = null;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LogUtil.loge(TAG, "stopEncoder:" + e);
+                    }
+                }
+                if (mConfig.viewHandler != null) {
+                    mConfig.viewHandler.onCaptureStopped(output);
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止录制 , 录制线程在文件写完之后退出
+     */
+    @Override
+    public synchronized void stopPreview() {
+        if (mRecordEnabled) stopEncoder();
+        if (mThreadExecutor != null) {
+            mThreadExecutor.shutdown();
+            mThreadExecutor = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        stopPreview();
+    }
+
+    /**
+     * @return 录制的文件 , 写入 OutputStream 时返回 null
+     */
+    @Override
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private File getOutPut() {
+        if (mOutputStream != null) {
+            return null;
+        } else if (mConfig.mOutputFile != null) {
+            return mConfig.mOutputFile;
+        } else {
+            File path = new File(mConfig.outputPath);
+            if (!path.exists()) {
+                path.mkdirs();
+            }
+            if (path.isFile()) path = path.getParentFile();
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-SSS", Locale.getDefault());
+            return new File(path, format.format(new Date()) + (mFormat == FORMAT_ADTS ? ".aac" : ".m4a"));
+        }
+    }
+
+    public static class Builder {
+
+        private final VideoRecorder.Config mP;
+        private int mFormat = FORMAT_M4A;
+        private OutputStream mOutputStream;
+
+        public Builder(@NonNull Context context) {
+            mP = new VideoRecorder.Config(context, null);
+        }
+
+        /**
+         * @param format FORMAT_M4A (默认) 或者 FORMAT_ADTS
+         */
+        public Builder setOutputFormat(@IntRange(from = FORMAT_M4A, to = FORMAT_ADTS) int format) {
+            if (format != FORMAT_M4A && format != FORMAT_ADTS)
+                throw new IllegalArgumentException("invalid format " + format);
+            mFormat = format;
+            return this;
+        }
+
+        /**
+         * 设置声道数
+         */
+        public Builder setChannelCount(@IntRange(from = 1, to = 2) int channelCount) {
+            mP.audioChannelCount = channelCount;
+            return this;
+        }
+
+        /**
+         * 设置音频采样率
+         * 默认为 44100
+         */
+        public Builder setAudioSampleRate(int sampleRate) {
+            mP.audioSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * @param bitRate 设置音频比特率
+         *                默认为 64000
+         */
+        public Builder setAudioBitRate(int bitRate) {
+            mP.audioBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @see VideoRecorder.Builder#setAudioFramesPerBuffer(int)
+         */
+        public Builder setAudioFramesPerBuffer(@IntRange(from = 1, to = PcmFrameChunker.MAX_FRAMES_PER_CHUNK) int frames) {
+            if (frames < 1 || frames > PcmFrameChunker.MAX_FRAMES_PER_CHUNK)
+                throw new IllegalArgumentException("invalid frames " + frames);
+            mP.audioFramesPerBuffer = frames;
+            return this;
+        }
+
+        /**
+         * @see VideoRecorder.Builder#setBackgroundMusic(BackgroundMusicConfig)
+         */
+        public Builder setBackgroundMusic(BackgroundMusicConfig config) {
+            mP.backgroundMusic = config != null ? config.clone() : null;
+            return this;
+        }
+
+        /**
+         * @see VideoRecorder.Builder#setAudioLevelRate(int)
+         */
+        public Builder setAudioLevelRate(@IntRange(from = 0, to = 100) int rateHz) {
+            if (rateHz < 0 || rateHz > 100) throw new IllegalArgumentException("invalid rate " + rateHz);
+            mP.audioLevelRate = rateHz;
+            return this;
+        }
+
+        /**
+         * @param enable 文件关闭之后把 moov 移动到文件开头 , 只对 FORMAT_M4A 有效
+         */
+        public Builder setFastStartEnable(boolean enable) {
+            mP.fastStart = enable;
+            return this;
+        }
+
+        public Builder setOutPutFile(File file) {
+            mP.mOutputFile = file;
+            return this;
+        }
+
+        public Builder setOutPutPath(String outputPath) {
+            mP.outputPath = outputPath;
+            return this;
+        }
+
+        /**
+         * @param outputStream 把 ADTS 流写入这个 OutputStream (比如推流的连接) , 而不是文件 ,
+         *                     只对 FORMAT_ADTS 有效 , 停止录制时 flush , 不会关闭
+         */
+        public Builder setOutputStream(OutputStream outputStream) {
+            mOutputStream = outputStream;
+            return this;
+        }
+
+        public Builder setCallbackHandler(VideoRecorderHandler viewHandler) {
+            mP.viewHandler = viewHandler;
+            return this;
+        }
+
+        public AudioRecorder build() {
+            if (mP.context == null)
+                throw new IllegalArgumentException("context cannot be null");
+            if (mOutputStream != null && mFormat != FORMAT_ADTS)
+                throw new IllegalArgumentException("OutputStream requires FORMAT_ADTS");
+            if (mP.mOutputFile == null && mP.outputPath == null) {
+                File filesDir = mP.context.getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+                if (filesDir == null) filesDir = mP.context.getFilesDir();
+                mP.outputPath = filesDir.getPath();
+            }
+            return new AudioRecorder(mP.clone(), mFormat, mOutputStream);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.erlei.videorecorder.recorder;
+
+/**
+ * 代替 RenderThread (相机 + EGL) 的预览帧来源 , 用于没有 GL 环境的情况 , 例如在 JVM 上运行的录制测试
+ * <p>
+ * VideoRecorder 在 startPreview 时调用 start , stopPreview 时调用 stop ;
+ * 每一帧调用 Callback.onFrameAvailable , 录制期间 VideoRecorder 在这个调用中把帧送入 createInputSurface 创建的 InputSurface
+ */
+public interface FrameSource {
+
+    interface Callback {
+
+        /**
+         * 在帧来源的线程中调用 , 相当于 RenderThread 渲染一帧
+         *
+         * @param timestampNs 帧的时间戳 , 和相机的 SurfaceTexture.getTimestamp 相同
+         */
+        void onFrameAvailable(long timestampNs);
+    }
+
+    /**
+     * 编码器的输入 , 相当于 RenderThread 中包装编码器输入 Surface 的 WindowSurface
+     */
+    interface InputSurface {
+
+        void setPresentationTime(long nsecs);
+
+        /**
+         * 把当前帧送入编码器
+         */
+        boolean swapBuffers();
+
+        void release();
+    }
+
+    void start(Callback callback);
+
+    /**
+     * @param surface 编码器的输入 Surface (MediaCodec.createInputSurface)
+     */
+    InputSurface createInputSurface(Object surface);
+
+    void stop();
+}
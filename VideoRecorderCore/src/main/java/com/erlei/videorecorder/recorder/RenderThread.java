@@ -111,7 +111,7 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
     private void onDrawFrame(long timestamp) {
         boolean swapBuffers;
         if (mCallBack != null) {
-            swapBuffers = mCallBack.onDrawFrame(mRenderer, mWindowSurface);
+            swapBuffers = mCallBack.onDrawFrame(mRenderer, mWindowSurface, timestamp);
         } else {
             mWindowSurface.makeCurrent();
             mRenderer.onDrawFrame();
@@ -191,7 +191,7 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
                     renderThread.onSizeChanged((Size) msg.obj);
                     break;
                 case MSG_DRAW_FRAME:
-                    renderThread.onDrawFrame((long) msg.obj);
+                    renderThread.onDrawFrame(((long) msg.arg1 << 32) | (msg.arg2 & 0xFFFFFFFFL));
                     break;
                 case MSG_DESTROY:
                     renderThread.onDestroy();
@@ -205,7 +205,8 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
         }
 
         public void onDrawFrame(long timestamp) {
-            sendMessage(obtainMessage(MSG_DRAW_FRAME, timestamp));
+            // 时间戳拆成两个 int , 避免每一帧装箱一个 Long
+            sendMessage(obtainMessage(MSG_DRAW_FRAME, (int) (timestamp >>> 32), (int) timestamp));
         }
 
         public void destroy() {
@@ -224,9 +225,10 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
         /**
          * 渲染一帧
          *
+         * @param timestampNs 相机帧的时间戳 SurfaceTexture.getTimestamp
          * @return swapBuffers
          */
-        boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface);
+        boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface, long timestampNs);
 
         /**
          * 渲染线程停止
@@ -8,11 +8,22 @@ import android.opengl.GLES30;
 import android.os.Environment;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
+import android.view.Surface;
 
 import com.erlei.videorecorder.camera.Camera;
 import com.erlei.videorecorder.camera.Size;
 import com.erlei.videorecorder.encoder1.MediaAudioEncoder;
+import com.erlei.videorecorder.encoder.BackgroundMusicConfig;
+import com.erlei.videorecorder.encoder.BitrateController;
+import com.erlei.videorecorder.encoder.AudioRecordFactory;
+import com.erlei.videorecorder.encoder.IMediaMuxer;
+import com.erlei.videorecorder.encoder.PcmFrameChunker;
+import com.erlei.videorecorder.encoder.VideoCodecConfig;
+import com.erlei.videorecorder.encoder1.AndroidEncoderCodec;
+import com.erlei.videorecorder.encoder1.EncoderSession;
+import com.erlei.videorecorder.encoder1.IEncoderCodec;
 import com.erlei.videorecorder.encoder1.MediaMuxerWrapper;
+import com.erlei.videorecorder.encoder1.PipelineStats;
 import com.erlei.videorecorder.encoder1.MediaVideoEncoder;
 import com.erlei.videorecorder.gles.EglCore;
 import com.erlei.videorecorder.gles.EglSurfaceBase;
@@ -22,6 +33,7 @@ import com.erlei.videorecorder.util.LogUtil;
 import com.erlei.videorecorder.util.SaveFrameTask;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.SimpleDateFormat;
@@ -30,7 +42,7 @@ import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorder {
+public class VideoRecorder implements RenderThread.RenderCallBack, FrameSource.Callback, IVideoRecorder {
 
     private static final String TAG = LogUtil.TAG;
     private final Object mSync = new Object();
@@ -40,8 +52,14 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     private RenderThread mRenderThread;
     private volatile boolean mRecordEnabled, mMuxerRunning, mRequestStart, mRequestStop, mPreviewState;
     private volatile WindowSurface mInputWindowSurface;
+    /**
+     * 使用 Config.frameSource 时代替 mInputWindowSurface
+     */
+    private volatile FrameSource.InputSurface mFrameInput;
     private volatile MediaVideoEncoder mVideoEncoder;
     private volatile MediaMuxerWrapper mMuxer;
+    private volatile PipelineStats mPipelineStats;
+    private EncoderSession mEncoderSession;
     private ByteBuffer mByteBuffer;
     private Size mSize;
     private volatile boolean mTakePicture;
@@ -60,10 +78,21 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     public synchronized void startPreview() {
         if (mPreviewState) return;
         mThreadExecutor = Executors.newSingleThreadExecutor();
-        mRenderThread = new RenderThread(mConfig);
-        mRenderThread.setCallBack(this);
-        mRenderThread.start();
+        if (mConfig.frameSource != null) {
+            mConfig.frameSource.start(this);
+        } else {
+            mRenderThread = new RenderThread(mConfig);
+            mRenderThread.setCallBack(this);
+            mRenderThread.start();
+        }
         mPreviewState = true;
+        // 预览期间加载编码器能力索引 , 开始录制时不再遍历 MediaCodecList
+        mThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConfig.getCodecFactory().getCapabilities(mConfig.context);
+            }
+        });
     }
 
     @Override
@@ -96,12 +125,20 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
 
     @Override
     public void onSizeChanged(int width, int height) {
+        if (mRenderThread == null) return;
         mRenderThread.getHandler().onSizeChanged(width, height);
 
     }
 
+    /**
+     * @return 当前 (或者最近一次) 录制的吞吐量和延迟统计 , 还没有开始录制时返回 null
+     */
+    public PipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
     public SurfaceTexture getPreviewTexture() {
-        return mRenderThread.getSurfaceTexture();
+        return mRenderThread == null ? null : mRenderThread.getSurfaceTexture();
     }
 
     /**
@@ -143,13 +180,26 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
                 LogUtil.loge(TAG, "startEncoder:begin");
                 synchronized (mSync) {
                     try {
-                        mMuxer = new MediaMuxerWrapper(mOutputFile.getAbsolutePath(), mConfig.viewHandler);
-                        mVideoEncoder = new MediaVideoEncoder(mMuxer, mConfig);
-                        new MediaAudioEncoder(mMuxer, mConfig);
-                        mMuxer.prepare();
-                        mMuxer.startRecording();
-
-                        mInputWindowSurface = new WindowSurface(mRenderThread.getEglCore(), mVideoEncoder.getSurface(), true);
+                        mMuxer = createMuxer(mOutputFile.getAbsolutePath());
+                        mMuxer.setFastStartEnable(mConfig.fastStart);
+                        mMuxer.setInterleaveWindowUs(mConfig.interleaveWindowMs * 1000L);
+                        mPipelineStats = mMuxer.getStats();
+                        if (isEncoderSessionEnable()) {
+                            if (mEncoderSession == null) mEncoderSession = new EncoderSession(mConfig);
+                            // 编码器还在运行时只切换 muxer , 继续使用之前的输入 Surface
+                            if (mEncoderSession.start(mMuxer) || (mInputWindowSurface == null && mFrameInput == null)) {
+                                releaseInputWindowSurface();
+                                mVideoEncoder = mEncoderSession.getVideoEncoder();
+                                createInputWindowSurface(mEncoderSession.getInputSurface());
+                            }
+                        } else {
+                            mVideoEncoder = new MediaVideoEncoder(mMuxer, mConfig);
+                            new MediaAudioEncoder(mMuxer, mConfig);
+                            mMuxer.prepare();
+                            mMuxer.startRecording();
+
+                            createInputWindowSurface(mVideoEncoder.getSurface());
+                        }
                     } catch (Exception e) {
                         e.printStackTrace();
                         LogUtil.loge(TAG, "startEncoder:" + e);
@@ -164,6 +214,54 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         });
     }
 
+    /**
+     * @return 是否在多次录制之间复用编码器 , API 19 以下 EncoderSession 每次录制重新创建编码器
+     */
+    private boolean isEncoderSessionEnable() {
+        return mConfig.encoderSession;
+    }
+
+    private MediaMuxerWrapper createMuxer(String output) throws IOException {
+        if (mConfig.muxerFactory != null) {
+            return new MediaMuxerWrapper(mConfig.muxerFactory.create(output), output, mConfig.viewHandler);
+        }
+        return new MediaMuxerWrapper(output, mConfig.viewHandler, mConfig.fragmentedMp4, mConfig.crashRecovery);
+    }
+
+    private void createInputWindowSurface(Surface surface) {
+        if (mConfig.frameSource != null) {
+            mFrameInput = mConfig.frameSource.createInputSurface(surface);
+        } else {
+            mInputWindowSurface = new WindowSurface(mRenderThread.getEglCore(), surface, true);
+        }
+    }
+
+    private void releaseInputWindowSurface() {
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.release();
+            mInputWindowSurface = null;
+        }
+        if (mFrameInput != null) {
+            mFrameInput.release();
+            mFrameInput = null;
+        }
+    }
+
+    /**
+     * 编码器输入帧使用相机的时间戳 , 而不是 swap 的时间
+     */
+    private void setPresentationTime(long timestampNs) {
+        MediaMuxerWrapper muxer = mMuxer;
+        if (muxer == null) return;
+        long presentationTimeNs = muxer.getClock().toVideoTimeNs(timestampNs);
+        if (mFrameInput != null) {
+            mFrameInput.setPresentationTime(presentationTimeNs);
+        } else {
+            mInputWindowSurface.setPresentationTime(presentationTimeNs);
+        }
+        mVideoEncoder.onFrameSubmitted(presentationTimeNs);
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @NonNull
     private File getOutPut() {
@@ -192,13 +290,16 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
                     LogUtil.loge(TAG, "stopEncoder:begin");
                     mMuxerRunning = false;
                     try {
-                        if (mMuxer != null) {
-                            mMuxer.stopRecording();
+                        if (mEncoderSession != null) {
+                            // 只结束当前文件 , 编码器和输入 Surface 留给下一次录制 , API 19 以下编码器已经停止
+                            if (mEncoderSession.stop()) releaseInputWindowSurface();
                             mMuxer = null;
-                        }
-                        if (mInputWindowSurface != null) {
-                            mInputWindowSurface.release();
-                            mInputWindowSurface = null;
+                        } else {
+                            if (mMuxer != null) {
+                                mMuxer.stopRecording();
+                                mMuxer = null;
+                            }
+                            releaseInputWindowSurface();
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -222,7 +323,19 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         mThreadExecutor = null;
         mMuxerRunning = false;
         mRecordEnabled = false;
-        mRenderThread.getHandler().destroy();
+        synchronized (mSync) {
+            if (mEncoderSession != null) {
+                mEncoderSession.release();
+                mEncoderSession = null;
+                mMuxer = null;
+                releaseInputWindowSurface();
+            }
+        }
+        if (mConfig.frameSource != null) {
+            mConfig.frameSource.stop();
+        } else {
+            mRenderThread.getHandler().destroy();
+        }
 
         mConfig.cameraController.closeCamera();
     }
@@ -248,45 +361,52 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
      *
      * @param renderer
      * @param windowSurface
+     * @param timestampNs   相机帧的时间戳 , 转换到 MediaClock 之后作为编码器输入帧的时间戳
      * @return swapBuffers
      */
     @Override
-    public synchronized boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface) {
+    public synchronized boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface, long timestampNs) {
         boolean swapBuffers;
         long startTime = System.currentTimeMillis();
         //使用mSync同步锁将导致录制开始的时候卡顿一下
 //        && !mRequestStart && !mRequestStop
-        if (mInputWindowSurface != null && mVideoEncoder != null && mRecordEnabled && mMuxerRunning && mPreviewState) {
+        if (mInputWindowSurface != null && mVideoEncoder != null && mRecordEnabled && mMuxerRunning && mPreviewState
+                && !mVideoEncoder.shouldSkipFrame()) {
             if (GLUtil.GL_VERSION >= 3) {
 
                 windowSurface.makeCurrent();
                 renderer.onDrawFrame();
-                mInputWindowSurface.makeCurrentReadFrom(windowSurface);
-                mVideoEncoder.frameAvailableSoon();
-                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                GLUtil.checkGlError("before glBlitFramebuffer");
-                GLES30.glBlitFramebuffer(
-                        0, 0, windowSurface.getWidth(), windowSurface.getHeight(),
-                        0, 0, windowSurface.getWidth(), windowSurface.getHeight(),
-                        GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
-
-                int err;
-                if ((err = GLES30.glGetError()) != GLES30.GL_NO_ERROR) {
-                    LogUtil.logw("ERROR: glBlitFramebuffer failed: 0x" + Integer.toHexString(err));
+                // 编码器已经停止或者正在切换文件时不接收这一帧 , 不能送入输入 Surface , 也不能记录为在途帧
+                if (mVideoEncoder.frameAvailableSoon()) {
+                    mInputWindowSurface.makeCurrentReadFrom(windowSurface);
+                    GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    GLUtil.checkGlError("before glBlitFramebuffer");
+                    GLES30.glBlitFramebuffer(
+                            0, 0, windowSurface.getWidth(), windowSurface.getHeight(),
+                            0, 0, windowSurface.getWidth(), windowSurface.getHeight(),
+                            GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
+
+                    int err;
+                    if ((err = GLES30.glGetError()) != GLES30.GL_NO_ERROR) {
+                        LogUtil.logw("ERROR: glBlitFramebuffer failed: 0x" + Integer.toHexString(err));
+                    }
+                    setPresentationTime(timestampNs);
+                    mInputWindowSurface.swapBuffers();
+                    windowSurface.makeCurrent();
                 }
-                mInputWindowSurface.swapBuffers();
-                windowSurface.makeCurrent();
                 swapBuffers = windowSurface.swapBuffers();
             } else {
                 windowSurface.makeCurrent();
                 renderer.onDrawFrame();
                 swapBuffers = windowSurface.swapBuffers();
 
-                mInputWindowSurface.makeCurrent();
-                mVideoEncoder.frameAvailableSoon();
-                renderer.onDrawFrame();
-                mInputWindowSurface.swapBuffers();
+                if (mVideoEncoder.frameAvailableSoon()) {
+                    mInputWindowSurface.makeCurrent();
+                    renderer.onDrawFrame();
+                    setPresentationTime(timestampNs);
+                    mInputWindowSurface.swapBuffers();
+                }
             }
         } else {
             windowSurface.makeCurrent();
@@ -306,6 +426,18 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         return swapBuffers;
     }
 
+    /**
+     * 使用 Config.frameSource 时每一帧调用 , 录制时送入编码器 , 和 onDrawFrame 的录制分支相同但是不绘制
+     */
+    @Override
+    public synchronized void onFrameAvailable(long timestampNs) {
+        final FrameSource.InputSurface input = mFrameInput;
+        if (input != null && mVideoEncoder != null && mRecordEnabled && mMuxerRunning && mPreviewState
+                && !mVideoEncoder.shouldSkipFrame() && mVideoEncoder.frameAvailableSoon()) {
+            setPresentationTime(timestampNs);
+            input.swapBuffers();
+        }
+    }
 
     @Override
     public void onStopped() {
@@ -373,6 +505,36 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return this;
         }
 
+        /**
+         * @param frames 每次送入音频编码器的 AAC 帧数 (每帧 1024 个采样) , 默认为 2
+         *               越大编码器的输入调用越少 , 但是音频时间戳的粒度越粗 , 编码器输入缓冲区不够大时自动减少
+         */
+        public Builder setAudioFramesPerBuffer(@IntRange(from = 1, to = PcmFrameChunker.MAX_FRAMES_PER_CHUNK) int frames) {
+            if (frames < 1 || frames > PcmFrameChunker.MAX_FRAMES_PER_CHUNK)
+                throw new IllegalArgumentException("invalid frames " + frames);
+            mP.audioFramesPerBuffer = frames;
+            return this;
+        }
+
+        /**
+         * @param config 录制时实时混入的背景音乐 , 可以设置音量和说话时的伴奏避让 , null 表示不混音 (默认)
+         *               文件无法解码时只录制麦克风
+         */
+        public Builder setBackgroundMusic(BackgroundMusicConfig config) {
+            mP.backgroundMusic = config != null ? config.clone() : null;
+            return this;
+        }
+
+        /**
+         * @param rateHz 每秒通过 VideoRecorderHandler#handleAudioLevel 回调音频电平的次数 ,
+         *               建议 AudioLevelMeter.DEFAULT_RATE_HZ , 0 表示不计算 (默认) , 需要设置 setCallbackHandler
+         */
+        public Builder setAudioLevelRate(@IntRange(from = 0, to = 100) int rateHz) {
+            if (rateHz < 0 || rateHz > 100) throw new IllegalArgumentException("invalid rate " + rateHz);
+            mP.audioLevelRate = rateHz;
+            return this;
+        }
+
         /**
          * 设置关键帧间隔
          */
@@ -413,6 +575,135 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return this;
         }
 
+        /**
+         * @param enable 是否输出 fragmented MP4 (使用纯 Java 的 FragmentedMp4Muxer 代替 MediaMuxer)
+         *               录制过程中进程被杀掉 , 已经写入的分片仍然可以播放 , 目前只支持 H.264 + AAC
+         */
+        public Builder setFragmentedMp4Enable(boolean enable) {
+            mP.fragmentedMp4 = enable;
+            return this;
+        }
+
+        /**
+         * @param enable 是否在录制的同时写入 sample 日志 (使用纯 Java 的 Mp4Writer 代替 MediaMuxer)
+         *               录制过程中进程被杀掉 , 下次启动时可以通过 Mp4Recovery.recover 或者 recoverDirectory 修复文件
+         *               对 fragmented MP4 无效 , 目前只支持 H.264 + AAC
+         */
+        public Builder setCrashRecoveryEnable(boolean enable) {
+            mP.crashRecovery = enable;
+            return this;
+        }
+
+        /**
+         * @param windowMs 写入文件之前按时间戳重新排序音视频 sample 的窗口 (毫秒) , 同一个轨道连续的 sample 会合并成一个 chunk
+         *                 默认 500ms , 0 表示按照编码器输出的顺序直接写入
+         */
+        public Builder setInterleaveWindow(int windowMs) {
+            if (windowMs < 0) throw new IllegalArgumentException("windowMs must >= 0");
+            mP.interleaveWindowMs = windowMs;
+            return this;
+        }
+
+        /**
+         * @param enable 录制完成后是否把 moov 移动到文件开头 , 方便边下载边播放
+         *               在原地移动数据 , 文件越大停止录制越慢 , 对 fragmented MP4 无效
+         */
+        public Builder setFastStartEnable(boolean enable) {
+            mP.fastStart = enable;
+            return this;
+        }
+
+        /**
+         * @param enable 根据写入 muxer 的积压和存储的写入速度实时调整视频码率 , 需要 API 19
+         */
+        public Builder setAdaptiveBitrateEnable(boolean enable) {
+            mP.adaptiveBitrate = enable;
+            return this;
+        }
+
+        /**
+         * @param minBitRate 动态码率的下限 , 0 表示初始码率的 1/4
+         * @param maxBitRate 动态码率的上限 , 0 表示初始码率
+         */
+        public Builder setVideoBitRateRange(int minBitRate, int maxBitRate) {
+            if (minBitRate < 0 || maxBitRate < 0 || (maxBitRate > 0 && maxBitRate < minBitRate))
+                throw new IllegalArgumentException("invalid bitrate range " + minBitRate + " - " + maxBitRate);
+            mP.minVideoBitRate = minBitRate;
+            mP.maxVideoBitRate = maxBitRate;
+            return this;
+        }
+
+        /**
+         * @param config 视频编码偏好 (HEVC , profile , 码率模式 , B 帧) , 设备不支持时自动回退 , 参考 VideoCodecSelector
+         *               默认使用 H.264 和编码器的默认参数
+         */
+        public Builder setVideoCodecConfig(VideoCodecConfig config) {
+            mP.videoCodecConfig = config != null ? config.clone() : null;
+            return this;
+        }
+
+        /**
+         * @param frames 送入编码器但还没有输出的帧达到这个数量时 , 跳过送入编码器 , 只绘制预览 ,
+         *               避免编码器跟不上时 swapBuffers 阻塞渲染线程 , 0 表示不跳过 (默认)
+         *               跳过的帧数和积压深度参考 VideoRecorder#getPipelineStats
+         */
+        public Builder setMaxInFlightFrames(int frames) {
+            if (frames < 0) throw new IllegalArgumentException("frames must >= 0");
+            mP.maxInFlightFrames = frames;
+            return this;
+        }
+
+        /**
+         * @param listener 动态码率的每次调整 , 在编码线程中回调
+         */
+        public Builder setBitrateListener(BitrateController.Listener listener) {
+            mP.bitrateListener = listener;
+            return this;
+        }
+
+        /**
+         * @param enable 多次录制 (比如 MultiPartRecorder 的每个视频块) 之间保持编码器和输入 Surface , 只切换 muxer ,
+         *               每个文件从关键帧开始 , 省去每次创建编码器的时间 , 两次录制之间麦克风保持打开 ,
+         *               请求关键帧需要 API 19 , 更低的版本仍然每次录制重新创建编码器
+         */
+        public Builder setEncoderSessionEnable(boolean enable) {
+            mP.encoderSession = enable;
+            return this;
+        }
+
+        /**
+         * @param frameSource 代替相机和 EGL 渲染的预览帧来源 , null 表示使用 RenderThread
+         */
+        public Builder setFrameSource(FrameSource frameSource) {
+            mP.frameSource = frameSource;
+            return this;
+        }
+
+        /**
+         * @param factory 创建编码器 , null 表示使用 MediaCodec
+         */
+        public Builder setCodecFactory(IEncoderCodec.Factory factory) {
+            mP.codecFactory = factory;
+            return this;
+        }
+
+        /**
+         * @param opener 打开麦克风 , null 表示使用 AudioRecordFactory.open
+         */
+        public Builder setAudioRecordOpener(AudioRecordFactory.Opener opener) {
+            mP.audioRecordOpener = opener;
+            return this;
+        }
+
+        /**
+         * @param factory 为每次录制创建混合器 , 设置之后 setFragmentedMp4Enable 和 setCrashRecoveryEnable 不再生效 ,
+         *                null 表示根据这两个选项写入文件
+         */
+        public Builder setMuxerFactory(IMediaMuxer.Factory factory) {
+            mP.muxerFactory = factory;
+            return this;
+        }
+
         public VideoRecorder build() {
             if (mP.context == null)
                 throw new IllegalArgumentException("context cannot be null");
@@ -455,15 +746,33 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         Context context;
         VideoRecorderHandler viewHandler;
         boolean logFPS;
+        boolean fragmentedMp4;
+        boolean fastStart;
+        boolean crashRecovery;
+        int interleaveWindowMs = 500;
+        boolean adaptiveBitrate;
+        int minVideoBitRate;
+        int maxVideoBitRate;
+        BitrateController.Listener bitrateListener;
+        boolean encoderSession;
+        int maxInFlightFrames;
+        VideoCodecConfig videoCodecConfig;
         File mOutputFile;
         int audioBitRate = 64000;
         int iFrameInterval = 5;
         int frameRate = 25;
         int audioSampleRate = 44100;
         int audioChannelCount = 1;
+        int audioFramesPerBuffer = PcmFrameChunker.DEFAULT_FRAMES_PER_CHUNK;
+        BackgroundMusicConfig backgroundMusic;
+        int audioLevelRate;
         int videoBitRate;
         String outputPath;
         Camera.CameraBuilder cameraBuilder;
+        FrameSource frameSource;
+        IEncoderCodec.Factory codecFactory;
+        AudioRecordFactory.Opener audioRecordOpener;
+        IMediaMuxer.Factory muxerFactory;
 
         Config(Context context, ICameraPreview cameraPreview) {
             this.context = context;
@@ -490,6 +799,58 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return mOutputFile;
         }
 
+        public boolean isFragmentedMp4() {
+            return fragmentedMp4;
+        }
+
+        public boolean isFastStart() {
+            return fastStart;
+        }
+
+        public boolean isCrashRecovery() {
+            return crashRecovery;
+        }
+
+        public int getInterleaveWindowMs() {
+            return interleaveWindowMs;
+        }
+
+        public boolean isAdaptiveBitrate() {
+            return adaptiveBitrate;
+        }
+
+        public int getMinVideoBitRate() {
+            return minVideoBitRate;
+        }
+
+        public int getMaxVideoBitRate() {
+            return maxVideoBitRate;
+        }
+
+        public BitrateController.Listener getBitrateListener() {
+            return bitrateListener;
+        }
+
+        public VideoCodecConfig getVideoCodecConfig() {
+            return videoCodecConfig;
+        }
+
+        public int getMaxInFlightFrames() {
+            return maxInFlightFrames;
+        }
+
+        public IEncoderCodec.Factory getCodecFactory() {
+            return codecFactory != null ? codecFactory : AndroidEncoderCodec.FACTORY;
+        }
+
+        public AudioRecordFactory.Opener getAudioRecordOpener() {
+            return audioRecordOpener != null ? audioRecordOpener : AudioRecordFactory.DEFAULT;
+        }
+
+        public boolean isEncoderSession() {
+            return encoderSession;
+        }
+
         public int getAudioBitRate() {
             return audioBitRate;
         }
@@ -510,6 +871,18 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return audioChannelCount;
         }
 
+        public int getAudioFramesPerBuffer() {
+            return audioFramesPerBuffer;
+        }
+
+        public BackgroundMusicConfig getBackgroundMusic() {
+            return backgroundMusic;
+        }
+
+        public int getAudioLevelRate() {
+            return audioLevelRate;
+        }
+
         public int getVideoBitRate() {
             return videoBitRate;
         }
@@ -542,6 +915,50 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             this.logFPS = logFPS;
         }
 
+        public void setFragmentedMp4(boolean fragmentedMp4) {
+            this.fragmentedMp4 = fragmentedMp4;
+        }
+
+        public void setFastStart(boolean fastStart) {
+            this.fastStart = fastStart;
+        }
+
+        public void setCrashRecovery(boolean crashRecovery) {
+            this.crashRecovery = crashRecovery;
+        }
+
+        public void setInterleaveWindowMs(int interleaveWindowMs) {
+            this.interleaveWindowMs = interleaveWindowMs;
+        }
+
+        public void setAdaptiveBitrate(boolean adaptiveBitrate) {
+            this.adaptiveBitrate = adaptiveBitrate;
+        }
+
+        public void setMinVideoBitRate(int minVideoBitRate) {
+            this.minVideoBitRate = minVideoBitRate;
+        }
+
+        public void setMaxVideoBitRate(int maxVideoBitRate) {
+            this.maxVideoBitRate = maxVideoBitRate;
+        }
+
+        public void setBitrateListener(BitrateController.Listener bitrateListener) {
+            this.bitrateListener = bitrateListener;
+        }
+
+        public void setVideoCodecConfig(VideoCodecConfig videoCodecConfig) {
+            this.videoCodecConfig = videoCodecConfig;
+        }
+
+        public void setMaxInFlightFrames(int maxInFlightFrames) {
+            this.maxInFlightFrames = maxInFlightFrames;
+        }
+
+        public void setEncoderSession(boolean encoderSession) {
+            this.encoderSession = encoderSession;
+        }
+
         public void setOutputFile(File outputFile) {
             mOutputFile = outputFile;
         }
@@ -566,6 +983,18 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             this.audioChannelCount = audioChannelCount;
         }
 
+        public void setAudioFramesPerBuffer(int audioFramesPerBuffer) {
+            this.audioFramesPerBuffer = audioFramesPerBuffer;
+        }
+
+        public void setBackgroundMusic(BackgroundMusicConfig backgroundMusic) {
+            this.backgroundMusic = backgroundMusic;
+        }
+
+        public void setAudioLevelRate(int audioLevelRate) {
+            this.audioLevelRate = audioLevelRate;
+        }
+
         public void setVideoBitRate(int videoBitRate) {
             this.videoBitRate = videoBitRate;
         }
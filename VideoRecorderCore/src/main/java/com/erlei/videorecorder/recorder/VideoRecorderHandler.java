@@ -3,15 +3,18 @@ package com.erlei.videorecorder.recorder;
 import android.os.Handler;
 import android.os.Message;
 
+import com.erlei.videorecorder.encoder.AudioLevelMeter;
 import com.erlei.videorecorder.encoder.MuxerCallback;
 
-public class VideoRecorderHandler extends Handler implements MuxerCallback {
+public class VideoRecorderHandler extends Handler implements MuxerCallback, AudioLevelMeter.Listener {
 
     protected static final int MSG_UPDATE_FPS = 1;
     protected static final int MSG_MEDIA_MUXER_STOPPED = 2;
     protected static final int MSG_MEDIA_MUXER_START = 3;
     protected static final int MSG_MEDIA_CAPTURE_START = 4;
     protected static final int MSG_MEDIA_CAPTURE_STOPPED = 5;
+    protected static final int MSG_AUDIO_LEVEL = 6;
+    private static final float FULL_SCALE = 32768f;
 
 
     @Override
@@ -33,6 +36,9 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
             case MSG_MEDIA_CAPTURE_STOPPED:
                 handleMediaCaptureStopped((String) msg.obj);
                 break;
+            case MSG_AUDIO_LEVEL:
+                handleAudioLevel(msg.arg1 / FULL_SCALE, (msg.arg2 & 0xffff) / FULL_SCALE, msg.arg2 >>> 16);
+                break;
         }
     }
 
@@ -95,6 +101,17 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
 
     }
 
+    /**
+     * 录制中的音频电平 , 频率由 VideoRecorder.Builder#setAudioLevelRate 设置
+     *
+     * @param rms       均方根电平 , 0 - 1 (满幅) , dBFS = 20 * log10(rms)
+     * @param peak      峰值电平 , 0 - 1
+     * @param clipCount 这段时间内削波的采样数 , 大于 0 时应该提示音量过大
+     */
+    protected void handleAudioLevel(float rms, float peak, int clipCount) {
+
+    }
+
 
     protected void updateFPS(float fps) {
         sendMessage(obtainMessage(MSG_UPDATE_FPS, fps));
@@ -115,6 +132,21 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
         sendMessage(obtainMessage(MSG_MEDIA_MUXER_STOPPED, output));
     }
 
+    /**
+     * 电平和峰值放在 Message 的 arg1 / arg2 中 , 不创建对象
+     */
+    @Override
+    public void onAudioLevel(int rms, int peak, int clipCount) {
+        sendMessage(obtainMessage(MSG_AUDIO_LEVEL, rms, packPeakAndClips(peak, clipCount)));
+    }
+
+    /**
+     * 峰值 (0 - 32768) 放在低 16 位 , 削波的采样数 (最多 0x7fff) 放在高 16 位 , 由 handleMessage 拆开
+     */
+    static int packPeakAndClips(int peak, int clipCount) {
+        return (Math.min(clipCount, 0x7fff) << 16) | peak;
+    }
+
     public void onCaptureStarted(String output) {
         sendMessage(obtainMessage(MSG_MEDIA_CAPTURE_START, output));
     }
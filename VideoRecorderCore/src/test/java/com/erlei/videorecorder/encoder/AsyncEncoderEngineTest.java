@@ -0,0 +1,364 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncEncoderEngineTest {
+
+    private static final int INPUT_CAPACITY = 64;
+
+    /**
+     * 送入编码器的一个输入缓冲区
+     */
+    static class QueuedInput {
+        final int index;
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+
+        QueuedInput(int index, byte[] data, long presentationTimeUs, int flags) {
+            this.index = index;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * 原样输出的假编码器 , 由测试决定输入缓冲区什么时候空闲 , 什么时候产生输出
+     */
+    static class FakeCodec implements ICodecAdapter {
+        ICodecAdapter.Callback callback;
+        final ByteBuffer[] inputs;
+        final ByteBuffer[] outputs;
+        final List<QueuedInput> queued = new ArrayList<>();
+        final ArrayDeque<QueuedInput> encoding = new ArrayDeque<>();
+        final List<Integer> released = new ArrayList<>();
+        boolean endOfInputStreamSignaled;
+
+        FakeCodec(int bufferCount) {
+            inputs = new ByteBuffer[bufferCount];
+            outputs = new ByteBuffer[bufferCount];
+            for (int i = 0; i < bufferCount; i++) {
+                inputs[i] = ByteBuffer.allocate(INPUT_CAPACITY);
+                outputs[i] = ByteBuffer.allocate(INPUT_CAPACITY + 16);
+            }
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return inputs[index];
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return outputs[index];
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            byte[] data = Arrays.copyOfRange(inputs[index].array(), offset, offset + size);
+            QueuedInput input = new QueuedInput(index, data, presentationTimeUs, flags);
+            queued.add(input);
+            encoding.addLast(input);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            released.add(index);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            endOfInputStreamSignaled = true;
+        }
+
+        void inputAvailable(int... indexes) {
+            for (int index : indexes) {
+                callback.onInputBufferAvailable(index);
+            }
+        }
+
+        /**
+         * 每个已经送入的输入产生一个输出 , 数据前面加 8 字节的偏移 , 验证 offset 的处理
+         */
+        void drain() {
+            while (!encoding.isEmpty()) {
+                QueuedInput input = encoding.pollFirst();
+                ByteBuffer output = outputs[input.index];
+                output.clear();
+                output.position(8);
+                output.put(input.data);
+                output.clear();
+                int flags = (input.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                        ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+                callback.onOutputBufferAvailable(input.index, 8, input.data.length, input.presentationTimeUs, flags);
+            }
+        }
+    }
+
+    static class RecordingListener implements AsyncEncoderEngine.Listener {
+        final List<byte[]> data = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        int formatChanges;
+        int endOfStreams;
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onOutputFormatChanged() {
+            formatChanges++;
+        }
+
+        @Override
+        public void onEncodedData(ByteBuffer data, long presentationTimeUs, int flags) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            this.data.add(bytes);
+            timestamps.add(presentationTimeUs);
+        }
+
+        @Override
+        public void onEndOfStream() {
+            endOfStreams++;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+
+    @Test
+    public void inputsAndOutputsKeepOrder() {
+        FakeCodec codec = new FakeCodec(4);
+        RecordingListener listener = new RecordingListener();
+        AsyncEncoderEngine engine = newEngine(codec, listener, AsyncEncoderEngine.DEFAULT_MAX_PENDING_INPUTS);
+
+        // 输入缓冲区还没有空闲 , 数据进入等待队列
+        for (int i = 0; i < 6; i++) {
+            engine.queueInput(frame(i), 40, i * 1000L);
+        }
+        assertEquals(6, engine.getPendingInputCount());
+        assertTrue(codec.queued.isEmpty());
+
+        codec.inputAvailable(2, 0, 3);
+        codec.drain();
+        codec.inputAvailable(2, 0, 3, 1);
+        assertEquals(0, engine.getPendingInputCount());
+        // 等待队列清空之后 , 多出来的输入缓冲区保留给之后的数据
+        assertEquals(1, engine.getAvailableInputCount());
+        engine.queueInput(frame(6), 40, 6000L);
+        codec.drain();
+
+        assertEquals(7, codec.queued.size());
+        assertEquals(7, listener.data.size());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i * 1000L, codec.queued.get(i).presentationTimeUs);
+            assertArrayEquals(bytes(frame(i), 40), codec.queued.get(i).data);
+            assertEquals(Long.valueOf(i * 1000L), listener.timestamps.get(i));
+            assertArrayEquals(bytes(frame(i), 40), listener.data.get(i));
+        }
+        assertEquals(Arrays.asList(2, 0, 3, 2, 0, 3, 1), codec.released);
+        assertEquals(7, engine.getInputCount());
+        assertEquals(7, engine.getOutputCount());
+    }
+
+    @Test
+    public void fullPendingQueueDropsOldest() {
+        FakeCodec codec = new FakeCodec(2);
+        RecordingListener listener = new RecordingListener();
+        AsyncEncoderEngine engine = newEngine(codec, listener, 3);
+
+        for (int i = 0; i < 5; i++) {
+            engine.queueInput(frame(i), 40, i * 1000L);
+        }
+        assertEquals(2, engine.getDroppedInputCount());
+        codec.inputAvailable(0, 1);
+        codec.drain();
+        codec.inputAvailable(0);
+
+        assertEquals(3, codec.queued.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals((i + 2) * 1000L, codec.queued.get(i).presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void oversizedInputIsTruncated() {
+        FakeCodec codec = new FakeCodec(1);
+        AsyncEncoderEngine engine = newEngine(codec, new RecordingListener(), 4);
+        codec.inputAvailable(0);
+
+        engine.queueInput(ByteBuffer.allocate(INPUT_CAPACITY * 2), INPUT_CAPACITY * 2, 0);
+
+        assertEquals(INPUT_CAPACITY, codec.queued.get(0).data.length);
+        assertTrue(engine.toString().contains("truncated=1"));
+    }
+
+    @Test
+    public void endOfStreamFollowsPendingInputs() {
+        FakeCodec codec = new FakeCodec(4);
+        RecordingListener listener = new RecordingListener();
+        AsyncEncoderEngine engine = newEngine(codec, listener, 8);
+        for (int i = 0; i < 3; i++) {
+            engine.queueInput(frame(i), 40, i * 1000L);
+        }
+
+        engine.signalEndOfStream();
+        // 停止之后送入的数据被忽略
+        engine.queueInput(frame(9), 40, 9000L);
+        assertTrue(codec.queued.isEmpty());
+        assertEquals(3, engine.getPendingInputCount());
+
+        codec.inputAvailable(0, 1, 2, 3);
+        assertEquals(4, codec.queued.size());
+        QueuedInput eos = codec.queued.get(3);
+        assertEquals(0, eos.data.length);
+        assertTrue((eos.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, codec.queued.get(i).flags);
+        }
+        assertFalse(engine.isEndOfStream());
+
+        codec.drain();
+        assertTrue(engine.isEndOfStream());
+        assertEquals(1, listener.endOfStreams);
+        assertEquals(3, listener.data.size());
+        assertEquals(4, codec.released.size());
+
+        // 结束之后编码器的回调都被忽略
+        codec.inputAvailable(0);
+        codec.callback.onOutputBufferAvailable(1, 0, 4, 10000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        assertEquals(4, codec.queued.size());
+        assertEquals(1, listener.endOfStreams);
+    }
+
+    @Test
+    public void endOfStreamUsesIdleInputBuffer() {
+        FakeCodec codec = new FakeCodec(2);
+        AsyncEncoderEngine engine = newEngine(codec, new RecordingListener(), 4);
+        codec.inputAvailable(1);
+
+        engine.signalEndOfStream();
+
+        assertEquals(1, codec.queued.size());
+        assertEquals(1, codec.queued.get(0).index);
+        assertTrue((codec.queued.get(0).flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        engine.signalEndOfStream();
+        assertEquals(1, codec.queued.size());
+    }
+
+    @Test
+    public void surfaceInputSignalsEndOfInputStream() {
+        FakeCodec codec = new FakeCodec(2);
+        RecordingListener listener = new RecordingListener();
+        AsyncEncoderEngine engine = new AsyncEncoderEngine(codec, true, listener);
+        engine.attach();
+        try {
+            engine.queueInput(frame(0), 40, 0);
+            fail("surface input encoder accepts no buffers");
+        } catch (IllegalStateException expected) {
+            // 预期的异常
+        }
+
+        engine.signalEndOfStream();
+
+        assertTrue(codec.endOfInputStreamSignaled);
+        codec.inputAvailable(0);
+        assertTrue(codec.queued.isEmpty());
+        codec.callback.onOutputBufferAvailable(0, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        assertEquals(1, listener.endOfStreams);
+    }
+
+    @Test
+    public void codecConfigIsNotForwarded() {
+        FakeCodec codec = new FakeCodec(1);
+        RecordingListener listener = new RecordingListener();
+        newEngine(codec, listener, 4);
+
+        codec.callback.onOutputFormatChanged();
+        codec.callback.onOutputBufferAvailable(0, 0, 16, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        assertEquals(1, listener.formatChanges);
+        assertTrue(listener.data.isEmpty());
+        assertEquals(Arrays.asList(0), codec.released);
+    }
+
+    @Test
+    public void errorsArePropagated() {
+        FakeCodec codec = new FakeCodec(1);
+        RecordingListener listener = new RecordingListener();
+        newEngine(codec, listener, 4);
+        Exception error = new IllegalStateException("codec error");
+
+        codec.callback.onError(error);
+
+        assertEquals(1, listener.errors.size());
+        assertSame(error, listener.errors.get(0));
+    }
+
+    @Test
+    public void outputBufferReleasedWhenListenerThrows() {
+        FakeCodec codec = new FakeCodec(1);
+        final RuntimeException failure = new RuntimeException("muxer failed");
+        AsyncEncoderEngine engine = newEngine(codec, new RecordingListener() {
+            @Override
+            public void onEncodedData(ByteBuffer data, long presentationTimeUs, int flags) {
+                throw failure;
+            }
+        }, 4);
+        codec.inputAvailable(0);
+        engine.queueInput(frame(0), 40, 0);
+
+        try {
+            codec.drain();
+            fail("listener exception should reach the codec callback");
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(Arrays.asList(0), codec.released);
+    }
+
+    private static AsyncEncoderEngine newEngine(FakeCodec codec, RecordingListener listener, int maxPendingInputs) {
+        AsyncEncoderEngine engine = new AsyncEncoderEngine(codec, false, listener, maxPendingInputs);
+        engine.attach();
+        return engine;
+    }
+
+    /**
+     * position 不为 0 的输入 , 验证只拷贝 position 之后的数据
+     */
+    private static ByteBuffer frame(int index) {
+        ByteBuffer buffer = ByteBuffer.allocate(48);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (index * 16 + i));
+        }
+        buffer.position(4);
+        return buffer;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
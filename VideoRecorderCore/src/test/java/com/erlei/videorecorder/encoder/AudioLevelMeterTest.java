@@ -0,0 +1,130 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioLevelMeterTest {
+
+    /**
+     * 记录每次回调的 {rms , peak , clipCount}
+     */
+    private static class Levels implements AudioLevelMeter.Listener {
+        final List<int[]> levels = new ArrayList<>();
+
+        @Override
+        public void onAudioLevel(int rms, int peak, int clipCount) {
+            levels.add(new int[]{rms, peak, clipCount});
+        }
+    }
+
+    @Test
+    public void publishesOncePerWindowAcrossBuffers() {
+        Levels levels = new Levels();
+        AudioLevelMeter meter = new AudioLevelMeter(44100, 2, 20, levels);
+        // 1 秒多一点 , 每次的长度和窗口 (2205 帧) 没有关系
+        byte[] pcm = toBytes(PcmSignals.sine(44100, 44100 + 1000, 0.5, 1000, 1000));
+        Random random = new Random(1);
+        for (int offset = 0; offset < pcm.length; ) {
+            final int length = Math.min(pcm.length - offset, 4 * (1 + random.nextInt(3000)));
+            meter.process(pcm, offset, length);
+            offset += length;
+        }
+        // 最后不满一个窗口的部分不回调
+        assertEquals(20, levels.levels.size());
+    }
+
+    @Test
+    public void sineLevels() {
+        Levels levels = new Levels();
+        AudioLevelMeter meter = new AudioLevelMeter(48000, 1, 10, levels);
+        byte[] pcm = toBytes(PcmSignals.sine(48000, 4800, 0.5, 1000));
+        meter.process(pcm, 0, pcm.length);
+
+        assertEquals(1, levels.levels.size());
+        int[] level = levels.levels.get(0);
+        assertEquals(0.5 * Short.MAX_VALUE / Math.sqrt(2), level[0], 20);
+        assertEquals(0.5 * Short.MAX_VALUE, level[1], 2);
+        assertEquals(0, level[2]);
+    }
+
+    @Test
+    public void countsClippedSamplesPerWindow() {
+        Levels levels = new Levels();
+        AudioLevelMeter meter = new AudioLevelMeter(1000, 2, 10, levels);
+        short[] samples = new short[100 * 2 * 2];
+        // 第一个窗口 : 3 个正向满幅和 2 个负向满幅 , 分布在两个声道
+        samples[0] = Short.MAX_VALUE;
+        samples[11] = Short.MAX_VALUE;
+        samples[50] = Short.MIN_VALUE;
+        samples[51] = Short.MIN_VALUE;
+        samples[199] = Short.MAX_VALUE;
+        // 第二个窗口 : 接近满幅但是没有削波
+        samples[200] = Short.MAX_VALUE - 1;
+        byte[] pcm = toBytes(samples);
+        meter.process(pcm, 0, pcm.length);
+
+        assertEquals(2, levels.levels.size());
+        assertEquals(5, levels.levels.get(0)[2]);
+        // -32768 的绝对值是 32768
+        assertEquals(32768, levels.levels.get(0)[1]);
+        assertEquals(0, levels.levels.get(1)[2]);
+        assertEquals(Short.MAX_VALUE - 1, levels.levels.get(1)[1]);
+    }
+
+    @Test
+    public void windowStateResetsAfterPublish() {
+        Levels levels = new Levels();
+        AudioLevelMeter meter = new AudioLevelMeter(1000, 1, 10, levels);
+        short[] samples = new short[200];
+        for (int i = 0; i < 100; i++) {
+            samples[i] = 10000;
+        }
+        byte[] pcm = toBytes(samples);
+        meter.process(pcm, 0, pcm.length);
+
+        assertEquals(2, levels.levels.size());
+        assertEquals(10000, levels.levels.get(0)[0]);
+        assertEquals(10000, levels.levels.get(0)[1]);
+        // 第二个窗口是静音 , 不受第一个窗口影响
+        assertEquals(0, levels.levels.get(1)[0]);
+        assertEquals(0, levels.levels.get(1)[1]);
+    }
+
+    @Test
+    public void respectsOffset() {
+        Levels levels = new Levels();
+        AudioLevelMeter meter = new AudioLevelMeter(1000, 1, 10, levels);
+        short[] samples = new short[101];
+        samples[0] = Short.MAX_VALUE;
+        for (int i = 1; i < samples.length; i++) {
+            samples[i] = 100;
+        }
+        byte[] pcm = toBytes(samples);
+        meter.process(pcm, 2, pcm.length - 2);
+        assertEquals(1, levels.levels.size());
+        assertEquals(100, levels.levels.get(0)[1]);
+        assertEquals(0, levels.levels.get(0)[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRateAboveSampleRate() {
+        new AudioLevelMeter(1000, 1, 1001, new Levels());
+    }
+
+    /**
+     * 16bit 小端 , 和 AudioRecord 读取的数据相同
+     */
+    static byte[] toBytes(short[] samples) {
+        byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[i * 2] = (byte) samples[i];
+            bytes[i * 2 + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+}
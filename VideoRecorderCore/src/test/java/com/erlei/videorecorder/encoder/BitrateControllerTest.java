@@ -0,0 +1,155 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+
+    private static final int MIN = 1000000;
+    private static final int MAX = 8000000;
+    private static final int INITIAL = 4000000;
+    private static final long INTERVAL_NS = 1000000000L;
+    /**
+     * (MAX - MIN) / ADDITIVE_STEPS
+     */
+    private static final int STEP = 700000;
+
+    private final List<BitrateController.Decision> mDecisions = new ArrayList<>();
+    private BitrateController mController;
+    private long mNowNs;
+
+    @Before
+    public void setUp() {
+        mController = create(INITIAL);
+    }
+
+    private BitrateController create(int initial) {
+        BitrateController controller = new BitrateController(initial, MIN, MAX, INTERVAL_NS / 1000000L);
+        controller.setListener(new BitrateController.Listener() {
+            @Override
+            public void onBitrateChanged(BitrateController.Decision decision) {
+                mDecisions.add(decision);
+            }
+        });
+        // 第一次 update 只开始统计周期
+        assertFalse(controller.update(mNowNs));
+        return controller;
+    }
+
+    @Test
+    public void noDecisionBeforeIntervalEnds() {
+        mController.onSampleWritten(1000, 0, 10);
+        assertFalse(mController.update(mNowNs + INTERVAL_NS - 1));
+        assertEquals(INITIAL, mController.getBitrate());
+    }
+
+    @Test
+    public void backlogDecreasesMultiplicatively() {
+        assertTrue(interval(INITIAL, 0, 3));
+        assertEquals(2800000, mController.getBitrate());
+        BitrateController.Decision decision = mDecisions.get(0);
+        assertTrue(decision.isDecrease());
+        assertEquals(INITIAL, decision.previousBitrate);
+        assertEquals(3, decision.backlog);
+    }
+
+    @Test
+    public void writeLoadDecreasesMultiplicatively() {
+        // 写入占用了周期的 60%
+        assertTrue(interval(INITIAL, INTERVAL_NS * 6 / 10, 0));
+        assertEquals(2800000, mController.getBitrate());
+        BitrateController.Decision decision = mDecisions.get(0);
+        assertEquals(0.6f, decision.writeLoad, 0.01f);
+        assertEquals(INITIAL / 6 * 10, decision.storageBitrate, INITIAL / 100);
+    }
+
+    @Test
+    public void decreaseIsClampedToMin() {
+        for (int i = 0; i < 10; i++) {
+            interval(mController.getBitrate(), 0, 5);
+        }
+        assertEquals(MIN, mController.getBitrate());
+        assertFalse(interval(MIN, 0, 5));
+        assertEquals(MIN, mController.getBitrate());
+    }
+
+    @Test
+    public void increasesAdditivelyAfterStableIntervals() {
+        assertFalse(interval(INITIAL, 0, 0));
+        assertFalse(interval(INITIAL, 0, 1));
+        assertTrue(interval(INITIAL, 0, 0));
+        assertEquals(INITIAL + STEP, mController.getBitrate());
+        assertFalse(mDecisions.get(0).isDecrease());
+        // 增加之后重新计数
+        assertFalse(interval(mController.getBitrate(), 0, 0));
+        assertFalse(interval(mController.getBitrate(), 0, 0));
+        assertTrue(interval(mController.getBitrate(), 0, 0));
+        assertEquals(INITIAL + 2 * STEP, mController.getBitrate());
+    }
+
+    @Test
+    public void increaseIsClampedToMax() {
+        for (int i = 0; i < 3 * 10; i++) {
+            interval(mController.getBitrate(), 0, 0);
+        }
+        assertEquals(MAX, mController.getBitrate());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(interval(MAX, 0, 0));
+        }
+        assertEquals(MAX, mController.getBitrate());
+    }
+
+    @Test
+    public void moderateLoadResetsStableIntervals() {
+        assertFalse(interval(INITIAL, 0, 0));
+        assertFalse(interval(INITIAL, 0, 0));
+        // 写入占用 30% , 既不减少也不算空闲
+        assertFalse(interval(INITIAL, INTERVAL_NS * 3 / 10, 0));
+        assertFalse(interval(INITIAL, 0, 0));
+        assertFalse(interval(INITIAL, 0, 0));
+        assertTrue(interval(INITIAL, 0, 0));
+        assertEquals(INITIAL + STEP, mController.getBitrate());
+    }
+
+    @Test
+    public void underutilizedBitrateIsNotIncreased() {
+        // 画面简单 , 输出码率只有目标的一半
+        for (int i = 0; i < 6; i++) {
+            assertFalse(interval(INITIAL / 2, 0, 0));
+        }
+        assertEquals(INITIAL, mController.getBitrate());
+        assertTrue(mDecisions.isEmpty());
+    }
+
+    @Test
+    public void initialBitrateIsClamped() {
+        assertEquals(MAX, create(MAX * 2).getBitrate());
+        assertEquals(MIN, create(MIN / 2).getBitrate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRange() {
+        new BitrateController(INITIAL, MAX, MIN);
+    }
+
+    /**
+     * 模拟一个统计周期 : 30 个 sample 总共 outputBitrate / 8 字节 , 总写入时间 writeTimeNs
+     *
+     * @return 周期结束时码率是否改变
+     */
+    private boolean interval(int outputBitrate, long writeTimeNs, int backlog) {
+        final int samples = 30;
+        for (int i = 0; i < samples; i++) {
+            mController.onSampleWritten(outputBitrate / 8 / samples, writeTimeNs / samples, i == samples / 2 ? backlog : 0);
+        }
+        mNowNs += INTERVAL_NS;
+        return mController.update(mNowNs);
+    }
+}
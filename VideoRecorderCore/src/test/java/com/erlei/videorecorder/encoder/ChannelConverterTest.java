@@ -0,0 +1,50 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ChannelConverterTest {
+
+    @Test
+    public void monoIsCopiedToEveryChannel() {
+        short[] output = new short[6];
+        ChannelConverter.convert(new short[]{1, -2, 3}, 0, 1, output, 0, 2, 3);
+        assertArrayEquals(new short[]{1, 1, -2, -2, 3, 3}, output);
+    }
+
+    @Test
+    public void downmixToMonoAverages() {
+        short[] output = new short[3];
+        ChannelConverter.convert(new short[]{100, 300, Short.MAX_VALUE, Short.MAX_VALUE, Short.MIN_VALUE, -1}, 0, 2,
+                output, 0, 1, 3);
+        // 求和使用 int , 满幅度不会溢出
+        assertArrayEquals(new short[]{200, Short.MAX_VALUE, (short) ((Short.MIN_VALUE - 1) / 2)}, output);
+    }
+
+    @Test
+    public void multichannelToStereoKeepsFrontPair() {
+        short[] output = new short[4];
+        ChannelConverter.convert(new short[]{1, 2, 3, 4, 5, 6, 7, 8}, 0, 4, output, 0, 2, 2);
+        assertArrayEquals(new short[]{1, 2, 5, 6}, output);
+    }
+
+    @Test
+    public void sameChannelsCopiesWithOffsets() {
+        short[] output = new short[5];
+        ChannelConverter.convert(new short[]{9, 1, 2, 3, 4}, 1, 2, output, 1, 2, 2);
+        assertArrayEquals(new short[]{0, 1, 2, 3, 4}, output);
+    }
+
+    @Test
+    public void offsetsAreInSamples() {
+        short[] output = new short[5];
+        ChannelConverter.convert(new short[]{9, 9, 10, 20, 30, 40}, 2, 2, output, 1, 1, 2);
+        assertArrayEquals(new short[]{0, 15, 35, 0, 0}, output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidChannels() {
+        ChannelConverter.convert(new short[2], 0, 0, new short[2], 0, 1, 1);
+    }
+}
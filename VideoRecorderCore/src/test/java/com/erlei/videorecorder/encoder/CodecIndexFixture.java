@@ -0,0 +1,72 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodecInfo;
+
+import java.util.Arrays;
+
+/**
+ * 在测试中构造 CodecCapabilityIndex , 代替设备上遍历 MediaCodecList 得到的索引
+ */
+public class CodecIndexFixture {
+
+    public static final int COLOR_FORMAT_SURFACE = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+
+    public static CodecCapabilityIndex index(CodecCapabilityIndex.Entry... entries) {
+        return new CodecCapabilityIndex("fixture", Arrays.asList(entries));
+    }
+
+    /**
+     * 支持 Surface 输入 , 尺寸 , 码率 , profile 和码率模式未知 (相当于 API 21 以下) 的编码器
+     */
+    public static CodecCapabilityIndex.Entry surfaceEncoder(String name, String mimeType) {
+        return new CodecCapabilityIndex.Entry(name, mimeType, new int[]{COLOR_FORMAT_SURFACE}, new int[0], new int[0],
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * 支持 Surface 输入的视频编码器 , 尺寸范围 16 ~ maxWidth x maxHeight , 宽高 2 对齐 , 码率 64k ~ 20M
+     *
+     * @param bitrateModes  modes 得到的码率模式
+     * @param profileLevels 依次为 profile , level , profile , level ...
+     */
+    public static CodecCapabilityIndex.Entry videoEncoder(String name, String mimeType, int maxWidth, int maxHeight,
+                                                          int bitrateModes, int... profileLevels) {
+        int[] profiles = new int[profileLevels.length / 2];
+        int[] levels = new int[profileLevels.length / 2];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = profileLevels[i * 2];
+            levels[i] = profileLevels[i * 2 + 1];
+        }
+        return new CodecCapabilityIndex.Entry(name, mimeType, new int[]{COLOR_FORMAT_SURFACE}, profiles, levels,
+                16, maxWidth, 16, maxHeight, 2, 2, 64000, 20000000, 0, bitrateModes);
+    }
+
+    /**
+     * 只支持 YUV 输入的视频编码器 , 尺寸和 profile 不限
+     */
+    public static CodecCapabilityIndex.Entry bufferEncoder(String name, String mimeType) {
+        return new CodecCapabilityIndex.Entry(name, mimeType,
+                new int[]{MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar}, new int[0], new int[0],
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param modes VideoCodecConfig.BITRATE_MODE_*
+     * @return Entry.bitrateModes
+     */
+    public static int modes(int... modes) {
+        int bits = 0;
+        for (int mode : modes) {
+            bits |= 1 << mode;
+        }
+        return bits;
+    }
+
+    /**
+     * 没有颜色格式的编码器 , 用于音频
+     */
+    public static CodecCapabilityIndex.Entry encoder(String name, String mimeType) {
+        return new CodecCapabilityIndex.Entry(name, mimeType, new int[0], new int[0], new int[0],
+                0, 0, 0, 0, 0, 0, 0, 0, 2, 0);
+    }
+}
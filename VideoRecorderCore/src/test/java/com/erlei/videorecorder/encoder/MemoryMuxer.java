@@ -0,0 +1,195 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 不写文件的混合器 , 只记录每个 sample 的轨道 , 时间戳 , 大小 , 标记和数据的第一个字节
+ * 调用顺序和 MediaMuxer 的要求不一致时抛出 IllegalStateException
+ * <p>
+ * 可测试的 android.jar 中 BufferInfo.set 是空方法 , 经过 SampleInterleaver 的 sample 到达这里时 BufferInfo 全部是 0 .
+ * 这时从 StubEncoderCodec 写入的数据中读取时间戳和标记 , 大小使用 ByteBuffer 剩余的字节数
+ */
+public class MemoryMuxer implements IMediaMuxer {
+
+    /**
+     * 记录创建的所有混合器 , 每次录制一个
+     */
+    public static class Factory implements IMediaMuxer.Factory {
+        private final List<MemoryMuxer> mMuxers = new ArrayList<>();
+
+        @Override
+        public synchronized IMediaMuxer create(String output) {
+            MemoryMuxer muxer = new MemoryMuxer(output);
+            mMuxers.add(muxer);
+            notifyAll();
+            return muxer;
+        }
+
+        public synchronized List<MemoryMuxer> getMuxers() {
+            return new ArrayList<>(mMuxers);
+        }
+
+        /**
+         * 等待创建第 count 个混合器
+         *
+         * @return 超时返回 null
+         */
+        public synchronized MemoryMuxer await(int count, long timeoutMs) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            long wait;
+            while (mMuxers.size() < count && (wait = deadline - System.currentTimeMillis()) > 0) {
+                wait(wait);
+            }
+            return mMuxers.size() < count ? null : mMuxers.get(count - 1);
+        }
+    }
+
+    public static class Sample {
+        public final int track;
+        public final long presentationTimeUs;
+        public final int size;
+        public final int flags;
+        /**
+         * 数据的第一个字节
+         */
+        public final byte kind;
+        public final long writeTimeNs;
+
+        Sample(int track, long presentationTimeUs, int size, int flags, byte kind, long writeTimeNs) {
+            this.track = track;
+            this.presentationTimeUs = presentationTimeUs;
+            this.size = size;
+            this.flags = flags;
+            this.kind = kind;
+            this.writeTimeNs = writeTimeNs;
+        }
+
+        public boolean isSyncFrame() {
+            return (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        }
+    }
+
+    private final String mOutput;
+    private final List<MediaFormat> mTracks = new ArrayList<>();
+    private final List<Sample> mSamples = new ArrayList<>();
+    private boolean mStarted, mStopped, mReleased;
+    private long mStartNs = -1, mReleaseNs = -1;
+
+    public MemoryMuxer(String output) {
+        mOutput = output;
+    }
+
+    public String getOutput() {
+        return mOutput;
+    }
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        if (mStarted) throw new IllegalStateException("addTrack after start");
+        mTracks.add(format);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) throw new IllegalStateException("already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track");
+        mStarted = true;
+        mStartNs = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!mStarted || mStopped) throw new IllegalStateException("writeSampleData when not started");
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) throw new IllegalArgumentException("track " + trackIndex);
+        final long writeTimeNs = System.nanoTime();
+        if (bufferInfo.size == 0 && bufferInfo.presentationTimeUs == 0 && byteBuf.remaining() > 0) {
+            // BufferInfo.set 没有生效 , 数据是 {kind , presentationTimeUs , flags , ...}
+            final int offset = byteBuf.position();
+            mSamples.add(new Sample(trackIndex, byteBuf.getLong(offset + 1), byteBuf.remaining(), byteBuf.getInt(offset + 9),
+                    byteBuf.get(offset), writeTimeNs));
+            return;
+        }
+        if (bufferInfo.size <= 0) throw new IllegalArgumentException("size " + bufferInfo.size);
+        mSamples.add(new Sample(trackIndex, bufferInfo.presentationTimeUs, bufferInfo.size, bufferInfo.flags,
+                byteBuf.get(bufferInfo.offset), writeTimeNs));
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mStarted || mStopped) throw new IllegalStateException("stop when not started");
+        mStopped = true;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mReleased) return;
+        mReleased = true;
+        mReleaseNs = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * @return 超时返回 false
+     */
+    public synchronized boolean awaitRelease(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long wait;
+        while (!mReleased && (wait = deadline - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+        return mReleased;
+    }
+
+    public synchronized int getTrackCount() {
+        return mTracks.size();
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    public synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<>(mSamples);
+    }
+
+    /**
+     * @param kind 数据的第一个字节 , 用于区分音频和视频
+     */
+    public synchronized List<Sample> getSamples(byte kind) {
+        List<Sample> samples = new ArrayList<>();
+        for (Sample sample : mSamples) {
+            if (sample.kind == kind) samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * @return 第一个 sample 写入的 nanoTime , 还没有写入时返回 -1
+     */
+    public synchronized long getFirstSampleNs() {
+        return mSamples.isEmpty() ? -1 : mSamples.get(0).writeTimeNs;
+    }
+
+    public synchronized long getStartNs() {
+        return mStartNs;
+    }
+
+    public synchronized long getReleaseNs() {
+        return mReleaseNs;
+    }
+}
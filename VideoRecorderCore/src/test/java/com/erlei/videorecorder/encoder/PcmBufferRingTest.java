@@ -0,0 +1,235 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodec;
+import android.os.Message;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PcmBufferRingTest {
+
+    /**
+     * 记录每次 encode 的 {长度 , 时间戳 , 第一个字节} , 不创建 MediaCodec
+     */
+    private static class RecordingEncoder extends MediaEncoder {
+        final List<long[]> encoded = new ArrayList<>();
+        ByteBuffer lastBuffer;
+        int drainCount;
+        boolean failEncode;
+
+        RecordingEncoder() {
+            super(null, "RecordingEncoder");
+        }
+
+        @Override
+        protected MediaCodec createEncoder() throws IOException {
+            throw new IOException("not used");
+        }
+
+        @Override
+        protected void encode(ByteBuffer buffer, int length, long presentationTimeUs) {
+            if (failEncode) throw new IllegalStateException("encode failed");
+            lastBuffer = buffer;
+            encoded.add(new long[]{length, presentationTimeUs, buffer == null ? -1 : buffer.get(buffer.position())});
+        }
+
+        @Override
+        protected void frameAvailableSoon() {
+            drainCount++;
+        }
+    }
+
+    @Test
+    public void slotsCycleInPublishOrder() {
+        PcmBufferRing ring = new PcmBufferRing(3, 64);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = ring.getBuffer(i);
+        }
+        for (int round = 0; round < 10; round++) {
+            final int first = write(ring, 10, round * 1000L);
+            final int second = write(ring, 20, round * 1000L + 500);
+            assertEquals(2, ring.getPendingCount());
+
+            assertEquals(first, ring.poll());
+            assertEquals(10, ring.getSize(first));
+            assertEquals(round * 1000L, ring.getPresentationTimeUs(first));
+            ring.release(first);
+            assertEquals(second, ring.poll());
+            assertEquals(round * 1000L + 500, ring.getPresentationTimeUs(second));
+            ring.release(second);
+            assertEquals(-1, ring.poll());
+        }
+        // 槽位的缓冲区在创建时分配 , 之后一直重复使用
+        for (int i = 0; i < 3; i++) {
+            assertSame(buffers[i], ring.getBuffer(i));
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void pollExposesPublishedBytes() {
+        PcmBufferRing ring = new PcmBufferRing(2, 64);
+        final int slot = ring.acquire();
+        ring.getBuffer(slot).put(new byte[]{1, 2, 3, 4, 5});
+        ring.publish(slot, 5, 0);
+
+        assertEquals(slot, ring.poll());
+        ByteBuffer buffer = ring.getBuffer(slot);
+        assertEquals(0, buffer.position());
+        assertEquals(5, buffer.limit());
+        assertEquals(5, buffer.get(4));
+        ring.release(slot);
+        // 归还之后下一次写入从头开始 , 可以写满整个槽位
+        assertEquals(64, buffer.remaining());
+    }
+
+    @Test
+    public void exhaustionCountsDrops() {
+        PcmBufferRing ring = new PcmBufferRing(2, 16);
+        write(ring, 4, 0);
+        write(ring, 4, 1);
+        assertEquals(-1, ring.acquire());
+        assertEquals(-1, ring.acquire());
+        assertEquals(2, ring.getDroppedCount());
+
+        // 编码线程归还之后采集线程可以继续写入 , 已经排队的数据不受影响
+        final int slot = ring.poll();
+        ring.release(slot);
+        assertEquals(slot, ring.acquire());
+        assertEquals(1, ring.getPendingCount());
+        assertEquals(2, ring.getDroppedCount());
+    }
+
+    @Test
+    public void unpublishedSlotCanBeReleased() {
+        PcmBufferRing ring = new PcmBufferRing(1, 16);
+        final int slot = ring.acquire();
+        // AudioRecord 读取失败 , 槽位没有 publish 直接归还
+        ring.release(slot);
+        assertEquals(0, ring.getPendingCount());
+        assertEquals(-1, ring.poll());
+        assertEquals(slot, ring.acquire());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrows() {
+        PcmBufferRing ring = new PcmBufferRing(2, 16);
+        final int slot = write(ring, 4, 0);
+        ring.release(ring.poll());
+        ring.release(slot);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new PcmBufferRing(0, 16);
+    }
+
+    @Test
+    public void encodePcmDrainsAndReleasesEverySlot() {
+        PcmBufferRing ring = new PcmBufferRing(3, 16);
+        for (int i = 0; i < 3; i++) {
+            final int slot = ring.acquire();
+            ring.getBuffer(slot).put((byte) (i + 1));
+            ring.publish(slot, 4 + i, 1000L * i);
+        }
+        RecordingEncoder encoder = new RecordingEncoder();
+        handle(encoder, pcmMessage(ring));
+
+        assertEquals(3, encoder.encoded.size());
+        for (int i = 0; i < 3; i++) {
+            long[] encoded = encoder.encoded.get(i);
+            assertEquals(4 + i, encoded[0]);
+            assertEquals(1000L * i, encoded[1]);
+            assertEquals(i + 1, encoded[2]);
+        }
+        assertEquals(3, encoder.drainCount);
+        assertEquals(0, ring.getPendingCount());
+        for (int i = 0; i < 3; i++) {
+            ring.acquire();
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void encodePcmReleasesSlotWhenEncodeFails() {
+        PcmBufferRing ring = new PcmBufferRing(1, 16);
+        write(ring, 4, 0);
+        RecordingEncoder encoder = new RecordingEncoder();
+        encoder.failEncode = true;
+        try {
+            handle(encoder, pcmMessage(ring));
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        assertEquals(0, ring.acquire());
+    }
+
+    @Test
+    public void timestampSurvivesMessageArgs() {
+        final long[] timestamps = {
+                0, 1, -1, Integer.MAX_VALUE, 0x80000000L, 0xFFFFFFFFL, 0x100000000L,
+                // 低 32 位的最高位为 1 , 拼接时不能按有符号数扩展
+                0x123L << 32 | 0x89ABCDEFL,
+                System.nanoTime() / 1000L, Long.MAX_VALUE, Long.MIN_VALUE
+        };
+        RecordingEncoder encoder = new RecordingEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.limit(6);
+        for (long timestamp : timestamps) {
+            Message msg = new Message();
+            msg.what = MediaEncoder.MediaEncoderHandler.MSG_ENCODE_FRAME;
+            msg.arg1 = MediaEncoder.timestampHigh(timestamp);
+            msg.arg2 = MediaEncoder.timestampLow(timestamp);
+            msg.obj = buffer;
+            handle(encoder, msg);
+            assertEquals(timestamp, encoder.encoded.get(encoder.encoded.size() - 1)[1]);
+        }
+        assertSame(buffer, encoder.lastBuffer);
+        assertEquals(6, encoder.encoded.get(0)[0]);
+    }
+
+    @Test
+    public void nullFrameIsEndOfStream() {
+        RecordingEncoder encoder = new RecordingEncoder();
+        Message msg = new Message();
+        msg.what = MediaEncoder.MediaEncoderHandler.MSG_ENCODE_FRAME;
+        msg.arg1 = MediaEncoder.timestampHigh(5000000000L);
+        msg.arg2 = MediaEncoder.timestampLow(5000000000L);
+        handle(encoder, msg);
+        assertNull(encoder.lastBuffer);
+        assertEquals(0, encoder.encoded.get(0)[0]);
+        assertEquals(5000000000L, encoder.encoded.get(0)[1]);
+    }
+
+    private static int write(PcmBufferRing ring, int size, long presentationTimeUs) {
+        final int slot = ring.acquire();
+        ring.getBuffer(slot).put(new byte[size]);
+        ring.publish(slot, size, presentationTimeUs);
+        return slot;
+    }
+
+    private static Message pcmMessage(PcmBufferRing ring) {
+        Message msg = new Message();
+        msg.what = MediaEncoder.MediaEncoderHandler.MSG_ENCODE_PCM;
+        msg.obj = ring;
+        return msg;
+    }
+
+    /**
+     * 在当前线程中处理 , 和编码线程处理消息的逻辑相同
+     */
+    private static void handle(MediaEncoder encoder, Message msg) {
+        encoder.new MediaEncoderHandler(null, encoder).handleMessage(msg);
+    }
+}
@@ -0,0 +1,109 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 采集线程中 PCM 转换的吞吐量 , 单线程运行 , 结果是每个核心每秒处理的输入采样数 (帧 * 声道数)
+ * <p>
+ * 每个转换先预热再计时 , 结果打印到标准输出 ; 断言只检查远低于实测值的下限 (至少 20 倍实时) ,
+ * 用于发现数量级的退化 , 不用于比较小的差异
+ */
+public class PcmConversionBenchmark {
+
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long WARMUP_MS = 300;
+    private static final long MEASURE_MS = 700;
+    /**
+     * 48kHz 立体声实时需要 96000 采样/秒
+     */
+    private static final double MIN_SAMPLES_PER_SECOND = 96000 * 20;
+
+    private interface Conversion {
+        /**
+         * 转换 input 中的全部数据
+         */
+        void run(short[] input);
+    }
+
+    @Test
+    public void resampleMono44kTo48k() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(44100, 48000, 1);
+        final short[] output = new short[resampler.getMaxOutputFrames(CHUNK_FRAMES)];
+        measure("PolyphaseResampler 44100 -> 48000 mono", PcmSignals.sine(44100, 44100, 0.5, 1000), 1, new Conversion() {
+            @Override
+            public void run(short[] input) {
+                for (int in = 0; in < input.length; in += CHUNK_FRAMES) {
+                    resampler.process(input, in, Math.min(CHUNK_FRAMES, input.length - in), output, 0);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void resampleStereo48kTo44k() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(48000, 44100, 2);
+        final short[] output = new short[resampler.getMaxOutputFrames(CHUNK_FRAMES) * 2];
+        measure("PolyphaseResampler 48000 -> 44100 stereo", PcmSignals.sine(48000, 48000, 0.5, 1000, 440), 2, new Conversion() {
+            @Override
+            public void run(short[] input) {
+                final int frames = input.length / 2;
+                for (int in = 0; in < frames; in += CHUNK_FRAMES) {
+                    resampler.process(input, in * 2, Math.min(CHUNK_FRAMES, frames - in), output, 0);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void downmixStereoToMono() {
+        final short[] output = new short[48000];
+        measure("ChannelConverter stereo -> mono", PcmSignals.sine(48000, 48000, 0.5, 1000, 440), 2, new Conversion() {
+            @Override
+            public void run(short[] input) {
+                ChannelConverter.convert(input, 0, 2, output, 0, 1, input.length / 2);
+            }
+        });
+    }
+
+    @Test
+    public void convertStereo48kToMono44k() {
+        final PcmFormatConverter converter = new PcmFormatConverter(48000, 2, 44100, 1, CHUNK_FRAMES);
+        measure("PcmFormatConverter 48000/2 -> 44100/1", PcmSignals.sine(48000, 48000, 0.5, 1000, 440), 2, new Conversion() {
+            @Override
+            public void run(short[] input) {
+                final int frames = input.length / 2;
+                for (int in = 0; in < frames; in += CHUNK_FRAMES) {
+                    converter.convert(input, in * 2, Math.min(CHUNK_FRAMES, frames - in));
+                }
+            }
+        });
+    }
+
+    private static void measure(String name, short[] input, int channels, Conversion conversion) {
+        run(conversion, input, WARMUP_MS);
+        final long start = System.nanoTime();
+        final long rounds = run(conversion, input, MEASURE_MS);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final double samplesPerSecond = rounds * input.length / seconds;
+        // input 是 1 秒的音频
+        final double realtime = rounds / seconds;
+        System.out.println(String.format("%s : %.1fM samples/s per core , %.0fx realtime",
+                name, samplesPerSecond / 1e6, realtime));
+        assertTrue(name + " " + samplesPerSecond, samplesPerSecond > MIN_SAMPLES_PER_SECOND);
+    }
+
+    /**
+     * @return 完整转换 input 的次数
+     */
+    private static long run(Conversion conversion, short[] input, long durationMs) {
+        final long end = System.nanoTime() + durationMs * 1000000L;
+        long rounds = 0;
+        do {
+            conversion.run(input);
+            rounds++;
+        } while (System.nanoTime() < end);
+        return rounds;
+    }
+}
@@ -0,0 +1,83 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFormatConverterTest {
+
+    private static final int CHUNK_FRAMES = 1024;
+
+    @Test
+    public void stereo48kToMono44k() {
+        final short[] input = PcmSignals.sine(48000, 48000, 0.5, 1000, 1000);
+        PcmFormatConverter converter = new PcmFormatConverter(48000, 2, 44100, 1, CHUNK_FRAMES);
+        short[] output = convert(converter, input, 2, 1);
+
+        assertEquals(44100, output.length, 1.0);
+        double snr = PcmSignals.snr(output, 1, 0, 64, output.length, 44100, 1000);
+        System.out.println("convert 48000/2 -> 44100/1 snr " + String.format("%.1f", snr) + "dB");
+        assertTrue("snr " + snr, snr > 60);
+    }
+
+    @Test
+    public void mono16kToStereo44k() {
+        final short[] input = PcmSignals.sine(16000, 16000, 0.5, 1000);
+        PcmFormatConverter converter = new PcmFormatConverter(16000, 1, 44100, 2, CHUNK_FRAMES);
+        short[] output = convert(converter, input, 1, 2);
+
+        final int frames = output.length / 2;
+        assertEquals(44100, frames, 1.0);
+        for (int c = 0; c < 2; c++) {
+            double snr = PcmSignals.snr(output, 2, c, 128, frames, 44100, 1000);
+            assertTrue("channel " + c + " snr " + snr, snr > 60);
+        }
+        for (int f = 0; f < frames; f++) {
+            assertEquals(output[f * 2], output[f * 2 + 1]);
+        }
+    }
+
+    @Test
+    public void channelsOnlyKeepsFrameCount() {
+        final short[] input = PcmSignals.sine(44100, 4410, 0.5, 440, 880);
+        PcmFormatConverter converter = new PcmFormatConverter(44100, 2, 44100, 1, CHUNK_FRAMES);
+        short[] output = convert(converter, input, 2, 1);
+
+        short[] expected = new short[4410];
+        ChannelConverter.convert(input, 0, 2, expected, 0, 1, 4410);
+        assertArrayEquals(expected, output);
+    }
+
+    @Test
+    public void ratesOnlyMatchesResampler() {
+        final short[] input = PcmSignals.sine(44100, 44100, 0.5, 1000);
+        short[] output = convert(new PcmFormatConverter(44100, 1, 48000, 1, CHUNK_FRAMES), input, 1, 1);
+        assertArrayEquals(PolyphaseResamplerTest.resample(new PolyphaseResampler(44100, 48000, 1), input, 1, CHUNK_FRAMES), output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSameFormat() {
+        new PcmFormatConverter(44100, 1, 44100, 1, CHUNK_FRAMES);
+    }
+
+    /**
+     * 和 AudioThread 相同 , 每次转换不超过 CHUNK_FRAMES 帧
+     */
+    static short[] convert(PcmFormatConverter converter, short[] input, int inputChannels, int outputChannels) {
+        final int inputFrames = input.length / inputChannels;
+        short[] output = new short[0];
+        int samples = 0;
+        for (int in = 0; in < inputFrames; in += CHUNK_FRAMES) {
+            final int frames = converter.convert(input, in * inputChannels, Math.min(CHUNK_FRAMES, inputFrames - in));
+            assertEquals(frames * outputChannels, converter.getOutputSamples());
+            output = Arrays.copyOf(output, samples + converter.getOutputSamples());
+            System.arraycopy(converter.getOutput(), 0, output, samples, converter.getOutputSamples());
+            samples += converter.getOutputSamples();
+        }
+        return output;
+    }
+}
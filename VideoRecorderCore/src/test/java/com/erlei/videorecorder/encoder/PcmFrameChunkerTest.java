@@ -0,0 +1,167 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFrameChunkerTest {
+
+    /**
+     * 返回连续的字节序列 , 每次读取的长度按 readSizes 循环 , 模拟 AudioRecord 不按 AAC 帧返回数据
+     */
+    private static class SequenceRecord extends AudioRecord {
+        private final int[] mReadSizes;
+        private int mReads;
+        private int mNext;
+        private int mMaxRequest;
+
+        SequenceRecord(int... readSizes) {
+            super(MediaRecorder.AudioSource.MIC, 44100, AudioFormat.CHANNEL_IN_STEREO, AudioFormat.ENCODING_PCM_16BIT, 8192);
+            mReadSizes = readSizes;
+        }
+
+        @Override
+        public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            mMaxRequest = Math.max(mMaxRequest, sizeInBytes);
+            final int size = Math.min(sizeInBytes, mReadSizes[mReads++ % mReadSizes.length]);
+            for (int i = 0; i < size; i++) {
+                audioData[offsetInBytes + i] = (byte) mNext++;
+            }
+            return size;
+        }
+    }
+
+    @Test
+    public void chunkIsWholeAacFrames() {
+        PcmFrameChunker chunker = new PcmFrameChunker(2, 2);
+        assertEquals(2048, chunker.getChunkFrames());
+        assertEquals(2048 * 4, chunker.getChunkSize());
+        assertEquals(1024 * 2, PcmFrameChunker.getChunkSize(1, 1));
+    }
+
+    @Test
+    public void fitFramesPerChunkRespectsInputSize() {
+        assertEquals(2, PcmFrameChunker.fitFramesPerChunk(2, 2, 16384));
+        assertEquals(1, PcmFrameChunker.fitFramesPerChunk(2, 2, 4096 + 100));
+        // 输入缓冲区比一个 AAC 帧还小时仍然至少 1 帧
+        assertEquals(1, PcmFrameChunker.fitFramesPerChunk(2, 2, 1000));
+    }
+
+    @Test
+    public void readsCarryOverAcrossChunks() {
+        // 每次读取的长度和块大小 (4096 字节) 没有倍数关系
+        SequenceRecord record = new SequenceRecord(1500, 1000, 252);
+        PcmFrameChunker chunker = new PcmFrameChunker(2, 1);
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        int total = 0;
+        for (int i = 0; i < 10; i++) {
+            while (!chunker.isFull()) {
+                total += chunker.read(record, Integer.MAX_VALUE);
+            }
+            ByteBuffer chunk = chunker.takeChunk();
+            assertEquals(0, chunk.position());
+            assertEquals(chunker.getChunkSize(), chunk.remaining());
+            chunks.write(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+        }
+        // 每次最多读到块满 , 块的边界不会切断一次读取之外的数据
+        assertEquals(10 * chunker.getChunkSize(), total);
+        assertTrue(record.mMaxRequest <= chunker.getChunkSize());
+        assertArrayEquals(sequence(total), chunks.toByteArray());
+    }
+
+    @Test
+    public void readIsLimitedToWholeFrames() {
+        SequenceRecord record = new SequenceRecord(4096);
+        PcmFrameChunker chunker = new PcmFrameChunker(2, 1);
+        // 立体声一帧 4 字节
+        assertEquals(4, chunker.read(record, 7));
+        assertEquals(0, chunker.read(record, 3));
+        assertEquals(1, chunker.getPendingFrames());
+        assertEquals(8, chunker.read(record, 8));
+        assertEquals(3, chunker.getPendingFrames());
+    }
+
+    @Test
+    public void appendShortsCarriesRemainderToNextChunk() {
+        PcmFrameChunker chunker = new PcmFrameChunker(1, 1);
+        short[] samples = new short[3000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i * 7 - 5000);
+        }
+        int written = chunker.append(samples, 0, samples.length);
+        assertEquals(1024, written);
+        assertTrue(chunker.isFull());
+        assertSamples(chunker.takeChunk(), samples, 0, 1024);
+
+        written += chunker.append(samples, written, samples.length - written);
+        assertEquals(2048, written);
+        assertSamples(chunker.takeChunk(), samples, 1024, 1024);
+
+        written += chunker.append(samples, written, samples.length - written);
+        assertEquals(samples.length, written);
+        assertFalse(chunker.isFull());
+        assertEquals(3000 - 2048, chunker.getPendingFrames());
+        // 没有写满的块取出已经写入的部分
+        assertSamples(chunker.takeChunk(), samples, 2048, 3000 - 2048);
+        assertEquals(0, chunker.getPendingFrames());
+    }
+
+    @Test
+    public void appendBufferAdvancesSource() {
+        PcmFrameChunker chunker = new PcmFrameChunker(2, 1);
+        ByteBuffer src = ByteBuffer.wrap(sequence(5000));
+        assertTrue(chunker.append(src));
+        assertEquals(5000 - 4096, src.remaining());
+        ByteBuffer first = chunker.takeChunk();
+        assertEquals(0, first.get(0));
+        assertEquals((byte) 4095, first.get(4095));
+
+        assertFalse(chunker.append(src));
+        assertEquals(0, src.remaining());
+        assertEquals((5000 - 4096) / 4, chunker.getPendingFrames());
+        assertEquals((byte) 4096, chunker.takeChunk().get(0));
+    }
+
+    @Test
+    public void discardReturnsPendingFrames() {
+        PcmFrameChunker chunker = new PcmFrameChunker(2, 1);
+        chunker.append(ByteBuffer.wrap(sequence(400)));
+        assertEquals(100, chunker.discard());
+        assertEquals(0, chunker.getPendingFrames());
+        assertEquals(0, chunker.takeChunk().remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyFramesPerChunk() {
+        new PcmFrameChunker(1, PcmFrameChunker.MAX_FRAMES_PER_CHUNK + 1);
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * 块中的数据是小端的 16bit 采样
+     */
+    private static void assertSamples(ByteBuffer chunk, short[] samples, int from, int count) {
+        assertEquals(count * 2, chunk.remaining());
+        for (int i = 0; i < count; i++) {
+            final int low = chunk.get(i * 2) & 0xff, high = chunk.get(i * 2 + 1);
+            assertEquals("sample " + (from + i), samples[from + i], (short) (high << 8 | low));
+        }
+    }
+}
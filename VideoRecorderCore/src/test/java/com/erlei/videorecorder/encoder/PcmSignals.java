@@ -0,0 +1,65 @@
+package com.erlei.videorecorder.encoder;
+
+/**
+ * 测试用的 16bit 交错 PCM 信号和质量度量
+ */
+public class PcmSignals {
+
+    /**
+     * @param amplitude 相对满幅度 , 0 ~ 1
+     * @param hz        每个声道的频率 , 长度等于声道数
+     */
+    public static short[] sine(int rate, int frames, double amplitude, double... hz) {
+        final int channels = hz.length;
+        final short[] pcm = new short[frames * channels];
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                pcm[f * channels + c] = (short) Math.round(amplitude * Short.MAX_VALUE * Math.sin(2 * Math.PI * hz[c] * f / rate));
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * 用最小二乘拟合 hz 的正弦 (幅度和相位未知 , 所以不需要知道重采样的延迟) , 残差作为噪声
+     *
+     * @param from 开始的帧 , 跳过滤波器的起始瞬态
+     * @param to   结束的帧 (不包括)
+     * @return 信噪比 (dB)
+     */
+    public static double snr(short[] pcm, int channels, int channel, int from, int to, int rate, double hz) {
+        final double w = 2 * Math.PI * hz / rate;
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int f = from; f < to; f++) {
+            final double s = Math.sin(w * f), c = Math.cos(w * f), y = pcm[f * channels + channel];
+            ss += s * s;
+            sc += s * c;
+            cc += c * c;
+            ys += y * s;
+            yc += y * c;
+        }
+        final double det = ss * cc - sc * sc;
+        final double a = (ys * cc - yc * sc) / det;
+        final double b = (yc * ss - ys * sc) / det;
+        double signal = 0, noise = 0;
+        for (int f = from; f < to; f++) {
+            final double fit = a * Math.sin(w * f) + b * Math.cos(w * f);
+            final double error = pcm[f * channels + channel] - fit;
+            signal += fit * fit;
+            noise += error * error;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1e-9));
+    }
+
+    /**
+     * @return 均方根 , 用于检查静音的声道
+     */
+    public static double rms(short[] pcm, int channels, int channel, int from, int to) {
+        double sum = 0;
+        for (int f = from; f < to; f++) {
+            final double y = pcm[f * channels + channel];
+            sum += y * y;
+        }
+        return Math.sqrt(sum / Math.max(1, to - from));
+    }
+}
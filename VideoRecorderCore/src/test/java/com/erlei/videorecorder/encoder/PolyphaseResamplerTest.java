@@ -0,0 +1,125 @@
+package com.erlei.videorecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseResamplerTest {
+
+    /**
+     * 常见的麦克风和编码采样率组合 {输入 , 输出}
+     */
+    private static final int[][] RATES = {
+            {44100, 48000}, {48000, 44100}, {16000, 48000}, {48000, 16000}, {8000, 44100}, {44100, 22050}};
+    private static final double TONE_HZ = 1000;
+    private static final double MIN_SNR_DB = 60;
+
+    @Test
+    public void outputFrameCountFollowsRateRatio() {
+        for (int[] rates : RATES) {
+            final int inputFrames = rates[0] * 2;
+            PolyphaseResampler resampler = new PolyphaseResampler(rates[0], rates[1], 1);
+            short[] output = resample(resampler, new short[inputFrames], 1, 1024);
+            final double expected = (double) inputFrames * rates[1] / rates[0];
+            assertEquals(rates[0] + " -> " + rates[1], expected, output.length, 1.0);
+        }
+    }
+
+    @Test
+    public void chunkSizeDoesNotChangeOutput() {
+        final short[] input = PcmSignals.sine(44100, 44100, 0.5, 1000, 3000);
+        short[] whole = resample(new PolyphaseResampler(44100, 48000, 2), input, 2, input.length / 2);
+        short[] chunked = resample(new PolyphaseResampler(44100, 48000, 2), input, 2, 0);
+        assertArrayEquals(whole, chunked);
+    }
+
+    @Test
+    public void sineKeepsHighSnr() {
+        for (int[] rates : RATES) {
+            final short[] input = PcmSignals.sine(rates[0], rates[0], 0.5, TONE_HZ);
+            short[] output = resample(new PolyphaseResampler(rates[0], rates[1], 1), input, 1, 1024);
+            final int skip = PolyphaseResampler.DEFAULT_TAPS * rates[1] / rates[0] + 2;
+            double snr = PcmSignals.snr(output, 1, 0, skip, output.length, rates[1], TONE_HZ);
+            System.out.println("resample " + rates[0] + " -> " + rates[1] + " snr " + String.format("%.1f", snr) + "dB");
+            assertTrue(rates[0] + " -> " + rates[1] + " snr " + snr, snr > MIN_SNR_DB);
+        }
+    }
+
+    @Test
+    public void channelsAreIndependent() {
+        final short[] input = PcmSignals.sine(48000, 48000, 0.5, 440, 0);
+        short[] output = resample(new PolyphaseResampler(48000, 44100, 2), input, 2, 1024);
+        final int frames = output.length / 2;
+        assertTrue(PcmSignals.snr(output, 2, 0, 64, frames, 44100, 440) > MIN_SNR_DB);
+        assertEquals(0, PcmSignals.rms(output, 2, 1, 0, frames), 0.0);
+    }
+
+    @Test
+    public void dcGainIsUnity() {
+        short[] input = new short[4800];
+        Arrays.fill(input, (short) 10000);
+        short[] output = resample(new PolyphaseResampler(48000, 44100, 1), input, 1, 1024);
+        for (int i = PolyphaseResampler.DEFAULT_TAPS; i < output.length; i++) {
+            assertEquals(10000, output[i], 1);
+        }
+    }
+
+    @Test
+    public void fullScaleDoesNotWrap() {
+        short[] input = new short[4800];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (i / 4) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] output = resample(new PolyphaseResampler(48000, 44100, 1), input, 1, 1024);
+        // 方波的过冲被限幅 , 不会溢出成相反的符号
+        assertEquals(Short.MAX_VALUE, max(output));
+        assertEquals(Short.MIN_VALUE, min(output));
+    }
+
+    @Test
+    public void resetStartsFromSilence() {
+        final short[] input = PcmSignals.sine(44100, 4410, 0.5, 1000);
+        PolyphaseResampler resampler = new PolyphaseResampler(44100, 48000, 1);
+        short[] first = resample(resampler, input, 1, 1024);
+        resampler.reset();
+        assertArrayEquals(first, resample(resampler, input, 1, 1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyPhases() {
+        new PolyphaseResampler(44100, 44099, 1);
+    }
+
+    /**
+     * @param chunkFrames 每次 process 的帧数 , 0 表示使用随机长度
+     */
+    static short[] resample(PolyphaseResampler resampler, short[] input, int channels, int chunkFrames) {
+        final int inputFrames = input.length / channels;
+        final short[] output = new short[resampler.getMaxOutputFrames(inputFrames) * channels + 4 * channels];
+        final Random random = new Random(1);
+        int in = 0, out = 0;
+        while (in < inputFrames) {
+            final int frames = Math.min(inputFrames - in, chunkFrames > 0 ? chunkFrames : 1 + random.nextInt(700));
+            out += resampler.process(input, in * channels, frames, output, out * channels);
+            in += frames;
+        }
+        return Arrays.copyOf(output, out * channels);
+    }
+
+    private static short max(short[] pcm) {
+        short max = Short.MIN_VALUE;
+        for (short s : pcm) max = (short) Math.max(max, s);
+        return max;
+    }
+
+    private static short min(short[] pcm) {
+        short min = Short.MAX_VALUE;
+        for (short s : pcm) min = (short) Math.min(min, s);
+        return min;
+    }
+}
@@ -0,0 +1,186 @@
+package com.erlei.videorecorder.encoder;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static com.erlei.videorecorder.encoder.CodecIndexFixture.index;
+import static com.erlei.videorecorder.encoder.CodecIndexFixture.modes;
+import static com.erlei.videorecorder.encoder.CodecIndexFixture.videoEncoder;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.BITRATE_MODE_CBR;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.BITRATE_MODE_CQ;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.BITRATE_MODE_DEFAULT;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.BITRATE_MODE_VBR;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.MIME_AVC;
+import static com.erlei.videorecorder.encoder.VideoCodecConfig.MIME_HEVC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class VideoCodecSelectorTest {
+
+    private static final int API_KITKAT = 19;
+    private static final int API_LOLLIPOP = 21;
+    private static final int API_MARSHMALLOW = 23;
+    private static final int API_PIE = 28;
+    private static final int API_Q = 29;
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    private static final CodecCapabilityIndex.Entry AVC = videoEncoder("avc", MIME_AVC, 1920, 1088,
+            modes(BITRATE_MODE_CQ, BITRATE_MODE_VBR, BITRATE_MODE_CBR),
+            CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel31,
+            CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel41,
+            CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel41,
+            CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel4);
+    private static final CodecCapabilityIndex.Entry HEVC = videoEncoder("hevc", MIME_HEVC, 1920, 1088,
+            modes(BITRATE_MODE_VBR, BITRATE_MODE_CBR),
+            CodecProfileLevel.HEVCProfileMain, CodecProfileLevel.HEVCMainTierLevel41);
+
+    @Test
+    public void prefersHevcSurfaceEncoder() {
+        VideoCodecSelector.Selection selection = select(new VideoCodecConfig().setPreferHevc(true),
+                index(AVC, HEVC), API_LOLLIPOP, false);
+        assertSame(HEVC, selection.codec);
+        assertEquals(MIME_HEVC, selection.mimeType);
+    }
+
+    @Test
+    public void fallsBackToAvcWhenHevcUnusable() {
+        VideoCodecConfig config = new VideoCodecConfig().setPreferHevc(true);
+        // 不支持当前尺寸
+        CodecCapabilityIndex.Entry small = videoEncoder("hevc.small", MIME_HEVC, 640, 480, 0);
+        assertAvc(select(config, index(AVC, small), API_Q, false));
+        // 不支持 Surface 输入
+        CodecCapabilityIndex.Entry buffer = CodecIndexFixture.bufferEncoder("hevc.buffer", MIME_HEVC);
+        assertAvc(select(config, index(AVC, buffer), API_Q, false));
+        // 写入 Mp4Writer 时只能使用 H.264
+        assertAvc(select(config, index(AVC, HEVC), API_Q, true));
+        // API 21 以下
+        assertAvc(select(config, index(AVC, HEVC), API_KITKAT, false));
+        // 没有请求 HEVC
+        assertAvc(select(new VideoCodecConfig(), index(AVC, HEVC), API_Q, false));
+    }
+
+    @Test
+    public void avcPrefersEncoderSupportingSize() {
+        CodecCapabilityIndex.Entry small = videoEncoder("avc.small", MIME_AVC, 640, 480, 0);
+        CodecCapabilityIndex.Entry buffer = CodecIndexFixture.bufferEncoder("avc.buffer", MIME_AVC);
+        assertSame(AVC, select(null, index(buffer, small, AVC), API_Q, false).codec);
+        // 都不支持当前尺寸时使用第一个支持 Surface 输入的编码器
+        CodecCapabilityIndex.Entry smaller = videoEncoder("avc.smaller", MIME_AVC, 320, 240, 0);
+        assertSame(small, select(null, index(buffer, small, smaller), API_Q, false).codec);
+        // 没有支持 Surface 输入的编码器
+        assertNull(select(null, index(buffer, HEVC), API_Q, false));
+    }
+
+    @Test
+    public void profileFallsBackFromHighToMainToBaseline() {
+        VideoCodecConfig high = new VideoCodecConfig().setProfile(VideoCodecConfig.PROFILE_HIGH);
+        VideoCodecSelector.Selection selection = select(high, index(AVC), API_MARSHMALLOW, false);
+        assertEquals(CodecProfileLevel.AVCProfileHigh, selection.profile);
+        assertEquals(CodecProfileLevel.AVCLevel4, selection.level);
+
+        CodecCapabilityIndex.Entry main = videoEncoder("avc.main", MIME_AVC, 1920, 1088, 0,
+                CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel41,
+                CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel31);
+        selection = select(high, index(main), API_MARSHMALLOW, false);
+        assertEquals(CodecProfileLevel.AVCProfileMain, selection.profile);
+        assertEquals(CodecProfileLevel.AVCLevel31, selection.level);
+
+        CodecCapabilityIndex.Entry baseline = videoEncoder("avc.baseline", MIME_AVC, 1920, 1088, 0,
+                CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel31,
+                CodecProfileLevel.AVCProfileBaseline, CodecProfileLevel.AVCLevel41);
+        selection = select(high, index(baseline), API_MARSHMALLOW, false);
+        assertEquals(CodecProfileLevel.AVCProfileBaseline, selection.profile);
+        // 同一个 profile 有多个 level 时使用最大的
+        assertEquals(CodecProfileLevel.AVCLevel41, selection.level);
+
+        // 请求 Main 时不会升级到 High
+        selection = select(new VideoCodecConfig().setProfile(VideoCodecConfig.PROFILE_MAIN), index(AVC), API_MARSHMALLOW, false);
+        assertEquals(CodecProfileLevel.AVCProfileMain, selection.profile);
+    }
+
+    @Test
+    public void profileUsesEncoderDefault() {
+        VideoCodecConfig high = new VideoCodecConfig().setProfile(VideoCodecConfig.PROFILE_HIGH);
+        // profile 未知
+        assertProfileDefault(select(high, index(CodecIndexFixture.surfaceEncoder("avc.unknown", MIME_AVC)), API_MARSHMALLOW, false));
+        // API 23 以下
+        assertProfileDefault(select(high, index(AVC), API_MARSHMALLOW - 1, false));
+        // 没有请求
+        assertProfileDefault(select(new VideoCodecConfig(), index(AVC), API_Q, false));
+    }
+
+    @Test
+    public void hevcAlwaysUsesMainProfile() {
+        VideoCodecConfig config = new VideoCodecConfig().setPreferHevc(true).setProfile(VideoCodecConfig.PROFILE_HIGH);
+        VideoCodecSelector.Selection selection = select(config, index(AVC, HEVC), API_MARSHMALLOW, false);
+        assertSame(HEVC, selection.codec);
+        assertEquals(CodecProfileLevel.HEVCProfileMain, selection.profile);
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel41, selection.level);
+    }
+
+    @Test
+    public void bitrateModeFallsBackFromCqToVbrToDefault() {
+        VideoCodecConfig cq = new VideoCodecConfig().setBitrateMode(BITRATE_MODE_CQ).setQuality(80);
+        VideoCodecSelector.Selection selection = select(cq, index(AVC), API_PIE, false);
+        assertEquals(BITRATE_MODE_CQ, selection.bitrateMode);
+        assertEquals(80, selection.quality);
+        // KEY_QUALITY 需要 API 28
+        selection = select(cq, index(AVC), API_PIE - 1, false);
+        assertEquals(BITRATE_MODE_CQ, selection.bitrateMode);
+        assertEquals(0, selection.quality);
+
+        CodecCapabilityIndex.Entry vbr = videoEncoder("avc.vbr", MIME_AVC, 1920, 1088, modes(BITRATE_MODE_VBR, BITRATE_MODE_CBR));
+        selection = select(cq, index(vbr), API_PIE, false);
+        assertEquals(BITRATE_MODE_VBR, selection.bitrateMode);
+        assertEquals(0, selection.quality);
+
+        CodecCapabilityIndex.Entry cbr = videoEncoder("avc.cbr", MIME_AVC, 1920, 1088, modes(BITRATE_MODE_CBR));
+        assertEquals(BITRATE_MODE_DEFAULT, select(cq, index(cbr), API_PIE, false).bitrateMode);
+        // 码率模式未知
+        assertEquals(BITRATE_MODE_DEFAULT, select(cq, index(CodecIndexFixture.surfaceEncoder("avc.unknown", MIME_AVC)),
+                API_PIE, false).bitrateMode);
+        // API 21 以下
+        assertEquals(BITRATE_MODE_DEFAULT, select(cq, index(AVC), API_KITKAT, false).bitrateMode);
+        // 没有请求
+        assertEquals(BITRATE_MODE_DEFAULT, select(new VideoCodecConfig(), index(AVC), API_PIE, false).bitrateMode);
+    }
+
+    @Test
+    public void bFramesRequireApi29AndNonBaselineProfile() {
+        VideoCodecConfig high = new VideoCodecConfig().setProfile(VideoCodecConfig.PROFILE_HIGH).setMaxBFrames(2);
+        assertEquals(2, select(high, index(AVC), API_Q, false).maxBFrames);
+        assertEquals(0, select(high, index(AVC), API_Q - 1, false).maxBFrames);
+        // Mp4Writer 不支持 B 帧
+        assertEquals(0, select(high, index(AVC), API_Q, true).maxBFrames);
+        // Baseline 没有 B 帧
+        VideoCodecConfig baseline = new VideoCodecConfig().setProfile(VideoCodecConfig.PROFILE_BASELINE).setMaxBFrames(2);
+        assertEquals(0, select(baseline, index(AVC), API_Q, false).maxBFrames);
+        // H.264 使用编码器默认 profile 时不确定是否支持 B 帧
+        assertEquals(0, select(new VideoCodecConfig().setMaxBFrames(2), index(AVC), API_Q, false).maxBFrames);
+        // HEVC 不需要指定 profile
+        VideoCodecConfig hevc = new VideoCodecConfig().setPreferHevc(true).setMaxBFrames(2);
+        assertEquals(2, select(hevc, index(AVC, HEVC), API_Q, false).maxBFrames);
+        // avcOnly 时回退到 H.264 , 也不使用 B 帧
+        VideoCodecSelector.Selection selection = select(hevc.setProfile(VideoCodecConfig.PROFILE_HIGH), index(AVC, HEVC), API_Q, true);
+        assertAvc(selection);
+        assertEquals(CodecProfileLevel.AVCProfileHigh, selection.profile);
+        assertEquals(0, selection.maxBFrames);
+    }
+
+    private static VideoCodecSelector.Selection select(VideoCodecConfig config, CodecCapabilityIndex index, int sdkInt, boolean avcOnly) {
+        return VideoCodecSelector.select(config, index, WIDTH, HEIGHT, sdkInt, avcOnly);
+    }
+
+    private static void assertAvc(VideoCodecSelector.Selection selection) {
+        assertSame(AVC, selection.codec);
+        assertEquals(MIME_AVC, selection.mimeType);
+    }
+
+    private static void assertProfileDefault(VideoCodecSelector.Selection selection) {
+        assertEquals(0, selection.profile);
+        assertEquals(0, selection.level);
+    }
+}
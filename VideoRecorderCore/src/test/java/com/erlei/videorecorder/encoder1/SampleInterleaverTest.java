@@ -0,0 +1,188 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleInterleaverTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long WINDOW_US = 500000L;
+    private static final long FRAME_US = 33333L;
+    private static final long AUDIO_FRAME_US = 23220L;
+    /**
+     * 编码器输出相对于输入的延迟
+     */
+    private static final long VIDEO_DELAY_US = 66666L;
+    private static final long AUDIO_DELAY_US = 10000L;
+
+    /**
+     * 每个 sample 的数据是 {轨道 , 序号} , 不依赖 BufferInfo (可测试的 android.jar 中 BufferInfo.set 是空方法)
+     */
+    private final List<long[]> mWritten = new ArrayList<>();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private SampleInterleaver mInterleaver;
+
+    @Before
+    public void setUp() {
+        mInterleaver = new SampleInterleaver(new SampleInterleaver.Sink() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+                final int position = byteBuf.position();
+                assertEquals(trackIndex, byteBuf.getLong(position));
+                mWritten.add(new long[]{trackIndex, byteBuf.getLong(position + 8)});
+            }
+        }, WINDOW_US);
+        mInterleaver.addTrack(VIDEO);
+        mInterleaver.addTrack(AUDIO);
+    }
+
+    @Test
+    public void keepsTrackOrderAndChunksByTime() {
+        long[][] video = video(90, 0);
+        long[][] audio = audio(130);
+        offerByArrival(video, audio);
+        mInterleaver.flush();
+
+        assertTrackOrder(VIDEO, video.length);
+        assertTrackOrder(AUDIO, audio.length);
+        assertChunksOrdered(video, audio);
+        // 3 秒 , 每个 chunk 大约 250ms
+        assertTrue("chunks " + mInterleaver.getChunkCount(), mInterleaver.getChunkCount() <= 2 * (3000 / 250 + 2));
+    }
+
+    @Test
+    public void bFramesKeepDecodeOrder() {
+        long[][] video = video(90, 2);
+        long[][] audio = audio(130);
+        offerByArrival(video, audio);
+        mInterleaver.flush();
+
+        assertTrackOrder(VIDEO, video.length);
+        assertTrackOrder(AUDIO, audio.length);
+        assertChunksOrdered(video, audio);
+    }
+
+    @Test
+    public void bFrameAtQueueTailDoesNotHoldChunk() {
+        // 解码顺序 0 3 1 2 6 4 5 9 7 , 最后一个是 B 帧 (233ms) , 但是轨道已经有 300ms 的帧 , 超过了第一个 chunk 的结尾 (250ms)
+        long[][] video = video(9, 2);
+        for (long[] sample : video) {
+            offer(VIDEO, sample[0], sample[1]);
+        }
+        assertEquals(0, mWritten.size());
+        offer(AUDIO, 0, 0);
+        // 视频的前 7 帧 (decode key < 250ms) 作为一个 chunk 写入 , 不需要等待下一个 B 帧
+        assertEquals(7, mWritten.size());
+        assertTrackOrder(VIDEO, 7);
+    }
+
+    @Test
+    public void overdueSamplesAreWrittenWithoutOtherTrack() {
+        long[][] audio = audio(40);
+        for (long[] sample : audio) {
+            offer(AUDIO, sample[0], sample[1]);
+        }
+        // 视频轨道没有数据 , 超过 interleave window 的音频仍然被写入
+        final long bufferedUs = audio[audio.length - 1][1] - mWritten.size() * AUDIO_FRAME_US;
+        assertTrue("written " + mWritten.size(), mWritten.size() > 0);
+        assertTrue("buffered " + bufferedUs, bufferedUs <= WINDOW_US);
+        assertTrackOrder(AUDIO, mWritten.size());
+    }
+
+    /**
+     * @param bFrames 每两个 P 帧之间的 B 帧数量
+     * @return 解码顺序的 {序号 , 时间戳 , 到达时间}
+     */
+    private static long[][] video(int frames, int bFrames) {
+        List<Integer> order = new ArrayList<>();
+        order.add(0);
+        for (int first = 1; first < frames; first += bFrames + 1) {
+            // 参考帧先于显示顺序在它前面的 B 帧输出
+            final int reference = Math.min(first + bFrames, frames - 1);
+            order.add(reference);
+            for (int b = first; b < reference; b++) {
+                order.add(b);
+            }
+        }
+        long[][] samples = new long[frames][];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = new long[]{i, order.get(i) * FRAME_US, i * FRAME_US + VIDEO_DELAY_US + bFrames * FRAME_US};
+        }
+        return samples;
+    }
+
+    private static long[][] audio(int frames) {
+        long[][] samples = new long[frames][];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = new long[]{i, i * AUDIO_FRAME_US, i * AUDIO_FRAME_US + AUDIO_DELAY_US};
+        }
+        return samples;
+    }
+
+    private void offerByArrival(long[][] video, long[][] audio) {
+        int v = 0, a = 0;
+        while (v < video.length || a < audio.length) {
+            if (a >= audio.length || (v < video.length && video[v][2] <= audio[a][2])) {
+                offer(VIDEO, video[v][0], video[v][1]);
+                v++;
+            } else {
+                offer(AUDIO, audio[a][0], audio[a][1]);
+                a++;
+            }
+        }
+    }
+
+    private void offer(int track, long index, long presentationTimeUs) {
+        ByteBuffer data = ByteBuffer.allocate(64);
+        data.putLong(track).putLong(index).clear();
+        mInfo.offset = 0;
+        mInfo.size = 64;
+        mInfo.presentationTimeUs = presentationTimeUs;
+        mInfo.flags = 0;
+        mInterleaver.offer(track, data, mInfo);
+    }
+
+    private void assertTrackOrder(int track, int count) {
+        long next = 0;
+        for (long[] written : mWritten) {
+            if (written[0] == track) assertEquals(next++, written[1]);
+        }
+        assertEquals(count, next);
+    }
+
+    /**
+     * 每个 chunk 的第一个 sample 的 decode key (轨道到它为止的最大时间戳) 不小于前一个 chunk
+     */
+    private void assertChunksOrdered(long[][] video, long[][] audio) {
+        long[] videoKeys = decodeKeys(video), audioKeys = decodeKeys(audio);
+        long previousKey = Long.MIN_VALUE;
+        int previousTrack = -1;
+        for (long[] written : mWritten) {
+            if (written[0] == previousTrack) continue;
+            previousTrack = (int) written[0];
+            final long key = (written[0] == VIDEO ? videoKeys : audioKeys)[(int) written[1]];
+            assertTrue("chunk at " + key + " after " + previousKey, key >= previousKey);
+            previousKey = key;
+        }
+    }
+
+    private static long[] decodeKeys(long[][] samples) {
+        long[] keys = new long[samples.length];
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < samples.length; i++) {
+            max = Math.max(max, samples[i][1]);
+            keys[i] = max;
+        }
+        return keys;
+    }
+}
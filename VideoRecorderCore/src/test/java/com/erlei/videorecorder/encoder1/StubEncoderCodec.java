@@ -0,0 +1,371 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import com.erlei.videorecorder.encoder.CodecCapabilityIndex;
+import com.erlei.videorecorder.encoder.CodecIndexFixture;
+import com.erlei.videorecorder.encoder.VideoCodecConfig;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 模拟同步模式的 MediaCodec 编码器 , 不做真正的编码
+ * <p>
+ * 每个输入 (Surface 帧或者 PCM 缓冲区) 按顺序占用 frameTimeUs 的编码时间 , 编码完成之后输出一个 sample ;
+ * 第一个输出之前先返回 INFO_OUTPUT_FORMAT_CHANGED 和一个 codec config 缓冲区 .
+ * 输出数据的第一个字节是 KIND_VIDEO / KIND_AUDIO , 之后 8 字节是输入的时间戳 , 再之后 4 字节是 BufferInfo.flags ,
+ * 混合器可以据此区分轨道和检查数据 (见 MemoryMuxer) .
+ * Surface 输入的帧没有编码完的数量达到 MAX_PENDING_FRAMES 时 queueSurfaceFrame 阻塞 , 相当于 swapBuffers 等待 BufferQueue
+ */
+public class StubEncoderCodec implements IEncoderCodec {
+
+    public static final String VIDEO_CODEC = "stub.video.avc";
+    public static final String AUDIO_CODEC = "stub.audio.aac";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+    public static final byte KIND_VIDEO = 'V';
+    public static final byte KIND_AUDIO = 'A';
+    public static final int MAX_PENDING_FRAMES = 8;
+    public static final int KEY_FRAME_INTERVAL = 30;
+    public static final int VIDEO_KEY_FRAME_SIZE = 12000;
+    public static final int VIDEO_FRAME_SIZE = 3000;
+    public static final int AUDIO_FRAME_SIZE = 300;
+    private static final int INPUT_BUFFERS = 4;
+    private static final int OUTPUT_BUFFERS = 4;
+
+    /**
+     * 索引中只有一个视频编码器和一个 AAC 编码器 , 都由这个工厂创建
+     */
+    public static class Factory implements IEncoderCodec.Factory {
+        private final CodecCapabilityIndex mIndex = CodecIndexFixture.index(
+                CodecIndexFixture.surfaceEncoder(VIDEO_CODEC, VideoCodecConfig.MIME_AVC),
+                CodecIndexFixture.encoder(AUDIO_CODEC, MIME_AAC));
+        private final long mVideoFrameTimeUs;
+        private final long mAudioFrameTimeUs;
+        private final List<StubEncoderCodec> mCodecs = new ArrayList<>();
+
+        /**
+         * @param videoFrameTimeUs 编码一帧视频的时间
+         * @param audioFrameTimeUs 编码一个 PCM 缓冲区的时间
+         */
+        public Factory(long videoFrameTimeUs, long audioFrameTimeUs) {
+            mVideoFrameTimeUs = videoFrameTimeUs;
+            mAudioFrameTimeUs = audioFrameTimeUs;
+        }
+
+        @Override
+        public CodecCapabilityIndex getCapabilities(Context context) {
+            return mIndex;
+        }
+
+        @Override
+        public synchronized IEncoderCodec createByCodecName(String name) {
+            final boolean video = VIDEO_CODEC.equals(name);
+            if (!video && !AUDIO_CODEC.equals(name)) throw new IllegalArgumentException("unknown codec " + name);
+            StubEncoderCodec codec = new StubEncoderCodec(video, video ? mVideoFrameTimeUs : mAudioFrameTimeUs);
+            mCodecs.add(codec);
+            return codec;
+        }
+
+        /**
+         * 可测试的 android.jar 中 MediaFormat 的静态方法返回 null , 编码器也不读取格式 , 所以返回空的格式
+         */
+        @Override
+        public MediaFormat createVideoFormat(String mime, int width, int height) {
+            return new MediaFormat();
+        }
+
+        @Override
+        public MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+            return new MediaFormat();
+        }
+
+        /**
+         * @return 最近一个创建了输入 Surface 的编码器 , 没有时返回 null
+         */
+        public synchronized StubEncoderCodec getSurfaceCodec() {
+            for (int i = mCodecs.size() - 1; i >= 0; i--) {
+                if (mCodecs.get(i).mSurfaceInput) return mCodecs.get(i);
+            }
+            return null;
+        }
+
+        public synchronized List<StubEncoderCodec> getCodecs() {
+            return new ArrayList<>(mCodecs);
+        }
+    }
+
+    private final boolean mVideo;
+    private final long mFrameTimeNs;
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[INPUT_BUFFERS];
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[OUTPUT_BUFFERS];
+    private final boolean[] mInputFree = new boolean[INPUT_BUFFERS];
+    private final boolean[] mOutputFree = new boolean[OUTPUT_BUFFERS];
+    /**
+     * 等待编码的输入 : {presentationTimeUs , flags , 编码完成的 nanoTime}
+     */
+    private final ArrayDeque<long[]> mPending = new ArrayDeque<>();
+    private boolean mConfigured, mStarted, mReleased, mSurfaceInput;
+    private boolean mFormatChanged, mConfigSent;
+    private long mLastDoneNs;
+    private int mFramesIn, mFramesOut;
+
+    StubEncoderCodec(boolean video, long frameTimeUs) {
+        mVideo = video;
+        mFrameTimeNs = frameTimeUs * 1000L;
+        for (int i = 0; i < INPUT_BUFFERS; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(8192);
+            mInputFree[i] = true;
+        }
+        for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocate(VIDEO_KEY_FRAME_SIZE);
+            mOutputFree[i] = true;
+        }
+    }
+
+    public boolean isVideo() {
+        return mVideo;
+    }
+
+    /**
+     * @return 收到的输入帧数 , 不包括结束标记
+     */
+    public synchronized int getFramesIn() {
+        return mFramesIn;
+    }
+
+    /**
+     * @return 输出的 sample 数量 , 不包括 codec config 和结束标记
+     */
+    public synchronized int getFramesOut() {
+        return mFramesOut;
+    }
+
+    public synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Surface 输入 : 一帧已经 swap 到输入 Surface , 编码器积压太多时阻塞
+     *
+     * @return 编码器已经释放时返回 false
+     */
+    public synchronized boolean queueSurfaceFrame(long presentationTimeNs) {
+        if (!mSurfaceInput) throw new IllegalStateException("no input surface");
+        while (!mReleased && mPending.size() >= MAX_PENDING_FRAMES) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        if (mReleased || !mStarted) return false;
+        enqueue(presentationTimeNs / 1000L, 0);
+        return true;
+    }
+
+    private void enqueue(long presentationTimeUs, int flags) {
+        final long now = System.nanoTime();
+        mLastDoneNs = Math.max(now, mLastDoneNs) + ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ? 0 : mFrameTimeNs);
+        mPending.addLast(new long[]{presentationTimeUs, flags, mLastDoneNs});
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) mFramesIn++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void configure(MediaFormat format) {
+        if (mConfigured) throw new IllegalStateException("already configured");
+        mConfigured = true;
+    }
+
+    @Override
+    public synchronized Surface createInputSurface() {
+        if (!mConfigured || mStarted || !mVideo) throw new IllegalStateException("createInputSurface");
+        mSurfaceInput = true;
+        // JVM 上无法创建真正的 Surface , 帧来源通过 Factory.getSurfaceCodec 找到这个编码器
+        return null;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!mConfigured) throw new IllegalStateException("not configured");
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void release() {
+        mStarted = false;
+        mReleased = true;
+        notifyAll();
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mInputBuffers;
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mOutputBuffers;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        if (mSurfaceInput) throw new IllegalStateException("surface input");
+        final long deadline = deadline(timeoutUs);
+        while (mStarted) {
+            for (int i = 0; i < INPUT_BUFFERS; i++) {
+                if (mInputFree[i]) {
+                    mInputFree[i] = false;
+                    return i;
+                }
+            }
+            if (!await(deadline)) break;
+        }
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (mInputFree[index]) throw new IllegalStateException("input buffer " + index + " not dequeued");
+        // 编码器立即复制输入数据 , 缓冲区可以马上重新使用
+        mInputFree[index] = true;
+        enqueue(presentationTimeUs, flags);
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        final long deadline = deadline(timeoutUs);
+        while (mStarted) {
+            final long[] head = mPending.peekFirst();
+            final boolean encoded = head != null && head[2] <= System.nanoTime();
+            if (encoded) {
+                if (!mFormatChanged) {
+                    mFormatChanged = true;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                final int index = freeOutputBuffer();
+                if (index >= 0) {
+                    // 直接给字段赋值 , JVM 测试中 BufferInfo.set 是空方法
+                    info.offset = 0;
+                    info.presentationTimeUs = head[0];
+                    if (!mConfigSent) {
+                        mConfigSent = true;
+                        info.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+                        info.size = fill(mOutputBuffers[index], 16, head[0], info.flags);
+                        return index;
+                    }
+                    mPending.pollFirst();
+                    notifyAll();
+                    if ((head[1] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        info.size = 0;
+                        info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        mOutputBuffers[index].clear().limit(0);
+                        return index;
+                    }
+                    final boolean key = !mVideo || mFramesOut % KEY_FRAME_INTERVAL == 0;
+                    final int size = !mVideo ? AUDIO_FRAME_SIZE : key ? VIDEO_KEY_FRAME_SIZE : VIDEO_FRAME_SIZE;
+                    info.flags = key ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                    info.size = fill(mOutputBuffers[index], size, head[0], info.flags);
+                    mFramesOut++;
+                    return index;
+                }
+            }
+            // 没有编码完的输入时等到下一个输入编码完成 , 否则等待 releaseOutputBuffer 或者新的输入
+            final long waitUntil = head != null && !encoded ? Math.min(deadline, head[2]) : deadline;
+            if (!await(waitUntil) && System.nanoTime() >= deadline) break;
+        }
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    /**
+     * @param timeoutUs 小于 0 表示一直等待 , 和 MediaCodec 相同
+     */
+    private static long deadline(long timeoutUs) {
+        return timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutUs * 1000L;
+    }
+
+    /**
+     * @return 等待之前已经超时时返回 false
+     */
+    private boolean await(long deadlineNs) {
+        final long waitNs = deadlineNs - System.nanoTime();
+        if (waitNs <= 0) return false;
+        try {
+            wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private int freeOutputBuffer() {
+        for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+            if (mOutputFree[i]) {
+                mOutputFree[i] = false;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int fill(ByteBuffer buffer, int size, long presentationTimeUs, int flags) {
+        buffer.clear();
+        buffer.put(mVideo ? KIND_VIDEO : KIND_AUDIO).putLong(presentationTimeUs).putInt(flags);
+        while (buffer.position() < size) {
+            buffer.put((byte) buffer.position());
+        }
+        buffer.flip();
+        return size;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        if (mOutputFree[index]) throw new IllegalStateException("output buffer " + index + " not dequeued");
+        mOutputFree[index] = true;
+        notifyAll();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        if (!mSurfaceInput) throw new IllegalStateException("no input surface");
+        enqueue(0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+
+    }
+
+    /**
+     * @return 输出数据的轨道类型 , KIND_VIDEO 或者 KIND_AUDIO
+     */
+    public static byte kindOf(ByteBuffer data, int offset) {
+        return data.get(offset);
+    }
+
+    /**
+     * @return 输出数据中记录的输入时间戳
+     */
+    public static long presentationTimeOf(ByteBuffer data, int offset) {
+        return data.getLong(offset + 1);
+    }
+}
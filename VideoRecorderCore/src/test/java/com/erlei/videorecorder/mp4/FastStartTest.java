@@ -0,0 +1,116 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FastStartTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void movesMoovBeforeMdat() throws IOException {
+        // mdat 超过 1MB , 数据需要分多个窗口移动
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(30000000L, 30, 0, 11);
+        File file = writeMp4(inputs);
+        Mp4TestReader before = Mp4TestReader.read(file);
+        assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), before.topLevelTypes());
+        long length = file.length();
+        long ftypEnd = before.findBox("ftyp").size;
+        assertTrue(before.findBox("mdat").size > 1024 * 1024);
+
+        FastStart.Result result = FastStart.process(file);
+
+        assertTrue(result.moved);
+        assertEquals(before.findBox("moov").position - ftypEnd, result.bytesMoved);
+        assertEquals(length, file.length());
+        Mp4TestReader after = Mp4TestReader.read(file);
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), after.topLevelTypes());
+        FragmentedMp4WriterTest.assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK), after, after.track("vide"));
+        FragmentedMp4WriterTest.assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.AUDIO_TRACK), after, after.track("soun"));
+    }
+
+    @Test
+    public void secondPassLeavesFileUntouched() throws IOException {
+        File file = writeMp4(SyntheticMedia.record(2000000L, 30, 0, 12));
+        assertTrue(FastStart.process(file).moved);
+        byte[] processed = Files.readAllBytes(file.toPath());
+
+        FastStart.Result result = FastStart.process(file);
+
+        assertFalse(result.moved);
+        assertEquals(0, result.bytesMoved);
+        assertArrayEquals(processed, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void boxAfterMoovIsNotMoved() throws IOException {
+        File file = writeMp4(SyntheticMedia.record(2000000L, 30, 0, 13));
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 8, 'f', 'r', 'e', 'e'});
+        out.close();
+        byte[] original = Files.readAllBytes(file.toPath());
+
+        assertFalse(FastStart.process(file).moved);
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void overflowedStcoBecomesCo64() {
+        BoxWriter writer = new BoxWriter(256);
+        writer.start("moov").start("trak").start("mdia").start("minf").start("stbl");
+        writer.startFull("stco", 0, 0).putInt(2).putInt(100).putInt(0xFFFFFFC0).end();
+        writer.end().end().end().end();
+        writer.start("trak").start("mdia").start("minf").start("stbl");
+        writer.startFull("stco", 0, 0).putInt(1).putInt(200).end();
+        writer.end().end().end().end();
+        writer.end();
+        ByteBuffer moov = ByteBuffer.allocate(writer.position());
+        writer.copyTo(moov);
+        moov.flip();
+
+        ByteBuffer patched = FastStart.patchChunkOffsets(moov);
+
+        // 第一个轨道的 stco 加上 moov 的大小后溢出 , 转换为 co64 , 两个 offset 各变大 4 字节
+        int size = patched.remaining();
+        assertEquals(moov.capacity() + 8, size);
+        assertEquals(size, BoxParser.size(patched, 0));
+        int first = BoxParser.findPath(patched, 0, "trak", "mdia", "minf", "stbl");
+        int co64 = BoxParser.findChild(patched, first + 8, first + BoxParser.size(patched, first), "co64");
+        assertTrue(co64 >= 0);
+        assertEquals(100L + size, patched.getLong(co64 + 16));
+        assertEquals(0xFFFFFFC0L + size, patched.getLong(co64 + 24));
+        // 没有溢出的轨道保持 stco
+        int second = BoxParser.findChild(patched, 8, size, "trak", 1);
+        int stbl = BoxParser.findPath(patched, second, "mdia", "minf", "stbl");
+        int stco = BoxParser.findChild(patched, stbl + 8, stbl + BoxParser.size(patched, stbl), "stco");
+        assertEquals(200 + size, patched.getInt(stco + 16));
+    }
+
+    private File writeMp4(List<SyntheticMedia.Input> inputs) throws IOException {
+        File file = mFolder.newFile();
+        Mp4Writer writer = new Mp4Writer(file);
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        for (SyntheticMedia.Input input : inputs) {
+            writer.writeSampleData(input.track, ByteBuffer.wrap(input.data), input.presentationTimeUs, input.sync);
+        }
+        writer.stop();
+        return file;
+    }
+}
@@ -0,0 +1,166 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTripSamples() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(4990000L, 30, 1234567L, 1);
+        File file = mFolder.newFile("fragmented.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        // 关键帧间隔是 29 * 33333us , 比 1 秒略短 , 每个关键帧都切分
+        writer.setFragmentDurationUs(900000L);
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        write(writer, inputs);
+        writer.stop();
+        assertEquals(file.length(), writer.getFileSize());
+
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        List<String> types = reader.topLevelTypes();
+        assertEquals(Arrays.asList("ftyp", "moov"), types.subList(0, 2));
+        for (int i = 2; i < types.size(); i += 2) {
+            assertEquals("moof", types.get(i));
+            assertEquals("mdat", types.get(i + 1));
+        }
+        assertEquals(reader.fragmentCount, (types.size() - 2) / 2);
+        assertEquals(5, reader.fragmentCount);
+
+        assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK), reader, reader.track("vide"));
+        assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.AUDIO_TRACK), reader, reader.track("soun"));
+    }
+
+    @Test
+    public void videoFragmentsStartWithKeyFrame() throws IOException {
+        File file = mFolder.newFile("gop.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        writer.setFragmentDurationUs(500000L);
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        // 关键帧间隔 1.5 秒 , 比分片时长长 , 分片只能在关键帧处切分
+        write(writer, SyntheticMedia.record(5990000L, 45, 0, 2));
+        writer.stop();
+
+        Mp4TestReader.Track video = Mp4TestReader.read(file).track("vide");
+        int fragment = 0;
+        int fragments = 0;
+        for (Mp4TestReader.Sample sample : video.samples) {
+            if (sample.fragment != fragment) {
+                assertTrue("fragment " + sample.fragment + " starts with non-sync sample", sample.sync);
+                fragment = sample.fragment;
+                fragments++;
+            }
+        }
+        assertEquals(4, fragments);
+    }
+
+    @Test
+    public void durationsFollowTimestamps() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(3000000L, 30, 0, 3);
+        File file = mFolder.newFile("duration.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        write(writer, inputs);
+        writer.stop();
+
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        Mp4TestReader.Track video = reader.track("vide");
+        Mp4TestReader.Track audio = reader.track("soun");
+        assertEquals(90000, video.timescale);
+        assertEquals(SyntheticMedia.SAMPLE_RATE, audio.timescale);
+        for (Mp4TestReader.Sample sample : video.samples) {
+            assertEquals(3000, sample.duration, 1);
+        }
+        for (Mp4TestReader.Sample sample : audio.samples) {
+            assertEquals(1024, sample.duration, 1);
+        }
+        // mehd 在 stop() 时回填为最长轨道的时长 (毫秒)
+        assertEquals(3000, reader.mehdDuration, 40);
+    }
+
+    @Test
+    public void completedFragmentsReadableBeforeStop() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(4000000L, 30, 0, 4);
+        File file = mFolder.newFile("unfinished.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        writer.setFragmentDurationUs(900000L);
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        write(writer, inputs);
+
+        // 模拟进程被杀掉 : 不调用 stop() , 已经写完的分片都可以解析
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        assertEquals(file.length(), writer.getFileSize());
+        assertTrue(reader.fragmentCount >= 3);
+        List<SyntheticMedia.Input> video = SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK);
+        Mp4TestReader.Track track = reader.track("vide");
+        assertTrue(track.samples.size() < video.size());
+        for (int i = 0; i < track.samples.size(); i++) {
+            assertArrayEquals(video.get(i).expected(), reader.sampleData(track.samples.get(i)));
+        }
+        writer.stop();
+    }
+
+    @Test
+    public void audioOnlySplitsByDuration() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.track(SyntheticMedia.record(3000000L, 30, 0, 5), SyntheticMedia.AUDIO_TRACK);
+        File file = mFolder.newFile("audio.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        for (SyntheticMedia.Input input : inputs) {
+            writer.writeSampleData(0, ByteBuffer.wrap(input.data), input.presentationTimeUs, input.sync);
+        }
+        writer.stop();
+
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        assertEquals(3, reader.fragmentCount);
+        assertSamples(inputs, reader, reader.track("soun"));
+    }
+
+    @Test
+    public void annexBToLengthPrefixed() {
+        byte[] annexB = {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 1, 0x68, 3, 0, 0, 0, 1, 0x65, 4, 5, 6};
+        byte[] out = new byte[annexB.length + 16];
+        int size = FragmentedMp4Writer.annexBToLengthPrefixed(annexB, annexB.length, out, 0);
+        byte[] expected = {0, 0, 0, 3, 0x67, 1, 2, 0, 0, 0, 2, 0x68, 3, 0, 0, 0, 4, 0x65, 4, 5, 6};
+        assertArrayEquals(expected, Arrays.copyOf(out, size));
+    }
+
+    static void write(FragmentedMp4Writer writer, List<SyntheticMedia.Input> inputs) throws IOException {
+        for (SyntheticMedia.Input input : inputs) {
+            writer.writeSampleData(input.track, ByteBuffer.wrap(input.data), input.presentationTimeUs, input.sync);
+        }
+    }
+
+    static void assertSamples(List<SyntheticMedia.Input> inputs, Mp4TestReader reader, Mp4TestReader.Track track) {
+        assertEquals(inputs.size(), track.samples.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            SyntheticMedia.Input input = inputs.get(i);
+            Mp4TestReader.Sample sample = track.samples.get(i);
+            assertEquals("sync " + i, input.sync, sample.sync);
+            assertArrayEquals("sample " + i, input.expected(), reader.sampleData(sample));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4RecoveryTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void stopDeletesJournal() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(3000000L, 30, 500000L, 21);
+        File file = mFolder.newFile("finished.mp4");
+        File journal = SampleJournal.getJournalFile(file);
+        Mp4Writer writer = newWriter(file);
+        write(writer, inputs);
+        assertTrue(journal.exists());
+        assertTrue(writer.getJournalSize() > 0);
+        assertEquals(inputs.size(), writer.getSampleCount());
+        writer.stop();
+
+        assertFalse(journal.exists());
+        assertFalse(Mp4Recovery.needsRecovery(file));
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        FragmentedMp4WriterTest.assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK), reader, reader.track("vide"));
+        FragmentedMp4WriterTest.assertSamples(SyntheticMedia.track(inputs, SyntheticMedia.AUDIO_TRACK), reader, reader.track("soun"));
+    }
+
+    @Test
+    public void recoversKilledRecording() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(5000000L, 30, 0, 22);
+        File file = killedRecording(mFolder.newFolder("killed"), inputs);
+        assertTrue(Mp4Recovery.needsRecovery(file));
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(file);
+
+        assertFalse(Mp4Recovery.needsRecovery(file));
+        assertEquals(0, result.droppedSamples);
+        assertEquals(file.length(), result.fileSize);
+        // 日志每秒写入一次 , 最多丢失最后一秒的 sample
+        int lostLimit = (int) (1000000L / SyntheticMedia.VIDEO_FRAME_US + 1000000L / SyntheticMedia.AUDIO_FRAME_US) + 2;
+        assertTrue(result.recoveredSamples < inputs.size());
+        assertTrue(result.recoveredSamples >= inputs.size() - lostLimit);
+
+        Mp4TestReader reader = Mp4TestReader.read(file);
+        assertEquals("moov", reader.topLevelTypes().get(reader.boxes.size() - 1));
+        int video = assertPrefix(SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK), reader, reader.track("vide"));
+        int audio = assertPrefix(SyntheticMedia.track(inputs, SyntheticMedia.AUDIO_TRACK), reader, reader.track("soun"));
+        assertEquals(result.recoveredSamples, video + audio);
+    }
+
+    @Test
+    public void incompleteSampleIsDropped() throws IOException {
+        List<SyntheticMedia.Input> inputs = SyntheticMedia.record(5000000L, 30, 0, 23);
+        File complete = killedRecording(mFolder.newFolder("complete"), inputs);
+        File truncated = killedRecording(mFolder.newFolder("truncated"), inputs);
+        Mp4Recovery.Result full = Mp4Recovery.recover(complete);
+
+        // 把最后一个有记录的 sample 截掉一半 , 模拟数据还没有完全写入磁盘
+        Mp4TestReader reader = Mp4TestReader.read(complete);
+        Mp4TestReader.Sample last = null;
+        for (Mp4TestReader.Track track : reader.tracks) {
+            for (Mp4TestReader.Sample sample : track.samples) {
+                if (last == null || sample.offset > last.offset) last = sample;
+            }
+        }
+        RandomAccessFile file = new RandomAccessFile(truncated, "rw");
+        file.setLength(last.offset + last.size / 2);
+        file.close();
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(truncated);
+
+        assertEquals(1, result.droppedSamples);
+        assertEquals(full.recoveredSamples - 1, result.recoveredSamples);
+        Mp4TestReader recovered = Mp4TestReader.read(truncated);
+        int video = assertPrefix(SyntheticMedia.track(inputs, SyntheticMedia.VIDEO_TRACK), recovered, recovered.track("vide"));
+        int audio = assertPrefix(SyntheticMedia.track(inputs, SyntheticMedia.AUDIO_TRACK), recovered, recovered.track("soun"));
+        assertEquals(result.recoveredSamples, video + audio);
+    }
+
+    @Test
+    public void recoverDirectorySkipsFinishedFiles() throws IOException {
+        File dir = mFolder.newFolder("recordings");
+        killedRecording(dir, SyntheticMedia.record(3000000L, 30, 0, 24));
+        killedRecording(dir, SyntheticMedia.record(3000000L, 30, 0, 25));
+        Mp4Writer writer = newWriter(new File(dir, "finished.mp4"));
+        write(writer, SyntheticMedia.record(2000000L, 30, 0, 26));
+        writer.stop();
+        byte[] finished = Files.readAllBytes(new File(dir, "finished.mp4").toPath());
+
+        List<Mp4Recovery.Result> results = Mp4Recovery.recoverDirectory(dir);
+
+        assertEquals(2, results.size());
+        for (Mp4Recovery.Result result : results) {
+            assertTrue(result.recoveredSamples > 0);
+            assertFalse(Mp4Recovery.needsRecovery(result.file));
+        }
+        assertArrayEquals(finished, Files.readAllBytes(new File(dir, "finished.mp4").toPath()));
+    }
+
+    /**
+     * 录制过程中复制 mp4 和日志文件 , 相当于进程在这一刻被杀掉
+     *
+     * @return 复制到 dir 中的 mp4 文件
+     */
+    private File killedRecording(File dir, List<SyntheticMedia.Input> inputs) throws IOException {
+        File live = mFolder.newFile();
+        Mp4Writer writer = newWriter(live);
+        write(writer, inputs);
+        File copy = new File(dir, live.getName() + ".mp4");
+        Files.copy(live.toPath(), copy.toPath());
+        Files.copy(SampleJournal.getJournalFile(live).toPath(), SampleJournal.getJournalFile(copy).toPath());
+        writer.stop();
+        return copy;
+    }
+
+    private static Mp4Writer newWriter(File file) throws IOException {
+        Mp4Writer writer = new Mp4Writer(file);
+        writer.setJournalFile(SampleJournal.getJournalFile(file));
+        writer.addTrack(SyntheticMedia.videoFormat());
+        writer.addTrack(SyntheticMedia.audioFormat());
+        writer.start();
+        return writer;
+    }
+
+    private static void write(Mp4Writer writer, List<SyntheticMedia.Input> inputs) throws IOException {
+        for (SyntheticMedia.Input input : inputs) {
+            writer.writeSampleData(input.track, ByteBuffer.wrap(input.data), input.presentationTimeUs, input.sync);
+        }
+    }
+
+    /**
+     * 修复后的轨道是写入的 sample 的前缀
+     *
+     * @return 修复的 sample 数量
+     */
+    private static int assertPrefix(List<SyntheticMedia.Input> inputs, Mp4TestReader reader, Mp4TestReader.Track track) {
+        assertTrue(track.samples.size() > 0);
+        assertTrue(track.samples.size() <= inputs.size());
+        for (int i = 0; i < track.samples.size(); i++) {
+            assertEquals("sync " + i, inputs.get(i).sync, track.samples.get(i).sync);
+            assertArrayEquals("sample " + i, inputs.get(i).expected(), reader.sampleData(track.samples.get(i)));
+        }
+        return track.samples.size();
+    }
+}
@@ -0,0 +1,267 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 测试用的 MP4 读取器 , 把整个文件读入内存 , 展开 moov 中的 sample table 和 moof 中的 trun ,
+ * 得到每个轨道每个 sample 的位置 , 大小 , 时长和关键帧标记 , 用于校验写入器的输出
+ * 只支持 mp4 包中的写入器用到的结构
+ */
+class Mp4TestReader {
+
+    static class Box {
+        final String type;
+        final long position;
+        final long size;
+
+        Box(String type, long position, long size) {
+            this.type = type;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    static class Sample {
+        final long offset;
+        final int size;
+        final int duration;
+        final boolean sync;
+        /**
+         * 所在的分片 , 从 1 开始 , moov 中的 sample 为 0
+         */
+        final int fragment;
+
+        Sample(long offset, int size, int duration, boolean sync, int fragment) {
+            this.offset = offset;
+            this.size = size;
+            this.duration = duration;
+            this.sync = sync;
+            this.fragment = fragment;
+        }
+    }
+
+    static class Track {
+        int id;
+        String handler;
+        int timescale;
+        boolean largeOffsets;
+        int sttsEntries;
+        int stscEntries;
+        final List<Sample> samples = new ArrayList<>();
+
+        boolean isVideo() {
+            return "vide".equals(handler);
+        }
+
+        long duration() {
+            long duration = 0;
+            for (Sample sample : samples) {
+                duration += sample.duration;
+            }
+            return duration;
+        }
+    }
+
+    final ByteBuffer data;
+    final List<Box> boxes = new ArrayList<>();
+    final List<Track> tracks = new ArrayList<>();
+    long mehdDuration = -1;
+    int fragmentCount;
+
+    private Mp4TestReader(ByteBuffer data) {
+        this.data = data;
+    }
+
+    static Mp4TestReader read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            Mp4TestReader reader = new Mp4TestReader(ByteBuffer.wrap(bytes));
+            reader.parse();
+            return reader;
+        } finally {
+            in.close();
+        }
+    }
+
+    List<String> topLevelTypes() {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    Box findBox(String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type)) return box;
+        }
+        return null;
+    }
+
+    Track track(String handler) {
+        for (Track track : tracks) {
+            if (track.handler.equals(handler)) return track;
+        }
+        return null;
+    }
+
+    byte[] sampleData(Sample sample) {
+        byte[] bytes = new byte[sample.size];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get((int) sample.offset + i);
+        }
+        return bytes;
+    }
+
+    private void parse() throws IOException {
+        int position = 0;
+        int limit = data.capacity();
+        while (position + 8 <= limit) {
+            long size = data.getInt(position) & 0xFFFFFFFFL;
+            if (size == 1) size = data.getLong(position + 8);
+            else if (size == 0) size = limit - position;
+            if (size < 8 || position + size > limit) throw new IOException("invalid box at " + position);
+            String type = BoxParser.type(data, position);
+            boxes.add(new Box(type, position, size));
+            if ("moov".equals(type)) parseMoov(position);
+            else if ("moof".equals(type)) parseMoof(position);
+            position += size;
+        }
+    }
+
+    private void parseMoov(int moov) {
+        int end = moov + BoxParser.size(data, moov);
+        int trak;
+        for (int i = 0; (trak = BoxParser.findChild(data, moov + 8, end, "trak", i)) >= 0; i++) {
+            tracks.add(parseTrak(trak));
+        }
+        int mehd = BoxParser.findPath(data, moov, "mvex", "mehd");
+        if (mehd >= 0) {
+            mehdDuration = BoxParser.version(data, mehd) == 1 ? data.getLong(mehd + 12) : data.getInt(mehd + 12);
+        }
+    }
+
+    private Track parseTrak(int trak) {
+        Track track = new Track();
+        int end = trak + BoxParser.size(data, trak);
+        int tkhd = BoxParser.findChild(data, trak + 8, end, "tkhd");
+        track.id = data.getInt(tkhd + (BoxParser.version(data, tkhd) == 1 ? 28 : 20));
+        int mdhd = BoxParser.findPath(data, trak, "mdia", "mdhd");
+        track.timescale = data.getInt(mdhd + (BoxParser.version(data, mdhd) == 1 ? 28 : 20));
+        int hdlr = BoxParser.findPath(data, trak, "mdia", "hdlr");
+        track.handler = BoxParser.type(data, hdlr + 12);
+
+        int stbl = BoxParser.findPath(data, trak, "mdia", "minf", "stbl");
+        int stblEnd = stbl + BoxParser.size(data, stbl);
+        int stsz = BoxParser.findChild(data, stbl + 8, stblEnd, "stsz");
+        int constantSize = data.getInt(stsz + 12);
+        int count = data.getInt(stsz + 16);
+        if (count == 0) return track;
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = constantSize != 0 ? constantSize : data.getInt(stsz + 20 + i * 4);
+        }
+
+        int stts = BoxParser.findChild(data, stbl + 8, stblEnd, "stts");
+        track.sttsEntries = data.getInt(stts + 12);
+        int[] durations = new int[count];
+        for (int i = 0, sample = 0; i < track.sttsEntries; i++) {
+            int run = data.getInt(stts + 16 + i * 8);
+            int delta = data.getInt(stts + 20 + i * 8);
+            for (int j = 0; j < run; j++) durations[sample++] = delta;
+        }
+
+        boolean[] syncs = new boolean[count];
+        int stss = BoxParser.findChild(data, stbl + 8, stblEnd, "stss");
+        if (stss < 0) {
+            Arrays.fill(syncs, true);
+        } else {
+            for (int i = 0, n = data.getInt(stss + 12); i < n; i++) {
+                syncs[data.getInt(stss + 16 + i * 4) - 1] = true;
+            }
+        }
+
+        int co64 = BoxParser.findChild(data, stbl + 8, stblEnd, "co64");
+        int stco = BoxParser.findChild(data, stbl + 8, stblEnd, "stco");
+        track.largeOffsets = co64 >= 0;
+        int offsets = co64 >= 0 ? co64 : stco;
+        int chunkCount = data.getInt(offsets + 12);
+        long[] chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = co64 >= 0 ? data.getLong(co64 + 16 + i * 8) : data.getInt(stco + 16 + i * 4) & 0xFFFFFFFFL;
+        }
+
+        int stsc = BoxParser.findChild(data, stbl + 8, stblEnd, "stsc");
+        track.stscEntries = data.getInt(stsc + 12);
+        int sample = 0;
+        for (int i = 0; i < track.stscEntries; i++) {
+            int p = stsc + 16 + i * 12;
+            int firstChunk = data.getInt(p) - 1;
+            int lastChunk = i + 1 < track.stscEntries ? data.getInt(p + 12) - 1 : chunkCount;
+            int samplesPerChunk = data.getInt(p + 4);
+            for (int chunk = firstChunk; chunk < lastChunk; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int j = 0; j < samplesPerChunk; j++, sample++) {
+                    track.samples.add(new Sample(offset, sizes[sample], durations[sample], syncs[sample], 0));
+                    offset += sizes[sample];
+                }
+            }
+        }
+        return track;
+    }
+
+    private void parseMoof(int moof) {
+        fragmentCount++;
+        int end = moof + BoxParser.size(data, moof);
+        int traf;
+        for (int i = 0; (traf = BoxParser.findChild(data, moof + 8, end, "traf", i)) >= 0; i++) {
+            int trafEnd = traf + BoxParser.size(data, traf);
+            int tfhd = BoxParser.findChild(data, traf + 8, trafEnd, "tfhd");
+            Track track = findTrack(data.getInt(tfhd + 12));
+            long base = (BoxParser.flags(data, tfhd) & 0x000001) != 0 ? data.getLong(tfhd + 16) : moof;
+            int trun = BoxParser.findChild(data, traf + 8, trafEnd, "trun");
+            int flags = BoxParser.flags(data, trun);
+            int count = data.getInt(trun + 12);
+            int p = trun + 16;
+            long offset = base;
+            if ((flags & 0x000001) != 0) {
+                offset = base + data.getInt(p);
+                p += 4;
+            }
+            if ((flags & 0x000004) != 0) p += 4;
+            for (int j = 0; j < count; j++) {
+                int duration = 0, size = 0, sampleFlags = 0;
+                if ((flags & 0x000100) != 0) {
+                    duration = data.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000200) != 0) {
+                    size = data.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000400) != 0) {
+                    sampleFlags = data.getInt(p);
+                    p += 4;
+                }
+                if ((flags & 0x000800) != 0) p += 4;
+                track.samples.add(new Sample(offset, size, duration, (sampleFlags & 0x00010000) == 0, fragmentCount));
+                offset += size;
+            }
+        }
+    }
+
+    private Track findTrack(int id) {
+        for (Track track : tracks) {
+            if (track.id == id) return track;
+        }
+        throw new IllegalStateException("track " + id + " not in moov");
+    }
+}
@@ -0,0 +1,171 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleTableTest {
+
+    @Test
+    public void sttsIsRunLengthEncoded() {
+        SampleTable table = new SampleTable();
+        for (int i = 0; i < 100; i++) {
+            table.addSample(1000 + i, 3000, 0, true);
+        }
+        table.addChunk(48, 100, 1);
+        table.setLastSampleDuration(1500);
+
+        assertEquals(99 * 3000 + 1500, table.getDuration());
+        assertEquals(1500, table.getLastSampleDuration());
+        ByteBuffer tables = write(table);
+        assertArrayEquals(new int[]{99, 3000, 1, 1500}, entries(tables, "stts", 2));
+    }
+
+    @Test
+    public void cttsWrittenOnlyWithCompositionOffsets() {
+        SampleTable audio = new SampleTable();
+        for (int i = 0; i < 10; i++) {
+            audio.addSample(300, 1024, 0, true);
+        }
+        audio.addChunk(48, 10, 1);
+        assertEquals(-1, find(write(audio), "ctts"));
+
+        SampleTable video = new SampleTable();
+        int[] offsets = {0, 0, 6000, 0, -3000};
+        for (int offset : offsets) {
+            video.addSample(500, 3000, offset, false);
+        }
+        video.addChunk(48, offsets.length, 1);
+        ByteBuffer tables = write(video);
+        int ctts = find(tables, "ctts");
+        // 有负数时使用 version 1
+        assertEquals(1, BoxParser.version(tables, ctts));
+        assertArrayEquals(new int[]{2, 0, 1, 6000, 1, 0, 1, -3000}, entries(tables, "ctts", 2));
+    }
+
+    @Test
+    public void stssListsOnlyKeyFrames() {
+        SampleTable audio = new SampleTable();
+        audio.addSample(300, 1024, 0, true);
+        audio.addChunk(48, 1, 1);
+        assertEquals(-1, find(write(audio), "stss"));
+
+        SampleTable video = new SampleTable();
+        for (int i = 0; i < 90; i++) {
+            video.addSample(500, 3000, 0, i % 30 == 0);
+        }
+        video.addChunk(48, 90, 1);
+        assertArrayEquals(new int[]{1, 31, 61}, entries(write(video), "stss", 1));
+    }
+
+    @Test
+    public void stscMergesChunksWithSameLayout() {
+        SampleTable table = new SampleTable();
+        int[] chunks = {5, 5, 5, 3, 5, 5};
+        long offset = 48;
+        for (int samples : chunks) {
+            for (int i = 0; i < samples; i++) {
+                table.addSample(100, 1024, 0, true);
+            }
+            table.addChunk(offset, samples, 1);
+            offset += samples * 100 + 1000;
+        }
+        table.addSample(100, 1024, 0, true);
+        table.addChunk(offset, 1, 2);
+
+        ByteBuffer tables = write(table);
+        assertArrayEquals(new int[]{1, 5, 1, 4, 3, 1, 5, 5, 1, 7, 1, 2}, entries(tables, "stsc", 3));
+        // 所有 sample 大小相同时 stsz 只写一个值
+        int stsz = find(tables, "stsz");
+        assertEquals(100, tables.getInt(stsz + 12));
+        assertEquals(29, tables.getInt(stsz + 16));
+        assertEquals(20, BoxParser.size(tables, stsz));
+    }
+
+    @Test
+    public void chunkOffsetsSwitchToCo64Above4GB() {
+        SampleTable table = new SampleTable();
+        table.addSample(100, 1024, 0, true);
+        table.addChunk(0xFFFFFF00L, 1, 1);
+        assertFalse(table.isLargeOffsets());
+        ByteBuffer small = write(table);
+        assertEquals(-1, find(small, "co64"));
+        assertEquals(0xFFFFFF00L, small.getInt(find(small, "stco") + 16) & 0xFFFFFFFFL);
+
+        table.addSample(200, 1024, 0, true);
+        table.addChunk(0x100000010L, 1, 1);
+        assertTrue(table.isLargeOffsets());
+        ByteBuffer large = write(table);
+        assertEquals(-1, find(large, "stco"));
+        int co64 = find(large, "co64");
+        assertEquals(2, large.getInt(co64 + 12));
+        assertEquals(0xFFFFFF00L, large.getLong(co64 + 16));
+        assertEquals(0x100000010L, large.getLong(co64 + 24));
+    }
+
+    @Test
+    public void resetRestoresMarkedState() {
+        SampleTable table = new SampleTable();
+        SampleTable expected = new SampleTable();
+        for (SampleTable t : new SampleTable[]{table, expected}) {
+            for (int i = 0; i < 20; i++) {
+                t.addSample(400, 3000, 0, true);
+            }
+            t.addChunk(48, 20, 1);
+        }
+
+        SampleTable.State state = table.mark();
+        // 修改每一个表 : stts 的最后一项 , 新的 ctts , 非关键帧 , 不同大小 , 新的 stsc 项 , 64 位 offset
+        table.addSample(400, 3000, 0, true);
+        table.addSample(900, 1500, 3000, false);
+        table.addChunk(0x100000000L, 2, 2);
+        table.setLastSampleDuration(2000);
+        table.reset(state);
+
+        assertEquals(20, table.getSampleCount());
+        assertEquals(1, table.getChunkCount());
+        assertEquals(expected.getDuration(), table.getDuration());
+        assertFalse(table.isLargeOffsets());
+        assertEquals(write(expected), write(table));
+
+        // reset 之后继续添加和从头添加的结果相同
+        for (SampleTable t : new SampleTable[]{table, expected}) {
+            t.addSample(400, 3000, 0, false);
+            t.addSample(600, 3000, 1500, true);
+            t.addChunk(20000, 2, 1);
+        }
+        assertEquals(write(expected), write(table));
+    }
+
+    private static ByteBuffer write(SampleTable table) {
+        BoxWriter writer = new BoxWriter(1024);
+        table.writeTables(writer);
+        ByteBuffer buffer = ByteBuffer.allocate(writer.position());
+        writer.copyTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int find(ByteBuffer tables, String type) {
+        return BoxParser.findChild(tables, 0, tables.limit(), type);
+    }
+
+    /**
+     * @return full box 中 entry_count 之后的所有 int , 每项 fields 个
+     */
+    private static int[] entries(ByteBuffer tables, String type, int fields) {
+        int box = find(tables, type);
+        int count = tables.getInt(box + 12);
+        assertEquals(16 + count * fields * 4, BoxParser.size(tables, box));
+        int[] values = new int[count * fields];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tables.getInt(box + 16 + i * 4);
+        }
+        return values;
+    }
+}
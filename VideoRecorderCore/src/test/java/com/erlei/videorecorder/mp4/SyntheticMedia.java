@@ -0,0 +1,143 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 合成的 H.264 (Annex-B , 和 MediaCodec 的输出一样) 和 AAC sample , 按时间戳交错排列
+ * NAL 的负载不包含 0 , 不会出现假的起始码 , 转换后的长度前缀格式可以直接计算出来
+ */
+class SyntheticMedia {
+
+    static final int VIDEO_TRACK = 0;
+    static final int AUDIO_TRACK = 1;
+    static final int SAMPLE_RATE = 44100;
+    static final long VIDEO_FRAME_US = 33333;
+    static final long AUDIO_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9, 0x40, 0x50};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0};
+    private static final byte[] ASC = {0x12, 0x08};
+
+    static class Input {
+        final int track;
+        final long presentationTimeUs;
+        final boolean sync;
+        final byte[] data;
+
+        Input(int track, long presentationTimeUs, boolean sync, byte[] data) {
+            this.track = track;
+            this.presentationTimeUs = presentationTimeUs;
+            this.sync = sync;
+            this.data = data;
+        }
+
+        /**
+         * @return 写入文件后的 sample 数据 , 视频是 4 字节长度前缀的格式
+         */
+        byte[] expected() {
+            return track == VIDEO_TRACK ? lengthPrefixed(data) : data;
+        }
+    }
+
+    static TrackFormat videoFormat() {
+        return TrackFormat.createVideo(TrackFormat.MIME_AVC, 640, 480, SPS, PPS);
+    }
+
+    static TrackFormat audioFormat() {
+        return TrackFormat.createAudio(TrackFormat.MIME_AAC, SAMPLE_RATE, 1, ASC);
+    }
+
+    /**
+     * @param durationUs  总时长
+     * @param gopFrames   关键帧间隔 (帧数)
+     * @param startTimeUs 第一个 sample 的时间戳
+     * @return 按时间戳排列的音视频 sample , 同一时刻视频在前
+     */
+    static List<Input> record(long durationUs, int gopFrames, long startTimeUs, long seed) {
+        Random random = new Random(seed);
+        List<Input> inputs = new ArrayList<>();
+        int videoFrames = 0, audioFrames = 0;
+        while (true) {
+            long videoTime = videoFrames * VIDEO_FRAME_US;
+            long audioTime = audioFrames * AUDIO_FRAME_US;
+            if (videoTime >= durationUs && audioTime >= durationUs) break;
+            if (videoTime <= audioTime && videoTime < durationUs) {
+                boolean idr = videoFrames % gopFrames == 0;
+                inputs.add(new Input(VIDEO_TRACK, startTimeUs + videoTime, idr, videoFrame(random, idr)));
+                videoFrames++;
+            } else {
+                inputs.add(new Input(AUDIO_TRACK, startTimeUs + audioTime, true, payload(random, 200 + random.nextInt(200))));
+                audioFrames++;
+            }
+        }
+        return inputs;
+    }
+
+    static List<Input> track(List<Input> inputs, int track) {
+        List<Input> result = new ArrayList<>();
+        for (Input input : inputs) {
+            if (input.track == track) result.add(input);
+        }
+        return result;
+    }
+
+    /**
+     * 关键帧是 SEI (3 字节起始码) + IDR , 其他帧是一个 non-IDR slice
+     */
+    static byte[] videoFrame(Random random, boolean idr) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (idr) {
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(0x06);
+            writePayload(out, payload(random, 16));
+        }
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(idr ? 0x65 : 0x41);
+        writePayload(out, payload(random, idr ? 4000 + random.nextInt(2000) : 500 + random.nextInt(1500)));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return 没有 0 的随机数据
+     */
+    static byte[] payload(Random random, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (1 + random.nextInt(255));
+        }
+        return bytes;
+    }
+
+    /**
+     * Annex-B 转换为 4 字节长度前缀 , 负载中没有 0 , 按起始码切分即可
+     */
+    static byte[] lengthPrefixed(byte[] annexB) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < annexB.length) {
+            while (annexB[i] == 0) i++;
+            i++; // 起始码的 1
+            int start = i;
+            while (i < annexB.length && annexB[i] != 0) i++;
+            int size = i - start;
+            out.write(size >>> 24);
+            out.write(size >>> 16);
+            out.write(size >>> 8);
+            out.write(size);
+            out.write(annexB, start, size);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writePayload(ByteArrayOutputStream out, byte[] payload) {
+        out.write(payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,214 @@
+package com.erlei.videorecorder.recorder;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.erlei.videorecorder.camera.Size;
+import com.erlei.videorecorder.encoder.MemoryMuxer;
+import com.erlei.videorecorder.encoder1.PipelineStats;
+import com.erlei.videorecorder.encoder1.StubEncoderCodec;
+import com.erlei.videorecorder.gles.EglCore;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * 不需要设备的录制流程 : VideoRecorder + 假的帧来源 , PCM 生成器 , 模拟编码器和内存混合器
+ * <p>
+ * 通过 startPreview , setRecordEnabled , stopPreview 驱动 VideoRecorder , 每次录制返回一个 Report ,
+ * 包括输入输出的帧数 , 丢帧 , 从开始录制到第一个 sample 写入的延迟和从停止录制到混合器关闭的延迟
+ */
+public class RecordingHarness {
+
+    public static final Size VIDEO_SIZE = new Size(640, 480);
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * 一次录制的结果
+     */
+    public static class Report {
+        public final MemoryMuxer muxer;
+        public final PipelineStats stats;
+        /**
+         * 录制期间帧来源产生的预览帧数
+         */
+        public final int previewFrames;
+        /**
+         * 从 setRecordEnabled(true) 到第一个 sample 写入混合器
+         */
+        public final long startLatencyMs;
+        /**
+         * 从 setRecordEnabled(false) 到混合器释放
+         */
+        public final long stopLatencyMs;
+
+        Report(MemoryMuxer muxer, PipelineStats stats, int previewFrames, long startLatencyMs, long stopLatencyMs) {
+            this.muxer = muxer;
+            this.stats = stats;
+            this.previewFrames = previewFrames;
+            this.startLatencyMs = startLatencyMs;
+            this.stopLatencyMs = stopLatencyMs;
+        }
+
+        public long getFramesIn(int track) {
+            return stats.getFramesIn(track);
+        }
+
+        public long getFramesOut(int track) {
+            return stats.getFramesOut(track);
+        }
+
+        public long getDroppedFrames(int track) {
+            return stats.getDroppedFrames(track);
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "preview=" + previewFrames +
+                    ", video=" + getFramesIn(PipelineStats.TRACK_VIDEO) + "/" + getFramesOut(PipelineStats.TRACK_VIDEO)
+                    + "/" + getDroppedFrames(PipelineStats.TRACK_VIDEO) +
+                    ", audio=" + getFramesIn(PipelineStats.TRACK_AUDIO) + "/" + getFramesOut(PipelineStats.TRACK_AUDIO)
+                    + "/" + getDroppedFrames(PipelineStats.TRACK_AUDIO) +
+                    " (in/out/dropped)" +
+                    ", skipped=" + stats.getSkippedFrames() +
+                    ", maxBacklog=" + stats.getMaxBacklog() +
+                    ", muxerSamples=" + muxer.getSamples(StubEncoderCodec.KIND_VIDEO).size()
+                    + "/" + muxer.getSamples(StubEncoderCodec.KIND_AUDIO).size() + " (video/audio)" +
+                    ", startLatency=" + startLatencyMs + "ms" +
+                    ", stopLatency=" + stopLatencyMs + "ms" +
+                    '}';
+        }
+    }
+
+    private final StubEncoderCodec.Factory mCodecs;
+    private final SyntheticFrameSource mFrameSource;
+    private final SyntheticPcmRecord.Opener mPcm = new SyntheticPcmRecord.Opener();
+    private final MemoryMuxer.Factory mMuxers = new MemoryMuxer.Factory();
+    private final VideoRecorder mRecorder;
+
+    /**
+     * @param frameRate         帧来源和编码器的帧率
+     * @param videoFrameTimeUs  编码一帧视频的时间
+     * @param maxInFlightFrames 参考 VideoRecorder.Builder#setMaxInFlightFrames
+     * @param outputDir         只用来生成文件名 , 不写入文件
+     */
+    public RecordingHarness(int frameRate, long videoFrameTimeUs, int maxInFlightFrames, File outputDir) {
+        this(frameRate, videoFrameTimeUs, maxInFlightFrames, false, outputDir);
+    }
+
+    /**
+     * @param encoderSession 参考 VideoRecorder.Builder#setEncoderSessionEnable
+     */
+    public RecordingHarness(int frameRate, long videoFrameTimeUs, int maxInFlightFrames, boolean encoderSession, File outputDir) {
+        mCodecs = new StubEncoderCodec.Factory(videoFrameTimeUs, 1000);
+        mFrameSource = new SyntheticFrameSource(frameRate, mCodecs);
+        mRecorder = new VideoRecorder.Builder(new Preview())
+                .setCameraController(createCameraController())
+                .setFrameRate(frameRate)
+                .setMaxInFlightFrames(maxInFlightFrames)
+                .setOutPutPath(outputDir.getPath())
+                .setFrameSource(mFrameSource)
+                .setCodecFactory(mCodecs)
+                .setAudioRecordOpener(mPcm)
+                .setMuxerFactory(mMuxers)
+                .setEncoderSessionEnable(encoderSession)
+                .build();
+    }
+
+    public VideoRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    public StubEncoderCodec.Factory getCodecs() {
+        return mCodecs;
+    }
+
+    public SyntheticPcmRecord.Opener getPcm() {
+        return mPcm;
+    }
+
+    public void startPreview() {
+        mRecorder.startPreview();
+    }
+
+    public void stopPreview() {
+        mRecorder.stopPreview();
+    }
+
+    /**
+     * 录制 durationMs 之后停止 , 等待混合器关闭
+     */
+    public Report record(long durationMs) throws InterruptedException {
+        final int index = mMuxers.getMuxers().size() + 1;
+        final int previewStart = mFrameSource.getFrames();
+        final long startNs = System.nanoTime();
+        mRecorder.setRecordEnabled(true);
+        final MemoryMuxer muxer = mMuxers.await(index, TIMEOUT_MS);
+        if (muxer == null) throw new IllegalStateException("muxer not created");
+        long firstSampleNs;
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((firstSampleNs = muxer.getFirstSampleNs()) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        final long remainMs = durationMs - (System.nanoTime() - startNs) / 1000000L;
+        if (remainMs > 0) Thread.sleep(remainMs);
+        final int previewFrames = mFrameSource.getFrames() - previewStart;
+        final long stopNs = System.nanoTime();
+        mRecorder.setRecordEnabled(false);
+        if (!muxer.awaitRelease(TIMEOUT_MS)) throw new IllegalStateException("muxer not released");
+        // MediaMuxerWrapper 释放混合器之后才记录文件关闭
+        final PipelineStats stats = mRecorder.getPipelineStats();
+        while (!stats.isClosed() && System.nanoTime() - stopNs < TIMEOUT_MS * 1000000L) {
+            Thread.sleep(1);
+        }
+        return new Report(muxer, stats, previewFrames,
+                firstSampleNs < 0 ? -1 : (firstSampleNs - startNs) / 1000000L,
+                (muxer.getReleaseNs() - stopNs) / 1000000L);
+    }
+
+    private static class Preview implements ICameraPreview {
+        private final Context mContext = new ContextWrapper(null);
+
+        @Override
+        public Size getSurfaceSize() {
+            return VIDEO_SIZE;
+        }
+
+        @Override
+        public Context getContext() {
+            return mContext;
+        }
+
+        @Override
+        public Object getSurface(EglCore eglCore) {
+            return null;
+        }
+    }
+
+    /**
+     * 没有相机 , 尺寸返回 VIDEO_SIZE , 其他方法返回默认值
+     */
+    private static CameraController createCameraController() {
+        return (CameraController) Proxy.newProxyInstance(CameraController.class.getClassLoader(),
+                new Class<?>[]{CameraController.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("getSurfaceSize") || name.equals("getCameraSize")) return VIDEO_SIZE;
+                        if (name.equals("toString")) return "CameraController";
+                        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                        if (name.equals("equals")) return proxy == args[0];
+                        final Class<?> type = method.getReturnType();
+                        if (type == boolean.class) return false;
+                        if (type == int.class) return 0;
+                        if (type == long.class) return 0L;
+                        if (type == float.class) return 0f;
+                        if (type == double.class) return 0d;
+                        return null;
+                    }
+                });
+    }
+}
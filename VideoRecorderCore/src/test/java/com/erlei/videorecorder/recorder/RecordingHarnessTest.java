@@ -0,0 +1,129 @@
+package com.erlei.videorecorder.recorder;
+
+import com.erlei.videorecorder.encoder.MemoryMuxer;
+import com.erlei.videorecorder.encoder1.PipelineStats;
+import com.erlei.videorecorder.encoder1.StubEncoderCodec;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingHarnessTest {
+
+    private static final int FRAME_RATE = 30;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+    private RecordingHarness mHarness;
+
+    @After
+    public void tearDown() {
+        if (mHarness != null) mHarness.stopPreview();
+    }
+
+    @Test
+    public void recordsEveryAcceptedFrame() throws Exception {
+        mHarness = new RecordingHarness(FRAME_RATE, 5000, 0, mTemp.getRoot());
+        mHarness.startPreview();
+        RecordingHarness.Report report = mHarness.record(1500);
+        System.out.println("nominal " + report);
+
+        assertClosed(report);
+        final long videoIn = report.getFramesIn(PipelineStats.TRACK_VIDEO);
+        assertTrue("video in " + videoIn, videoIn >= FRAME_RATE * 1500 / 1000 / 2);
+        assertEquals(videoIn, report.getFramesOut(PipelineStats.TRACK_VIDEO));
+        assertEquals(videoIn, mHarness.getCodecs().getSurfaceCodec().getFramesIn());
+        assertEquals(0, report.stats.getSkippedFrames());
+        final long audioIn = report.getFramesIn(PipelineStats.TRACK_AUDIO);
+        assertTrue("audio in " + audioIn, audioIn > 0);
+        assertEquals(audioIn, report.getFramesOut(PipelineStats.TRACK_AUDIO));
+        assertTrue(report.getDroppedFrames(PipelineStats.TRACK_VIDEO) <= 2);
+        assertTrue(report.getDroppedFrames(PipelineStats.TRACK_AUDIO) <= 2);
+        assertTrue("start latency " + report.startLatencyMs, report.startLatencyMs >= 0 && report.startLatencyMs < 2000);
+        assertTrue("stop latency " + report.stopLatencyMs, report.stopLatencyMs >= 0 && report.stopLatencyMs < 2000);
+        for (StubEncoderCodec codec : mHarness.getCodecs().getCodecs()) {
+            assertTrue(codec.isReleased());
+        }
+    }
+
+    @Test
+    public void skipsFramesWhenEncoderFallsBehind() throws Exception {
+        mHarness = new RecordingHarness(FRAME_RATE, 100000, 3, mTemp.getRoot());
+        mHarness.startPreview();
+        RecordingHarness.Report report = mHarness.record(1500);
+        System.out.println("slow encoder " + report);
+
+        assertClosed(report);
+        assertTrue("skipped " + report.stats.getSkippedFrames(), report.stats.getSkippedFrames() > 0);
+        assertTrue("backlog " + report.stats.getMaxBacklog(), report.stats.getMaxBacklog() <= 3);
+        assertEquals(report.getFramesIn(PipelineStats.TRACK_VIDEO), report.getFramesOut(PipelineStats.TRACK_VIDEO));
+        assertEquals(report.getFramesIn(PipelineStats.TRACK_AUDIO), report.getFramesOut(PipelineStats.TRACK_AUDIO));
+    }
+
+    @Test
+    public void recordsConsecutiveFilesInOnePreview() throws Exception {
+        mHarness = new RecordingHarness(FRAME_RATE, 5000, 0, mTemp.getRoot());
+        mHarness.startPreview();
+        MemoryMuxer previous = null;
+        for (int i = 0; i < 3; i++) {
+            RecordingHarness.Report report = mHarness.record(600);
+            System.out.println("file " + i + " " + report);
+            assertClosed(report);
+            assertTrue(report.muxer != previous);
+            previous = report.muxer;
+        }
+    }
+
+    @Test
+    public void encoderSessionRecreatesEncodersBelowKitKat() throws Exception {
+        // 测试环境的 Build.VERSION.SDK_INT 是 0 , 不能请求关键帧 , 每个文件都重新创建编码器
+        mHarness = new RecordingHarness(FRAME_RATE, 5000, 0, true, mTemp.getRoot());
+        mHarness.startPreview();
+        for (int i = 0; i < 3; i++) {
+            RecordingHarness.Report report = mHarness.record(600);
+            System.out.println("session file " + i + " " + report);
+            assertClosed(report);
+            final List<StubEncoderCodec> codecs = mHarness.getCodecs().getCodecs();
+            assertEquals(2 * (i + 1), codecs.size());
+            for (StubEncoderCodec codec : codecs) {
+                assertTrue(codec.isReleased());
+            }
+        }
+    }
+
+    /**
+     * 混合器已经关闭 , 两个轨道都有数据 , 视频从关键帧开始 , 每个轨道的时间戳递增 , 写入的 sample 和统计一致
+     */
+    private static void assertClosed(RecordingHarness.Report report) {
+        assertNotNull(report.stats);
+        assertTrue(report.stats.isClosed());
+        assertTrue(report.muxer.isStopped());
+        assertTrue(report.muxer.isReleased());
+        assertEquals(2, report.muxer.getTrackCount());
+        final List<MemoryMuxer.Sample> video = report.muxer.getSamples(StubEncoderCodec.KIND_VIDEO);
+        final List<MemoryMuxer.Sample> audio = report.muxer.getSamples(StubEncoderCodec.KIND_AUDIO);
+        assertEquals(report.muxer.getSamples().size(), video.size() + audio.size());
+        assertEquals(report.getFramesOut(PipelineStats.TRACK_VIDEO), video.size());
+        assertEquals(report.getFramesOut(PipelineStats.TRACK_AUDIO), audio.size());
+        assertTrue(video.size() > 0);
+        assertTrue(audio.size() > 0);
+        assertTrue(video.get(0).isSyncFrame());
+        assertIncreasing(video);
+        assertIncreasing(audio);
+    }
+
+    private static void assertIncreasing(List<MemoryMuxer.Sample> samples) {
+        for (int i = 1; i < samples.size(); i++) {
+            assertEquals(samples.get(0).track, samples.get(i).track);
+            assertTrue("pts " + samples.get(i - 1).presentationTimeUs + " -> " + samples.get(i).presentationTimeUs,
+                    samples.get(i).presentationTimeUs > samples.get(i - 1).presentationTimeUs);
+        }
+    }
+}
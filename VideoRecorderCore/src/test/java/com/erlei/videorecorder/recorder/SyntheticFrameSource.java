@@ -0,0 +1,87 @@
+package com.erlei.videorecorder.recorder;
+
+import com.erlei.videorecorder.encoder1.StubEncoderCodec;
+
+/**
+ * 按固定帧率产生预览帧的帧来源 , 代替相机和 RenderThread
+ * 编码器的输入 Surface 对应 StubEncoderCodec , swapBuffers 把帧送入最近一个创建了输入 Surface 的编码器
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    private final int mFrameRate;
+    private final StubEncoderCodec.Factory mCodecs;
+    private volatile Thread mThread;
+    private volatile int mFrames;
+
+    public SyntheticFrameSource(int frameRate, StubEncoderCodec.Factory codecs) {
+        mFrameRate = frameRate;
+        mCodecs = codecs;
+    }
+
+    /**
+     * @return 已经产生的预览帧数
+     */
+    public int getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public synchronized void start(final Callback callback) {
+        if (mThread != null) throw new IllegalStateException("already started");
+        mThread = new Thread("SyntheticFrameSource") {
+            @Override
+            public void run() {
+                final long intervalNs = 1000000000L / mFrameRate;
+                long next = System.nanoTime();
+                while (mThread == this) {
+                    callback.onFrameAvailable(System.nanoTime());
+                    mFrames++;
+                    next += intervalNs;
+                    final long sleepNs = next - System.nanoTime();
+                    if (sleepNs > 0) {
+                        try {
+                            Thread.sleep(sleepNs / 1000000L, (int) (sleepNs % 1000000L));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public InputSurface createInputSurface(Object surface) {
+        final StubEncoderCodec codec = mCodecs.getSurfaceCodec();
+        if (codec == null) throw new IllegalStateException("no encoder input surface");
+        return new InputSurface() {
+            private long mPresentationTimeNs;
+
+            @Override
+            public void setPresentationTime(long nsecs) {
+                mPresentationTimeNs = nsecs;
+            }
+
+            @Override
+            public boolean swapBuffers() {
+                return codec.queueSurfaceFrame(mPresentationTimeNs);
+            }
+
+            @Override
+            public void release() {
+
+            }
+        };
+    }
+
+    /**
+     * 不等待线程结束 , 线程可能正在等待 VideoRecorder 的锁 , 和 RenderThread 的 destroy 相同
+     */
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mThread.interrupt();
+        mThread = null;
+    }
+}
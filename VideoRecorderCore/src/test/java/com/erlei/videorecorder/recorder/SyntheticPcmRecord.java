@@ -0,0 +1,144 @@
+package com.erlei.videorecorder.recorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import com.erlei.videorecorder.encoder.AudioRecordFactory;
+
+/**
+ * 产生 16bit 正弦波的 AudioRecord , 按照采样率的实时速度返回数据 , 代替麦克风
+ */
+public class SyntheticPcmRecord extends AudioRecord {
+
+    public static final int TONE_HZ = 1000;
+
+    /**
+     * 每次录制创建一个新的 SyntheticPcmRecord , 采样率和声道数使用请求的值
+     */
+    public static class Opener implements AudioRecordFactory.Opener {
+        private volatile SyntheticPcmRecord mLast;
+
+        @Override
+        public AudioRecord open(int[] sources, int sampleRate, int channelCount, int bufferSize) {
+            mLast = new SyntheticPcmRecord(sampleRate, channelCount, bufferSize);
+            return mLast;
+        }
+
+        /**
+         * @return 最近一次打开的 AudioRecord , 没有时返回 null
+         */
+        public SyntheticPcmRecord getLast() {
+            return mLast;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private long mStartNs = -1;
+    private long mFrames;
+    private volatile boolean mRecording, mReleased;
+
+    public SyntheticPcmRecord(int sampleRate, int channelCount, int bufferSize) {
+        super(MediaRecorder.AudioSource.MIC, sampleRate,
+                channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    @Override
+    public int getState() {
+        return STATE_INITIALIZED;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public void startRecording() {
+        mRecording = true;
+    }
+
+    @Override
+    public void stop() {
+        mRecording = false;
+    }
+
+    @Override
+    public void release() {
+        mRecording = false;
+        mReleased = true;
+    }
+
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * @return 已经返回的采样帧数
+     */
+    public synchronized long getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+        final int frames = sizeInBytes / 2 / mChannelCount;
+        final long start = generate(frames);
+        if (start < 0) return ERROR_INVALID_OPERATION;
+        for (int i = 0; i < frames * mChannelCount; i++) {
+            final short sample = sample(start + i / mChannelCount);
+            audioData[offsetInBytes + i * 2] = (byte) sample;
+            audioData[offsetInBytes + i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return frames * mChannelCount * 2;
+    }
+
+    @Override
+    public int read(short[] audioData, int offsetInShorts, int sizeInShorts) {
+        final int frames = sizeInShorts / mChannelCount;
+        final long start = generate(frames);
+        if (start < 0) return ERROR_INVALID_OPERATION;
+        for (int i = 0; i < frames * mChannelCount; i++) {
+            audioData[offsetInShorts + i] = sample(start + i / mChannelCount);
+        }
+        return frames * mChannelCount;
+    }
+
+    /**
+     * 等到这些采样帧按实时速度已经录制完成
+     *
+     * @return 第一帧的位置 , 没有开始录制时返回 -1
+     */
+    private long generate(int frames) {
+        final long start, endNs;
+        synchronized (this) {
+            if (!mRecording) return -1;
+            if (mStartNs < 0) mStartNs = System.nanoTime();
+            start = mFrames;
+            mFrames += frames;
+            endNs = mStartNs + mFrames * 1000000000L / mSampleRate;
+        }
+        final long sleepNs = endNs - System.nanoTime();
+        if (sleepNs > 0) {
+            try {
+                Thread.sleep(sleepNs / 1000000L, (int) (sleepNs % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return start;
+    }
+
+    private short sample(long position) {
+        return (short) (Short.MAX_VALUE / 2 * Math.sin(2 * Math.PI * TONE_HZ * position / mSampleRate));
+    }
+}
@@ -0,0 +1,72 @@
+package com.erlei.videorecorder.recorder;
+
+import android.os.Message;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VideoRecorderHandlerTest {
+
+    private static final float FULL_SCALE = 32768f;
+
+    /**
+     * 记录 handleAudioLevel 的参数
+     */
+    private static class LevelHandler extends VideoRecorderHandler {
+        float rms = -1, peak = -1;
+        int clipCount = -1;
+
+        @Override
+        protected void handleAudioLevel(float rms, float peak, int clipCount) {
+            this.rms = rms;
+            this.peak = peak;
+            this.clipCount = clipCount;
+        }
+    }
+
+    @Test
+    public void audioLevelRoundTrip() {
+        LevelHandler handler = deliver(11585, 16384, 3);
+        assertEquals(11585 / FULL_SCALE, handler.rms, 0f);
+        assertEquals(0.5f, handler.peak, 0f);
+        assertEquals(3, handler.clipCount);
+    }
+
+    @Test
+    public void fullScalePeakFitsLowBits() {
+        // -32768 的峰值是 32768 , 占满低 16 位的最高位 , 不能影响削波数
+        LevelHandler handler = deliver(32768, 32768, 0x7fff);
+        assertEquals(1f, handler.rms, 0f);
+        assertEquals(1f, handler.peak, 0f);
+        assertEquals(0x7fff, handler.clipCount);
+    }
+
+    @Test
+    public void clipCountIsSaturated() {
+        LevelHandler handler = deliver(100, 32768, 48000 * 2);
+        assertEquals(0x7fff, handler.clipCount);
+        assertEquals(1f, handler.peak, 0f);
+    }
+
+    @Test
+    public void silence() {
+        LevelHandler handler = deliver(0, 0, 0);
+        assertEquals(0f, handler.rms, 0f);
+        assertEquals(0f, handler.peak, 0f);
+        assertEquals(0, handler.clipCount);
+    }
+
+    /**
+     * 和 onAudioLevel 发送的消息相同
+     */
+    private static LevelHandler deliver(int rms, int peak, int clipCount) {
+        Message msg = new Message();
+        msg.what = VideoRecorderHandler.MSG_AUDIO_LEVEL;
+        msg.arg1 = rms;
+        msg.arg2 = VideoRecorderHandler.packPeakAndClips(peak, clipCount);
+        LevelHandler handler = new LevelHandler();
+        handler.handleMessage(msg);
+        return handler;
+    }
+}